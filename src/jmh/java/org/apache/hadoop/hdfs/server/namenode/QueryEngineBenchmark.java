@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import com.paypal.security.SecurityConfiguration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.server.namenode.Constants.Histogram;
+import org.apache.hadoop.util.GSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the query engines over synthetic namespaces built by {@link GSetGenerator}.
+ *
+ * <p>Each trial generates a namespace of roughly the given number of INodes, loads it with the
+ * given engine and runs the queries from a ForkJoinPool of the given parallelism, which the
+ * parallel streams of the engines then run in instead of the common pool. Run with `gradle jmh`;
+ * results are written as JSON to build/reports/jmh/results.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-XX:+UseG1GC"})
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class QueryEngineBenchmark {
+
+  private static final short DIRS_PER_DEPTH = 10;
+  private static final String[] FILTERS = {"fileSize", "modTime"};
+  private static final String[] FILTER_OPS = {"gte:1048576", "olderThanDays:30"};
+  private static final String[] QUOTA_FILTERS = {"hasQuota"};
+  private static final String[] QUOTA_FILTER_OPS = {"eq:true"};
+
+  @Param({"1000000", "10000000", "50000000"})
+  public int inodes;
+
+  @Param({
+    "org.apache.hadoop.hdfs.server.namenode.JavaStreamQueryEngine",
+    "org.apache.hadoop.hdfs.server.namenode.JavaCollectionQEngine"
+  })
+  public String engine;
+
+  @Param({"1", "4", "16"})
+  public int threads;
+
+  private final GSetGenerator generator = new GSetGenerator();
+  private final NameNodeLoader loader = new NameNodeLoader();
+  private ForkJoinPool pool;
+  private QueryEngine queryEngine;
+  private Collection<INode> files;
+  private Collection<INode> quotaDirs;
+  private Collection<INode> filtered;
+
+  /** The histogram to run, so that only the histogram benchmark is run once per type. */
+  @State(Scope.Benchmark)
+  public static class HistogramType {
+    @Param({
+      "user",
+      "accessTime",
+      "modTime",
+      "fileSize",
+      "diskspaceConsumed",
+      "memoryConsumed",
+      "fileReplica",
+      "parentDir",
+      "storageType",
+      "group",
+      "fileType",
+      "dirQuota"
+    })
+    public String type;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    // Directories make up the first depths; files are spread evenly over them.
+    short depth = (short) ((inodes <= 1000000) ? 3 : 4);
+    int numDirs = 0;
+    for (int i = 1, dirsAtDepth = DIRS_PER_DEPTH; i <= depth; i++, dirsAtDepth *= DIRS_PER_DEPTH) {
+      numDirs += dirsAtDepth;
+    }
+    generator.clear();
+    GSet<INode, INodeWithAdditionalFields> gset =
+        generator.getGSet(depth, DIRS_PER_DEPTH, Math.max(1, inodes / numDirs));
+
+    SecurityConfiguration conf = new SecurityConfiguration();
+    conf.set("ldap.enable", "false");
+    conf.set("authorization.enable", "false");
+    conf.set("nna.historical", "false");
+    conf.set("nna.base.dir", MiniDFSCluster.getBaseDirectory());
+    conf.set("nna.query.engine.impl", engine);
+    loader.load(gset, null, conf);
+
+    pool = new ForkJoinPool(threads);
+    queryEngine = loader.getQueryEngine();
+    files = loader.getINodeSet("files");
+    Collection<INode> dirs = loader.getINodeSet("dirs");
+    filtered = run(() -> queryEngine.combinedFilter(files, FILTERS, FILTER_OPS));
+    quotaDirs = run(() -> queryEngine.combinedFilter(dirs, QUOTA_FILTERS, QUOTA_FILTER_OPS));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    pool.shutdown();
+    loader.clear();
+    generator.clear();
+  }
+
+  private <T> T run(Callable<T> query) throws Exception {
+    return pool.submit(query).get();
+  }
+
+  @Benchmark
+  public int combinedFilter() throws Exception {
+    return run(() -> queryEngine.combinedFilter(files, FILTERS, FILTER_OPS).size());
+  }
+
+  @Benchmark
+  public long sum() throws Exception {
+    return run(() -> queryEngine.sum(filtered, "diskspaceConsumed"));
+  }
+
+  @Benchmark
+  public int findFilter() throws Exception {
+    return run(() -> queryEngine.findFilter(files, "max:fileSize").size());
+  }
+
+  @Benchmark
+  public Map<String, Long> histogram(HistogramType histogramType) throws Exception {
+    Histogram type = Histogram.valueOf(histogramType.type);
+    return run(() -> histogram(type));
+  }
+
+  private Map<String, Long> histogram(Histogram type) {
+    Map<String, Function<INode, Long>> transforms = Collections.emptyMap();
+    switch (type) {
+      case user:
+        return queryEngine.byUserHistogram(files, "count", null);
+      case group:
+        return queryEngine.byGroupHistogram(files, "count", null);
+      case accessTime:
+        return queryEngine.accessTimeHistogram(files, "count", null, "monthly");
+      case modTime:
+        return queryEngine.modTimeHistogram(files, "count", null, "monthly");
+      case fileSize:
+        return queryEngine.fileSizeHistogram(files, "count", null);
+      case diskspaceConsumed:
+        return queryEngine.diskspaceConsumedHistogram(files, "count", null, transforms);
+      case fileReplica:
+        return queryEngine.fileReplicaHistogram(files, "count", null, transforms);
+      case storageType:
+        return queryEngine.storageTypeHistogram(files, "count", null);
+      case memoryConsumed:
+        return queryEngine.memoryConsumedHistogram(files, "count", null);
+      case parentDir:
+        return queryEngine.parentDirHistogram(files, 2, "count", null);
+      case fileType:
+        return queryEngine.fileTypeHistogram(files, "count", null);
+      case dirQuota:
+        return queryEngine.dirQuotaHistogram(quotaDirs, "nsQuotaUsed");
+      default:
+        throw new IllegalArgumentException("Unknown histogram type: " + type);
+    }
+  }
+}
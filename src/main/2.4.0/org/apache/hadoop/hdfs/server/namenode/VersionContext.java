@@ -173,4 +173,9 @@ public class VersionContext implements VersionInterface {
   public Long getDsQuotaUsed(INode node) {
     return node.computeQuotaUsage().get(Quota.DISKSPACE);
   }
+
+  @Override // VersionInterface
+  public boolean hasXAttrs(INode node) {
+    return false; // Extended attributes came with Hadoop 2.5.
+  }
 }
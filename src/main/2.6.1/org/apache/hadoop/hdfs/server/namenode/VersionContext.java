@@ -181,7 +181,7 @@ public class VersionContext implements VersionInterface {
     return queryEngine.binMappingHistogramWithFind(
         inodes,
         findOp,
-        queryEngine.getFilterFunctionToLongForINode(findField),
+        queryEngine.getFindFunctionToLongForINode(findField),
         node -> (long) distinctStorageIds.indexOf((long) node.getStoragePolicyID()),
         storageIdToIndexToKeyMap);
   }
@@ -215,4 +215,9 @@ public class VersionContext implements VersionInterface {
   public Long getDsQuotaUsed(INode node) {
     return node.computeQuotaUsage().get(Quota.DISKSPACE);
   }
+
+  @Override // VersionInterface
+  public boolean hasXAttrs(INode node) {
+    return node.getXAttrFeature() != null;
+  }
 }
@@ -21,28 +21,59 @@ package org.apache.hadoop.util;
 
 import com.google.common.collect.Iterators;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.apache.hadoop.hdfs.server.namenode.INodeRegistry;
 import org.apache.hadoop.hdfs.server.namenode.INodeWithAdditionalFields;
 import org.jetbrains.annotations.NotNull;
 
 public class GSetSeperatorWrapper implements GSet<INode, INodeWithAdditionalFields> {
 
-  private final Map<INode, INodeWithAdditionalFields> fileSet;
-  private final Map<INode, INodeWithAdditionalFields> dirSet;
+  private final INodeRegistry fileSet;
+  private final INodeRegistry dirSet;
+  private final List<INodeListener> listeners = new CopyOnWriteArrayList<>();
 
   /**
    * Constructor.
    *
-   * @param files mapping of inode files to maintain
-   * @param dirs mapping of inode dirs to maintain
+   * @param files registry of inode files to maintain
+   * @param dirs registry of inode dirs to maintain
    */
-  public GSetSeperatorWrapper(
-      Map<INode, INodeWithAdditionalFields> files, Map<INode, INodeWithAdditionalFields> dirs) {
+  public GSetSeperatorWrapper(INodeRegistry files, INodeRegistry dirs) {
     this.fileSet = files;
     this.dirSet = dirs;
   }
 
+  /**
+   * Add a listener to notify of INode additions and removals.
+   *
+   * @param listener the listener
+   */
+  public void addListener(INodeListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Stop notifying a listener of INode additions and removals.
+   *
+   * @param listener the listener
+   */
+  public void removeListener(INodeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Notify the listeners that an edit op is about to change an INode in place.
+   *
+   * @param node the INode about to change
+   */
+  public void modifying(INode node) {
+    for (INodeListener listener : listeners) {
+      listener.inodeModifying(node);
+    }
+  }
+
   @Override
   public int size() {
     return fileSet.size() + dirSet.size();
@@ -50,35 +81,50 @@ public class GSetSeperatorWrapper implements GSet<INode, INodeWithAdditionalFiel
 
   @Override
   public boolean contains(INode key) {
-    return fileSet.containsKey(key) || dirSet.containsKey(key);
+    return fileSet.get(key.getId()) != null || dirSet.get(key.getId()) != null;
   }
 
   @Override
   public INodeWithAdditionalFields get(INode key) {
-    INodeWithAdditionalFields val;
-    val = fileSet.get(key);
-    if (val != null) {
-      return val;
+    INode val = fileSet.get(key.getId());
+    if (val == null) {
+      val = dirSet.get(key.getId());
     }
-    return dirSet.get(key);
+    return (INodeWithAdditionalFields) val;
   }
 
   @Override
   public INodeWithAdditionalFields put(INodeWithAdditionalFields element) {
+    INodeWithAdditionalFields previous;
     if (element.isFile()) {
-      return fileSet.put(element, element);
+      previous = (INodeWithAdditionalFields) fileSet.put(element);
+    } else {
+      previous = (INodeWithAdditionalFields) dirSet.put(element);
     }
-    return dirSet.put(element, element);
+    if (previous != element) {
+      for (INodeListener listener : listeners) {
+        if (previous != null) {
+          listener.inodeRemoved(previous);
+        }
+        listener.inodeAdded(element);
+      }
+    }
+    return previous;
   }
 
   @Override
   public INodeWithAdditionalFields remove(INode key) {
     INodeWithAdditionalFields removed;
-    removed = fileSet.remove(key);
+    removed = (INodeWithAdditionalFields) fileSet.remove(key.getId());
+    if (removed == null) {
+      removed = (INodeWithAdditionalFields) dirSet.remove(key.getId());
+    }
     if (removed != null) {
-      return removed;
+      for (INodeListener listener : listeners) {
+        listener.inodeRemoved(removed);
+      }
     }
-    return dirSet.remove(key);
+    return removed;
   }
 
   @Override
@@ -90,6 +136,8 @@ public class GSetSeperatorWrapper implements GSet<INode, INodeWithAdditionalFiel
   @NotNull
   @Override
   public Iterator<INodeWithAdditionalFields> iterator() {
-    return Iterators.concat(fileSet.values().iterator(), dirSet.values().iterator());
+    return Iterators.transform(
+        Iterators.concat(fileSet.iterator(), dirSet.iterator()),
+        inode -> (INodeWithAdditionalFields) inode);
   }
 }
@@ -224,7 +224,7 @@ public class VersionContext implements VersionInterface {
     return queryEngine.binMappingHistogramWithFind(
         inodes,
         findOp,
-        queryEngine.getFilterFunctionToLongForINode(findField),
+        queryEngine.getFindFunctionToLongForINode(findField),
         node -> (long) distinctStorageIds.indexOf((long) node.getStoragePolicyID()),
         storageIdToIndexToKeyMap);
   }
@@ -258,4 +258,9 @@ public class VersionContext implements VersionInterface {
   public Long getDsQuotaUsed(INode node) {
     return node.computeQuotaUsage(BlockStoragePolicySuite.createDefaultSuite()).getStorageSpace();
   }
+
+  @Override // VersionInterface
+  public boolean hasXAttrs(INode node) {
+    return node.getXAttrFeature() != null;
+  }
 }
@@ -24,6 +24,7 @@ import java.util.Collection;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.apache.hadoop.hdfs.server.namenode.INodeSample;
 import org.apache.hadoop.hdfs.server.namenode.NameNodeLoader;
 import org.apache.hadoop.hdfs.server.namenode.queries.BaseQuery;
 import org.apache.hadoop.io.IOUtils;
@@ -91,7 +92,38 @@ class Helper {
 
   static Collection<INode> performFilters(
       NameNodeLoader nameNodeLoader, String set, String[] filters, String[] filterOps) {
-    Collection<INode> inodes = nameNodeLoader.getINodeSet(set);
+    Collection<INode> inodes = QueryJob.track(nameNodeLoader.getINodeSet(set));
+
+    if (filters == null || filters.length == 0 || filterOps == null || filterOps.length == 0) {
+      return inodes;
+    }
+
+    return nameNodeLoader.getQueryEngine().combinedFilter(inodes, filters, filterOps);
+  }
+
+  /**
+   * Bring the subtree rollups up to date once for a query that reads a dirSubTree attribute, as
+   * the query engines only read the rollups as they stand.
+   *
+   * @param nameNodeLoader the loader of the INodes
+   * @param queryParams the filters, sums, types and finds of the query; null ones are skipped
+   */
+  static void refreshSubtreeRollups(NameNodeLoader nameNodeLoader, String... queryParams) {
+    for (String queryParam : queryParams) {
+      if (queryParam != null && queryParam.contains("dirSubTree")) {
+        nameNodeLoader.refreshSubtreeRollups();
+        return;
+      }
+    }
+  }
+
+  static Collection<INode> performSampledFilters(
+      NameNodeLoader nameNodeLoader,
+      INodeSample sample,
+      String set,
+      String[] filters,
+      String[] filterOps) {
+    Collection<INode> inodes = QueryJob.track(sample.getINodeSet(set));
 
     if (filters == null || filters.length == 0 || filterOps == null || filterOps.length == 0) {
       return inodes;
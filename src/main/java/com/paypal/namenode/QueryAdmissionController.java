@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.paypal.namenode;
+
+import com.paypal.security.SecurityConfiguration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
+
+/**
+ * Guards access to the in-memory INode sets on behalf of the web endpoints.
+ *
+ * <p>Read-only queries (filters, histograms, divisions, operation listings) share the read side of
+ * the lock so they can run side by side. Anything that replaces the namespace, like
+ * /reloadNamespace, takes the write side and waits for all running scans to drain.
+ *
+ * <p>Because each scan already fans out over the common ForkJoinPool, letting every reader in at
+ * once would only thrash the CPUs. The admission side caps the number of concurrent scans to a CPU
+ * budget: by default one scan per {@link #CORES_PER_SCAN} available cores, or the value of
+ * "nna.query.concurrent.scans" if configured. Queries past the budget queue fairly.
+ *
+ * <p>If "nna.query.concurrent.enable" is false, every query takes the write side instead, which is
+ * the original one-query-at-a-time behavior.
+ */
+public class QueryAdmissionController {
+
+  static final int CORES_PER_SCAN = 8;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+  private final AtomicInteger queued = new AtomicInteger(0);
+  private final boolean concurrent;
+  private final int maxScans;
+  private final Semaphore scans;
+
+  /**
+   * Constructor.
+   *
+   * @param conf the application configuration
+   */
+  public QueryAdmissionController(SecurityConfiguration conf) {
+    this(conf.getConcurrentQueriesEnabled(), conf.getConcurrentQueryScans());
+  }
+
+  QueryAdmissionController(boolean concurrent, int configuredScans) {
+    this.concurrent = concurrent;
+    if (!concurrent) {
+      this.maxScans = 1;
+    } else if (configuredScans > 0) {
+      this.maxScans = configuredScans;
+    } else {
+      int cores = Runtime.getRuntime().availableProcessors();
+      this.maxScans = Math.max(1, cores / CORES_PER_SCAN);
+    }
+    this.scans = new Semaphore(maxScans, true);
+  }
+
+  /**
+   * Admit a read-only query. Blocks until both a scan permit and the shared lock are held. Must be
+   * paired with {@link #releaseQuery()}.
+   *
+   * @throws InterruptedException if interrupted while waiting for admission
+   */
+  public void acquireQuery() throws InterruptedException {
+    long start = System.nanoTime();
+    queued.incrementAndGet();
+    try {
+      scans.acquire();
+    } finally {
+      queued.decrementAndGet();
+    }
+    try {
+      if (concurrent) {
+        lock.readLock().lockInterruptibly();
+      } else {
+        lock.writeLock().lockInterruptibly();
+      }
+    } catch (InterruptedException e) {
+      scans.release();
+      throw e;
+    }
+    QueryMetrics.observeAdmissionWait(System.nanoTime() - start);
+  }
+
+  /** Release a query admitted by {@link #acquireQuery()}. */
+  public void releaseQuery() {
+    if (concurrent) {
+      lock.readLock().unlock();
+    } else {
+      lock.writeLock().unlock();
+    }
+    scans.release();
+  }
+
+  /** Take exclusive access to the namespace; waits for all running queries to finish. */
+  public void acquireExclusive() {
+    lock.writeLock().lock();
+  }
+
+  /** Release exclusive access taken by {@link #acquireExclusive()}. */
+  public void releaseExclusive() {
+    lock.writeLock().unlock();
+  }
+
+  public boolean isConcurrent() {
+    return concurrent;
+  }
+
+  public int getMaxScans() {
+    return maxScans;
+  }
+
+  public int getRunningScans() {
+    return maxScans - scans.availablePermits();
+  }
+
+  public int getQueuedScans() {
+    return queued.get();
+  }
+}
@@ -0,0 +1,302 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.paypal.namenode;
+
+import com.googlecode.cqengine.IndexedCollection;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.apache.hadoop.hdfs.server.namenode.OrdinalINodeCollection;
+
+/**
+ * A query submitted through the asynchronous query API and run by {@link QueryJobManager}.
+ *
+ * <p>While a job runs, the INode sets its query reads through {@link Helper#performFilters} are
+ * wrapped by {@link #track(Collection)}, so that every scan over them counts the INodes it visits
+ * and checks, every {@link #CHECK_INTERVAL} INodes per split, whether the job was cancelled or ran
+ * past its timeout. Either one stops the scan by throwing a {@link CancellationException} out of
+ * the stream. Progress is the fraction of the set visited by the current scan; queries like
+ * parentDir histograms make more than one pass, which is reported as the number of passes.
+ *
+ * <p>Sets the query engine answers without visiting INodes one by one, like column snapshots and
+ * CQEngine indexes, are not wrapped; cancellation is then only checked between scans.
+ */
+public final class QueryJob {
+
+  static final int CHECK_INTERVAL = 1 << 12;
+
+  private static final ThreadLocal<QueryJob> CURRENT = new ThreadLocal<>();
+
+  /** The lifecycle of a job. */
+  public enum State {
+    QUEUED,
+    RUNNING,
+    SUCCEEDED,
+    FAILED,
+    CANCELLED,
+    TIMED_OUT;
+
+    public boolean isDone() {
+      return this != QUEUED && this != RUNNING;
+    }
+  }
+
+  private final String id;
+  private final String query;
+  private final String userName;
+  private final long timeoutMs;
+  private final Callable<Entry<String, String>> task;
+  private final long submitTime;
+
+  private final LongAdder scanned = new LongAdder();
+  private final AtomicInteger passes = new AtomicInteger(0);
+  private volatile long passStart = 0L;
+  private volatile long total = 0L;
+
+  private volatile State state = State.QUEUED;
+  private volatile boolean cancelled = false;
+  private volatile long deadline = Long.MAX_VALUE;
+  private volatile long startTime = 0L;
+  private volatile long endTime = 0L;
+  private volatile Entry<String, String> result = null;
+  private volatile String error = null;
+
+  /**
+   * Constructor.
+   *
+   * @param id the job id
+   * @param query the query as submitted, for display
+   * @param userName the user who submitted the query
+   * @param timeoutMs the maximum running time in milliseconds; 0 or less for none
+   * @param task computes the content type and body of the result
+   */
+  QueryJob(
+      String id,
+      String query,
+      String userName,
+      long timeoutMs,
+      Callable<Entry<String, String>> task) {
+    this.id = id;
+    this.query = query;
+    this.userName = userName;
+    this.timeoutMs = timeoutMs;
+    this.task = task;
+    this.submitTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Track the scans of an INode set on behalf of the job running on the calling thread, if any.
+   *
+   * @param inodes the INode set
+   * @return the set, tracked if a job is running on this thread
+   * @throws CancellationException if that job was cancelled or timed out
+   */
+  static Collection<INode> track(Collection<INode> inodes) {
+    QueryJob job = CURRENT.get();
+    if (job == null) {
+      return inodes;
+    }
+    job.checkpoint();
+    if (inodes instanceof OrdinalINodeCollection || inodes instanceof IndexedCollection) {
+      return inodes;
+    }
+    return new TrackedINodeCollection(inodes, job);
+  }
+
+  /**
+   * Stop the job running on the calling thread, if any, if it was cancelled or is past its timeout.
+   *
+   * @throws CancellationException if so
+   */
+  static void checkpointCurrent() {
+    QueryJob job = CURRENT.get();
+    if (job != null) {
+      job.checkpoint();
+    }
+  }
+
+  void run() {
+    synchronized (this) {
+      if (state != State.QUEUED) {
+        return;
+      }
+      state = State.RUNNING;
+      startTime = System.currentTimeMillis();
+      if (timeoutMs > 0) {
+        deadline = startTime + timeoutMs;
+      }
+    }
+    CURRENT.set(this);
+    State finalState = State.FAILED;
+    try {
+      result = task.call();
+      finalState = State.SUCCEEDED;
+    } catch (CancellationException e) {
+      finalState = cancelled ? State.CANCELLED : State.TIMED_OUT;
+      error = e.getMessage();
+    } catch (Exception e) {
+      error = e.toString();
+    } finally {
+      CURRENT.remove();
+      synchronized (this) {
+        endTime = System.currentTimeMillis();
+        state = finalState;
+      }
+    }
+  }
+
+  /**
+   * Cancel the job. A queued job never starts; a running job stops at its next check.
+   *
+   * @return true if the job was not done yet
+   */
+  synchronized boolean cancel() {
+    if (state.isDone()) {
+      return false;
+    }
+    cancelled = true;
+    if (state == State.QUEUED) {
+      endTime = System.currentTimeMillis();
+      state = State.CANCELLED;
+    }
+    return true;
+  }
+
+  /**
+   * Stop the running query if the job was cancelled or is past its timeout.
+   *
+   * @throws CancellationException if so
+   */
+  void checkpoint() {
+    if (cancelled) {
+      throw new CancellationException("Query: " + id + " was cancelled.");
+    }
+    if (System.currentTimeMillis() > deadline) {
+      throw new CancellationException("Query: " + id + " timed out after: " + timeoutMs + " ms.");
+    }
+  }
+
+  void startPass(long size) {
+    passes.incrementAndGet();
+    passStart = scanned.sum();
+    total = size;
+  }
+
+  void scanned(long count) {
+    scanned.add(count);
+    checkpoint();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getQuery() {
+    return query;
+  }
+
+  public String getUserName() {
+    return userName;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public long getSubmitTime() {
+    return submitTime;
+  }
+
+  public long getStartTime() {
+    return startTime;
+  }
+
+  public long getEndTime() {
+    return endTime;
+  }
+
+  /** @return the content type and body of the result; or null unless the job succeeded */
+  public Entry<String, String> getResult() {
+    return result;
+  }
+
+  /** @return why the job failed, was cancelled or timed out; or null */
+  public String getError() {
+    return error;
+  }
+
+  /** @return the number of INodes visited by all scans so far */
+  public long getScanned() {
+    return scanned.sum();
+  }
+
+  /** @return the size of the set being scanned by the current pass */
+  public long getTotal() {
+    return total;
+  }
+
+  /** @return the number of scans started over the tracked sets */
+  public int getPasses() {
+    return passes.get();
+  }
+
+  /** @return the fraction, from 0 to 1, of the set visited by the current pass */
+  public double getProgress() {
+    if (state == State.SUCCEEDED) {
+      return 1.0;
+    }
+    long size = total;
+    if (size <= 0) {
+      return 0.0;
+    }
+    return Math.min(1.0, (scanned.sum() - passStart) / (double) size);
+  }
+
+  /** @return the state, progress and timings of the job, for display */
+  public Map<String, Object> getStatus() {
+    long now = System.currentTimeMillis();
+    long started = startTime;
+    long ended = endTime;
+    Map<String, Object> status = new LinkedHashMap<>();
+    status.put("id", id);
+    status.put("query", query);
+    status.put("userName", userName);
+    status.put("state", state.name());
+    status.put("progress", getProgress());
+    status.put("passes", getPasses());
+    status.put("scannedINodes", getScanned());
+    status.put("totalINodes", getTotal());
+    status.put("submitTime", submitTime);
+    status.put("startTime", started);
+    status.put("endTime", ended);
+    status.put("runningMs", (started == 0) ? 0 : ((ended == 0) ? now : ended) - started);
+    if (error != null) {
+      status.put("error", error);
+    }
+    return status;
+  }
+}
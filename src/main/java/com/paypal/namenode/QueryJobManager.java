@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.paypal.namenode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs queries submitted through the asynchronous query API on a bounded pool of threads, so
+ * that long queries no longer hold an HTTP connection and a web server thread while they run.
+ *
+ * <p>Jobs past the number of threads wait in a bounded queue; submissions past that are rejected.
+ * Each job may run for at most the configured timeout. Finished jobs and their results are kept
+ * for the configured retention window, counted from when they finished, and then dropped.
+ */
+public class QueryJobManager {
+
+  private static final Logger LOG = LoggerFactory.getLogger(QueryJobManager.class.getName());
+
+  private final ThreadPoolExecutor executor;
+  private final long timeoutMs;
+  private final long retentionMs;
+  private final Map<String, QueryJob> jobs = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param threads the number of jobs to run at once
+   * @param queueSize the number of jobs that may wait for a thread
+   * @param timeoutMs the maximum running time of a job in milliseconds; 0 or less for none
+   * @param retentionMs how long finished jobs are kept in milliseconds
+   */
+  public QueryJobManager(int threads, int queueSize, long timeoutMs, long retentionMs) {
+    AtomicInteger threadCount = new AtomicInteger(0);
+    this.executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(queueSize, 1)),
+            runnable -> {
+              Thread thread = new Thread(runnable, "QueryJob-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.timeoutMs = timeoutMs;
+    this.retentionMs = retentionMs;
+  }
+
+  /**
+   * Submit a query.
+   *
+   * @param query the query as submitted, for display
+   * @param userName the user submitting the query
+   * @param task computes the content type and body of the result
+   * @return the queued job
+   * @throws IllegalStateException if too many jobs are already queued
+   */
+  public QueryJob submit(String query, String userName, Callable<Entry<String, String>> task) {
+    expire();
+    QueryJob job = new QueryJob(UUID.randomUUID().toString(), query, userName, timeoutMs, task);
+    jobs.put(job.getId(), job);
+    try {
+      executor.execute(job::run);
+    } catch (RejectedExecutionException e) {
+      jobs.remove(job.getId());
+      throw new IllegalStateException(
+          "Too many queries are queued: "
+              + executor.getQueue().size()
+              + ".\nPlease check /queryStatus and try again once some have finished.");
+    }
+    LOG.info("Submitted query: {} as job: {}.", query, job.getId());
+    return job;
+  }
+
+  /**
+   * @param id the job id
+   * @return the job; or null if unknown or expired
+   */
+  public QueryJob get(String id) {
+    expire();
+    return (id == null) ? null : jobs.get(id);
+  }
+
+  /** @return all queued, running and retained jobs, oldest first */
+  public List<QueryJob> getJobs() {
+    expire();
+    List<QueryJob> list = new ArrayList<>(jobs.values());
+    list.sort((a, b) -> Long.compare(a.getSubmitTime(), b.getSubmitTime()));
+    return list;
+  }
+
+  /**
+   * Cancel a job.
+   *
+   * @param id the job id
+   * @return true if the job was queued or running
+   */
+  public boolean cancel(String id) {
+    QueryJob job = get(id);
+    if (job == null || !job.cancel()) {
+      return false;
+    }
+    LOG.info("Cancelled job: {}.", id);
+    return true;
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    Iterator<QueryJob> iterator = jobs.values().iterator();
+    while (iterator.hasNext()) {
+      QueryJob job = iterator.next();
+      if (job.getState().isDone() && now - job.getEndTime() > retentionMs) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /** Cancel all jobs and stop the threads. */
+  public void shutdown() {
+    for (QueryJob job : jobs.values()) {
+      job.cancel();
+    }
+    executor.shutdown();
+    jobs.clear();
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.paypal.namenode;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import org.apache.hadoop.hdfs.server.namenode.INode;
+
+/**
+ * A view over an INode set that reports the INodes scanned through it to a {@link QueryJob}, and
+ * so lets the job stop the scan. Every iterator or spliterator taken is one pass over the set;
+ * splits count locally and report in batches of {@link QueryJob#CHECK_INTERVAL}.
+ */
+final class TrackedINodeCollection extends AbstractCollection<INode> {
+
+  private final Collection<INode> source;
+  private final QueryJob job;
+
+  TrackedINodeCollection(Collection<INode> source, QueryJob job) {
+    this.source = source;
+    this.job = job;
+  }
+
+  @Override
+  public int size() {
+    return source.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return source.isEmpty();
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return source.contains(o);
+  }
+
+  @Override
+  public Iterator<INode> iterator() {
+    job.startPass(source.size());
+    Iterator<INode> iterator = source.iterator();
+    return new Iterator<INode>() {
+      private int count = 0;
+
+      @Override
+      public boolean hasNext() {
+        if (iterator.hasNext()) {
+          return true;
+        }
+        job.scanned(count);
+        count = 0;
+        return false;
+      }
+
+      @Override
+      public INode next() {
+        if (++count == QueryJob.CHECK_INTERVAL) {
+          job.scanned(count);
+          count = 0;
+        }
+        return iterator.next();
+      }
+    };
+  }
+
+  @Override
+  public Spliterator<INode> spliterator() {
+    job.startPass(source.size());
+    return new TrackingSpliterator(source.spliterator());
+  }
+
+  /** Counts the INodes of one split; each split is only ever advanced by one thread. */
+  private final class TrackingSpliterator implements Spliterator<INode> {
+    private final Spliterator<INode> delegate;
+    private int count = 0;
+
+    private TrackingSpliterator(Spliterator<INode> delegate) {
+      this.delegate = delegate;
+    }
+
+    private void count() {
+      if (++count == QueryJob.CHECK_INTERVAL) {
+        flush();
+      }
+    }
+
+    private void flush() {
+      job.scanned(count);
+      count = 0;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super INode> action) {
+      if (delegate.tryAdvance(action)) {
+        count();
+        return true;
+      }
+      flush();
+      return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super INode> action) {
+      delegate.forEachRemaining(
+          node -> {
+            action.accept(node);
+            count();
+          });
+      flush();
+    }
+
+    @Override
+    public Spliterator<INode> trySplit() {
+      Spliterator<INode> split = delegate.trySplit();
+      return (split == null) ? null : new TrackingSpliterator(split);
+    }
+
+    @Override
+    public long estimateSize() {
+      return delegate.estimateSize();
+    }
+
+    @Override
+    public long getExactSizeIfKnown() {
+      return delegate.getExactSizeIfKnown();
+    }
+
+    @Override
+    public int characteristics() {
+      return delegate.characteristics();
+    }
+
+    @Override
+    public Comparator<? super INode> getComparator() {
+      return delegate.getComparator();
+    }
+  }
+}
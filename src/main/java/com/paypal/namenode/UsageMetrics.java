@@ -107,7 +107,18 @@ public class UsageMetrics {
    *
    * @return String
    */
-  public synchronized String getUserMetricsJson() {
+  public String getUserMetricsJson() {
+    return getUserMetricsJson(null);
+  }
+
+  /**
+   * Return a JSON encoded string of user metrics and query cache metrics to be used on the
+   * front-end.
+   *
+   * @param queryCacheMetrics optional; the counters of the query result cache
+   * @return String
+   */
+  public synchronized String getUserMetricsJson(Map<String, Long> queryCacheMetrics) {
     ArrayList<Map> userList = new ArrayList<>();
     for (UserMetrics user : users.values()) {
       userList.add(user.formatForJson());
@@ -115,6 +126,9 @@ public class UsageMetrics {
 
     Map<String, Object> returnValues = new HashMap<>();
     returnValues.put("users", userList);
+    if (queryCacheMetrics != null) {
+      returnValues.put("queryCache", queryCacheMetrics);
+    }
 
     return new Gson().toJson(returnValues);
   }
@@ -41,12 +41,14 @@ import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.net.MalformedURLException;
 import java.sql.SQLException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -56,7 +58,6 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Function;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
@@ -74,11 +75,15 @@ import org.apache.hadoop.hdfs.server.namenode.Constants.Operation;
 import org.apache.hadoop.hdfs.server.namenode.Constants.Sum;
 import org.apache.hadoop.hdfs.server.namenode.Constants.Transform;
 import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.apache.hadoop.hdfs.server.namenode.INodeSample;
 import org.apache.hadoop.hdfs.server.namenode.INodeWithAdditionalFields;
 import org.apache.hadoop.hdfs.server.namenode.JavaCollectionQEngine;
 import org.apache.hadoop.hdfs.server.namenode.NameNodeLoader;
+import org.apache.hadoop.hdfs.server.namenode.PathDump;
 import org.apache.hadoop.hdfs.server.namenode.QueryEngine;
 import org.apache.hadoop.hdfs.server.namenode.TransferFsImageWrapper;
+import org.apache.hadoop.hdfs.server.namenode.cache.QueryResultCache;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
 import org.apache.hadoop.hdfs.server.namenode.operations.BaseOperation;
 import org.apache.hadoop.hdfs.server.namenode.operations.Delete;
 import org.apache.hadoop.hdfs.server.namenode.operations.SetReplication;
@@ -114,6 +119,8 @@ import org.pac4j.jwt.profile.JwtGenerator;
 import org.pac4j.ldap.credentials.authenticator.LdapAuthenticator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import spark.QueryParamsMap;
+import spark.Request;
 import spark.Spark;
 
 /**
@@ -138,21 +145,26 @@ public class WebServerMain {
 
   public static final Logger LOG = LoggerFactory.getLogger(WebServerMain.class.getName());
 
+  private static final String START_TIME_ATTRIBUTE = "nna.startTime";
+
   private final NameNodeLoader nameNodeLoader = new NameNodeLoader();
   private final HsqlDriver hsqlDriver = new HsqlDriver();
   private final TransferFsImageWrapper transferFsImage = new TransferFsImageWrapper(nameNodeLoader);
   private final List<BaseQuery> runningQueries = Collections.synchronizedList(new LinkedList<>());
-  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
   private final SecurityContext secContext = new SecurityContext();
   private final UsageMetrics usageMetrics = new UsageMetrics();
 
   private final ExecutorService operationService = Executors.newFixedThreadPool(1);
-  private final ExecutorService internalService = Executors.newFixedThreadPool(2);
+  private final ExecutorService internalService = Executors.newFixedThreadPool(3);
   private final Map<String, BaseOperation> runningOperations =
       Collections.synchronizedMap(new HashMap<>());
 
   private final AtomicBoolean savingNamespace = new AtomicBoolean(false);
 
+  private QueryAdmissionController admissionController;
+  private QueryResultCache queryCache;
+  private QueryJobManager queryJobs;
+
   /**
    * This is the main launching call for use in production. Should not accept any arguments. Service
    * is dictated by configuration files.
@@ -203,6 +215,24 @@ public class WebServerMain {
       GSet<INode, INodeWithAdditionalFields> inodes,
       Configuration preloadedHadoopConf)
       throws Exception {
+    admissionController = new QueryAdmissionController(conf);
+    LOG.info(
+        "Concurrent queries enabled: {}, with a budget of: {} concurrent scans.",
+        admissionController.isConcurrent(),
+        admissionController.getMaxScans());
+    queryCache =
+        new QueryResultCache(
+            nameNodeLoader::getCurrentTxId,
+            conf.getQueryCacheEnabled() ? conf.getQueryCacheMaxEntries() : 0,
+            conf.getQueryCacheStalenessTxIds(),
+            conf.getQueryCacheTtlMs());
+    queryJobs =
+        new QueryJobManager(
+            conf.getQueryAsyncThreads(),
+            conf.getQueryAsyncQueueSize(),
+            conf.getQueryAsyncTimeoutMs(),
+            conf.getQueryAsyncRetentionMs());
+
     String sslKeystorePath = conf.getSslKeystorePath();
     String sslKeystorePassword = conf.getSslKeystorePassword();
     if (sslKeystorePath == null && sslKeystorePassword == null) {
@@ -408,6 +438,17 @@ public class WebServerMain {
           }
           sb.append("\n");
 
+          sb.append("Concurrent queries enabled: ")
+              .append(admissionController.isConcurrent())
+              .append("\n");
+          sb.append("Query scan budget: ").append(admissionController.getMaxScans()).append("\n");
+          sb.append("Running query scans: ")
+              .append(admissionController.getRunningScans())
+              .append("\n");
+          sb.append("Queued query scans: ")
+              .append(admissionController.getQueuedScans())
+              .append("\n\n");
+
           boolean isInit = nameNodeLoader.isInit();
           boolean isHistorical = nameNodeLoader.isHistorical();
           boolean isProvidingSuggestions = nameNodeLoader.getSuggestionsEngine().isLoaded();
@@ -430,6 +471,18 @@ public class WebServerMain {
                 .append(((dirSetSize * 100.0f) / allSetSize))
                 .append("\n\n");
           }
+          QueryEngine queryEngine = nameNodeLoader.getQueryEngine();
+          if (queryEngine instanceof JavaCollectionQEngine) {
+            JavaCollectionQEngine cqEngine = (JavaCollectionQEngine) queryEngine;
+            sb.append("CQEngine indexes built: ")
+                .append(cqEngine.getIndexesBuilt())
+                .append(" / ")
+                .append(cqEngine.getIndexesTotal())
+                .append("\n");
+            sb.append("CQEngine index building: ")
+                .append(cqEngine.getIndexBuilding())
+                .append("\n\n");
+          }
           sb.append("Cached directories for analysis::\n");
           Set<String> dirs = nameNodeLoader.getSuggestionsEngine().getDirectoriesForAnalysis();
           sb.append("Cached directories size: ").append(dirs.size()).append("\n");
@@ -546,6 +599,7 @@ public class WebServerMain {
     /* All security and query tracking should be done prior to accessing endpoints. */
     before(
         (req, res) -> {
+          req.attribute(START_TIME_ATTRIBUTE, System.currentTimeMillis());
           secContext.handleAuthentication(req, res);
           secContext.handleAuthorization(req, res);
           if (!"POST".equals(req.raw().getMethod())) {
@@ -561,7 +615,18 @@ public class WebServerMain {
         (req, res) -> {
           res.header("Access-Control-Allow-Origin", "*");
           res.header("Content-Type", "application/json; charset=UTF-8");
-          res.body(usageMetrics.getUserMetricsJson());
+          res.body(usageMetrics.getUserMetricsJson(queryCache.getMetrics()));
+          return res;
+        });
+
+    /* METRICS/PROMETHEUS endpoint is meant to return endpoint and query stage latencies, admission
+    waits, scanned INodes and result sizes in the Prometheus text format for scraping. */
+    get(
+        "/metrics/prometheus",
+        (req, res) -> {
+          res.header("Access-Control-Allow-Origin", "*");
+          res.header("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+          res.body(QueryMetrics.toPrometheus());
           return res;
         });
 
@@ -701,7 +766,7 @@ public class WebServerMain {
             return "";
           }
 
-          lock.writeLock().lock();
+          admissionController.acquireQuery();
           try {
             String filterStr1 = req.queryMap("filters1").value();
             String filterStr2 = req.queryMap("filters2").value();
@@ -761,7 +826,7 @@ public class WebServerMain {
 
             return res;
           } finally {
-            lock.writeLock().unlock();
+            admissionController.releaseQuery();
           }
         });
 
@@ -779,7 +844,7 @@ public class WebServerMain {
             return "";
           }
 
-          lock.writeLock().lock();
+          admissionController.acquireQuery();
           try {
             String fullFilterStr = req.queryMap("filters").value();
             String emailsToStr = req.queryMap("emailTo").value();
@@ -796,20 +861,67 @@ public class WebServerMain {
             String sumStr = req.queryMap("sum").value();
             String[] sums = (sumStr != null) ? sumStr.split(",") : new String[] {"count"};
             Integer limit = req.queryMap("limit").integerValue();
-            if (limit == null) {
-              limit = Integer.MAX_VALUE;
-            }
+            Boolean sorted = req.queryMap("sorted").booleanValue();
+            Boolean gzip = req.queryMap("gzip").booleanValue();
+            Integer pageSize = req.queryMap("pageSize").integerValue();
+            String cursor = req.queryMap("cursor").value();
+            Boolean approx = req.queryMap("approx").booleanValue();
 
             for (String sum : sums) {
               QueryChecker.isValidQuery(set, filters, null, sum, filterOps, find);
             }
+            Helper.refreshSubtreeRollups(nameNodeLoader, fullFilterStr, sumStr, find);
 
-            Collection<INode> filteredINodes =
-                Helper.performFilters(nameNodeLoader, set, filters, filterOps, find);
+            if (approx != null && approx) {
+              if (sumStr == null) {
+                throw new IllegalArgumentException("Approximate filters need a sum.");
+              }
+              if (find != null && !find.isEmpty()) {
+                throw new IllegalArgumentException(
+                    "Approximate queries do not support find: " + find + ".");
+              }
+              INodeSample sample = nameNodeLoader.refreshSample();
+              Collection<INode> sampled =
+                  Helper.performSampledFilters(nameNodeLoader, sample, set, filters, filterOps);
+              StringBuilder message = new StringBuilder();
+              for (String sum : sums) {
+                Map<String, List<Long>> estimate =
+                    sample.estimate(
+                        sampled,
+                        sampledINodes ->
+                            Collections.singletonMap(
+                                sum, nameNodeLoader.getQueryEngine().sum(sampledINodes, sum)));
+                List<Long> interval = estimate.getOrDefault(sum, Arrays.asList(0L, 0L, 0L));
+                message.append(interval.get(0)).append(",");
+                message.append(interval.get(1)).append(",");
+                message.append(interval.get(2)).append("\n");
+              }
+              res.body(message.toString());
+              return res;
+            }
+
+            List<Long> sumValues = null;
+            if (sumStr != null) {
+              String cacheKey =
+                  QueryResultCache.key(
+                      "/filter", "set", set, "filters", fullFilterStr, "sum", sumStr, "find", find);
+              sumValues =
+                  queryCache.get(
+                      cacheKey,
+                      () -> {
+                        Collection<INode> filteredINodes =
+                            Helper.performFilters(nameNodeLoader, set, filters, filterOps, find);
+                        List<Long> values = new ArrayList<>(sums.length);
+                        for (String sum : sums) {
+                          values.add(nameNodeLoader.getQueryEngine().sum(filteredINodes, sum));
+                        }
+                        return values;
+                      });
+            }
 
             if (sums.length == 1 && sumStr != null) {
               String sum = sums[0];
-              long sumValue = nameNodeLoader.getQueryEngine().sum(filteredINodes, sum);
+              long sumValue = sumValues.get(0);
               String message = String.valueOf(sumValue);
               if (emailsTo != null
                   && emailsTo.length != 0
@@ -836,18 +948,22 @@ public class WebServerMain {
               res.body(message);
             } else if (sums.length > 1 && sumStr != null) {
               StringBuilder message = new StringBuilder();
-              for (String sum : sums) {
-                long sumValue = nameNodeLoader.getQueryEngine().sum(filteredINodes, sum);
+              for (long sumValue : sumValues) {
                 message.append(sumValue).append("\n");
               }
               res.body(message.toString());
             } else {
-              nameNodeLoader.getQueryEngine().dumpINodePaths(filteredINodes, limit, res.raw());
+              Collection<INode> filteredINodes =
+                  Helper.performFilters(nameNodeLoader, set, filters, filterOps, find);
+              PathDump dump =
+                  new PathDump(
+                      limit, sorted == null || sorted, gzip != null && gzip, pageSize, cursor);
+              dump.write(filteredINodes, res.raw());
             }
 
             return res;
           } finally {
-            lock.writeLock().unlock();
+            admissionController.releaseQuery();
           }
         });
 
@@ -867,219 +983,121 @@ public class WebServerMain {
             return Histograms.toChartJsJson(new HashMap<>(), "not_loaded", "", "");
           }
 
-          lock.writeLock().lock();
+          admissionController.acquireQuery();
           try {
-            final String fullFilterStr = req.queryMap("filters").value();
-            final String histogramConditionsStr = req.queryMap("histogramConditions").value();
-            final String emailsToStr = req.queryMap("emailTo").value();
-            final String emailsCcStr = req.queryMap("emailCC").value();
-            final String emailFrom = req.queryMap("emailFrom").value();
-            final String emailHost = req.queryMap("emailHost").value();
-            final String emailConditionsStr = req.queryMap("emailConditions").value();
-            final String[] filters = Helper.parseFilters(fullFilterStr);
-            final String[] filterOps = Helper.parseFilterOps(fullFilterStr);
-            final String histType = req.queryMap("type").value();
-            final String set = req.queryMap("set").value();
-            final Integer top = req.queryMap("top").integerValue();
-            final Integer bottom = req.queryMap("bottom").integerValue();
-            final String sumStr = req.queryMap("sum").value();
-            final Boolean useLock = req.queryMap("useLock").booleanValue();
-            final Boolean sortAscending = req.queryMap("sortAscending").booleanValue();
-            final Boolean sortDescending = req.queryMap("sortDescending").booleanValue();
-            final String sum = (sumStr != null) ? sumStr : "count";
-            final String[] emailsTo = (emailsToStr != null) ? emailsToStr.split(",") : null;
-            final String[] emailsCc = (emailsCcStr != null) ? emailsCcStr.split(",") : null;
-            final String transformConditionsStr = req.queryMap("transformConditions").value();
-            final String transformFieldsStr = req.queryMap("transformFields").value();
-            final String transformOutputsStr = req.queryMap("transformOutputs").value();
-            final Integer parentDirDepth = req.queryMap("parentDirDepth").integerValue();
-            final String timeRangeStr = req.queryMap("timeRange").value();
-            final String timeRange = (timeRangeStr != null) ? timeRangeStr : "weekly";
-            final String outputTypeStr = req.queryMap("histogramOutput").value();
-            final String outputType = (outputTypeStr != null) ? outputTypeStr : "chart";
-            final String type = req.queryMap("type").value();
-            final String find = req.queryMap("find").value();
+            Entry<String, String> response = histogram(req.queryMap(), true);
+            res.header("Content-Type", response.getKey());
+            return response.getValue();
+          } finally {
+            admissionController.releaseQuery();
+          }
+        });
 
-            QueryChecker.isValidQuery(set, filters, type, sum, filterOps, find);
-            Collection<INode> filteredINodes =
-                Helper.performFilters(nameNodeLoader, set, filters, filterOps);
+    /* SUBMITQUERY endpoint runs a query in the background and returns its status, including the
+    "id" to poll /queryStatus and /queryResult with. The "&query=" parameter names the query;
+    "histogram" takes the same parameters as the /histogram endpoint. */
+    get(
+        "/submitQuery",
+        (req, res) -> {
+          res.header("Access-Control-Allow-Origin", "*");
+          res.header("Content-Type", "application/json");
+          if (!nameNodeLoader.isInit()) {
+            return "";
+          }
 
-            Histogram htEnum = Histogram.valueOf(histType);
-            Map<String, Function<INode, Long>> transformMap =
-                Transforms.getAttributeTransforms(
-                    transformConditionsStr,
-                    transformFieldsStr,
-                    transformOutputsStr,
-                    nameNodeLoader);
-            Map<String, Long> histogram;
-            final long startTime = System.currentTimeMillis();
-            String binLabels;
+          String query = req.queryMap("query").value();
+          if (!"histogram".equals(query)) {
+            throw new IllegalArgumentException(
+                "Could not submit query: "
+                    + query
+                    + ".\nPlease check /submitQuery for available queries: histogram.");
+          }
+          QueryParamsMap params = req.queryMap();
+          QueryJob job =
+              queryJobs.submit(
+                  req.raw().getRequestURI() + "?" + req.raw().getQueryString(),
+                  secContext.getUserName(),
+                  () -> {
+                    // Jobs stop as soon as they are admitted if cancelled or timed out meanwhile.
+                    QueryJob.checkpointCurrent();
+                    admissionController.acquireQuery();
+                    try {
+                      QueryJob.checkpointCurrent();
+                      return histogram(params, false);
+                    } finally {
+                      admissionController.releaseQuery();
+                    }
+                  });
+          return Histograms.toJson(job.getStatus());
+        });
 
-            nameNodeLoader.namesystemWriteLock(useLock);
-            try {
-              switch (htEnum) {
-                case user:
-                  histogram =
-                      nameNodeLoader.getQueryEngine().byUserHistogram(filteredINodes, sum, find);
-                  binLabels = "User Names";
-                  break;
-                case group:
-                  histogram =
-                      nameNodeLoader.getQueryEngine().byGroupHistogram(filteredINodes, sum, find);
-                  binLabels = "Group Names";
-                  break;
-                case accessTime:
-                  histogram =
-                      nameNodeLoader
-                          .getQueryEngine()
-                          .accessTimeHistogram(filteredINodes, sum, find, timeRange);
-                  binLabels = "Last Accessed Time";
-                  break;
-                case modTime:
-                  histogram =
-                      nameNodeLoader
-                          .getQueryEngine()
-                          .modTimeHistogram(filteredINodes, sum, find, timeRange);
-                  binLabels = "Last Modified Time";
-                  break;
-                case fileSize:
-                  histogram =
-                      nameNodeLoader.getQueryEngine().fileSizeHistogram(filteredINodes, sum, find);
-                  binLabels = "File Sizes (No Replication Factor)";
-                  break;
-                case diskspaceConsumed:
-                  histogram =
-                      nameNodeLoader
-                          .getQueryEngine()
-                          .diskspaceConsumedHistogram(filteredINodes, sum, find, transformMap);
-                  binLabels = "Diskspace Consumed (File Size * Replication Factor)";
-                  break;
-                case fileReplica:
-                  histogram =
-                      nameNodeLoader
-                          .getQueryEngine()
-                          .fileReplicaHistogram(filteredINodes, sum, find, transformMap);
-                  binLabels = "File Replication Factor";
-                  break;
-                case storageType:
-                  histogram =
-                      nameNodeLoader
-                          .getQueryEngine()
-                          .storageTypeHistogram(filteredINodes, sum, find);
-                  binLabels = "Storage Type Policy";
-                  break;
-                case memoryConsumed:
-                  histogram =
-                      nameNodeLoader
-                          .getQueryEngine()
-                          .memoryConsumedHistogram(filteredINodes, sum, find);
-                  binLabels = "Memory Consumed";
-                  break;
-                case parentDir:
-                  histogram =
-                      nameNodeLoader
-                          .getQueryEngine()
-                          .parentDirHistogram(filteredINodes, parentDirDepth, sum, find);
-                  binLabels = "Directory Path";
-                  break;
-                case fileType:
-                  histogram =
-                      nameNodeLoader.getQueryEngine().fileTypeHistogram(filteredINodes, sum, find);
-                  binLabels = "File Type";
-                  break;
-                case dirQuota:
-                  histogram =
-                      nameNodeLoader.getQueryEngine().dirQuotaHistogram(filteredINodes, sum);
-                  binLabels = "Directory Path";
-                  break;
-                default:
-                  throw new IllegalArgumentException(
-                      "Could not determine histogram type: "
-                          + histType
-                          + ".\nPlease check /histograms for available histograms.");
+    /* QUERYSTATUS endpoint returns the state and progress of the query with the given "&id=", or
+    of all the queries submitted by the current user if no id is given. Only the user who submitted
+    a query, or an admin, may see it. */
+    get(
+        "/queryStatus",
+        (req, res) -> {
+          res.header("Access-Control-Allow-Origin", "*");
+          res.header("Content-Type", "application/json");
+          String id = req.queryMap("id").value();
+          if (id == null) {
+            String userName = secContext.getUserName();
+            List<Map<String, Object>> statuses = new ArrayList<>();
+            for (QueryJob job : queryJobs.getJobs()) {
+              if (userName == null || userName.equals(job.getUserName())) {
+                statuses.add(job.getStatus());
               }
-            } finally {
-              nameNodeLoader.namesystemWriteUnlock(useLock);
-            }
-
-            // Perform conditions filtering.
-            if (histogramConditionsStr != null && !histogramConditionsStr.isEmpty()) {
-              histogram =
-                  nameNodeLoader
-                      .getQueryEngine()
-                      .removeKeysOnConditional(histogram, histogramConditionsStr);
-            }
-
-            // Slice top and bottom.
-            if (top != null && bottom != null) {
-              throw new IllegalArgumentException("Please choose only one type of slice.");
-            } else if (top != null && top > 0) {
-              histogram = Histograms.sliceToTop(histogram, top);
-            } else if (bottom != null && bottom > 0) {
-              histogram = Histograms.sliceToBottom(histogram, bottom);
-            }
-
-            // Sort results.
-            if (sortAscending != null && sortDescending != null) {
-              throw new IllegalArgumentException("Please choose one type of sort.");
-            } else if (sortAscending != null && sortAscending) {
-              histogram = Histograms.sortByValue(histogram, true);
-            } else if (sortDescending != null && sortDescending) {
-              histogram = Histograms.sortByValue(histogram, false);
             }
+            return Histograms.toJson(statuses);
+          }
+          QueryJob job = queryJobs.get(id);
+          if (job == null) {
+            throw new MalformedURLException("Query not found.");
+          }
+          secContext.checkQueryOwner(id, job.getUserName());
+          return Histograms.toJson(job.getStatus());
+        });
 
-            long endTime = System.currentTimeMillis();
-            LOG.info("Performing histogram: {} took: {} ms.", histType, (endTime - startTime));
-
-            // Email out.
-            if (emailsTo != null
-                && emailsTo.length != 0
-                && emailHost != null
-                && emailFrom != null) {
-              String subject =
-                  nameNodeLoader.getAuthority()
-                      + " | X: "
-                      + histType
-                      + " | Y: "
-                      + sum
-                      + " | "
-                      + set
-                      + " | Filters: "
-                      + fullFilterStr;
-              try {
-                Set<String> highlightKeys = new HashSet<>();
-                if (emailConditionsStr != null) {
-                  MailOutput.check(emailConditionsStr, histogram, highlightKeys, nameNodeLoader);
-                }
-                MailOutput.write(
-                    subject, histogram, highlightKeys, emailHost, emailsTo, emailsCc, emailFrom);
-              } catch (Exception e) {
-                LOG.info("Failed to email output with exception: {}", e);
-              }
-            }
+    /* QUERYRESULT endpoint returns the result of the query with the given "&id=" once it has
+    succeeded; until then it returns the query status, with status 202 while the query is queued
+    or running and status 409 once it has failed, been cancelled or timed out. Only the user who
+    submitted the query, or an admin, may fetch its result. */
+    get(
+        "/queryResult",
+        (req, res) -> {
+          res.header("Access-Control-Allow-Origin", "*");
+          String id = req.queryMap("id").value();
+          QueryJob job = queryJobs.get(id);
+          if (job == null) {
+            throw new MalformedURLException("Query not found.");
+          }
+          secContext.checkQueryOwner(id, job.getUserName());
+          Entry<String, String> result = job.getResult();
+          if (job.getState() != QueryJob.State.SUCCEEDED || result == null) {
+            res.header("Content-Type", "application/json");
+            res.status(job.getState().isDone() ? HttpStatus.SC_CONFLICT : HttpStatus.SC_ACCEPTED);
+            return Histograms.toJson(job.getStatus());
+          }
+          res.header("Content-Type", result.getKey());
+          return result.getValue();
+        });
 
-            // Return final histogram to Web UI as output type.
-            HistogramOutput output = HistogramOutput.valueOf(outputType);
-            switch (output) {
-              case chart:
-                res.header("Content-Type", "application/json");
-                return Histograms.toChartJsJson(
-                    histogram, Helper.toTitle(histType, sum), Helper.toYAxis(sum), binLabels);
-              case json:
-                res.header("Content-Type", "application/json");
-                return Histograms.toJson(histogram);
-              case csv:
-                res.header("Content-Type", "text/plain");
-                return Histograms.toCsv(histogram, find);
-              default:
-                throw new IllegalArgumentException(
-                    "Could not determine output type: "
-                        + histType
-                        + ".\nPlease check /histogramOutputs for available histogram outputs.");
-            }
-          } finally {
-            lock.writeLock().unlock();
+    /* CANCELQUERY endpoint cancels the query with the given "&id=" and returns its status. A
+    running query stops at its next cancellation check. Only the user who submitted the query, or an
+    admin, may cancel it. */
+    get(
+        "/cancelQuery",
+        (req, res) -> {
+          res.header("Access-Control-Allow-Origin", "*");
+          res.header("Content-Type", "application/json");
+          String id = req.queryMap("id").value();
+          QueryJob job = queryJobs.get(id);
+          if (job == null) {
+            throw new MalformedURLException("Query not found.");
           }
+          secContext.checkQueryOwner(id, job.getUserName());
+          queryJobs.cancel(id);
+          return Histograms.toJson(job.getStatus());
         });
 
     /* HISTOGRAM2 endpoint takes 1 set of "set", "filter", "type", and  "sum" parameters and returns a histogram
@@ -1096,7 +1114,7 @@ public class WebServerMain {
             return Histograms.toChartJsJson(new HashMap<>(), "not_loaded", "", "");
           }
 
-          lock.writeLock().lock();
+          admissionController.acquireQuery();
           try {
             final String fullFilterStr = req.queryMap("filters").value();
             final String[] filters = Helper.parseFilters(fullFilterStr);
@@ -1117,6 +1135,7 @@ public class WebServerMain {
             final String type = req.queryMap("type").value();
             final String findStr = req.queryMap("find").value();
             final String[] finds = (findStr != null) ? findStr.split(",") : new String[0];
+            final Boolean approx = req.queryMap("approx").booleanValue();
 
             for (String sum : sums) {
               QueryChecker.isValidQuery(set, filters, type, sum, filterOps, null);
@@ -1124,100 +1143,68 @@ public class WebServerMain {
             for (String find : finds) {
               QueryChecker.isValidQuery(set, filters, type, null, filterOps, find);
             }
-            Collection<INode> filteredINodes =
-                Helper.performFilters(nameNodeLoader, set, filters, filterOps);
-
             Histogram htEnum = Histogram.valueOf(histType);
             List<Map<String, Long>> histograms = new ArrayList<>(sums.length + finds.length);
 
             final long startTime = System.currentTimeMillis();
-            for (int i = 0, j = 0; i < sums.length || j < finds.length; ) {
-              Map<String, Long> histogram;
-              String sum = null;
-              String find = null;
-              if (i < sums.length) {
-                sum = sums[i];
-                i++;
-              } else {
-                find = finds[j];
-                j++;
+            if (approx != null && approx) {
+              // Each sum becomes three columns: the estimate and the bounds of its interval.
+              checkApproximable(htEnum, findStr);
+              INodeSample sample = nameNodeLoader.refreshSample();
+              Collection<INode> sampled =
+                  Helper.performSampledFilters(nameNodeLoader, sample, set, filters, filterOps);
+              for (String sum : sums) {
+                Map<String, List<Long>> estimate =
+                    sample.estimate(
+                        sampled,
+                        sampledINodes ->
+                            histogramOf(
+                                sampledINodes,
+                                htEnum,
+                                sum,
+                                null,
+                                timeRange,
+                                parentDirDepth,
+                                null,
+                                useLock));
+                for (int column = 0; column < 3; column++) {
+                  Map<String, Long> histogram = new LinkedHashMap<>();
+                  for (Entry<String, List<Long>> bin : estimate.entrySet()) {
+                    histogram.put(bin.getKey(), bin.getValue().get(column));
+                  }
+                  histograms.add(histogram);
+                }
               }
-
-              nameNodeLoader.namesystemWriteLock(useLock);
-              try {
-                switch (htEnum) {
-                  case user:
-                    histogram =
-                        nameNodeLoader.getQueryEngine().byUserHistogram(filteredINodes, sum, find);
-                    break;
-                  case group:
-                    histogram =
-                        nameNodeLoader.getQueryEngine().byGroupHistogram(filteredINodes, sum, find);
-                    break;
-                  case accessTime:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .accessTimeHistogram(filteredINodes, sum, find, timeRange);
-                    break;
-                  case modTime:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .modTimeHistogram(filteredINodes, sum, find, timeRange);
-                    break;
-                  case fileSize:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .fileSizeHistogram(filteredINodes, sum, find);
-                    break;
-                  case diskspaceConsumed:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .diskspaceConsumedHistogram(filteredINodes, sum, find, null);
-                    break;
-                  case fileReplica:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .fileReplicaHistogram(filteredINodes, sum, find, null);
-                    break;
-                  case storageType:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .storageTypeHistogram(filteredINodes, sum, find);
-                    break;
-                  case memoryConsumed:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .memoryConsumedHistogram(filteredINodes, sum, find);
-                    break;
-                  case parentDir:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .parentDirHistogram(filteredINodes, parentDirDepth, sum, find);
-                    break;
-                  case fileType:
-                    histogram =
-                        nameNodeLoader
-                            .getQueryEngine()
-                            .fileTypeHistogram(filteredINodes, sum, find);
-                    break;
-                  default:
-                    throw new IllegalArgumentException(
-                        "Could not determine histogram type: "
-                            + histType
-                            + ".\nPlease check /histograms for available histograms.");
+            } else {
+              if (htEnum == Histogram.dirQuota) {
+                throw new IllegalArgumentException(
+                    "Could not determine histogram type: "
+                        + histType
+                        + ".\nPlease check /histograms for available histograms.");
+              }
+              Collection<INode> filteredINodes =
+                  Helper.performFilters(nameNodeLoader, set, filters, filterOps);
+              for (int i = 0, j = 0; i < sums.length || j < finds.length; ) {
+                String sum = null;
+                String find = null;
+                if (i < sums.length) {
+                  sum = sums[i];
+                  i++;
+                } else {
+                  find = finds[j];
+                  j++;
                 }
-              } finally {
-                nameNodeLoader.namesystemWriteUnlock(useLock);
+                histograms.add(
+                    histogramOf(
+                        filteredINodes,
+                        htEnum,
+                        sum,
+                        find,
+                        timeRange,
+                        parentDirDepth,
+                        null,
+                        useLock));
               }
-              histograms.add(histogram);
             }
 
             Map<String, List<Long>> mergedHistogram =
@@ -1271,7 +1258,7 @@ public class WebServerMain {
                         + ".\nPlease check /histogramOutputs for available histogram outputs.");
             }
           } finally {
-            lock.writeLock().unlock();
+            admissionController.releaseQuery();
           }
         });
 
@@ -1289,7 +1276,7 @@ public class WebServerMain {
             return "";
           }
 
-          lock.writeLock().lock();
+          admissionController.acquireQuery();
           try {
             final String fullFilterStr = req.queryMap("filters").value();
             final String find = req.queryMap("find").value();
@@ -1313,7 +1300,7 @@ public class WebServerMain {
 
             Collection<INode> filteredINodes =
                 Helper.performFilters(nameNodeLoader, set, filters, filterOps, find);
-            if (filteredINodes.size() == 0) {
+            if (!filteredINodes.stream().findAny().isPresent()) {
               LOG.info("Skipping operation request because it resulted in empty INode set.");
               throw new IOException(
                   "Skipping operation request because it resulted in empty INode set.");
@@ -1388,7 +1375,7 @@ public class WebServerMain {
 
             return res;
           } finally {
-            lock.writeLock().unlock();
+            admissionController.releaseQuery();
           }
         });
 
@@ -1406,7 +1393,7 @@ public class WebServerMain {
             return "";
           }
 
-          lock.writeLock().lock();
+          admissionController.acquireQuery();
           try {
             String identity = req.queryMap("identity").value();
             Integer limit = req.queryMap("limit").integerValue();
@@ -1479,7 +1466,7 @@ public class WebServerMain {
             }
             return res;
           } finally {
-            lock.writeLock().unlock();
+            admissionController.releaseQuery();
           }
         });
 
@@ -1497,7 +1484,7 @@ public class WebServerMain {
             return "";
           }
 
-          lock.writeLock().lock();
+          admissionController.acquireQuery();
           try {
             String identity = req.queryMap("identity").value();
             Integer limit = req.queryMap("limit").integerValue();
@@ -1551,7 +1538,7 @@ public class WebServerMain {
             res.body(sb);
             return res;
           } finally {
-            lock.writeLock().unlock();
+            admissionController.releaseQuery();
           }
         });
 
@@ -1687,7 +1674,7 @@ public class WebServerMain {
         });
 
     /* SAVENAMESPACE endpoint is an admin-level endpoint meant to dump the in-memory INode set
-    to a fresh FSImage. */
+    to a fresh FSImage, or to the local analytics snapshot. */
     get(
         "/saveNamespace",
         (req, res) -> {
@@ -1696,6 +1683,7 @@ public class WebServerMain {
           String dirStr = req.queryMap("dir").value();
           String dir = (dirStr != null) ? dirStr : "/usr/local/nn-analytics/dfs/name/legacy/";
           Boolean legacy = req.queryMap("legacy").booleanValue();
+          Boolean snapshot = req.queryMap("snapshot").booleanValue();
           if (savingNamespace.get()) {
             return "Already saving namespace.";
           }
@@ -1704,7 +1692,9 @@ public class WebServerMain {
             savingNamespace.set(true);
             writer.write("Saving namespace.<br />");
             writer.flush();
-            if (legacy != null && legacy) {
+            if (snapshot != null && snapshot) {
+              nameNodeLoader.saveSnapshot();
+            } else if (legacy != null && legacy) {
               nameNodeLoader.saveLegacyNamespace(dir);
             } else {
               nameNodeLoader.saveNamespace();
@@ -1747,22 +1737,18 @@ public class WebServerMain {
           return res;
         });
 
-    /* RELOADNAMESPACE endpoint is an admin-level endpoint meant to clear the current in-memory INode set
-    and reload it from the latest FSImage found in the NNA instance's configured namespace directory. */
+    /* RELOADNAMESPACE endpoint is an admin-level endpoint meant to replace the current in-memory
+    INode set with the latest FSImage found in the NNA instance's configured namespace directory. */
     get(
         "/reloadNamespace",
         (req, res) -> {
           res.header("Access-Control-Allow-Origin", "*");
           res.header("Content-Type", "text/plain");
-          lock.writeLock().lock();
           try {
-            nameNodeLoader.clear();
-            nameNodeLoader.load(null, null, conf);
-            res.body("Reload complete.");
+            String mode = nameNodeLoader.reload(conf, admissionController);
+            res.body("Reload complete in mode: " + mode + ".");
           } catch (Throwable e) {
             res.body("Reload failed: " + e);
-          } finally {
-            lock.writeLock().unlock();
           }
           return res;
         });
@@ -1808,6 +1794,7 @@ public class WebServerMain {
         (req, res) -> {
           res.header("Content-Encoding", "gzip");
           runningQueries.remove(Helper.createQuery(req.raw(), secContext.getUserName()));
+          observeEndpoint(req, false);
         });
 
     /* Any encountered Exceptions should be handled here and returned with appropriate HTTP error codes. */
@@ -1851,6 +1838,7 @@ public class WebServerMain {
               runningQueries.remove(Helper.createQuery(req.raw(), secContext.getUserName()));
             }
           }
+          observeEndpoint(req, true);
           LOG.info("EXCEPTION encountered: {}", ex);
           LOG.info(Arrays.toString(ex.getStackTrace()));
         });
@@ -1862,6 +1850,443 @@ public class WebServerMain {
     nameNodeLoader.initReloadThreads(internalService, conf);
   }
 
+  /**
+   * Filter INodes and compute a histogram over them, for the /histogram endpoint.
+   *
+   * @return the bin labels of the histogram and the histogram itself
+   */
+  private Entry<String, Map<String, Long>> computeHistogram(
+      String set,
+      String[] filters,
+      String[] filterOps,
+      String histType,
+      String sum,
+      String find,
+      String timeRange,
+      Integer parentDirDepth,
+      String transformConditionsStr,
+      String transformFieldsStr,
+      String transformOutputsStr,
+      Boolean useLock)
+      throws Exception {
+    Collection<INode> filteredINodes =
+        Helper.performFilters(nameNodeLoader, set, filters, filterOps);
+
+    Histogram htEnum = Histogram.valueOf(histType);
+    Map<String, Function<INode, Long>> transformMap =
+        Transforms.getAttributeTransforms(
+            transformConditionsStr, transformFieldsStr, transformOutputsStr, nameNodeLoader);
+    Map<String, Long> histogram =
+        histogramOf(
+            filteredINodes, htEnum, sum, find, timeRange, parentDirDepth, transformMap, useLock);
+    return new SimpleImmutableEntry<>(binLabelsOf(htEnum), histogram);
+  }
+
+  /**
+   * Filter the sampled INodes and estimate a histogram over all INodes from them, for the
+   * /histogram endpoint with "&approx=true".
+   *
+   * @return the bin labels of the histogram and, for each bin, the estimate followed by the
+   *     bounds of its 95% confidence interval
+   */
+  private Entry<String, Map<String, List<Long>>> estimateHistogram(
+      String set,
+      String[] filters,
+      String[] filterOps,
+      String histType,
+      String sum,
+      String find,
+      String timeRange,
+      Integer parentDirDepth,
+      String transformConditionsStr,
+      String transformFieldsStr,
+      String transformOutputsStr,
+      Boolean useLock)
+      throws Exception {
+    Histogram htEnum = Histogram.valueOf(histType);
+    checkApproximable(htEnum, find);
+    INodeSample sample = nameNodeLoader.refreshSample();
+    Collection<INode> sampled =
+        Helper.performSampledFilters(nameNodeLoader, sample, set, filters, filterOps);
+
+    Map<String, Function<INode, Long>> transformMap =
+        Transforms.getAttributeTransforms(
+            transformConditionsStr, transformFieldsStr, transformOutputsStr, nameNodeLoader);
+    Map<String, List<Long>> histogram =
+        sample.estimate(
+            sampled,
+            inodes ->
+                histogramOf(
+                    inodes, htEnum, sum, null, timeRange, parentDirDepth, transformMap, useLock));
+    return new SimpleImmutableEntry<>(binLabelsOf(htEnum), histogram);
+  }
+
+  /**
+   * Reject the histograms and finds that cannot be estimated from a sample: the maximum, minimum
+   * and average of a sample do not scale up to all INodes, and dirQuota lists single directories.
+   */
+  private static void checkApproximable(Histogram htEnum, String find) {
+    if (find != null && !find.isEmpty()) {
+      throw new IllegalArgumentException("Approximate queries do not support find: " + find + ".");
+    }
+    if (htEnum == Histogram.dirQuota) {
+      throw new IllegalArgumentException("Approximate queries do not support histogram: dirQuota.");
+    }
+  }
+
+  /** Compute a histogram of the given type over the given INodes. */
+  private Map<String, Long> histogramOf(
+      Collection<INode> filteredINodes,
+      Histogram htEnum,
+      String sum,
+      String find,
+      String timeRange,
+      Integer parentDirDepth,
+      Map<String, Function<INode, Long>> transformMap,
+      Boolean useLock) {
+    nameNodeLoader.namesystemWriteLock(useLock);
+    try {
+      switch (htEnum) {
+        case user:
+          return nameNodeLoader.getQueryEngine().byUserHistogram(filteredINodes, sum, find);
+        case group:
+          return nameNodeLoader.getQueryEngine().byGroupHistogram(filteredINodes, sum, find);
+        case accessTime:
+          return nameNodeLoader
+              .getQueryEngine()
+              .accessTimeHistogram(filteredINodes, sum, find, timeRange);
+        case modTime:
+          return nameNodeLoader
+              .getQueryEngine()
+              .modTimeHistogram(filteredINodes, sum, find, timeRange);
+        case fileSize:
+          return nameNodeLoader.getQueryEngine().fileSizeHistogram(filteredINodes, sum, find);
+        case diskspaceConsumed:
+          return nameNodeLoader
+              .getQueryEngine()
+              .diskspaceConsumedHistogram(filteredINodes, sum, find, transformMap);
+        case fileReplica:
+          return nameNodeLoader
+              .getQueryEngine()
+              .fileReplicaHistogram(filteredINodes, sum, find, transformMap);
+        case storageType:
+          return nameNodeLoader.getQueryEngine().storageTypeHistogram(filteredINodes, sum, find);
+        case memoryConsumed:
+          return nameNodeLoader
+              .getQueryEngine()
+              .memoryConsumedHistogram(filteredINodes, sum, find);
+        case parentDir:
+          return nameNodeLoader
+              .getQueryEngine()
+              .parentDirHistogram(filteredINodes, parentDirDepth, sum, find);
+        case fileType:
+          return nameNodeLoader.getQueryEngine().fileTypeHistogram(filteredINodes, sum, find);
+        case dirQuota:
+          return nameNodeLoader.getQueryEngine().dirQuotaHistogram(filteredINodes, sum);
+        default:
+          throw new IllegalArgumentException(
+              "Could not determine histogram type: "
+                  + htEnum
+                  + ".\nPlease check /histograms for available histograms.");
+      }
+    } finally {
+      nameNodeLoader.namesystemWriteUnlock(useLock);
+    }
+  }
+
+  private static String binLabelsOf(Histogram htEnum) {
+    switch (htEnum) {
+      case user:
+        return "User Names";
+      case group:
+        return "Group Names";
+      case accessTime:
+        return "Last Accessed Time";
+      case modTime:
+        return "Last Modified Time";
+      case fileSize:
+        return "File Sizes (No Replication Factor)";
+      case diskspaceConsumed:
+        return "Diskspace Consumed (File Size * Replication Factor)";
+      case fileReplica:
+        return "File Replication Factor";
+      case storageType:
+        return "Storage Type Policy";
+      case memoryConsumed:
+        return "Memory Consumed";
+      case parentDir:
+        return "Directory Path";
+      case fileType:
+        return "File Type";
+      case dirQuota:
+        return "Directory Path";
+      default:
+        throw new IllegalArgumentException(
+            "Could not determine histogram type: "
+                + htEnum
+                + ".\nPlease check /histograms for available histograms.");
+    }
+  }
+
+  /**
+   * Compute the response of the /histogram endpoint, for the endpoint itself and for queries
+   * submitted through /submitQuery.
+   *
+   * <p>Submitted queries bypass the result cache. Their scans stop when the job is cancelled or
+   * times out, which must neither fail the synchronous requests sharing a cached computation nor
+   * leave a job waiting on a computation it cannot stop.
+   *
+   * @param params the query parameters of the request
+   * @param cached whether to serve and share the result through the query result cache
+   * @return the content type and body of the response
+   */
+  private Entry<String, String> histogram(QueryParamsMap params, boolean cached)
+      throws Exception {
+    final String fullFilterStr = params.get("filters").value();
+    final String[] filters = Helper.parseFilters(fullFilterStr);
+    final String[] filterOps = Helper.parseFilterOps(fullFilterStr);
+    final String histType = params.get("type").value();
+    final String set = params.get("set").value();
+    final String sumStr = params.get("sum").value();
+    final Boolean useLock = params.get("useLock").booleanValue();
+    final String sum = (sumStr != null) ? sumStr : "count";
+    final String transformConditionsStr = params.get("transformConditions").value();
+    final String transformFieldsStr = params.get("transformFields").value();
+    final String transformOutputsStr = params.get("transformOutputs").value();
+    final Integer parentDirDepth = params.get("parentDirDepth").integerValue();
+    final String timeRangeStr = params.get("timeRange").value();
+    final String timeRange = (timeRangeStr != null) ? timeRangeStr : "weekly";
+    final String type = params.get("type").value();
+    final String find = params.get("find").value();
+    final Boolean approx = params.get("approx").booleanValue();
+
+    QueryChecker.isValidQuery(set, filters, type, sum, filterOps, find);
+    Helper.refreshSubtreeRollups(nameNodeLoader, fullFilterStr, histType, sum, find);
+    final long startTime = System.currentTimeMillis();
+    if (approx != null && approx) {
+      Entry<String, Map<String, List<Long>>> estimate =
+          estimateHistogram(
+              set,
+              filters,
+              filterOps,
+              histType,
+              sum,
+              find,
+              timeRange,
+              parentDirDepth,
+              transformConditionsStr,
+              transformFieldsStr,
+              transformOutputsStr,
+              useLock);
+      Map<String, List<Long>> intervals = estimate.getValue();
+      Map<String, Long> estimates = new LinkedHashMap<>(intervals.size() * 4 / 3 + 1);
+      intervals.forEach((key, interval) -> estimates.put(key, interval.get(0)));
+      return histogramOutput(
+          new SimpleImmutableEntry<>(estimate.getKey(), estimates), intervals, params, startTime);
+    }
+    String cacheKey =
+        QueryResultCache.key(
+            "/histogram",
+            "set",
+            set,
+            "filters",
+            fullFilterStr,
+            "type",
+            histType,
+            "sum",
+            sum,
+            "find",
+            find,
+            "parentDirDepth",
+            (parentDirDepth != null) ? String.valueOf(parentDirDepth) : null,
+            "timeRange",
+            timeRange,
+            "transformConditions",
+            transformConditionsStr,
+            "transformFields",
+            transformFieldsStr,
+            "transformOutputs",
+            transformOutputsStr);
+    Callable<Entry<String, Map<String, Long>>> compute =
+        () ->
+            computeHistogram(
+                set,
+                filters,
+                filterOps,
+                histType,
+                sum,
+                find,
+                timeRange,
+                parentDirDepth,
+                transformConditionsStr,
+                transformFieldsStr,
+                transformOutputsStr,
+                useLock);
+    Entry<String, Map<String, Long>> result =
+        cached ? queryCache.get(cacheKey, compute) : compute.call();
+    return histogramOutput(result, null, params, startTime);
+  }
+
+  /**
+   * Condition, slice, sort and email out a computed histogram, and render it as the requested
+   * output type of the /histogram endpoint.
+   *
+   * @param result the bin labels of the histogram and the histogram itself
+   * @param intervals for an approximate histogram, the estimate and the bounds of the confidence
+   *     interval of each bin; otherwise null
+   * @param params the query parameters of the request
+   * @param startTime when the request started
+   * @return the content type and the content of the response
+   */
+  private Entry<String, String> histogramOutput(
+      Entry<String, Map<String, Long>> result,
+      Map<String, List<Long>> intervals,
+      QueryParamsMap params,
+      long startTime)
+      throws Exception {
+    final String fullFilterStr = params.get("filters").value();
+    final String histogramConditionsStr = params.get("histogramConditions").value();
+    final String emailsToStr = params.get("emailTo").value();
+    final String emailsCcStr = params.get("emailCC").value();
+    final String emailFrom = params.get("emailFrom").value();
+    final String emailHost = params.get("emailHost").value();
+    final String emailConditionsStr = params.get("emailConditions").value();
+    final String histType = params.get("type").value();
+    final String set = params.get("set").value();
+    final Integer top = params.get("top").integerValue();
+    final Integer bottom = params.get("bottom").integerValue();
+    final String sumStr = params.get("sum").value();
+    final Boolean sortAscending = params.get("sortAscending").booleanValue();
+    final Boolean sortDescending = params.get("sortDescending").booleanValue();
+    final String sum = (sumStr != null) ? sumStr : "count";
+    final String[] emailsTo = (emailsToStr != null) ? emailsToStr.split(",") : null;
+    final String[] emailsCc = (emailsCcStr != null) ? emailsCcStr.split(",") : null;
+    final String outputTypeStr = params.get("histogramOutput").value();
+    final String outputType = (outputTypeStr != null) ? outputTypeStr : "chart";
+    final String find = params.get("find").value();
+
+    String binLabels = result.getKey();
+    Map<String, Long> histogram = result.getValue();
+    final long sortStartTime = System.currentTimeMillis();
+
+    // Perform conditions filtering.
+    if (histogramConditionsStr != null && !histogramConditionsStr.isEmpty()) {
+      histogram =
+          nameNodeLoader
+              .getQueryEngine()
+              .removeKeysOnConditional(new LinkedHashMap<>(histogram), histogramConditionsStr);
+    }
+
+    // Slice top and bottom.
+    if (top != null && bottom != null) {
+      throw new IllegalArgumentException("Please choose only one type of slice.");
+    } else if (top != null && top > 0) {
+      histogram = Histograms.sliceToTop(histogram, top);
+    } else if (bottom != null && bottom > 0) {
+      histogram = Histograms.sliceToBottom(histogram, bottom);
+    }
+
+    // Sort results.
+    if (sortAscending != null && sortDescending != null) {
+      throw new IllegalArgumentException("Please choose one type of sort.");
+    } else if (sortAscending != null && sortAscending) {
+      histogram = Histograms.sortByValue(histogram, true);
+    } else if (sortDescending != null && sortDescending) {
+      histogram = Histograms.sortByValue(histogram, false);
+    }
+
+    long endTime = System.currentTimeMillis();
+    LOG.info("Performing histogram: {} took: {} ms.", histType, (endTime - startTime));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_SORT, endTime - sortStartTime);
+    QueryMetrics.observeResultSize("histogram", histogram.size());
+
+    // Email out.
+    if (emailsTo != null && emailsTo.length != 0 && emailHost != null && emailFrom != null) {
+      String subject =
+          nameNodeLoader.getAuthority()
+              + " | X: "
+              + histType
+              + " | Y: "
+              + sum
+              + " | "
+              + set
+              + " | Filters: "
+              + fullFilterStr;
+      try {
+        Set<String> highlightKeys = new HashSet<>();
+        if (emailConditionsStr != null) {
+          MailOutput.check(emailConditionsStr, histogram, highlightKeys, nameNodeLoader);
+        }
+        MailOutput.write(
+            subject, histogram, highlightKeys, emailHost, emailsTo, emailsCc, emailFrom);
+      } catch (Exception e) {
+        LOG.info("Failed to email output with exception: {}", e);
+      }
+    }
+
+    // Return final histogram to Web UI as output type.
+    HistogramOutput output = HistogramOutput.valueOf(outputType);
+    switch (output) {
+      case chart:
+        return new SimpleImmutableEntry<>(
+            "application/json",
+            Histograms.toChartJsJson(
+                histogram, Helper.toTitle(histType, sum), Helper.toYAxis(sum), binLabels));
+      case json:
+        if (intervals != null) {
+          return new SimpleImmutableEntry<>(
+              "application/json", Histograms.toJson(withIntervals(histogram, intervals)));
+        }
+        return new SimpleImmutableEntry<>("application/json", Histograms.toJson(histogram));
+      case csv:
+        if (intervals != null) {
+          return new SimpleImmutableEntry<>(
+              "text/plain", Histograms.toCsv(withIntervals(histogram, intervals)));
+        }
+        return new SimpleImmutableEntry<>("text/plain", Histograms.toCsv(histogram, find));
+      default:
+        throw new IllegalArgumentException(
+            "Could not determine output type: "
+                + histType
+                + ".\nPlease check /histogramOutputs for available histogram outputs.");
+    }
+  }
+
+  /** @return the confidence intervals of the bins of the histogram, in the order of its bins */
+  private static Map<String, List<Long>> withIntervals(
+      Map<String, Long> histogram, Map<String, List<Long>> intervals) {
+    Map<String, List<Long>> ordered = new LinkedHashMap<>(histogram.size() * 4 / 3 + 1);
+    for (String key : histogram.keySet()) {
+      ordered.put(key, intervals.get(key));
+    }
+    return ordered;
+  }
+
+  /**
+   * Record the latency of a request in {@link QueryMetrics}, labeled by its endpoint. Paths that do
+   * not name an endpoint, such as static resources, are labeled "other".
+   *
+   * @param req the completed request
+   * @param failed whether the request ended in an exception
+   */
+  private static void observeEndpoint(Request req, boolean failed) {
+    Long start = req.attribute(START_TIME_ATTRIBUTE);
+    if (start == null) {
+      return;
+    }
+    String[] segments = req.pathInfo().split("/");
+    String endpoint = (segments.length > 1) ? segments[1] : "";
+    try {
+      endpoint = Endpoint.valueOf(endpoint).name();
+    } catch (IllegalArgumentException e) {
+      endpoint = "other";
+    }
+    QueryMetrics.observeEndpoint(endpoint, System.currentTimeMillis() - start);
+    if (failed) {
+      QueryMetrics.endpointFailed(endpoint);
+    }
+  }
+
   /**
    * Shutdown all stateful NNA objects. Should not kill JVM. Goal is that calling `init` again
    * should bring NNA back from persisted state.
@@ -1878,6 +2303,7 @@ public class WebServerMain {
     runningQueries.clear();
     operationService.shutdown();
     internalService.shutdown();
+    queryJobs.shutdown();
     Spark.stop();
   }
 }
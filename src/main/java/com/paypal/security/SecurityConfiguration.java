@@ -24,6 +24,7 @@ import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -50,6 +51,31 @@ public class SecurityConfiguration {
   private static final String NNA_SUPPORT_BOOTSTRAP_OVERRIDES = "true";
   private static final String NNA_QUERY_ENGINE_DEFAULT =
       JavaStreamQueryEngine.class.getCanonicalName();
+  private static final String NNA_QUERY_CONCURRENT_ENABLE_DEFAULT = "true";
+  private static final String NNA_QUERY_CONCURRENT_SCANS_DEFAULT = "0";
+  private static final String NNA_SUGGESTIONS_INCREMENTAL_ENABLE_DEFAULT = "false";
+  private static final String NNA_SUGGESTIONS_INCREMENTAL_SLEEP_DEFAULT = "5000";
+  private static final String NNA_SUGGESTIONS_INCREMENTAL_RESCAN_DEFAULT = "21600000";
+  private static final String NNA_QUERY_CQENGINE_INDEXES_DEFAULT =
+      "modTime,accessTime,fileSize,user,group";
+  private static final String NNA_QUERY_CQENGINE_INDEX_REBUILD_DEFAULT = "3600000";
+  private static final String NNA_QUERY_CACHE_ENABLE_DEFAULT = "false";
+  private static final String NNA_QUERY_CACHE_MAX_ENTRIES_DEFAULT = "256";
+  private static final String NNA_QUERY_CACHE_STALENESS_TXIDS_DEFAULT = "0";
+  private static final String NNA_QUERY_CACHE_TTL_DEFAULT = "60000";
+  private static final String NNA_QUERY_ASYNC_THREADS_DEFAULT = "2";
+  private static final String NNA_QUERY_ASYNC_QUEUE_SIZE_DEFAULT = "16";
+  private static final String NNA_QUERY_ASYNC_TIMEOUT_DEFAULT = "1800000";
+  private static final String NNA_QUERY_ASYNC_RETENTION_DEFAULT = "3600000";
+  private static final String NNA_IMAGE_PARALLEL_LOAD_ENABLE_DEFAULT = "false";
+  private static final String NNA_IMAGE_PARALLEL_LOAD_THREADS_DEFAULT = "0";
+  private static final String NNA_SNAPSHOT_ENABLE_DEFAULT = "false";
+  private static final String NNA_SNAPSHOT_FILE_DEFAULT =
+      "/usr/local/nn-analytics/dfs/snapshot/nna.snapshot";
+  private static final String NNA_RELOAD_MODE_DEFAULT = "clear";
+  private static final String NNA_RELOAD_MEMORY_HEADROOM_DEFAULT = "1.0";
+  private static final String NNA_APPROX_SAMPLE_RATE_DEFAULT = "0.01";
+  private static final String NNA_QUERY_COLUMNAR_MAX_LAG_DEFAULT = "60000";
 
   /** Constructor. Fetches configuration from ClassLoader stream. */
   public SecurityConfiguration() {
@@ -262,4 +288,252 @@ public class SecurityConfiguration {
   public String getQueryEngineImplementation() {
     return properties.getProperty("nna.query.engine.impl", NNA_QUERY_ENGINE_DEFAULT);
   }
+
+  public boolean getConcurrentQueriesEnabled() {
+    return Boolean.parseBoolean(
+        properties.getProperty(
+            "nna.query.concurrent.enable", NNA_QUERY_CONCURRENT_ENABLE_DEFAULT));
+  }
+
+  /**
+   * Get the maximum number of query scans allowed to run at the same time. A value of 0 or less
+   * will size the limit off of the available processor cores.
+   *
+   * @return integer representing the concurrent scan budget
+   */
+  public int getConcurrentQueryScans() {
+    return Integer.parseInt(
+        properties.getProperty("nna.query.concurrent.scans", NNA_QUERY_CONCURRENT_SCANS_DEFAULT));
+  }
+
+  public boolean getIncrementalSuggestionsEnabled() {
+    return Boolean.parseBoolean(
+        properties.getProperty(
+            "nna.suggestions.incremental.enable", NNA_SUGGESTIONS_INCREMENTAL_ENABLE_DEFAULT));
+  }
+
+  /**
+   * Get the interval in milliseconds in-between applying tailed INode changes to suggestions.
+   *
+   * @return integer representing milliseconds in-between each incremental update
+   */
+  public int getIncrementalSuggestionsSleepMs() {
+    return Integer.parseInt(
+        properties.getProperty(
+            "nna.suggestions.incremental.sleep.ms", NNA_SUGGESTIONS_INCREMENTAL_SLEEP_DEFAULT));
+  }
+
+  /**
+   * Get the interval in milliseconds in-between full suggestions reports while incremental
+   * suggestions are enabled. The full report then only acts as a consistency check.
+   *
+   * @return integer representing milliseconds in-between each full report
+   */
+  public int getIncrementalSuggestionsRescanMs() {
+    return Integer.parseInt(
+        properties.getProperty(
+            "nna.suggestions.incremental.rescan.ms", NNA_SUGGESTIONS_INCREMENTAL_RESCAN_DEFAULT));
+  }
+
+  /**
+   * Get the INode attributes that JavaCollectionQEngine builds CQEngine indexes on, in build order.
+   *
+   * @return set of attribute names; empty if indexing is disabled
+   */
+  public Set<String> getCQEngineIndexes() {
+    Set<String> result = new LinkedHashSet<>();
+    String property =
+        properties.getProperty("nna.query.cqengine.indexes", NNA_QUERY_CQENGINE_INDEXES_DEFAULT);
+    for (String attribute : property.split(",")) {
+      if (!attribute.trim().isEmpty()) {
+        result.add(attribute.trim());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the interval in milliseconds in-between full rebuilds of the CQEngine indexes.
+   *
+   * @return long representing milliseconds in-between rebuilds; 0 or less to never rebuild
+   */
+  public long getCQEngineIndexRebuildMs() {
+    return Long.parseLong(
+        properties.getProperty(
+            "nna.query.cqengine.index.rebuild.ms", NNA_QUERY_CQENGINE_INDEX_REBUILD_DEFAULT));
+  }
+
+  /**
+   * Get whether /filter sums and /histogram results are cached per namespace txid.
+   *
+   * @return true if query results are cached; false otherwise
+   */
+  public boolean getQueryCacheEnabled() {
+    return Boolean.parseBoolean(
+        properties.getProperty("nna.query.cache.enable", NNA_QUERY_CACHE_ENABLE_DEFAULT));
+  }
+
+  /**
+   * Get the maximum number of cached query results.
+   *
+   * @return integer representing the number of results kept before evicting the least recent
+   */
+  public int getQueryCacheMaxEntries() {
+    return Integer.parseInt(
+        properties.getProperty(
+            "nna.query.cache.max.entries", NNA_QUERY_CACHE_MAX_ENTRIES_DEFAULT));
+  }
+
+  /**
+   * Get how many transactions the namespace may move past a cached query result before the
+   * result is recomputed.
+   *
+   * @return long representing the tolerated number of txids; 0 to only serve exact txids
+   */
+  public long getQueryCacheStalenessTxIds() {
+    return Long.parseLong(
+        properties.getProperty(
+            "nna.query.cache.staleness.txids", NNA_QUERY_CACHE_STALENESS_TXIDS_DEFAULT));
+  }
+
+  /**
+   * Get the maximum age in milliseconds of a cached query result.
+   *
+   * @return long representing milliseconds; 0 or less to only expire results on new txids
+   */
+  public long getQueryCacheTtlMs() {
+    return Long.parseLong(
+        properties.getProperty("nna.query.cache.ttl.ms", NNA_QUERY_CACHE_TTL_DEFAULT));
+  }
+
+  /**
+   * Get the number of queries submitted through /submitQuery that run at once.
+   *
+   * @return integer representing the number of threads running submitted queries
+   */
+  public int getQueryAsyncThreads() {
+    return Integer.parseInt(
+        properties.getProperty("nna.query.async.threads", NNA_QUERY_ASYNC_THREADS_DEFAULT));
+  }
+
+  /**
+   * Get the number of submitted queries that may wait for a thread before submissions are
+   * rejected.
+   *
+   * @return integer representing the size of the submitted query queue
+   */
+  public int getQueryAsyncQueueSize() {
+    return Integer.parseInt(
+        properties.getProperty("nna.query.async.queue.size", NNA_QUERY_ASYNC_QUEUE_SIZE_DEFAULT));
+  }
+
+  /**
+   * Get the maximum running time in milliseconds of a submitted query.
+   *
+   * @return long representing milliseconds; 0 or less to never time out
+   */
+  public long getQueryAsyncTimeoutMs() {
+    return Long.parseLong(
+        properties.getProperty("nna.query.async.timeout.ms", NNA_QUERY_ASYNC_TIMEOUT_DEFAULT));
+  }
+
+  /**
+   * Get how long in milliseconds the status and result of a finished submitted query are kept.
+   *
+   * @return long representing milliseconds
+   */
+  public long getQueryAsyncRetentionMs() {
+    return Long.parseLong(
+        properties.getProperty("nna.query.async.retention.ms", NNA_QUERY_ASYNC_RETENTION_DEFAULT));
+  }
+
+  /**
+   * Whether the FsImage is loaded by the parallel, analytics-only loader instead of by a full
+   * NameNode load. EditLog tailing resumes from the txid of the image.
+   *
+   * @return true if parallel FsImage loading is enabled
+   */
+  public boolean getParallelImageLoadEnabled() {
+    return Boolean.parseBoolean(
+        properties.getProperty(
+            "nna.image.parallel.load.enable", NNA_IMAGE_PARALLEL_LOAD_ENABLE_DEFAULT));
+  }
+
+  /**
+   * Get the number of threads that parse and link INodes during a parallel FsImage load. A value
+   * of 0 or less uses one thread per available processor core.
+   *
+   * @return integer representing the number of loader threads
+   */
+  public int getParallelImageLoadThreads() {
+    return Integer.parseInt(
+        properties.getProperty(
+            "nna.image.parallel.load.threads", NNA_IMAGE_PARALLEL_LOAD_THREADS_DEFAULT));
+  }
+
+  /**
+   * Whether NNA keeps a local snapshot of the loaded namespace and restarts from it instead of from
+   * an FsImage, as long as no newer FsImage exists. EditLog tailing resumes from the txid of the
+   * snapshot.
+   *
+   * @return true if analytics snapshots are enabled
+   */
+  public boolean getSnapshotEnabled() {
+    return Boolean.parseBoolean(
+        properties.getProperty("nna.snapshot.enable", NNA_SNAPSHOT_ENABLE_DEFAULT));
+  }
+
+  /**
+   * Get the local file that the analytics snapshot is written to and loaded from.
+   *
+   * @return String representing the snapshot file path
+   */
+  public String getSnapshotFile() {
+    return properties.getProperty("nna.snapshot.file", NNA_SNAPSHOT_FILE_DEFAULT);
+  }
+
+  /**
+   * Get how /reloadNamespace replaces the INodes: "clear" drops them before loading new ones,
+   * "swap" loads new ones in the background and swaps them in, and "stream" does the same after
+   * dropping the columns and indexes built from the current INodes.
+   *
+   * @return String representing the reload mode
+   */
+  public String getReloadMode() {
+    return properties.getProperty("nna.reload.mode", NNA_RELOAD_MODE_DEFAULT);
+  }
+
+  /**
+   * Get the free heap needed for a "swap" reload, as a multiple of the heap currently in use. A
+   * "swap" reload falls back to "stream" if less heap is free.
+   *
+   * @return double representing the multiple of the used heap that must be free
+   */
+  public double getReloadMemoryHeadroom() {
+    return Double.parseDouble(
+        properties.getProperty("nna.reload.memory.headroom", NNA_RELOAD_MEMORY_HEADROOM_DEFAULT));
+  }
+
+  /**
+   * Get the rate at which the INodes are sampled for approximate queries. Strata of few INodes are
+   * sampled at higher rates.
+   *
+   * @return double representing the sampling rate, between 0 and 1
+   */
+  public double getApproxSampleRate() {
+    return Double.parseDouble(
+        properties.getProperty("nna.approx.sample.rate", NNA_APPROX_SAMPLE_RATE_DEFAULT));
+  }
+
+  /**
+   * Get how old, in milliseconds, a columnar snapshot may be once the namespace has moved past it.
+   * Older snapshots are rebuilt in the background while queries scan the INodes.
+   *
+   * @return long representing milliseconds; 0 to never answer from a stale snapshot
+   */
+  public long getColumnarMaxLagMs() {
+    return Long.parseLong(
+        properties.getProperty(
+            "nna.query.columnar.max.lag.ms", NNA_QUERY_COLUMNAR_MAX_LAG_DEFAULT));
+  }
 }
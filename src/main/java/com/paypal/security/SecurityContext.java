@@ -21,6 +21,7 @@ package com.paypal.security;
 
 import java.nio.charset.Charset;
 import java.util.Base64;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import javax.servlet.http.HttpSession;
@@ -375,6 +376,25 @@ public class SecurityContext {
     return currentUser.get();
   }
 
+  /**
+   * Check that the current user may read or cancel a query submitted through /submitQuery. Once
+   * users are authenticated or authorized, only the user who submitted the query and admins may.
+   *
+   * @param id the id of the query
+   * @param owner the user who submitted the query
+   * @throws AuthorizationException user neither submitted the query nor is an admin
+   */
+  public synchronized void checkQueryOwner(String id, String owner) throws AuthorizationException {
+    if (!isAuthenticationEnabled() && !securityConfiguration.getAuthorizationEnabled()) {
+      return;
+    }
+    String user = getUserName();
+    if (Objects.equals(user, owner) || (user != null && adminUsers.allows(user))) {
+      return;
+    }
+    throw new AuthorizationException("User: " + user + ", is not authorized for query: " + id);
+  }
+
   /**
    * Get the access levels of the currently logged in user.
    *
@@ -19,11 +19,18 @@
 
 package org.apache.hadoop.hdfs.server.namenode;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.function.Function;
-import org.apache.hadoop.fs.Path;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
 
 public abstract class AbstractQueryEngine implements QueryEngine {
 
@@ -41,6 +48,20 @@ public abstract class AbstractQueryEngine implements QueryEngine {
     return nameNodeLoader.getINodeSetInternal(set);
   }
 
+  /**
+   * Dump collection of INodes to parameter HTTP response, sorted by path.
+   *
+   * @param inodes the collection to dump
+   * @param limit some limit of inodes to show
+   * @param resp the HTTP response
+   * @throws IOException error in dumping collection
+   */
+  @Override // QueryEngine
+  public void dumpINodePaths(Collection<INode> inodes, Integer limit, HttpServletResponse resp)
+      throws IOException {
+    new PathDump(limit, true, false, null, null).write(inodes, resp);
+  }
+
   /**
    * Get a Function to convert INode to a Long value.
    *
@@ -49,6 +70,33 @@ public abstract class AbstractQueryEngine implements QueryEngine {
    */
   @Override // QueryEngine
   public Function<INode, Long> getFilterFunctionToLongForINode(String filter) {
+    ToLongFunction<INode> primitive = getFilterFunctionToPrimitiveLongForINode(filter);
+    if (primitive != null) {
+      return primitive::applyAsLong;
+    }
+    switch (filter) {
+      case "permission":
+        return node -> Long.valueOf(Integer.toOctalString(node.getFsPermissionShort()));
+      case "dirSubTreeSize":
+      case "dirSubTreeNumFiles":
+      case "dirSubTreeNumDirs":
+        SubtreeRollups rollups =
+            (nameNodeLoader != null) ? nameNodeLoader.getSubtreeRollups() : null;
+        return node -> getSubtreeRollup(rollups, filter, node);
+      default:
+        return versionLoader.getFilterFunctionToLongForINode(filter);
+    }
+  }
+
+  /**
+   * Get a primitive Function to convert INode to a long value, for the filters that are read
+   * straight off the INode without boxing.
+   *
+   * @param filter the filter to look for
+   * @return the function representing the filter transform; or null if it has no primitive form
+   */
+  @Override // QueryEngine
+  public ToLongFunction<INode> getFilterFunctionToPrimitiveLongForINode(String filter) {
     switch (filter) {
       case "id":
         return INode::getId;
@@ -57,11 +105,11 @@ public abstract class AbstractQueryEngine implements QueryEngine {
       case "diskspaceConsumed":
         return node -> node.asFile().computeFileSize() * node.asFile().getFileReplication();
       case "fileReplica":
-        return node -> ((long) node.asFile().getFileReplication());
+        return node -> node.asFile().getFileReplication();
       case "numBlocks":
-        return node -> ((long) node.asFile().numBlocks());
+        return node -> node.asFile().numBlocks();
       case "numReplicas":
-        return node -> ((long) node.asFile().numBlocks() * node.asFile().getFileReplication());
+        return node -> (long) node.asFile().numBlocks() * node.asFile().getFileReplication();
       case "accessTime":
         return INode::getAccessTime;
       case "modTime":
@@ -75,21 +123,121 @@ public abstract class AbstractQueryEngine implements QueryEngine {
           return inodeSize;
         };
       case "depth":
+        return PathNames::depth;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Get a Function to convert INode to the Long value a find operates on.
+   *
+   * @param findField the field of the find
+   * @return the function representing the find field
+   */
+  @Override // QueryEngine
+  public Function<INode, Long> getFindFunctionToLongForINode(String findField) {
+    ToLongFunction<INode> primitive = getFindFunctionToPrimitiveLongForINode(findField);
+    return (primitive == null) ? null : primitive::applyAsLong;
+  }
+
+  /**
+   * Get a primitive Function to convert INode to the long value a find operates on. Besides the
+   * long filters, finds take the age of the last modification, and ids of the user, group and
+   * parent directory, which are only meaningful to count distinct values of.
+   *
+   * @param findField the field of the find
+   * @return the function representing the find field
+   */
+  @Override // QueryEngine
+  public ToLongFunction<INode> getFindFunctionToPrimitiveLongForINode(String findField) {
+    switch (findField) {
+      case "modTimeAge":
+        {
+          long now = System.currentTimeMillis();
+          return node -> now - node.getModificationTime();
+        }
+      case "user":
+        return node -> nameNodeLoader.getUserGroupDictionaries().userIdOf(node);
+      case "group":
+        return node -> nameNodeLoader.getUserGroupDictionaries().groupIdOf(node);
+      case "parentDir":
         return node -> {
-          String path = node.getFullPathName();
-          int depth = 0;
-          int slash = path.length() == 1 && path.charAt(0) == '/' ? -1 : 0;
-          while (slash != -1) {
-            depth++;
-            slash = path.indexOf(Path.SEPARATOR, slash + 1);
-          }
-          return (long) depth;
+          INodeDirectory parent = node.getParent();
+          return (parent == null) ? -1L : parent.getId();
         };
-      case "permission":
-        return node -> Long.valueOf(Integer.toOctalString(node.getFsPermissionShort()));
       default:
-        return versionLoader.getFilterFunctionToLongForINode(filter);
+        ToLongFunction<INode> primitive = getFilterFunctionToPrimitiveLongForINode(findField);
+        if (primitive != null) {
+          return primitive;
+        }
+        Function<INode, Long> boxed = getFilterFunctionToLongForINode(findField);
+        return (boxed == null) ? null : boxed::apply;
+    }
+  }
+
+  /**
+   * Creates a histogram of INodes binned by a dictionary id, like the id of their user or group.
+   * Bins are array slots indexed by id, so nothing is looked up by name per INode; only the names
+   * of the ids some INode was binned to are reported.
+   *
+   * @param inodes the filtered inodes to operate with
+   * @param sum the Y-axis type
+   * @param find optional; a find operation to perform; overrides sum
+   * @param binId the per-INode dictionary id
+   * @param dictionary the dictionary naming the ids
+   * @return a map representing bins as Strings and the sum/finds as Longs
+   */
+  Map<String, Long> dictionaryHistogram(
+      Collection<INode> inodes,
+      String sum,
+      String find,
+      ToIntFunction<INode> binId,
+      UserGroupDictionaries.Dictionary dictionary) {
+    HistogramKernel.Mode mode;
+    ToLongFunction<INode> value;
+    if (find == null || find.length() == 0) {
+      mode = HistogramKernel.Mode.SUM;
+      value = getSumFunctionToPrimitiveLongForINode(sum);
+    } else {
+      String[] finds = find.split(":");
+      mode = HistogramKernel.modeOf(finds[0]);
+      value = getFindFunctionToPrimitiveLongForINode(finds[1]);
+    }
+
+    long start = System.currentTimeMillis();
+    HistogramKernel.Accumulator accumulator =
+        HistogramKernel.accumulateById(inodes, binId, value, mode);
+    long[] histogram = accumulator.finish(-1L);
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (int id = 0; id < histogram.length; id++) {
+      if (accumulator.getCount(id) != 0) {
+        result.put(dictionary.nameOf(id), histogram[id]);
+      }
+    }
+    long end = System.currentTimeMillis();
+    LOG.info("Histogram of {} ids took: {} ms.", histogram.length, (end - start));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end - start);
+    return result;
+  }
+
+  /**
+   * Read a dirSubTree attribute of a directory from the subtree rollups. Directories the rollups do
+   * not know of yet fall back to computing a content summary. The rollups are not brought up to
+   * date here; queries do that once before they start, see {@link
+   * NameNodeLoader#refreshSubtreeRollups()}.
+   *
+   * @param rollups the subtree rollups the query reads; or null if none were built yet
+   * @param attribute the dirSubTree filter
+   * @param node the directory INode
+   * @return the subtree total
+   */
+  Long getSubtreeRollup(SubtreeRollups rollups, String attribute, INode node) {
+    long value = (rollups != null) ? rollups.get(SubtreeRollups.columnOf(attribute), node) : -1L;
+    if (value >= 0) {
+      return value;
     }
+    return versionLoader.getFilterFunctionToLongForINode(attribute).apply(node);
   }
 
   /**
@@ -104,7 +252,7 @@ public abstract class AbstractQueryEngine implements QueryEngine {
       case "name":
         return INode::getLocalName;
       case "path":
-        return INode::getFullPathName;
+        return PathNames::toString;
       case "user":
         return INode::getUserName;
       case "group":
@@ -142,15 +290,31 @@ public abstract class AbstractQueryEngine implements QueryEngine {
    */
   @Override // QueryEngine
   public Function<INode, Boolean> getFilterFunctionToBooleanForINode(String filter) {
+    Predicate<INode> predicate = getFilterPredicateForINode(filter);
+    if (predicate != null) {
+      return predicate::test;
+    }
+    return versionLoader.getFilterFunctionToBooleanForINode(filter);
+  }
+
+  /**
+   * Get a Predicate over INodes, for the Boolean filters that are read straight off the INode
+   * without boxing.
+   *
+   * @param filter the filter to look for
+   * @return the predicate representing the filter; or null if it has no primitive form
+   */
+  @Override // QueryEngine
+  public Predicate<INode> getFilterPredicateForINode(String filter) {
     switch (filter) {
       case "isUnderConstruction":
         return node -> node.asFile().isUnderConstruction();
       case "isWithSnapshot":
         return node -> node.asFile().isWithSnapshot();
       case "hasAcl":
-        return node -> (node.getAclFeature() != null);
+        return node -> node.getAclFeature() != null;
       default:
-        return versionLoader.getFilterFunctionToBooleanForINode(filter);
+        return null;
     }
   }
 
@@ -163,6 +327,18 @@ public abstract class AbstractQueryEngine implements QueryEngine {
    */
   @Override // QueryEngine
   public Function<INode, Long> getSumFunctionForINode(String sum) {
+    return getSumFunctionToPrimitiveLongForINode(sum)::applyAsLong;
+  }
+
+  /**
+   * Get a primitive Function that converts an INode to a single long for summation, so histogram
+   * kernels can accumulate without boxing.
+   *
+   * @param sum the sum to look for
+   * @return the function representing the sum transform
+   */
+  @Override // QueryEngine
+  public ToLongFunction<INode> getSumFunctionToPrimitiveLongForINode(String sum) {
     switch (sum) {
       case "count":
         return node -> 1L;
@@ -173,9 +349,9 @@ public abstract class AbstractQueryEngine implements QueryEngine {
       case "blockSize":
         return node -> node.asFile().getPreferredBlockSize();
       case "numBlocks":
-        return node -> ((long) node.asFile().numBlocks());
+        return node -> node.asFile().numBlocks();
       case "numReplicas":
-        return node -> ((long) node.asFile().numBlocks() * node.asFile().getFileReplication());
+        return node -> (long) node.asFile().numBlocks() * node.asFile().getFileReplication();
       case "memoryConsumed":
         return node -> {
           long inodeSize = 100L;
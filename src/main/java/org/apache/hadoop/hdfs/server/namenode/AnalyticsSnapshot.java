@@ -0,0 +1,603 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import com.google.protobuf.ByteString;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.proto.HdfsProtos.BlockProto;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.INodeSection;
+import org.apache.hadoop.hdfs.server.namenode.ParallelImageLoader.INodeParser;
+import org.apache.hadoop.hdfs.server.namenode.ParallelImageLoader.INodeTable;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+import org.apache.hadoop.util.GSet;
+import org.apache.hadoop.util.LightWeightGSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local snapshot of the loaded namespace at a recorded txid, which NNA can restart from instead
+ * of decompressing, scanning and re-linking an FsImage.
+ *
+ * <p>The file starts with a fixed header, followed by batches of directory records, batches of
+ * file records and finally the user and group names as a string table. Every record is the id of
+ * the parent directory followed by the INode in the FsImage's own protobuf form, so the INodes are
+ * built by the NameNode's loader and are identical to those of an FsImage load. Every batch is
+ * prefixed by its record count and byte length; loading memory-maps each batch and hands it to a
+ * worker without reading it first.
+ *
+ * <p>Records hold the attributes NNA queries and nothing else; ACLs, extended attributes (which
+ * include directory storage policies and encryption zones), symlinks and erasure coding policies
+ * are not recorded. A snapshot of a namespace that has any of them would answer queries like
+ * "hasAcl" or the storage policy of directories differently from an FsImage load, so no snapshot
+ * is written for it and NNA keeps loading from the FsImage. Files under construction keep their
+ * lease holder, so that {@link StandbyNamesystem} can resume EditLog tailing from the txid of the
+ * snapshot. HDFS snapshots and cache pools can not be replayed onto such a namespace either.
+ */
+class AnalyticsSnapshot {
+
+  public static final Logger LOG = LoggerFactory.getLogger(AnalyticsSnapshot.class.getName());
+
+  private static final long MAGIC = 0x4E4E41534E415053L; // NNASNAPS
+  private static final int LAYOUT_VERSION = 2;
+  private static final int HEADER_LENGTH = 52;
+  private static final int BATCH_RECORDS = 1 << 13;
+
+  // Permission encoding of FSImageFormatPBINode; user and group are ids into the string table.
+  private static final int USER_STRID_OFFSET = 40;
+  private static final int GROUP_STRID_OFFSET = 16;
+  private static final long USER_GROUP_STRID_MASK = (1 << 24) - 1;
+
+  private final File file;
+
+  /** @param file the local file the snapshot is written to and loaded from */
+  AnalyticsSnapshot(File file) {
+    this.file = file;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /** @return the txid the snapshot was taken at, or -1 if there is no readable snapshot */
+  long readTxId() {
+    if (!file.isFile()) {
+      return -1L;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      return Header.read(in).txId;
+    } catch (IOException e) {
+      LOG.info("Ignoring unreadable snapshot: {}", file, e);
+      return -1L;
+    }
+  }
+
+  /**
+   * Write the given INodes as the new snapshot. The snapshot is first written next to the target
+   * file and then moved over it, so an interrupted write never replaces a good snapshot.
+   *
+   * @param txId the txid the INodes reflect
+   * @param namesystem the namesystem the INodes belong to; or null if there is none
+   * @param files the file INodes to record
+   * @param dirs the directory INodes to record
+   * @param versionLoader the version context for version specific attributes
+   * @throws IOException if the snapshot could not be written, in which case any older snapshot is
+   *     removed when the namespace can no longer be recorded
+   */
+  synchronized void write(
+      long txId,
+      FSNamesystem namesystem,
+      Collection<INode> files,
+      Collection<INode> dirs,
+      VersionInterface versionLoader)
+      throws IOException {
+    String unrecordable = findUnrecordable(namesystem, files, dirs, versionLoader);
+    if (unrecordable != null) {
+      Files.deleteIfExists(file.toPath());
+      throw new IOException("Namespace can not be recorded in a snapshot: " + unrecordable);
+    }
+    long start = System.currentTimeMillis();
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create snapshot directory: " + parent);
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    RecordWriter writer = new RecordWriter(versionLoader);
+    try (FileOutputStream fos = new FileOutputStream(tmp)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 20));
+      out.write(new byte[HEADER_LENGTH]);
+      Header header = new Header();
+      header.txId = txId;
+      header.numDirs = writer.writeAll(dirs, out);
+      header.numFiles = writer.writeAll(files, out);
+      header.lastInodeId = writer.lastInodeId;
+      header.stringTableOffset = writer.position;
+      writer.strings.writeTo(out);
+      out.flush();
+
+      ByteBuffer bytes = header.toBytes();
+      while (bytes.hasRemaining()) {
+        fos.getChannel().write(bytes, bytes.position());
+      }
+      fos.getFD().sync();
+    }
+    Files.move(
+        tmp.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    long end = System.currentTimeMillis();
+    LOG.info(
+        "Writing snapshot of {} files and {} dirs at txid: {} took: {} ms.",
+        files.size(),
+        dirs.size(),
+        txId,
+        (end - start));
+  }
+
+  /**
+   * @return what in the namespace a snapshot would not reproduce, or EditLog tailing could not
+   *     replay onto it; or null if the namespace can be recorded
+   */
+  private static String findUnrecordable(
+      FSNamesystem namesystem,
+      Collection<INode> files,
+      Collection<INode> dirs,
+      VersionInterface versionLoader) {
+    if (namesystem != null && !namesystem.getCacheManager().getCachePools().isEmpty()) {
+      return "cache pools";
+    }
+    for (INode dir : dirs) {
+      if (dir.asDirectory().isSnapshottable()) {
+        return "snapshottable directory " + dir.getFullPathName();
+      }
+      String unrecordable = findUnrecordable(dir, versionLoader);
+      if (unrecordable != null) {
+        return unrecordable;
+      }
+      for (INode child : dir.asDirectory().getChildrenList(Snapshot.CURRENT_STATE_ID)) {
+        if (child.isSymlink()) {
+          return "symlink " + child.getFullPathName();
+        }
+      }
+    }
+    for (INode file : files) {
+      String unrecordable = findUnrecordable(file, versionLoader);
+      if (unrecordable != null) {
+        return unrecordable;
+      }
+    }
+    return null;
+  }
+
+  private static String findUnrecordable(INode node, VersionInterface versionLoader) {
+    if (node.getAclFeature() != null) {
+      return "ACL on " + node.getFullPathName();
+    }
+    if (versionLoader.hasXAttrs(node)) {
+      return "extended attributes on " + node.getFullPathName();
+    }
+    return null;
+  }
+
+  /**
+   * Load the snapshot.
+   *
+   * @param conf the HDFS configuration
+   * @param threads the number of worker threads; 0 or less uses one per available core
+   * @return a GSet of all INodes in the snapshot, linked into a tree under the root
+   * @throws IOException if there is no snapshot or it could not be read
+   */
+  GSet<INode, INodeWithAdditionalFields> load(Configuration conf, int threads) throws IOException {
+    int workerCount = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    LOG.info("Loading snapshot: {} with {} threads.", file, workerCount);
+    long start = System.currentTimeMillis();
+    FSNamesystem namesystem = new FSNamesystem(conf, new FSImage(conf));
+    ExecutorService workers = ParallelImageLoader.newWorkers(workerCount, "SnapshotLoader-");
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      Header header = Header.read(in);
+      FileChannel channel = in.getChannel();
+      String[] stringTable = readStringTable(channel, header.stringTableOffset);
+      INodeParser parser = new INodeParser(conf, namesystem, stringTable);
+      INodeTable table = new INodeTable(header.lastInodeId);
+
+      // Directories are parsed before files so that every parent exists when a file is linked.
+      List<Future<DirBatch>> dirBatches = new ArrayList<>();
+      long position = HEADER_LENGTH;
+      long remaining = header.numDirs;
+      while (remaining > 0) {
+        MappedBatch batch = MappedBatch.map(in, position);
+        dirBatches.add(workers.submit(() -> parseDirs(batch, parser, table)));
+        remaining -= batch.records;
+        position = batch.end;
+      }
+      List<Future<?>> linking = new ArrayList<>();
+      for (Future<DirBatch> future : dirBatches) {
+        DirBatch batch = ParallelImageLoader.await(future);
+        linking.add(
+            workers.submit(
+                () -> {
+                  batch.link(table);
+                  return null;
+                }));
+      }
+      remaining = header.numFiles;
+      while (remaining > 0) {
+        MappedBatch batch = MappedBatch.map(in, position);
+        linking.add(
+            workers.submit(
+                () -> {
+                  parseFiles(batch, parser, table);
+                  return null;
+                }));
+        remaining -= batch.records;
+        position = batch.end;
+      }
+      for (Future<?> future : linking) {
+        ParallelImageLoader.await(future);
+      }
+
+      GSet<INode, INodeWithAdditionalFields> gset =
+          new LightWeightGSet<>(LightWeightGSet.computeCapacity(1, "INodeMap"));
+      table.forEach(gset::put);
+      long end = System.currentTimeMillis();
+      LOG.info(
+          "Loading snapshot of {} INodes at txid: {} took: {} ms.",
+          gset.size(),
+          header.txId,
+          (end - start));
+      return gset;
+    } finally {
+      workers.shutdownNow();
+      namesystem.shutdown();
+    }
+  }
+
+  private static DirBatch parseDirs(MappedBatch batch, INodeParser parser, INodeTable table)
+      throws IOException {
+    DataInputStream in = batch.open();
+    DirBatch dirs = new DirBatch(batch.records);
+    for (int i = 0; i < batch.records; i++) {
+      dirs.parentIds[i] = in.readLong();
+      dirs.nodes[i] = parser.parse(INodeSection.INode.parseDelimitedFrom(in));
+      table.put(dirs.nodes[i]);
+    }
+    return dirs;
+  }
+
+  private static void parseFiles(MappedBatch batch, INodeParser parser, INodeTable table)
+      throws IOException {
+    DataInputStream in = batch.open();
+    for (int i = 0; i < batch.records; i++) {
+      long parentId = in.readLong();
+      INode file = parser.parse(INodeSection.INode.parseDelimitedFrom(in));
+      table.put(file);
+      link(table, parentId, file);
+    }
+  }
+
+  private static void link(INodeTable table, long parentId, INode child) throws IOException {
+    INode parent = table.get(parentId);
+    if (parent == null || !parent.isDirectory()) {
+      throw new IOException(
+          "Snapshot is missing directory: " + parentId + " of INode: " + child.getId());
+    }
+    INodeDirectory dir = parent.asDirectory();
+    synchronized (dir) {
+      if (dir.addChild(child)) {
+        child.setParent(dir);
+      }
+    }
+  }
+
+  private static String[] readStringTable(FileChannel channel, long offset) throws IOException {
+    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, channel.size() - offset);
+    DataInputStream in = new DataInputStream(new MappedInputStream(buffer));
+    String[] stringTable = new String[in.readInt() + 1];
+    for (int i = 1; i < stringTable.length; i++) {
+      stringTable[i] = in.readUTF();
+    }
+    return stringTable;
+  }
+
+  private static final class Header {
+    private long txId;
+    private long lastInodeId;
+    private long numDirs;
+    private long numFiles;
+    private long stringTableOffset;
+
+    private static Header read(RandomAccessFile in) throws IOException {
+      in.seek(0);
+      if (in.length() < HEADER_LENGTH || in.readLong() != MAGIC) {
+        throw new IOException("Not an NNA snapshot.");
+      }
+      int version = in.readInt();
+      if (version != LAYOUT_VERSION) {
+        throw new IOException("Unsupported snapshot layout version: " + version);
+      }
+      Header header = new Header();
+      header.txId = in.readLong();
+      header.lastInodeId = in.readLong();
+      header.numDirs = in.readLong();
+      header.numFiles = in.readLong();
+      header.stringTableOffset = in.readLong();
+      return header;
+    }
+
+    private ByteBuffer toBytes() {
+      ByteBuffer bytes = ByteBuffer.allocate(HEADER_LENGTH);
+      bytes.putLong(MAGIC).putInt(LAYOUT_VERSION);
+      bytes.putLong(txId).putLong(lastInodeId).putLong(numDirs).putLong(numFiles);
+      bytes.putLong(stringTableOffset);
+      bytes.flip();
+      return bytes;
+    }
+  }
+
+  /** A batch of records, mapped into memory without being read. */
+  private static final class MappedBatch {
+    private final ByteBuffer buffer;
+    private final int records;
+    private final long end;
+
+    private MappedBatch(ByteBuffer buffer, int records, long end) {
+      this.buffer = buffer;
+      this.records = records;
+      this.end = end;
+    }
+
+    private static MappedBatch map(RandomAccessFile in, long position) throws IOException {
+      in.seek(position);
+      int records = in.readInt();
+      int length = in.readInt();
+      if (records <= 0 || length < 0) {
+        throw new IOException("Corrupt snapshot batch at offset: " + position);
+      }
+      long start = position + 8;
+      ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+      return new MappedBatch(buffer, records, start + length);
+    }
+
+    private DataInputStream open() {
+      return new DataInputStream(new MappedInputStream(buffer));
+    }
+  }
+
+  /** Parsed directories that are linked to their parents once all directories exist. */
+  private static final class DirBatch {
+    private final INode[] nodes;
+    private final long[] parentIds;
+
+    private DirBatch(int records) {
+      nodes = new INode[records];
+      parentIds = new long[records];
+    }
+
+    private void link(INodeTable table) throws IOException {
+      for (int i = 0; i < nodes.length; i++) {
+        if (parentIds[i] >= 0) {
+          AnalyticsSnapshot.link(table, parentIds[i], nodes[i]);
+        }
+      }
+    }
+  }
+
+  /** Converts INodes into batches of snapshot records, collecting the string table as it goes. */
+  private static final class RecordWriter {
+    private final VersionInterface versionLoader;
+    private final Function<INode, Long> storagePolicy;
+    private final Method setStoragePolicy;
+    private final StringTable strings = new StringTable();
+    private final ByteArrayOutputStream batchBytes = new ByteArrayOutputStream(1 << 20);
+    private final DataOutputStream batch = new DataOutputStream(batchBytes);
+    private long lastInodeId = INodeId.ROOT_INODE_ID;
+    private long position = HEADER_LENGTH;
+
+    private RecordWriter(VersionInterface versionLoader) {
+      this.versionLoader = versionLoader;
+      Function<INode, Long> storagePolicyFunc;
+      try {
+        storagePolicyFunc = versionLoader.getFilterFunctionToLongForINode("storageType");
+      } catch (UnsupportedOperationException e) {
+        storagePolicyFunc = null;
+      }
+      Method setter;
+      try {
+        setter = INodeSection.INodeFile.Builder.class.getMethod("setStoragePolicyID", int.class);
+      } catch (NoSuchMethodException e) {
+        setter = null;
+      }
+      this.storagePolicy = (setter != null) ? storagePolicyFunc : null;
+      this.setStoragePolicy = setter;
+    }
+
+    /**
+     * Write the INodes as batches of records.
+     *
+     * @return the number of records written
+     */
+    private long writeAll(Collection<INode> nodes, DataOutputStream out) throws IOException {
+      long written = 0;
+      int records = 0;
+      for (INode node : nodes) {
+        INodeDirectory parent = node.getParent();
+        batch.writeLong((parent == null) ? -1L : parent.getId());
+        toProto(node).writeDelimitedTo(batch);
+        lastInodeId = Math.max(lastInodeId, node.getId());
+        if (++records == BATCH_RECORDS) {
+          flush(records, out);
+          written += records;
+          records = 0;
+        }
+      }
+      if (records > 0) {
+        flush(records, out);
+        written += records;
+      }
+      return written;
+    }
+
+    private void flush(int records, DataOutputStream out) throws IOException {
+      batch.flush();
+      out.writeInt(records);
+      out.writeInt(batchBytes.size());
+      batchBytes.writeTo(out);
+      position += 8 + batchBytes.size();
+      batchBytes.reset();
+    }
+
+    private INodeSection.INode toProto(INode node) throws IOException {
+      long permission =
+          ((strings.idOf(node.getUserName()) & USER_GROUP_STRID_MASK) << USER_STRID_OFFSET)
+              | ((strings.idOf(node.getGroupName()) & USER_GROUP_STRID_MASK) << GROUP_STRID_OFFSET)
+              | (node.getFsPermissionShort() & 0xFFFF);
+      INodeSection.INode.Builder builder =
+          INodeSection.INode.newBuilder()
+              .setId(node.getId())
+              .setName(ByteString.copyFrom(node.getLocalNameBytes()));
+      if (node.isFile()) {
+        INodeFile file = node.asFile();
+        INodeSection.INodeFile.Builder fileBuilder =
+            INodeSection.INodeFile.newBuilder()
+                .setReplication(file.getFileReplication())
+                .setModificationTime(file.getModificationTime())
+                .setAccessTime(file.getAccessTime())
+                .setPreferredBlockSize(file.getPreferredBlockSize())
+                .setPermission(permission);
+        for (Block block : file.getBlocks()) {
+          fileBuilder.addBlocks(
+              BlockProto.newBuilder()
+                  .setBlockId(block.getBlockId())
+                  .setGenStamp(block.getGenerationStamp())
+                  .setNumBytes(block.getNumBytes()));
+        }
+        if (storagePolicy != null) {
+          setStoragePolicyId(fileBuilder, storagePolicy.apply(node).intValue());
+        }
+        if (file.isUnderConstruction()) {
+          FileUnderConstructionFeature uc = file.getFileUnderConstructionFeature();
+          fileBuilder.setFileUC(
+              INodeSection.FileUnderConstructionFeature.newBuilder()
+                  .setClientName(uc.getClientName())
+                  .setClientMachine(uc.getClientMachine()));
+        }
+        return builder.setType(INodeSection.INode.Type.FILE).setFile(fileBuilder).build();
+      }
+      INodeSection.INodeDirectory.Builder dirBuilder =
+          INodeSection.INodeDirectory.newBuilder()
+              .setModificationTime(node.getModificationTime())
+              .setNsQuota(versionLoader.getNsQuota(node))
+              .setDsQuota(versionLoader.getDsQuota(node))
+              .setPermission(permission);
+      return builder.setType(INodeSection.INode.Type.DIRECTORY).setDirectory(dirBuilder).build();
+    }
+
+    private void setStoragePolicyId(INodeSection.INodeFile.Builder builder, int policyId)
+        throws IOException {
+      try {
+        setStoragePolicy.invoke(builder, policyId);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        throw new IOException("Failed to record storage policy.", e);
+      }
+    }
+  }
+
+  /** User and group names by id, in the form of the FsImage's string table. */
+  private static final class StringTable {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    private int idOf(String string) throws IOException {
+      Integer id = ids.get(string);
+      if (id == null) {
+        strings.add(string);
+        id = strings.size();
+        if (id > USER_GROUP_STRID_MASK) {
+          throw new IOException("Too many distinct user and group names for a snapshot.");
+        }
+        ids.put(string, id);
+      }
+      return id;
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+      out.writeInt(strings.size());
+      for (String string : strings) {
+        out.writeUTF(string);
+      }
+    }
+  }
+
+  private static final class MappedInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    private MappedInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override // InputStream
+    public int read() {
+      return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+    }
+
+    @Override // InputStream
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int read = Math.min(len, buffer.remaining());
+      buffer.get(b, off, read);
+      return read;
+    }
+
+    @Override // InputStream
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,345 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static com.googlecode.cqengine.query.QueryFactory.noQueryOptions;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.wrapping.WrappingPersistence;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.hadoop.hdfs.server.namenode.Constants.Filter;
+import org.apache.hadoop.util.INodeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the configured CQEngine indexes of {@link JavaCollectionQEngine} on a background thread,
+ * so that loading never waits on them, and keeps them current with the INode map.
+ *
+ * <p>Each INode set is indexed in a shadow {@link ConcurrentIndexedCollection} around the same
+ * INodes and only published once all of its indexes are built; until then queries scan the set
+ * as before. INodes added and removed by edit log tailing are queued and applied to the published
+ * indexes before each query and every {@link #DRAIN_INTERVAL_MS}.
+ *
+ * <p>INodes that change in place (e.g. times, owner, replication, or the size of a file being
+ * written) keep their old index entries until the next periodic rebuild, as no INode map change
+ * tells of them. {@link #retrieve} therefore re-checks every candidate against the INode map and
+ * its current attribute values, so stale entries never leak into results. INodes added since the
+ * build, and files that were open during it, are also checked on their current values, so growing
+ * files are found as they are written; other INodes that changed in place into a query's range
+ * are only found after the next rebuild.
+ */
+class CQEngineIndexer implements INodeListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CQEngineIndexer.class.getName());
+
+  static final long DRAIN_INTERVAL_MS = 1000L;
+
+  private final SimpleAttribute<INode, Long> primaryKey;
+  private final Function<String, Index<INode>> indexFactory;
+  private final IndexedSet files;
+  private final IndexedSet dirs;
+
+  private final AtomicInteger built = new AtomicInteger();
+  private volatile int total = 0;
+  private volatile String building = null;
+  private volatile boolean started = false;
+  private Thread thread = null;
+
+  /** A queued INode map change. */
+  private static final class Change {
+    private final INode node;
+    private final boolean added;
+
+    private Change(INode node, boolean added) {
+      this.node = node;
+      this.added = added;
+    }
+  }
+
+  /** The indexes of one INode set along with the changes not yet applied to them. */
+  private final class IndexedSet {
+    private final String name;
+    private final Collection<INode> inodes;
+    private final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+    private volatile IndexedCollection<INode> published;
+    // INodes by id that were added since the published build or were open during it.
+    private volatile Map<Long, INode> recent = new ConcurrentHashMap<>();
+    private List<String> attributes = Collections.emptyList();
+
+    // Guarded by this.
+    private List<Index<INode>> indexes = Collections.emptyList();
+    private boolean rebuilding = false;
+
+    private IndexedSet(String name, Collection<INode> inodes) {
+      this.name = name;
+      this.inodes = inodes;
+      this.published = wrap(inodes);
+    }
+
+    private void build() {
+      synchronized (this) {
+        rebuilding = true;
+      }
+      try {
+        IndexedCollection<INode> shadow = wrap(inodes);
+        Map<Long, INode> open =
+            inodes
+                .stream()
+                .filter(node -> node.isFile() && node.asFile().isUnderConstruction())
+                .collect(
+                    Collectors.toConcurrentMap(
+                        INode::getId, node -> node, (a, b) -> b, ConcurrentHashMap::new));
+        List<Index<INode>> shadowIndexes = new ArrayList<>(attributes.size());
+        for (String attribute : attributes) {
+          building = name + ":" + attribute;
+          long start = System.currentTimeMillis();
+          Index<INode> index = indexFactory.apply(attribute);
+          shadow.addIndex(index);
+          shadowIndexes.add(index);
+          built.incrementAndGet();
+          long end = System.currentTimeMillis();
+          LOG.info("Building CQEngine index on: {} took: {} ms.", building, (end - start));
+        }
+        synchronized (this) {
+          published = shadow;
+          indexes = shadowIndexes;
+          recent = open;
+        }
+      } finally {
+        synchronized (this) {
+          rebuilding = false;
+        }
+      }
+      drain();
+    }
+
+    /**
+     * Apply the queued changes, in order, to the published indexes. Changes queued while a
+     * rebuild is scanning stay queued, as the new indexes may or may not have seen them.
+     */
+    private synchronized void drain() {
+      if (rebuilding) {
+        return;
+      }
+      if (indexes.isEmpty()) {
+        changes.clear();
+        return;
+      }
+      QueryOptions queryOptions = noQueryOptions();
+      for (Change change = changes.poll(); change != null; change = changes.poll()) {
+        ObjectSet<INode> objects = ObjectSet.fromCollection(Collections.singleton(change.node));
+        for (Index<INode> index : indexes) {
+          if (change.added) {
+            index.addAll(objects, queryOptions);
+          } else {
+            index.removeAll(objects, queryOptions);
+          }
+        }
+        if (change.added) {
+          recent.put(change.node.getId(), change.node);
+        } else {
+          recent.remove(change.node.getId(), change.node);
+        }
+      }
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param files the file set to index
+   * @param dirs the directory set to index
+   * @param primaryKey the attribute that uniquely identifies an INode
+   * @param indexFactory creates a new, empty index on the given attribute
+   */
+  CQEngineIndexer(
+      Collection<INode> files,
+      Collection<INode> dirs,
+      SimpleAttribute<INode, Long> primaryKey,
+      Function<String, Index<INode>> indexFactory) {
+    this.primaryKey = primaryKey;
+    this.indexFactory = indexFactory;
+    this.files = new IndexedSet("files", files);
+    this.dirs = new IndexedSet("dirs", dirs);
+  }
+
+  /**
+   * Start building the indexes on a background thread. Attributes that do not apply to a set are
+   * skipped for that set; unknown attributes are skipped altogether.
+   *
+   * @param attributes the attributes to index
+   * @param rebuildMs milliseconds in-between full rebuilds; 0 or less to only build once
+   */
+  void start(Set<String> attributes, long rebuildMs) {
+    files.attributes = applicable(attributes, Constants.FILTER_FILE);
+    dirs.attributes = applicable(attributes, Constants.FILTER_DIR);
+    total = files.attributes.size() + dirs.attributes.size();
+    if (total == 0) {
+      LOG.info("No CQEngine indexes configured; queries will scan.");
+      return;
+    }
+    started = true;
+    thread = new Thread(() -> run(rebuildMs), "CQEngineIndexer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Stop building indexes, once the INode sets being indexed are no longer served. */
+  void stop() {
+    started = false;
+    if (thread != null) {
+      thread.interrupt();
+    }
+  }
+
+  private void run(long rebuildMs) {
+    while (true) {
+      try {
+        long start = System.currentTimeMillis();
+        built.set(0);
+        files.build();
+        dirs.build();
+        building = null;
+        long end = System.currentTimeMillis();
+        LOG.info("Building {} CQEngine indexes took: {} ms.", total, (end - start));
+      } catch (Throwable e) {
+        LOG.info("Building CQEngine indexes failed: {}", e);
+        building = null;
+      }
+
+      long nextBuild = System.currentTimeMillis() + rebuildMs;
+      do {
+        try {
+          Thread.sleep(DRAIN_INTERVAL_MS);
+        } catch (InterruptedException ignored) {
+          LOG.debug("CQEngine indexing was interrupted by: {}", ignored);
+          return;
+        }
+        drain();
+      } while (rebuildMs <= 0 || System.currentTimeMillis() < nextBuild);
+    }
+  }
+
+  private static List<String> applicable(Set<String> attributes, EnumSet<Filter> filters) {
+    List<String> result = new ArrayList<>(attributes.size());
+    for (String attribute : attributes) {
+      try {
+        if (filters.contains(Filter.valueOf(attribute))) {
+          result.add(attribute);
+        }
+      } catch (IllegalArgumentException e) {
+        LOG.warn("Skipping CQEngine index on unknown attribute: {}", attribute);
+      }
+    }
+    return result;
+  }
+
+  private IndexedCollection<INode> wrap(Collection<INode> inodes) {
+    return new ConcurrentIndexedCollection<>(
+        WrappingPersistence.aroundCollectionOnPrimaryKey(inodes, primaryKey));
+  }
+
+  @Override // INodeListener
+  public void inodeAdded(INode node) {
+    if (started) {
+      (node.isFile() ? files : dirs).changes.add(new Change(node, true));
+    }
+  }
+
+  @Override // INodeListener
+  public void inodeRemoved(INode node) {
+    if (started) {
+      (node.isFile() ? files : dirs).changes.add(new Change(node, false));
+    }
+  }
+
+  /** Apply all queued INode map changes to the published indexes. */
+  void drain() {
+    files.drain();
+    dirs.drain();
+  }
+
+  /**
+   * Retrieves the INodes of a set that match a query. For a published set, candidates are
+   * re-checked against the INode map and their current attribute values, and the recently added
+   * or open INodes that now match follow the candidates.
+   *
+   * @param set the set to query
+   * @param query the query
+   * @param queryOptions the query options
+   * @return the matching INodes
+   */
+  Stream<INode> retrieve(
+      IndexedCollection<INode> set, Query<INode> query, QueryOptions queryOptions) {
+    Stream<INode> candidates = set.retrieve(query, queryOptions).stream();
+    IndexedSet indexed = (set == files.published) ? files : (set == dirs.published) ? dirs : null;
+    if (indexed == null) {
+      return candidates;
+    }
+    Predicate<INode> live = node -> set.contains(node) && query.matches(node, queryOptions);
+    return Stream.concat(candidates, indexed.recent.values().stream()).filter(live).distinct();
+  }
+
+  /** @return the latest published file set */
+  IndexedCollection<INode> getFiles() {
+    return files.published;
+  }
+
+  /** @return the latest published directory set */
+  IndexedCollection<INode> getDirs() {
+    return dirs.published;
+  }
+
+  /** @return the number of indexes built in the current build */
+  int getBuilt() {
+    return built.get();
+  }
+
+  /** @return the number of indexes configured across both sets */
+  int getTotal() {
+    return total;
+  }
+
+  /** @return the set and attribute currently being indexed; or null if none */
+  String getBuilding() {
+    return building;
+  }
+}
@@ -0,0 +1,388 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongToIntFunction;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
+import org.apache.hadoop.hdfs.server.namenode.queries.Histograms;
+import org.apache.hadoop.hdfs.server.namenode.queries.MemorySizeHistogram;
+import org.apache.hadoop.hdfs.server.namenode.queries.SpaceSizeHistogram;
+import org.apache.hadoop.hdfs.server.namenode.queries.TimeHistogram;
+
+/**
+ * A QueryEngine that answers filters, sums and the common histograms by scanning the primitive
+ * columns of an {@link INodeColumns} snapshot instead of calling into live INode objects.
+ *
+ * <p>The INode sets handed out by this engine are {@link OrdinalINodeCollection}s of the latest
+ * snapshot, so results reflect the namespace as of the snapshot txid. Once EditLog tailing moves
+ * the namespace past that txid, the next query starts a rebuild of the snapshot in the background;
+ * until it is done, queries use the stale snapshot for at most nna.query.columnar.max.lag.ms after
+ * it was built and scan the live INodes after that.
+ *
+ * <p>Anything that is not backed by a column (string filters, quotas, finds, parent directories,
+ * etc.) falls back to the {@link JavaStreamQueryEngine} implementation against the INodes of the
+ * snapshot.
+ */
+public class ColumnarQueryEngine extends JavaStreamQueryEngine {
+
+  @Override // QueryEngine
+  public Collection<INode> getINodeSet(String set) {
+    INodeColumns columns = nameNodeLoader.getCurrentINodeColumns();
+    if (columns == null) {
+      return super.getINodeSet(set);
+    }
+    long start = System.currentTimeMillis();
+    Collection<INode> inodes = columns.getSet(set);
+    long end = System.currentTimeMillis();
+    LOG.debug(
+        "Fetching columnar set of: {} at txid: {} had result size: {} and took: {} ms.",
+        set,
+        columns.getTxId(),
+        inodes.size(),
+        (end - start));
+    return inodes;
+  }
+
+  /**
+   * Main filter method for filtering down a set of INodes to a smaller subset. Ordinal-backed sets
+   * are filtered by scanning columns and return a new bitmap-backed set, so filtering an earlier
+   * result only tests the ordinals it holds. Column filters the snapshot remembers a whole-set
+   * result for are applied by intersecting bitmaps instead, and a single such filter over a whole
+   * set is remembered for the next query.
+   *
+   * @param inodes the main inode set to work on
+   * @param filters set of filters to use
+   * @param filterOps matching length set of filter operands and operators
+   * @return the filtered set of inodes
+   */
+  @Override // QueryEngine
+  public Collection<INode> combinedFilter(
+      Collection<INode> inodes, String[] filters, String[] filterOps) {
+    if (!(inodes instanceof OrdinalINodeCollection) || filters.length == 0) {
+      return super.combinedFilter(inodes, filters, filterOps);
+    }
+    OrdinalINodeCollection ordinalINodes = (OrdinalINodeCollection) inodes;
+    INodeColumns columns = ordinalINodes.getColumns();
+
+    FilterCompiler compiler = new FilterCompiler(this, getCurrentSubtreeIndex());
+    List<FilterCompiler.Term> terms = new ArrayList<>(filters.length);
+    for (int i = 0; i < filters.length; i++) {
+      terms.add(compiler.compile(columns, filters[i], filterOps[i].split(":")));
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      OrdinalINodeCollection result = ordinalINodes;
+      List<FilterCompiler.Term> scanned = new ArrayList<>(terms.size());
+      for (FilterCompiler.Term term : terms) {
+        OrdinalINodeCollection remembered =
+            term.isRepeatable() ? columns.getFilterResult(term.getDescription(), result) : null;
+        if (remembered != null) {
+          result = result.and(remembered);
+        } else {
+          scanned.add(term);
+        }
+      }
+      if (scanned.isEmpty()) {
+        LOG.debug("Columnar filter result of remembered filters has: {} INodes.", result.size());
+        return result;
+      }
+      List<FilterCompiler.Term> ordered = FilterCompiler.order(scanned, result);
+      LOG.debug("Evaluating columnar filters in order: {}", ordered);
+      IntPredicate predicate = FilterCompiler.ordinalConjunction(ordered);
+      OrdinalINodeCollection set = result;
+      result = set.filter(predicate);
+      if (terms.size() == 1 && terms.get(0).isRepeatable()) {
+        columns.putFilterResult(terms.get(0).getDescription(), set, result);
+      }
+      LOG.debug("Columnar filter result has: {} INodes.", result.size());
+      return result;
+    } finally {
+      long end = System.currentTimeMillis();
+      LOG.info(
+          "Performing columnar filters: {} with filterOps: {} took: {} ms.",
+          Arrays.asList(filters),
+          Arrays.asList(filterOps),
+          (end - start));
+      QueryMetrics.observeStage(QueryMetrics.STAGE_FILTER, end - start);
+    }
+  }
+
+  /**
+   * Performs a summation against a collection of INodes.
+   *
+   * @param inodes the inodes to sum on
+   * @param sum the type of summation to perform
+   * @return the resulting sum as a long
+   */
+  @Override // QueryEngine
+  public Long sum(Collection<INode> inodes, String sum) {
+    if (!(inodes instanceof OrdinalINodeCollection)) {
+      return super.sum(inodes, sum);
+    }
+    OrdinalINodeCollection ordinalINodes = (OrdinalINodeCollection) inodes;
+    IntToLongFunction sumColumn = ordinalINodes.getColumns().getSumColumn(sum);
+    if (sumColumn == null) {
+      return super.sum(inodes, sum);
+    }
+    long startTime = System.currentTimeMillis();
+    try {
+      if (sum.equals("count")) {
+        return (long) ordinalINodes.size();
+      }
+      return ordinalINodes.ordinals().parallel().mapToLong(sumColumn).sum();
+    } finally {
+      long endTime = System.currentTimeMillis();
+      LOG.info("Performing columnar sum: {} took: {} ms.", sum, (endTime - startTime));
+      QueryMetrics.observeStage(QueryMetrics.STAGE_SUM, endTime - startTime);
+    }
+  }
+
+  @Override // QueryEngine
+  public Map<String, Long> diskspaceConsumedHistogram(
+      Collection<INode> inodes,
+      String sum,
+      String find,
+      Map<String, Function<INode, Long>> transformMap) {
+    if (isColumnar(inodes, sum, find) && (transformMap == null || transformMap.isEmpty())) {
+      return columnarFilteringHistogram(
+          (OrdinalINodeCollection) inodes,
+          sum,
+          "diskspaceConsumed",
+          false,
+          SpaceSizeHistogram.getBinsArray(),
+          SpaceSizeHistogram.getKeys());
+    }
+    return super.diskspaceConsumedHistogram(inodes, sum, find, transformMap);
+  }
+
+  @Override // QueryEngine
+  public Map<String, Long> memoryConsumedHistogram(
+      Collection<INode> inodes, String sum, String find) {
+    if (isColumnar(inodes, sum, find)) {
+      return columnarFilteringHistogram(
+          (OrdinalINodeCollection) inodes,
+          sum,
+          "memoryConsumed",
+          false,
+          MemorySizeHistogram.getBinsArray(),
+          MemorySizeHistogram.getKeys());
+    }
+    return super.memoryConsumedHistogram(inodes, sum, find);
+  }
+
+  @Override // QueryEngine
+  public Map<String, Long> fileSizeHistogram(Collection<INode> inodes, String sum, String find) {
+    if (isColumnar(inodes, sum, find)) {
+      return columnarFilteringHistogram(
+          (OrdinalINodeCollection) inodes,
+          sum,
+          "fileSize",
+          false,
+          SpaceSizeHistogram.getBinsArray(),
+          SpaceSizeHistogram.getKeys());
+    }
+    return super.fileSizeHistogram(inodes, sum, find);
+  }
+
+  @Override // QueryEngine
+  public Map<String, Long> accessTimeHistogram(
+      Collection<INode> inodes, String sum, String find, String timeRange) {
+    if (isColumnar(inodes, sum, find)) {
+      return columnarFilteringHistogram(
+          (OrdinalINodeCollection) inodes,
+          sum,
+          "accessTime",
+          true,
+          TimeHistogram.getBinsArray(timeRange),
+          TimeHistogram.getKeys(timeRange));
+    }
+    return super.accessTimeHistogram(inodes, sum, find, timeRange);
+  }
+
+  @Override // QueryEngine
+  public Map<String, Long> modTimeHistogram(
+      Collection<INode> inodes, String sum, String find, String timeRange) {
+    if (isColumnar(inodes, sum, find)) {
+      return columnarFilteringHistogram(
+          (OrdinalINodeCollection) inodes,
+          sum,
+          "modTime",
+          true,
+          TimeHistogram.getBinsArray(timeRange),
+          TimeHistogram.getKeys(timeRange));
+    }
+    return super.modTimeHistogram(inodes, sum, find, timeRange);
+  }
+
+  @Override // QueryEngine
+  public Map<String, Long> fileReplicaHistogram(
+      Collection<INode> inodes,
+      String sum,
+      String find,
+      Map<String, Function<INode, Long>> transformMap) {
+    if (!isColumnar(inodes, sum, find) || (transformMap != null && !transformMap.isEmpty())) {
+      return super.fileReplicaHistogram(inodes, sum, find, transformMap);
+    }
+    OrdinalINodeCollection ordinalINodes = (OrdinalINodeCollection) inodes;
+    if (ordinalINodes.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    INodeColumns columns = ordinalINodes.getColumns();
+    IntToLongFunction binColumn = columns.getLongColumn("fileReplica");
+    IntToLongFunction sumColumn = columns.getSumColumn(sum);
+
+    long start = System.currentTimeMillis();
+    int maxId = (int) ordinalINodes.ordinals().parallel().mapToLong(binColumn).max().orElse(0L);
+    long[] histogram =
+        ordinalINodes
+            .ordinals()
+            .parallel()
+            .collect(
+                () -> new long[maxId + 2],
+                (acc, ord) -> acc[(int) binColumn.applyAsLong(ord)] += sumColumn.applyAsLong(ord),
+                ColumnarQueryEngine::mergeInto);
+    long end = System.currentTimeMillis();
+    LOG.info("Columnar histogram took: {} ms.", (end - start));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end - start);
+    return Histograms.mapToNonEmptyIndex(histogram);
+  }
+
+  @Override // QueryEngine
+  public Map<String, Long> byUserHistogram(Collection<INode> inodes, String sum, String find) {
+    if (isColumnar(inodes, sum, find)) {
+      OrdinalINodeCollection ordinalINodes = (OrdinalINodeCollection) inodes;
+      INodeColumns columns = ordinalINodes.getColumns();
+      return columnarDictionaryHistogram(
+          ordinalINodes, sum, columns::getUserId, columns.getUserNames());
+    }
+    return super.byUserHistogram(inodes, sum, find);
+  }
+
+  @Override // QueryEngine
+  public Map<String, Long> byGroupHistogram(Collection<INode> inodes, String sum, String find) {
+    if (isColumnar(inodes, sum, find)) {
+      OrdinalINodeCollection ordinalINodes = (OrdinalINodeCollection) inodes;
+      INodeColumns columns = ordinalINodes.getColumns();
+      return columnarDictionaryHistogram(
+          ordinalINodes, sum, columns::getGroupId, columns.getGroupNames());
+    }
+    return super.byGroupHistogram(inodes, sum, find);
+  }
+
+  private boolean isColumnar(Collection<INode> inodes, String sum, String find) {
+    return inodes instanceof OrdinalINodeCollection
+        && (find == null || find.isEmpty())
+        && sum != null
+        && ((OrdinalINodeCollection) inodes).getColumns().getSumColumn(sum) != null;
+  }
+
+  /**
+   * Bins each ordinal by the first bin edge its value is less than or equal to. Time based columns
+   * are binned by their age relative to the start of the query.
+   */
+  private Map<String, Long> columnarFilteringHistogram(
+      OrdinalINodeCollection inodes,
+      String sum,
+      String attribute,
+      boolean byAge,
+      Long[] binsArray,
+      List<String> keys) {
+    if (inodes.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    INodeColumns columns = inodes.getColumns();
+    IntToLongFunction column = columns.getLongColumn(attribute);
+    long now = System.currentTimeMillis();
+    IntToLongFunction binColumn = byAge ? ord -> now - column.applyAsLong(ord) : column;
+    IntToLongFunction sumColumn = columns.getSumColumn(sum);
+    LongToIntFunction locator = HistogramKernel.thresholdLocator(binsArray);
+
+    long start = System.currentTimeMillis();
+    long[] histogram =
+        inodes
+            .ordinals()
+            .parallel()
+            .collect(
+                () -> new long[binsArray.length + 1],
+                (acc, ord) ->
+                    acc[locator.applyAsInt(binColumn.applyAsLong(ord))] +=
+                        sumColumn.applyAsLong(ord),
+                ColumnarQueryEngine::mergeInto);
+    long end = System.currentTimeMillis();
+    LOG.info("Columnar histogram of {} by {} took: {} ms.", sum, attribute, (end - start));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end - start);
+    return Histograms.sortByKeys(keys, histogram);
+  }
+
+  private Map<String, Long> columnarDictionaryHistogram(
+      OrdinalINodeCollection inodes,
+      String sum,
+      IntUnaryOperator idColumn,
+      String[] names) {
+    if (inodes.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    IntToLongFunction sumColumn = inodes.getColumns().getSumColumn(sum);
+    int length = names.length;
+
+    long start = System.currentTimeMillis();
+    // First half holds the sums; second half holds the counts so empty bins can be skipped.
+    long[] histogram =
+        inodes
+            .ordinals()
+            .parallel()
+            .collect(
+                () -> new long[length * 2],
+                (acc, ord) -> {
+                  int id = idColumn.applyAsInt(ord);
+                  acc[id] += sumColumn.applyAsLong(ord);
+                  acc[length + id]++;
+                },
+                ColumnarQueryEngine::mergeInto);
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (int i = 0; i < length; i++) {
+      if (histogram[length + i] != 0) {
+        result.put(names[i], histogram[i]);
+      }
+    }
+    long end = System.currentTimeMillis();
+    LOG.info("Columnar histogram of {} took: {} ms.", sum, (end - start));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end - start);
+    return result;
+  }
+
+  private static void mergeInto(long[] left, long[] right) {
+    for (int i = 0; i < left.length; i++) {
+      left[i] += right[i];
+    }
+  }
+}
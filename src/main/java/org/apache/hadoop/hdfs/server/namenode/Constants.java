@@ -207,15 +207,24 @@ public interface Constants {
   enum Find {
     min,
     max,
-    avg
+    avg,
+    p50,
+    p90,
+    p99,
+    distinct
   }
 
   enum FindField {
     accessTime,
     modTime,
+    modTimeAge,
     fileSize,
     diskspaceConsumed,
-    memoryConsumed
+    memoryConsumed,
+    numBlocks,
+    user,
+    group,
+    parentDir
   }
 
   enum Operation {
@@ -268,7 +277,11 @@ public interface Constants {
     removeDirectory,
     quotas,
     fileAge,
-    metrics
+    metrics,
+    submitQuery,
+    queryStatus,
+    queryResult,
+    cancelQuery
   }
 
   EnumSet<Endpoint> UNSECURED_ENDPOINTS =
@@ -306,7 +319,11 @@ public interface Constants {
           Endpoint.divide,
           Endpoint.top,
           Endpoint.bottom,
-          Endpoint.dump);
+          Endpoint.dump,
+          Endpoint.submitQuery,
+          Endpoint.queryStatus,
+          Endpoint.queryResult,
+          Endpoint.cancelQuery);
 
   EnumSet<Endpoint> WRITER_ENDPOINTS =
       EnumSet.of(Endpoint.listOperations, Endpoint.submitOperation, Endpoint.abortOperation);
@@ -432,10 +449,22 @@ public interface Constants {
           FindField.modTime,
           FindField.diskspaceConsumed,
           FindField.fileSize,
-          FindField.memoryConsumed);
+          FindField.memoryConsumed,
+          FindField.modTimeAge,
+          FindField.numBlocks,
+          FindField.user,
+          FindField.group,
+          FindField.parentDir);
 
   EnumSet<FindField> FIND_DIR =
-      EnumSet.of(FindField.accessTime, FindField.modTime, FindField.memoryConsumed);
+      EnumSet.of(
+          FindField.accessTime,
+          FindField.modTime,
+          FindField.memoryConsumed,
+          FindField.modTimeAge,
+          FindField.user,
+          FindField.group,
+          FindField.parentDir);
 
   EnumSet<FindField> FIND_ALL = getIntersection(FIND_FILE, FIND_DIR);
 
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+/**
+ * A mergeable HyperLogLog sketch counting distinct long values.
+ *
+ * <p>Small sets are kept exactly as a hash set of the hashed values, so bins with few distinct
+ * values cost little memory and are counted exactly. Past {@link #EXACT_LIMIT} values the sketch
+ * switches to 2^{@link #PRECISION} registers, for a standard error of about 1.6%.
+ */
+final class DistinctCountSketch implements HistogramKernel.Sketch {
+
+  static final int PRECISION = 12;
+  static final int EXACT_LIMIT = 512;
+
+  private static final int REGISTERS = 1 << PRECISION;
+  private static final long EMPTY = 0L;
+
+  // Hashes of the values while exact; open addressing, with EMPTY standing in for hash 0.
+  private long[] hashes = new long[16];
+  private int size;
+  private boolean hasZero;
+  private byte[] registers;
+
+  @Override // Sketch
+  public void add(long value) {
+    addHash(hash(value));
+  }
+
+  @Override // Sketch
+  public void merge(HistogramKernel.Sketch other) {
+    DistinctCountSketch that = (DistinctCountSketch) other;
+    if (that.registers == null) {
+      if (that.hasZero) {
+        addHash(EMPTY);
+      }
+      for (long hash : that.hashes) {
+        if (hash != EMPTY) {
+          addHash(hash);
+        }
+      }
+      return;
+    }
+    if (registers == null) {
+      toRegisters();
+    }
+    for (int i = 0; i < REGISTERS; i++) {
+      if (registers[i] < that.registers[i]) {
+        registers[i] = that.registers[i];
+      }
+    }
+  }
+
+  @Override // Sketch
+  public long result() {
+    if (registers == null) {
+      return size + (hasZero ? 1 : 0);
+    }
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+    double estimate = alpha * REGISTERS * REGISTERS / sum;
+    if (estimate <= 2.5 * REGISTERS && zeros != 0) {
+      // Linear counting is more accurate while many registers are still empty.
+      estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  private void addHash(long hash) {
+    if (registers != null) {
+      addToRegisters(hash);
+      return;
+    }
+    if (hash == EMPTY) {
+      hasZero = true;
+      return;
+    }
+    int mask = hashes.length - 1;
+    int slot = (int) hash & mask;
+    while (hashes[slot] != EMPTY) {
+      if (hashes[slot] == hash) {
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    hashes[slot] = hash;
+    size++;
+    if (size > EXACT_LIMIT) {
+      toRegisters();
+    } else if (size * 2 > hashes.length) {
+      long[] previous = hashes;
+      hashes = new long[previous.length * 2];
+      size = 0;
+      for (long rehash : previous) {
+        if (rehash != EMPTY) {
+          addHash(rehash);
+        }
+      }
+    }
+  }
+
+  private void toRegisters() {
+    registers = new byte[REGISTERS];
+    if (hasZero) {
+      addToRegisters(EMPTY);
+    }
+    for (long hash : hashes) {
+      if (hash != EMPTY) {
+        addToRegisters(hash);
+      }
+    }
+    hashes = null;
+    size = 0;
+    hasZero = false;
+  }
+
+  private void addToRegisters(long hash) {
+    int index = (int) (hash >>> (64 - PRECISION));
+    int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+    if (registers[index] < rank) {
+      registers[index] = (byte) rank;
+    }
+  }
+
+  // The finalizer of SplitMix64; spreads nearby values, like consecutive ids, over all bits.
+  private static long hash(long value) {
+    long z = value * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,531 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Compiles /filter arguments into primitive predicates and orders them for evaluation.
+ *
+ * <p>Each filter becomes a {@link Term} wrapping a {@link Predicate} over INodes (and, when an
+ * {@link INodeColumns} snapshot is given, an {@link IntPredicate} over ordinals). Long attributes
+ * are read through {@link ToLongFunction}s and compared with {@link LongPredicate}s, so no Long or
+ * Boolean is boxed per INode for the common attributes. Relative time operations like "hoursAgo"
+ * resolve their threshold once at compile time.
+ *
+ * <p>Before a scan, {@link #order(List, Collection)} evaluates every term against a small sample
+ * of the input and sorts terms by cost / (1 - pass rate), so that cheap and selective terms run
+ * first and the conjunction short-circuits as early as possible. Only terms defined on every kind
+ * of INode are moved; a term like "fileSize" keeps its place behind the terms the user put before
+ * it, since those may be what narrows the set down to files.
+ */
+class FilterCompiler {
+
+  static final int SAMPLE_SIZE = 1024;
+
+  private static final int COST_COLUMN = 1;
+  private static final int COST_PRIMITIVE = 2;
+  private static final int COST_BOXED = 4;
+  private static final int COST_SUBTREE = 4;
+  private static final int COST_STRING = 8;
+  private static final int COST_PATH_WALK = 16;
+  private static final int COST_PATH = 64;
+
+  /** Filters that can be evaluated on files and directories alike. */
+  private static final Set<String> TOTAL_FILTERS =
+      new HashSet<>(
+          Arrays.asList(
+              "id",
+              "accessTime",
+              "modTime",
+              "memoryConsumed",
+              "depth",
+              "permission",
+              "name",
+              "path",
+              "user",
+              "group",
+              "modDate",
+              "accessDate",
+              "hasAcl"));
+
+  /** Operations whose threshold is taken relative to the time of the query. */
+  private static final Set<String> RELATIVE_TIME_OPS =
+      new HashSet<>(
+          Arrays.asList(
+              "minutesAgo",
+              "hoursAgo",
+              "daysAgo",
+              "monthsAgo",
+              "yearsAgo",
+              "olderThanMinutes",
+              "olderThanHours",
+              "olderThanDays",
+              "olderThanMonths",
+              "olderThanYears"));
+
+  private final QueryEngine queryEngine;
+  private final SubtreeIndex subtreeIndex;
+  private final long now;
+
+  /** A single compiled filter along with its evaluation cost and sampled pass rate. */
+  static final class Term {
+    private final String description;
+    private final int cost;
+    private final Predicate<INode> predicate;
+    private final IntPredicate ordinalPredicate;
+    private final boolean total;
+    private final boolean repeatable;
+    private double passRate = 1.0d;
+
+    Term(
+        String description,
+        int cost,
+        boolean total,
+        Predicate<INode> predicate,
+        IntPredicate ordinalPredicate) {
+      this(description, cost, total, false, predicate, ordinalPredicate);
+    }
+
+    Term(
+        String description,
+        int cost,
+        boolean total,
+        boolean repeatable,
+        Predicate<INode> predicate,
+        IntPredicate ordinalPredicate) {
+      this.description = description;
+      this.cost = cost;
+      this.total = total;
+      this.repeatable = repeatable;
+      this.predicate = predicate;
+      this.ordinalPredicate = ordinalPredicate;
+    }
+
+    String getDescription() {
+      return description;
+    }
+
+    Predicate<INode> getPredicate() {
+      return predicate;
+    }
+
+    IntPredicate getOrdinalPredicate() {
+      return ordinalPredicate;
+    }
+
+    int getCost() {
+      return cost;
+    }
+
+    /** @return true if this term can be evaluated on every kind of INode */
+    boolean isTotal() {
+      return total;
+    }
+
+    /**
+     * @return true if this term only reads columns of a snapshot and does not depend on the time
+     *     it was compiled, so that it passes the same ordinals every time it is compiled
+     */
+    boolean isRepeatable() {
+      return repeatable;
+    }
+
+    double getPassRate() {
+      return passRate;
+    }
+
+    double rank() {
+      return cost / Math.max(1.0d - passRate, 1.0d / SAMPLE_SIZE);
+    }
+
+    @Override
+    public String toString() {
+      return description + "[cost=" + cost + ", pass=" + String.format("%.3f", passRate) + "]";
+    }
+  }
+
+  FilterCompiler(QueryEngine queryEngine) {
+    this(queryEngine, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param queryEngine the query engine providing the INode attribute functions
+   * @param subtreeIndex optional; a subtree index that is current, used for path prefix filters
+   */
+  FilterCompiler(QueryEngine queryEngine, SubtreeIndex subtreeIndex) {
+    this.queryEngine = queryEngine;
+    this.subtreeIndex = subtreeIndex;
+    this.now = System.currentTimeMillis();
+  }
+
+  /**
+   * Compile a single filter into a term over INodes.
+   *
+   * @param filter the filter attribute
+   * @param filterOps the filter operation and operand
+   * @return the compiled term
+   */
+  Term compile(String filter, String[] filterOps) {
+    return compile(null, filter, filterOps);
+  }
+
+  /**
+   * Compile a single filter into a term over INodes and, if columns are given, over ordinals.
+   *
+   * @param columns optional; the columnar snapshot to read attributes from
+   * @param filter the filter attribute
+   * @param filterOps the filter operation and operand
+   * @return the compiled term
+   */
+  Term compile(INodeColumns columns, String filter, String[] filterOps) {
+    String op = filterOps[0];
+    String opValue = filterOps[1];
+    String description = filter + ":" + op + ":" + opValue;
+    boolean total = TOTAL_FILTERS.contains(filter);
+
+    // Long value filters
+    ToLongFunction<INode> primitiveFunction =
+        queryEngine.getFilterFunctionToPrimitiveLongForINode(filter);
+    Function<INode, Long> longFunction =
+        (primitiveFunction == null) ? queryEngine.getFilterFunctionToLongForINode(filter) : null;
+    if (primitiveFunction != null || longFunction != null) {
+      LongPredicate longPredicate = compileLong(Long.parseLong(opValue), op);
+      Predicate<INode> predicate;
+      int cost;
+      if (primitiveFunction != null) {
+        predicate = node -> longPredicate.test(primitiveFunction.applyAsLong(node));
+        cost = filter.equals("depth") ? COST_PATH_WALK : COST_PRIMITIVE;
+      } else {
+        predicate = node -> longPredicate.test(longFunction.apply(node));
+        cost = COST_BOXED;
+      }
+      IntToLongFunction column = (columns == null) ? null : columns.getLongColumn(filter);
+      if (column != null) {
+        IntPredicate ordinalPredicate = ord -> longPredicate.test(column.applyAsLong(ord));
+        boolean repeatable = !RELATIVE_TIME_OPS.contains(op);
+        return new Term(description, COST_COLUMN, total, repeatable, predicate, ordinalPredicate);
+      }
+      return new Term(description, cost, total, predicate, toOrdinal(columns, predicate));
+    }
+
+    // Path prefix filters resolve to a range of subtree ranks
+    if (filter.equals("path")
+        && subtreeIndex != null
+        && (op.equals("startsWith") || op.equals("notStartsWith"))) {
+      Predicate<INode> startsWith = subtreeIndex.startsWith(opValue);
+      Predicate<INode> predicate = op.equals("startsWith") ? startsWith : startsWith.negate();
+      return new Term(description, COST_SUBTREE, total, predicate, toOrdinal(columns, predicate));
+    }
+
+    // Path equality and prefix filters match the path bytes without building the path String
+    if (filter.equals("path")) {
+      Predicate<INode> predicate = compilePath(opValue, op);
+      if (predicate != null) {
+        return new Term(
+            description, COST_PATH_WALK, total, predicate, toOrdinal(columns, predicate));
+      }
+    }
+
+    // String value filters
+    Function<INode, String> strFunction = queryEngine.getFilterFunctionToStringForINode(filter);
+    if (strFunction != null) {
+      Function<String, Boolean> strPredicate = queryEngine.getFilterFunctionForString(opValue, op);
+      Predicate<INode> predicate = node -> strPredicate.apply(strFunction.apply(node));
+      int cost = (filter.equals("path") || op.startsWith("date")) ? COST_PATH : COST_STRING;
+      return new Term(description, cost, total, predicate, toOrdinal(columns, predicate));
+    }
+
+    // Boolean value filters
+    Predicate<INode> boolPredicate = queryEngine.getFilterPredicateForINode(filter);
+    if (boolPredicate == null) {
+      Function<INode, Boolean> boolFunction =
+          queryEngine.getFilterFunctionToBooleanForINode(filter);
+      if (boolFunction != null) {
+        boolPredicate = boolFunction::apply;
+      }
+    }
+    if (boolPredicate != null) {
+      Predicate<INode> predicate = compileBoolean(boolPredicate, Boolean.parseBoolean(opValue), op);
+      return new Term(
+          description, COST_PRIMITIVE, total, predicate, toOrdinal(columns, predicate));
+    }
+
+    throw new IllegalArgumentException(
+        "Failed to determine filter: "
+            + filter
+            + ", with operations: "
+            + Arrays.asList(filterOps)
+            + ".\nCheck your filter arguments."
+            + "\nPossible filters and operations available at /filters and /filterOps.");
+  }
+
+  /**
+   * Sample the INodes, estimate the pass rate of every term, and return the terms in the order
+   * they should be evaluated. Terms that only apply to some INodes, e.g. file attributes, stay
+   * where the user put them; the runs of total terms between them are sorted. The sort is stable
+   * so ties keep the user-given order. If any term fails on the sample the given order is returned
+   * unchanged.
+   *
+   * @param terms the compiled terms
+   * @param inodes the INodes the terms will be applied to
+   * @return the terms sorted by ascending rank within each run of total terms
+   */
+  static List<Term> order(List<Term> terms, Collection<INode> inodes) {
+    if (terms.size() < 2) {
+      return terms;
+    }
+    List<INode> sample = sample(inodes);
+    if (sample.isEmpty()) {
+      return terms;
+    }
+    for (Term term : terms) {
+      if (!term.total) {
+        continue;
+      }
+      int passed = 0;
+      try {
+        for (INode node : sample) {
+          if (term.predicate.test(node)) {
+            passed++;
+          }
+        }
+      } catch (RuntimeException e) {
+        // A total term should not fail; if it does anyway, keep the order as given.
+        return terms;
+      }
+      term.passRate = (double) passed / sample.size();
+    }
+    List<Term> ordered = new ArrayList<>(terms);
+    int runStart = 0;
+    for (int i = 0; i <= ordered.size(); i++) {
+      if (i == ordered.size() || !ordered.get(i).total) {
+        ordered.subList(runStart, i).sort(Comparator.comparingDouble(Term::rank));
+        runStart = i + 1;
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Combine ordered terms into a short-circuiting conjunction over INodes.
+   *
+   * @param terms the ordered terms
+   * @return the combined predicate
+   */
+  static Predicate<INode> conjunction(List<Term> terms) {
+    Predicate<INode>[] predicates = toArray(terms);
+    if (predicates.length == 1) {
+      return predicates[0];
+    }
+    return node -> {
+      for (Predicate<INode> predicate : predicates) {
+        if (!predicate.test(node)) {
+          return false;
+        }
+      }
+      return true;
+    };
+  }
+
+  /**
+   * Combine ordered terms into a short-circuiting conjunction over ordinals. Terms must have been
+   * compiled against an {@link INodeColumns} snapshot.
+   *
+   * @param terms the ordered terms
+   * @return the combined ordinal predicate
+   */
+  static IntPredicate ordinalConjunction(List<Term> terms) {
+    IntPredicate[] predicates = new IntPredicate[terms.size()];
+    for (int i = 0; i < predicates.length; i++) {
+      predicates[i] = terms.get(i).ordinalPredicate;
+    }
+    if (predicates.length == 1) {
+      return predicates[0];
+    }
+    return ord -> {
+      for (IntPredicate predicate : predicates) {
+        if (!predicate.test(ord)) {
+          return false;
+        }
+      }
+      return true;
+    };
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"}) // Arrays of a generic type can not be created.
+  private static Predicate<INode>[] toArray(List<Term> terms) {
+    Predicate<INode>[] predicates = new Predicate[terms.size()];
+    for (int i = 0; i < predicates.length; i++) {
+      predicates[i] = terms.get(i).predicate;
+    }
+    return predicates;
+  }
+
+  private static IntPredicate toOrdinal(INodeColumns columns, Predicate<INode> predicate) {
+    if (columns == null) {
+      return null;
+    }
+    return ord -> predicate.test(columns.getNode(ord));
+  }
+
+  /**
+   * Pick up to {@link #SAMPLE_SIZE} INodes spread evenly across the collection where random access
+   * is available; otherwise take the head of the collection, which for the hash-ordered INode sets
+   * is already well mixed. Lazily filtered views sample their source and filter the sample, rather
+   * than scanning the source until enough INodes match.
+   */
+  private static List<INode> sample(Collection<INode> inodes) {
+    if (inodes instanceof FilteredINodeCollection) {
+      return ((FilteredINodeCollection) inodes).sample(FilterCompiler::sample);
+    }
+    int size = inodes.size();
+    int sampleSize = Math.min(size, SAMPLE_SIZE);
+    List<INode> sample = new ArrayList<>(sampleSize);
+    if (sampleSize == 0) {
+      return sample;
+    }
+    int stride = size / sampleSize;
+    if (inodes instanceof OrdinalINodeCollection) {
+      OrdinalINodeCollection ordinalINodes = (OrdinalINodeCollection) inodes;
+      INodeColumns columns = ordinalINodes.getColumns();
+      for (int i = 0; i < sampleSize; i++) {
+        sample.add(columns.getNode(ordinalINodes.ordinalAt(i * stride)));
+      }
+    } else if (inodes instanceof List && inodes instanceof RandomAccess) {
+      List<INode> list = (List<INode>) inodes;
+      for (int i = 0; i < sampleSize; i++) {
+        sample.add(list.get(i * stride));
+      }
+    } else {
+      Iterator<INode> iterator = inodes.iterator();
+      while (iterator.hasNext() && sample.size() < sampleSize) {
+        sample.add(iterator.next());
+      }
+    }
+    return sample;
+  }
+
+  private static Predicate<INode> compileBoolean(
+      Predicate<INode> boolPredicate, boolean value, String op) {
+    switch (op) {
+      case "eq":
+        return value ? boolPredicate : boolPredicate.negate();
+      case "notEq":
+        return value ? boolPredicate.negate() : boolPredicate;
+      default:
+        throw new IllegalArgumentException(
+            "Failed to determine Boolean filter operation.\n"
+                + "Please check /filterOps and use operations meant for Booleans.");
+    }
+  }
+
+  /**
+   * Compile a Long comparison into a primitive predicate. Relative time operations are resolved
+   * against the compile time of this compiler.
+   *
+   * @param value the value to compare against
+   * @param op the operation to perform
+   * @return the primitive predicate
+   */
+  LongPredicate compileLong(long value, String op) {
+    switch (op) {
+      case "lt":
+        return l -> l < value;
+      case "gt":
+        return l -> l > value;
+      case "eq":
+        return l -> l == value;
+      case "notEq":
+        return l -> l != value;
+      case "lte":
+        return l -> l <= value;
+      case "gte":
+        return l -> l >= value;
+      case "minutesAgo":
+        return atLeast(now - TimeUnit.MINUTES.toMillis(value));
+      case "hoursAgo":
+        return atLeast(now - TimeUnit.HOURS.toMillis(value));
+      case "daysAgo":
+        return atLeast(now - TimeUnit.DAYS.toMillis(value));
+      case "monthsAgo":
+        return atLeast(now - TimeUnit.DAYS.toMillis(30 * value));
+      case "yearsAgo":
+        return atLeast(now - TimeUnit.DAYS.toMillis(365 * value));
+      case "olderThanMinutes":
+        return atMost(now - TimeUnit.MINUTES.toMillis(value));
+      case "olderThanHours":
+        return atMost(now - TimeUnit.HOURS.toMillis(value));
+      case "olderThanDays":
+        return atMost(now - TimeUnit.DAYS.toMillis(value));
+      case "olderThanMonths":
+        return atMost(now - TimeUnit.DAYS.toMillis(30 * value));
+      case "olderThanYears":
+        return atMost(now - TimeUnit.DAYS.toMillis(365 * value));
+      default:
+        throw new IllegalArgumentException(
+            "Failed to determine Long filter operation.\n"
+                + "Please check /filterOps and use operations meant for Longs.");
+    }
+  }
+
+  private static LongPredicate atLeast(long threshold) {
+    return l -> l >= threshold;
+  }
+
+  private static LongPredicate atMost(long threshold) {
+    return l -> l <= threshold;
+  }
+
+  /** @return a predicate over the full path of INodes; or null if op needs the path String */
+  private static Predicate<INode> compilePath(String value, String op) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    switch (op) {
+      case "eq":
+        return node -> PathNames.equals(node, bytes);
+      case "notEq":
+        return node -> !PathNames.equals(node, bytes);
+      case "startsWith":
+        return node -> PathNames.startsWith(node, bytes);
+      case "notStartsWith":
+        return node -> !PathNames.startsWith(node, bytes);
+      default:
+        return null;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A lazily filtered view over an INode collection.
+ *
+ * <p>The first stream of this collection applies the filter on the fly, so a histogram or sum
+ * over it filters and aggregates in one pass without building an intermediate list.
+ *
+ * <p>The source may change while it is tailed, so any further pass, and any call to {@link
+ * #size()}, {@link #isEmpty()} or {@link #iterator()}, materializes the matching INodes once and
+ * serves them from a list. Sizes and later passes therefore always agree. Callers that only need a
+ * count should use {@link #count(Collection)}, which counts in the lazy pass instead.
+ */
+class FilteredINodeCollection extends AbstractCollection<INode> {
+
+  static final int LAZY_PASSES = 1;
+
+  private final Collection<INode> source;
+  private final Predicate<INode> filter;
+
+  private final AtomicInteger passes = new AtomicInteger(0);
+  private volatile List<INode> materialized = null;
+
+  FilteredINodeCollection(Collection<INode> source, Predicate<INode> filter) {
+    this.source = source;
+    this.filter = filter;
+  }
+
+  /**
+   * Count a collection of INodes. A lazily filtered view is counted by streaming it, rather than
+   * materializing it for {@link #size()}; any other collection reports its size.
+   *
+   * @param inodes the INodes to count
+   * @return the number of INodes
+   */
+  static long count(Collection<INode> inodes) {
+    if (inodes instanceof FilteredINodeCollection) {
+      return inodes.parallelStream().count();
+    }
+    return inodes.size();
+  }
+
+  /**
+   * Sample the matching INodes without scanning the source or using up the lazy pass. Once
+   * materialized the matching INodes are sampled; until then the source is sampled and the sample
+   * filtered, so a selective filter leaves fewer INodes than the sampler took.
+   *
+   * @param sampler samples a collection into a new, modifiable list
+   * @return the sampled matching INodes
+   */
+  List<INode> sample(Function<Collection<INode>, List<INode>> sampler) {
+    List<INode> list = materialized;
+    if (list != null) {
+      return sampler.apply(list);
+    }
+    List<INode> sample = sampler.apply(source);
+    sample.removeIf(filter.negate());
+    return sample;
+  }
+
+  @Override
+  public Stream<INode> stream() {
+    List<INode> list = materialized;
+    if (list == null && passes.incrementAndGet() > LAZY_PASSES) {
+      list = materialize();
+    }
+    if (list != null) {
+      return list.stream();
+    }
+    return source.stream().filter(filter);
+  }
+
+  @Override
+  public Stream<INode> parallelStream() {
+    List<INode> list = materialized;
+    if (list == null && passes.incrementAndGet() > LAZY_PASSES) {
+      list = materialize();
+    }
+    if (list != null) {
+      return list.parallelStream();
+    }
+    return source.parallelStream().filter(filter);
+  }
+
+  @Override
+  public Spliterator<INode> spliterator() {
+    return parallelStream().spliterator();
+  }
+
+  @Override
+  public int size() {
+    return materialize().size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return materialize().isEmpty();
+  }
+
+  @Override
+  public Iterator<INode> iterator() {
+    return materialize().iterator();
+  }
+
+  private List<INode> materialize() {
+    List<INode> list = materialized;
+    if (list == null) {
+      synchronized (this) {
+        list = materialized;
+        if (list == null) {
+          list = source.parallelStream().filter(filter).collect(Collectors.toList());
+          materialized = list;
+        }
+      }
+    }
+    return list;
+  }
+}
@@ -0,0 +1,533 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.LongToIntFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Lock-free histogram accumulation shared by the query engines.
+ *
+ * <p>Each fork-join leaf accumulates into its own {@link Accumulator} of primitive arrays and the
+ * leaves are merged pairwise as the join unwinds, so no worker ever waits on a monitor. Bins are
+ * located through a {@link LongToIntFunction}; threshold bins use arithmetic on evenly spaced
+ * edges and a binary search over primitive edges otherwise.
+ *
+ * <p>Averages are summed into a 128-bit (high, low) pair per bin and only divided at the end, so
+ * there is no per-element BigInteger and no overflow on large sums.
+ *
+ * <p>Percentiles and distinct counts keep a mergeable {@link Sketch} per bin instead, created on
+ * the first element of the bin and merged like the other modes as the join unwinds.
+ */
+class HistogramKernel {
+
+  /** The value collected into every bin. */
+  enum Mode {
+    SUM,
+    MAX,
+    MIN,
+    AVG,
+    P50,
+    P90,
+    P99,
+    DISTINCT
+  }
+
+  /** A mergeable summary of the values of a bin. */
+  interface Sketch {
+
+    /** @param value a value of the bin */
+    void add(long value);
+
+    /** @param other a sketch of the same kind, whose values are added to this one */
+    void merge(Sketch other);
+
+    /** @return the value reported for the bin */
+    long result();
+  }
+
+  /**
+   * Get the accumulation mode of a find operation.
+   *
+   * @param find the find operation; "max", "min", "avg", "p50", "p90", "p99" or "distinct"
+   * @return the accumulation mode
+   */
+  static Mode modeOf(String find) {
+    switch (find) {
+      case "max":
+        return Mode.MAX;
+      case "min":
+        return Mode.MIN;
+      case "avg":
+        return Mode.AVG;
+      case "p50":
+        return Mode.P50;
+      case "p90":
+        return Mode.P90;
+      case "p99":
+        return Mode.P99;
+      case "distinct":
+        return Mode.DISTINCT;
+      default:
+        throw new IllegalArgumentException("Unknown find query type: " + find);
+    }
+  }
+
+  /**
+   * Get a locator that picks the first bin whose upper edge is greater than or equal to the datum,
+   * or binsArray.length if there is none.
+   *
+   * @param binsArray the upper edges of the bins
+   * @return the bin locator
+   */
+  static LongToIntFunction thresholdLocator(Long[] binsArray) {
+    final long[] bins = new long[binsArray.length];
+    for (int i = 0; i < bins.length; i++) {
+      bins[i] = binsArray[i];
+    }
+    final int overflow = bins.length;
+    if (bins.length == 0) {
+      return datum -> overflow;
+    }
+
+    boolean sorted = true;
+    for (int i = 1; i < bins.length && sorted; i++) {
+      sorted = bins[i - 1] <= bins[i];
+    }
+    if (!sorted) {
+      return datum -> {
+        for (int i = 0; i < bins.length; i++) {
+          if (datum <= bins[i]) {
+            return i;
+          }
+        }
+        return overflow;
+      };
+    }
+
+    final long first = bins[0];
+    final long last = bins[bins.length - 1];
+    final long step = (bins.length > 1) ? bins[1] - bins[0] : 0;
+    boolean uniform = step > 0;
+    for (int i = 1; i < bins.length && uniform; i++) {
+      uniform = bins[i] - bins[i - 1] == step;
+    }
+    if (uniform) {
+      return datum -> {
+        if (datum <= first) {
+          return 0;
+        }
+        if (datum > last) {
+          return overflow;
+        }
+        return (int) ((datum - first + step - 1) / step);
+      };
+    }
+
+    return datum -> {
+      if (datum > last) {
+        return overflow;
+      }
+      int low = 0;
+      int high = bins.length - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (bins[mid] < datum) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    };
+  }
+
+  /**
+   * Get a locator that uses the datum itself as the bin, or the overflow bin if the datum is out
+   * of range.
+   *
+   * @param overflow the index of the overflow bin
+   * @return the bin locator
+   */
+  static LongToIntFunction indexLocator(int overflow) {
+    return datum -> (datum >= 0 && datum < overflow) ? (int) datum : overflow;
+  }
+
+  /**
+   * Bin data and accumulate the matching values in parallel.
+   *
+   * @param data the per-element data that decides the bin
+   * @param values the per-element value to accumulate
+   * @param length the number of elements to process
+   * @param locator the bin locator
+   * @param numBins the number of bins, including the overflow bin
+   * @param mode the accumulation mode
+   * @param emptyValue the value reported for bins that received no element; unused for SUM
+   * @return the histogram
+   */
+  static long[] accumulate(
+      long[] data,
+      long[] values,
+      int length,
+      LongToIntFunction locator,
+      int numBins,
+      Mode mode,
+      long emptyValue) {
+    Accumulator result =
+        IntStream.range(0, length)
+            .parallel()
+            .collect(
+                () -> new Accumulator(numBins, mode, false),
+                (acc, idx) -> acc.add(locator.applyAsInt(data[idx]), values[idx]),
+                Accumulator::merge);
+    return result.finish(emptyValue);
+  }
+
+  /**
+   * Bin INodes and accumulate their values in a single parallel pass over the collection. Any
+   * filtering of a lazily filtered collection happens in the same pass, so nothing is
+   * materialized per INode.
+   *
+   * @param inodes the INodes to process
+   * @param binKey the per-INode data that decides the bin
+   * @param locator the bin locator
+   * @param value the per-INode value to accumulate
+   * @param numBins the number of bins, including the overflow bin
+   * @param mode the accumulation mode
+   * @return the merged accumulator
+   */
+  static Accumulator accumulate(
+      Collection<INode> inodes,
+      ToLongFunction<INode> binKey,
+      LongToIntFunction locator,
+      ToLongFunction<INode> value,
+      int numBins,
+      Mode mode) {
+    return inodes
+        .parallelStream()
+        .collect(
+            () -> new Accumulator(numBins, mode, false),
+            (acc, node) ->
+                acc.add(locator.applyAsInt(binKey.applyAsLong(node)), value.applyAsLong(node)),
+            Accumulator::merge);
+  }
+
+  /**
+   * Bin INodes by the bin key itself in a single parallel pass, growing the bins to the largest
+   * key seen. Slot 0 collects negative keys; slot k + 1 collects key k.
+   *
+   * @param inodes the INodes to process
+   * @param binKey the per-INode bin index
+   * @param value the per-INode value to accumulate
+   * @param mode the accumulation mode
+   * @return the merged accumulator
+   */
+  static Accumulator accumulateByIndex(
+      Collection<INode> inodes,
+      ToLongFunction<INode> binKey,
+      ToLongFunction<INode> value,
+      Mode mode) {
+    return inodes
+        .parallelStream()
+        .collect(
+            () -> new Accumulator(1, mode, true),
+            (acc, node) -> {
+              long key = binKey.applyAsLong(node);
+              acc.add((key < 0) ? 0 : Math.toIntExact(key + 1), value.applyAsLong(node));
+            },
+            Accumulator::merge);
+  }
+
+  /**
+   * Bin INodes by a dense id, like a dictionary id, in a single parallel pass, growing the bins to
+   * the largest id seen. Every bin also counts its INodes, so that ids no INode mapped to can be
+   * told apart from bins that summed to zero.
+   *
+   * @param inodes the INodes to process
+   * @param binId the per-INode bin index; never negative
+   * @param value the per-INode value to accumulate
+   * @param mode the accumulation mode
+   * @return the merged accumulator
+   */
+  static Accumulator accumulateById(
+      Collection<INode> inodes,
+      ToIntFunction<INode> binId,
+      ToLongFunction<INode> value,
+      Mode mode) {
+    return inodes
+        .parallelStream()
+        .collect(
+            () -> new Accumulator(1, mode, true, true),
+            (acc, node) -> acc.add(binId.applyAsInt(node), value.applyAsLong(node)),
+            Accumulator::merge);
+  }
+
+  /** Per-leaf accumulation state; never shared between threads until merged. */
+  static final class Accumulator {
+    private final Mode mode;
+    private final boolean growable;
+    private long[] values;
+    private long[] counts;
+    private long[] highs;
+    private Sketch[] sketches;
+    private int used;
+    private long total;
+
+    Accumulator(int numBins, Mode mode, boolean growable) {
+      this(numBins, mode, growable, false);
+    }
+
+    Accumulator(int numBins, Mode mode, boolean growable, boolean counted) {
+      this.mode = mode;
+      this.growable = growable;
+      this.values = new long[numBins];
+      this.counts = (mode == Mode.SUM && !counted) ? null : new long[numBins];
+      this.highs = (mode == Mode.AVG) ? new long[numBins] : null;
+      this.sketches = isSketched(mode) ? new Sketch[numBins] : null;
+      this.used = growable ? 0 : numBins;
+    }
+
+    /** @return the number of elements accumulated */
+    long getTotal() {
+      return total;
+    }
+
+    /** @return the number of bins; for growable accumulators, one past the highest bin used */
+    int size() {
+      return used;
+    }
+
+    /**
+     * @param bin the bin
+     * @return the number of elements accumulated into the bin; only kept by counted accumulators
+     *     and by modes other than SUM
+     */
+    long getCount(int bin) {
+      return counts[bin];
+    }
+
+    void add(int bin, long value) {
+      total++;
+      if (growable) {
+        ensure(bin);
+      }
+      switch (mode) {
+        case SUM:
+          values[bin] += value;
+          if (counts != null) {
+            counts[bin]++;
+          }
+          return;
+        case MAX:
+          if (counts[bin]++ == 0 || values[bin] < value) {
+            values[bin] = value;
+          }
+          return;
+        case MIN:
+          if (counts[bin]++ == 0 || values[bin] > value) {
+            values[bin] = value;
+          }
+          return;
+        case AVG:
+          addWide(bin, value >> 63, value);
+          counts[bin]++;
+          return;
+        case P50:
+        case P90:
+        case P99:
+        case DISTINCT:
+          if (sketches[bin] == null) {
+            sketches[bin] = newSketch(mode);
+          }
+          sketches[bin].add(value);
+          counts[bin]++;
+          return;
+        default:
+          throw new IllegalStateException("Unknown mode: " + mode);
+      }
+    }
+
+    void merge(Accumulator other) {
+      total += other.total;
+      if (growable && other.used > 0) {
+        ensure(other.used - 1);
+      }
+      for (int bin = 0; bin < other.used; bin++) {
+        combine(bin, other, bin);
+      }
+    }
+
+    /**
+     * Move the contents of one bin into another, as if its elements had been located there.
+     *
+     * @param from the bin to empty
+     * @param to the bin to add into
+     */
+    void fold(int from, int to) {
+      combine(to, this, from);
+      values[from] = 0;
+      if (counts != null) {
+        counts[from] = 0;
+      }
+      if (highs != null) {
+        highs[from] = 0;
+      }
+      if (sketches != null) {
+        sketches[from] = null;
+      }
+    }
+
+    private void combine(int bin, Accumulator source, int sourceBin) {
+      switch (mode) {
+        case SUM:
+          values[bin] += source.values[sourceBin];
+          if (counts != null) {
+            counts[bin] += source.counts[sourceBin];
+          }
+          return;
+        case MAX:
+        case MIN:
+          long otherCount = source.counts[sourceBin];
+          if (otherCount == 0) {
+            return;
+          }
+          long otherValue = source.values[sourceBin];
+          if (counts[bin] == 0
+              || (mode == Mode.MAX ? values[bin] < otherValue : values[bin] > otherValue)) {
+            values[bin] = otherValue;
+          }
+          counts[bin] += otherCount;
+          return;
+        case AVG:
+          long otherHigh = source.highs[sourceBin];
+          long otherLow = source.values[sourceBin];
+          long count = source.counts[sourceBin];
+          addWide(bin, otherHigh, otherLow);
+          counts[bin] += count;
+          return;
+        case P50:
+        case P90:
+        case P99:
+        case DISTINCT:
+          // The source is discarded or emptied afterwards, so its sketch can be taken over.
+          Sketch otherSketch = source.sketches[sourceBin];
+          if (otherSketch == null) {
+            return;
+          } else if (sketches[bin] == null) {
+            sketches[bin] = otherSketch;
+          } else {
+            sketches[bin].merge(otherSketch);
+          }
+          counts[bin] += source.counts[sourceBin];
+          return;
+        default:
+          throw new IllegalStateException("Unknown mode: " + mode);
+      }
+    }
+
+    private void ensure(int bin) {
+      if (bin >= values.length) {
+        int length = Math.max(bin + 1, values.length * 2);
+        values = Arrays.copyOf(values, length);
+        counts = (counts == null) ? null : Arrays.copyOf(counts, length);
+        highs = (highs == null) ? null : Arrays.copyOf(highs, length);
+        sketches = (sketches == null) ? null : Arrays.copyOf(sketches, length);
+      }
+      used = Math.max(used, bin + 1);
+    }
+
+    /** 128-bit two's complement add of (high, low) into the bin. */
+    private void addWide(int bin, long high, long low) {
+      long sum = values[bin] + low;
+      long carry = Long.compareUnsigned(sum, values[bin]) < 0 ? 1L : 0L;
+      values[bin] = sum;
+      highs[bin] += high + carry;
+    }
+
+    /**
+     * Produce the histogram.
+     *
+     * @param emptyValue the value reported for bins that received no element; unused for SUM
+     * @return the histogram, with {@link #size()} bins
+     */
+    long[] finish(long emptyValue) {
+      long[] histogram = Arrays.copyOf(values, used);
+      if (mode == Mode.SUM) {
+        return histogram;
+      }
+      for (int bin = 0; bin < histogram.length; bin++) {
+        if (counts[bin] == 0) {
+          histogram[bin] = emptyValue;
+        } else if (mode == Mode.AVG) {
+          histogram[bin] = average(highs[bin], values[bin], counts[bin]);
+        } else if (sketches != null) {
+          histogram[bin] = sketches[bin].result();
+        }
+      }
+      return histogram;
+    }
+
+    private static boolean isSketched(Mode mode) {
+      switch (mode) {
+        case P50:
+        case P90:
+        case P99:
+        case DISTINCT:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    private static Sketch newSketch(Mode mode) {
+      switch (mode) {
+        case P50:
+          return new QuantileSketch(0.5);
+        case P90:
+          return new QuantileSketch(0.9);
+        case P99:
+          return new QuantileSketch(0.99);
+        case DISTINCT:
+          return new DistinctCountSketch();
+        default:
+          throw new IllegalStateException("Not a sketched mode: " + mode);
+      }
+    }
+
+    private static long average(long high, long low, long count) {
+      if (high == (low >> 63)) {
+        return low / count;
+      }
+      // Only bins whose sum overflowed a long take the slow path, once per bin.
+      BigInteger sum = BigInteger.valueOf(high).shiftLeft(64).add(unsigned(low));
+      return sum.divide(BigInteger.valueOf(count)).longValue();
+    }
+
+    private static BigInteger unsigned(long value) {
+      BigInteger result = BigInteger.valueOf(value & Long.MAX_VALUE);
+      return (value < 0) ? result.setBit(63) : result;
+    }
+  }
+}
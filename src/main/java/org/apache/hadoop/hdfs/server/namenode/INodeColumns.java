@@ -0,0 +1,331 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A columnar snapshot of the INode attributes most used by filters and histograms.
+ *
+ * <p>Every INode is given a dense ordinal. Files occupy ordinals [0, fileCount) and directories
+ * occupy [fileCount, size), each range sorted by INode id. Attributes are laid out in primitive
+ * arrays indexed by ordinal so that scans walk memory sequentially instead of chasing pointers
+ * through INode and block objects.
+ *
+ * <p>The snapshot is immutable once built. It reflects the namespace as of {@link #getTxId()}; the
+ * {@link NameNodeLoader} rebuilds it after load and on every suggestions reload. So that repeated
+ * filters cost a bitmap intersection instead of a scan, it remembers a few results of filters that
+ * only read its columns.
+ */
+public class INodeColumns {
+
+  static final int MAX_FILTER_RESULTS = 8;
+
+  private final INode[] nodes;
+  private final int fileCount;
+  private final long txId;
+  private final long buildTime;
+
+  private final long[] ids;
+  private final long[] parentIds;
+  private final long[] fileSizes;
+  private final long[] modTimes;
+  private final long[] accessTimes;
+  private final short[] replications;
+  private final int[] numBlocks;
+  private final int[] userIds;
+  private final int[] groupIds;
+  private final byte[] storagePolicies;
+
+  private final String[] userNames;
+  private final String[] groupNames;
+
+  // Whole-set results of repeatable filters, by set range and filter; see getFilterResult.
+  private final Map<String, OrdinalBitmap> filterResults = new ConcurrentHashMap<>();
+
+  private INodeColumns(
+      INode[] nodes,
+      int fileCount,
+      long txId,
+      UserGroupDictionaries dictionaries,
+      VersionInterface versionLoader) {
+    this.nodes = nodes;
+    this.fileCount = fileCount;
+    this.txId = txId;
+    this.buildTime = System.currentTimeMillis();
+
+    int size = nodes.length;
+    ids = new long[size];
+    parentIds = new long[size];
+    fileSizes = new long[size];
+    modTimes = new long[size];
+    accessTimes = new long[size];
+    replications = new short[size];
+    numBlocks = new int[size];
+    userIds = new int[size];
+    groupIds = new int[size];
+
+    Function<INode, Long> storagePolicyFunc;
+    try {
+      storagePolicyFunc = versionLoader.getFilterFunctionToLongForINode("storageType");
+    } catch (UnsupportedOperationException e) {
+      storagePolicyFunc = null;
+    }
+    storagePolicies = (storagePolicyFunc != null) ? new byte[size] : null;
+
+    final Function<INode, Long> finalStoragePolicyFunc = storagePolicyFunc;
+    IntStream.range(0, size)
+        .parallel()
+        .forEach(
+            ord -> {
+              INode node = nodes[ord];
+              ids[ord] = node.getId();
+              INodeDirectory parent = node.getParent();
+              parentIds[ord] = (parent == null) ? -1L : parent.getId();
+              modTimes[ord] = node.getModificationTime();
+              accessTimes[ord] = node.getAccessTime();
+              userIds[ord] = dictionaries.userIdOf(node);
+              groupIds[ord] = dictionaries.groupIdOf(node);
+              if (ord < fileCount) {
+                INodeFile file = node.asFile();
+                fileSizes[ord] = file.computeFileSize();
+                replications[ord] = file.getFileReplication();
+                numBlocks[ord] = file.numBlocks();
+              }
+              if (finalStoragePolicyFunc != null) {
+                storagePolicies[ord] = finalStoragePolicyFunc.apply(node).byteValue();
+              }
+            });
+
+    // Taken after the ids, so that every id in the columns has a name.
+    userNames = dictionaries.getUsers().getNames();
+    groupNames = dictionaries.getGroups().getNames();
+  }
+
+  /**
+   * Build a new columnar snapshot.
+   *
+   * @param files the current set of file INodes
+   * @param dirs the current set of directory INodes
+   * @param dictionaries the user and group dictionaries the id columns refer to
+   * @param versionLoader the version context for version specific attributes
+   * @param txId the last applied txid at the time of the build
+   * @return the columnar snapshot
+   */
+  public static INodeColumns build(
+      Collection<INode> files,
+      Collection<INode> dirs,
+      UserGroupDictionaries dictionaries,
+      VersionInterface versionLoader,
+      long txId) {
+    long start = System.currentTimeMillis();
+    INode[] fileArray = files.toArray(new INode[0]);
+    INode[] dirArray = dirs.toArray(new INode[0]);
+    Comparator<INode> byId = Comparator.comparingLong(INode::getId);
+    Arrays.parallelSort(fileArray, byId);
+    Arrays.parallelSort(dirArray, byId);
+
+    INode[] nodes = new INode[fileArray.length + dirArray.length];
+    System.arraycopy(fileArray, 0, nodes, 0, fileArray.length);
+    System.arraycopy(dirArray, 0, nodes, fileArray.length, dirArray.length);
+
+    INodeColumns columns =
+        new INodeColumns(nodes, fileArray.length, txId, dictionaries, versionLoader);
+    long end = System.currentTimeMillis();
+    QueryEngine.LOG.info(
+        "Building columns for {} files and {} dirs took: {} ms.",
+        fileArray.length,
+        dirArray.length,
+        (end - start));
+    return columns;
+  }
+
+  public int size() {
+    return nodes.length;
+  }
+
+  public int getFileCount() {
+    return fileCount;
+  }
+
+  public long getTxId() {
+    return txId;
+  }
+
+  public long getBuildTime() {
+    return buildTime;
+  }
+
+  public INode getNode(int ordinal) {
+    return nodes[ordinal];
+  }
+
+  public boolean isFile(int ordinal) {
+    return ordinal < fileCount;
+  }
+
+  /**
+   * Find the ordinal of an INode by binary searching its id.
+   *
+   * @param node the inode to look up
+   * @return the ordinal of the inode; or -1 if the inode is not part of this snapshot
+   */
+  public int ordinalOf(INode node) {
+    int from = node.isFile() ? 0 : fileCount;
+    int to = node.isFile() ? fileCount : nodes.length;
+    int ordinal = Arrays.binarySearch(ids, from, to, node.getId());
+    return (ordinal >= 0) ? ordinal : -1;
+  }
+
+  /**
+   * Get the INode set that represents the String parameter as an ordinal range of this snapshot.
+   *
+   * @param set the set of INodes; "all", "files" or "dirs"
+   * @return the ordinal-backed collection
+   */
+  public OrdinalINodeCollection getSet(String set) {
+    switch (set) {
+      case "all":
+        return new OrdinalINodeCollection(this, 0, nodes.length);
+      case "files":
+        return new OrdinalINodeCollection(this, 0, fileCount);
+      case "dirs":
+        return new OrdinalINodeCollection(this, fileCount, nodes.length);
+      default:
+        throw new IllegalArgumentException(
+            "You did not specify a set to use. Please check /sets for available sets.");
+    }
+  }
+
+  /**
+   * Get the remembered result of a repeatable filter over a whole set that holds the given INodes.
+   * Intersected with the INodes, it is what the filter would keep of them.
+   *
+   * @param filter the description of the filter
+   * @param inodes the INodes of this snapshot the filter is about to be applied to
+   * @return the INodes of the whole set that pass the filter; or null if none is remembered
+   */
+  OrdinalINodeCollection getFilterResult(String filter, OrdinalINodeCollection inodes) {
+    for (String set : new String[] {"files", "dirs", "all"}) {
+      OrdinalINodeCollection range = getSet(set);
+      OrdinalBitmap result = filterResults.get(range.rangeKey() + "/" + filter);
+      if (result != null && inodes.isWithin(range)) {
+        return new OrdinalINodeCollection(this, result);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Remember the result of a repeatable filter over a whole set, up to {@link #MAX_FILTER_RESULTS}
+   * results per snapshot.
+   *
+   * @param filter the description of the filter
+   * @param set the whole set the filter was applied to
+   * @param result the INodes of the set that passed the filter
+   */
+  void putFilterResult(String filter, OrdinalINodeCollection set, OrdinalINodeCollection result) {
+    if (!set.isRange() || filterResults.size() >= MAX_FILTER_RESULTS) {
+      return;
+    }
+    filterResults.putIfAbsent(set.rangeKey() + "/" + filter, result.bitmap());
+  }
+
+  public String[] getUserNames() {
+    return userNames;
+  }
+
+  public String[] getGroupNames() {
+    return groupNames;
+  }
+
+  public int getUserId(int ordinal) {
+    return userIds[ordinal];
+  }
+
+  public int getGroupId(int ordinal) {
+    return groupIds[ordinal];
+  }
+
+  /**
+   * Get a column as a function from ordinal to long for an INode attribute. Attributes follow the
+   * names of the filters in {@link AbstractQueryEngine#getFilterFunctionToLongForINode(String)}.
+   *
+   * @param attribute the attribute name
+   * @return the column accessor; or null if the attribute is not stored in columns
+   */
+  public IntToLongFunction getLongColumn(String attribute) {
+    switch (attribute) {
+      case "id":
+        return ord -> ids[ord];
+      case "fileSize":
+        return ord -> fileSizes[ord];
+      case "diskspaceConsumed":
+        return ord -> fileSizes[ord] * replications[ord];
+      case "fileReplica":
+        return ord -> replications[ord];
+      case "numBlocks":
+        return ord -> numBlocks[ord];
+      case "numReplicas":
+        return ord -> (long) numBlocks[ord] * replications[ord];
+      case "accessTime":
+        return ord -> accessTimes[ord];
+      case "modTime":
+        return ord -> modTimes[ord];
+      case "memoryConsumed":
+        return ord -> 100L + numBlocks[ord] * 150L;
+      case "parentId":
+        return ord -> parentIds[ord];
+      case "storageType":
+        return (storagePolicies != null) ? ord -> storagePolicies[ord] : null;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Get a column as a function from ordinal to long for a summation type. Sums follow the names of
+   * {@link AbstractQueryEngine#getSumFunctionForINode(String)}.
+   *
+   * @param sum the sum name
+   * @return the column accessor; or null if the sum is not stored in columns
+   */
+  public IntToLongFunction getSumColumn(String sum) {
+    switch (sum) {
+      case "count":
+        return ord -> 1L;
+      case "fileSize":
+      case "diskspaceConsumed":
+      case "numBlocks":
+      case "numReplicas":
+      case "memoryConsumed":
+        return getLongColumn(sum);
+      default:
+        return null;
+    }
+  }
+}
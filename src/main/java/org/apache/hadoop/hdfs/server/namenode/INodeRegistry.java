@@ -0,0 +1,374 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A compact, concurrently readable set of INodes. INodes are kept in a dense array of slots and
+ * found by id through an open-addressing index of id to slot, which costs a few words per INode
+ * instead of the ~48 byte entry of a ConcurrentHashMap.
+ *
+ * <p>Changes are serialized; in NNA they come from the single thread that tails the EditLog
+ * through {@link org.apache.hadoop.util.GSetSeperatorWrapper}. Iterators and spliterators read the
+ * slots without locking and are weakly consistent, like those of a ConcurrentHashMap. Spliterators
+ * split the slot range in halves, so parallel streams scale with the number of cores.
+ */
+public final class INodeRegistry extends AbstractCollection<INode> {
+
+  private static final int MIN_CAPACITY = 16;
+  private static final int MIN_SPLIT = 1 << 10;
+  private static final long EMPTY = Long.MIN_VALUE;
+  /* Largest power of two array length; at a 3/4 load the index holds 805M ids. */
+  private static final int MAX_INDEX_CAPACITY = 1 << 30;
+
+  /* Slots [0, limit) hold the INodes; removed INodes leave null slots that are reused. */
+  private volatile AtomicReferenceArray<INode> slots;
+  private volatile int limit;
+  private final AtomicInteger size = new AtomicInteger();
+  private int[] freeSlots = new int[MIN_CAPACITY];
+  private int freeCount;
+
+  /* Linear probing index of INode id to slot. */
+  private long[] ids;
+  private int[] positions;
+  private int indexed;
+
+  public INodeRegistry() {
+    this(MIN_CAPACITY);
+  }
+
+  /** @param expectedSize the number of INodes to make room for up front */
+  public INodeRegistry(int expectedSize) {
+    slots = new AtomicReferenceArray<>(Math.max(expectedSize, MIN_CAPACITY));
+    allocateIndex(expectedSize);
+  }
+
+  @Override // Collection
+  public int size() {
+    return size.get();
+  }
+
+  @Override // Collection
+  public boolean add(INode inode) {
+    return put(inode) == null;
+  }
+
+  /**
+   * Add an INode, replacing any INode with the same id in place.
+   *
+   * @param inode the INode to add
+   * @return the replaced INode, or null if there was none
+   */
+  public synchronized INode put(INode inode) {
+    long id = inode.getId();
+    int index = find(id);
+    if (index >= 0) {
+      return slots.getAndSet(positions[index], inode);
+    }
+    reserveIndex();
+    int position = allocateSlot();
+    slots.set(position, inode);
+    if (position >= limit) {
+      limit = position + 1;
+    }
+    insert(id, position);
+    size.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * @param id the INode id
+   * @return the INode with that id, or null if there is none
+   */
+  public synchronized INode get(long id) {
+    int index = find(id);
+    return (index < 0) ? null : slots.get(positions[index]);
+  }
+
+  /**
+   * @param id the INode id
+   * @return the removed INode, or null if there was none with that id
+   */
+  public synchronized INode remove(long id) {
+    int index = find(id);
+    if (index < 0) {
+      return null;
+    }
+    int position = positions[index];
+    INode removed = slots.getAndSet(position, null);
+    delete(index);
+    if (freeCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+    }
+    freeSlots[freeCount++] = position;
+    size.decrementAndGet();
+    return removed;
+  }
+
+  @Override // Collection
+  public boolean contains(Object o) {
+    return (o instanceof INode) && get(((INode) o).getId()) == o;
+  }
+
+  @Override // Collection
+  public boolean remove(Object o) {
+    return (o instanceof INode) && remove(((INode) o).getId()) != null;
+  }
+
+  @Override // Collection
+  public synchronized void clear() {
+    slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+    limit = 0;
+    freeSlots = new int[MIN_CAPACITY];
+    freeCount = 0;
+    allocateIndex(MIN_CAPACITY);
+    size.set(0);
+  }
+
+  /** Shrink the slots to the INodes currently held, e.g. once a bulk load is done. */
+  public synchronized void trimToSize() {
+    if (freeCount == 0 && limit < slots.length()) {
+      slots = copyOf(slots, Math.max(limit, MIN_CAPACITY));
+    }
+  }
+
+  @Override // Collection
+  public Iterator<INode> iterator() {
+    AtomicReferenceArray<INode> current = slots;
+    int end = Math.min(limit, current.length());
+    return new Iterator<INode>() {
+      private int index = advance(0);
+      private INode last;
+
+      private int advance(int from) {
+        while (from < end && current.get(from) == null) {
+          from++;
+        }
+        return from;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return index < end;
+      }
+
+      @Override
+      public INode next() {
+        if (index >= end) {
+          throw new NoSuchElementException();
+        }
+        last = current.get(index);
+        index = advance(index + 1);
+        return last;
+      }
+
+      @Override
+      public void remove() {
+        if (last == null) {
+          throw new IllegalStateException();
+        }
+        INodeRegistry.this.remove(last.getId());
+        last = null;
+      }
+    };
+  }
+
+  @Override // Collection
+  public Spliterator<INode> spliterator() {
+    AtomicReferenceArray<INode> current = slots;
+    return new SlotSpliterator(current, 0, Math.min(limit, current.length()));
+  }
+
+  private int allocateSlot() {
+    if (freeCount > 0) {
+      return freeSlots[--freeCount];
+    }
+    int position = limit;
+    if (position == slots.length()) {
+      slots = copyOf(slots, position + (position >> 1) + 1);
+    }
+    return position;
+  }
+
+  private static AtomicReferenceArray<INode> copyOf(AtomicReferenceArray<INode> from, int length) {
+    AtomicReferenceArray<INode> to = new AtomicReferenceArray<>(length);
+    for (int i = 0, end = Math.min(from.length(), length); i < end; i++) {
+      to.lazySet(i, from.get(i));
+    }
+    return to;
+  }
+
+  private void allocateIndex(int expectedSize) {
+    long wanted = Math.max(expectedSize, MIN_CAPACITY) * 4L / 3;
+    int capacity = Integer.highestOneBit((int) Math.min(wanted, 1 << 29)) << 1;
+    ids = new long[capacity];
+    Arrays.fill(ids, EMPTY);
+    positions = new int[capacity];
+    indexed = 0;
+  }
+
+  private static int mix(long id) {
+    long h = id * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private int find(long id) {
+    int mask = ids.length - 1;
+    for (int index = mix(id) & mask; ; index = (index + 1) & mask) {
+      long key = ids[index];
+      if (key == id) {
+        return index;
+      }
+      if (key == EMPTY) {
+        return -1;
+      }
+    }
+  }
+
+  /* Grows the index ahead of an insert, so that a full registry is left unchanged by a put. */
+  private void reserveIndex() {
+    if ((indexed + 1) * 4L > ids.length * 3L) {
+      long[] oldIds = ids;
+      int[] oldPositions = positions;
+      int capacity = grownIndexCapacity(oldIds.length);
+      ids = new long[capacity];
+      Arrays.fill(ids, EMPTY);
+      positions = new int[capacity];
+      for (int i = 0; i < oldIds.length; i++) {
+        if (oldIds[i] != EMPTY) {
+          place(oldIds[i], oldPositions[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param capacity the current capacity of the index
+   * @return the doubled capacity
+   * @throws IllegalStateException if the index cannot grow any further
+   */
+  static int grownIndexCapacity(int capacity) {
+    if (capacity >= MAX_INDEX_CAPACITY) {
+      throw new IllegalStateException(
+          "INodeRegistry is full; it indexes at most "
+              + (MAX_INDEX_CAPACITY / 4 * 3)
+              + " INodes, split the INodes across registries.");
+    }
+    return capacity * 2;
+  }
+
+  private void insert(long id, int position) {
+    place(id, position);
+    indexed++;
+  }
+
+  private void place(long id, int position) {
+    int mask = ids.length - 1;
+    int index = mix(id) & mask;
+    while (ids[index] != EMPTY) {
+      index = (index + 1) & mask;
+    }
+    ids[index] = id;
+    positions[index] = position;
+  }
+
+  /* Backward-shift deletion keeps probe sequences intact without tombstones. */
+  private void delete(int index) {
+    int mask = ids.length - 1;
+    int hole = index;
+    ids[hole] = EMPTY;
+    for (int next = (hole + 1) & mask; ids[next] != EMPTY; next = (next + 1) & mask) {
+      int home = mix(ids[next]) & mask;
+      boolean stays =
+          (hole <= next) ? (hole < home && home <= next) : (hole < home || home <= next);
+      if (!stays) {
+        ids[hole] = ids[next];
+        positions[hole] = positions[next];
+        ids[next] = EMPTY;
+        hole = next;
+      }
+    }
+    indexed--;
+  }
+
+  private static final class SlotSpliterator implements Spliterator<INode> {
+    private final AtomicReferenceArray<INode> slots;
+    private int index;
+    private final int fence;
+
+    private SlotSpliterator(AtomicReferenceArray<INode> slots, int index, int fence) {
+      this.slots = slots;
+      this.index = index;
+      this.fence = fence;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super INode> action) {
+      while (index < fence) {
+        INode inode = slots.get(index++);
+        if (inode != null) {
+          action.accept(inode);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super INode> action) {
+      for (int i = index; i < fence; i++) {
+        INode inode = slots.get(i);
+        if (inode != null) {
+          action.accept(inode);
+        }
+      }
+      index = fence;
+    }
+
+    @Override
+    public Spliterator<INode> trySplit() {
+      int mid = (index + fence) >>> 1;
+      if (mid - index < MIN_SPLIT) {
+        return null;
+      }
+      Spliterator<INode> prefix = new SlotSpliterator(slots, index, mid);
+      index = mid;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return fence - index;
+    }
+
+    @Override
+    public int characteristics() {
+      return Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.CONCURRENT;
+    }
+  }
+}
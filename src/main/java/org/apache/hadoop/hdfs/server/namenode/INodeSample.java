@@ -0,0 +1,346 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import org.apache.hadoop.util.INodeListener;
+
+/**
+ * A stratified sample of the INodes, for answering queries approximately.
+ *
+ * <p>INodes are stratified by owner and size class. Whether an INode is in the sample is decided
+ * by a hash of its id: an INode of a stratum sampled at level k is in the sample if its hash has
+ * at least k leading zero bits, i.e. with probability 2^-k. Large strata are sampled at the base
+ * level; smaller strata at lower levels so that each keeps about {@link #MIN_STRATUM_SAMPLE}
+ * INodes, and strata that small are sampled completely. The level of an INode is fixed when it is
+ * first seen, so an INode whose size class changes later keeps the weight it was sampled with.
+ *
+ * <p>Estimates weigh every sampled INode by the inverse of its sampling probability. The INodes
+ * sampled with probability below 1 are split into {@link #GROUPS} random groups by a second hash
+ * of the id, and the spread of the estimates of the groups gives the confidence interval. Strata
+ * that are sampled completely add no uncertainty.
+ */
+public final class INodeSample implements INodeListener {
+
+  /** The number of INodes a stratum is sampled down to, until it reaches the base level. */
+  static final int MIN_STRATUM_SAMPLE = 128;
+
+  /** The number of random groups the confidence intervals are estimated from. */
+  static final int GROUPS = 10;
+
+  private static final int MAX_LEVEL = 62;
+  private static final int SIZE_CLASSES = 6;
+  private static final long MB = 1024L * 1024L;
+
+  // Two-sided 95% quantile of Student's t distribution with GROUPS - 1 degrees of freedom.
+  private static final double T_95 = 2.262;
+
+  /** A computation over a collection of INodes whose results can be added up across subsets. */
+  public interface Aggregation {
+    Map<String, Long> apply(Collection<INode> inodes) throws Exception;
+  }
+
+  private static final class Member {
+    private final INode node;
+    private final int level;
+
+    private Member(INode node, int level) {
+      this.node = node;
+      this.level = level;
+    }
+  }
+
+  private static final class Change {
+    private final INode node;
+    private final boolean added;
+
+    private Change(INode node, boolean added) {
+      this.node = node;
+      this.added = added;
+    }
+  }
+
+  private final int baseLevel;
+  private final UserGroupDictionaries dictionaries;
+  private final ConcurrentHashMap<Long, Member> members;
+  private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+
+  // Guarded by this.
+  private final Map<Long, Long> strataSizes;
+
+  private INodeSample(
+      int baseLevel,
+      UserGroupDictionaries dictionaries,
+      ConcurrentHashMap<Long, Member> members,
+      Map<Long, Long> strataSizes) {
+    this.baseLevel = baseLevel;
+    this.dictionaries = dictionaries;
+    this.members = members;
+    this.strataSizes = strataSizes;
+  }
+
+  /**
+   * Sample the given INodes.
+   *
+   * @param inodes all INodes of the namespace
+   * @param dictionaries the user dictionaries of the namespace
+   * @param rate the sampling rate of large strata, between 0 and 1
+   * @return the sample
+   */
+  public static INodeSample build(
+      Collection<INode> inodes, UserGroupDictionaries dictionaries, double rate) {
+    long start = System.currentTimeMillis();
+    int baseLevel = levelOf(rate);
+    Map<Long, Long> strataSizes =
+        new HashMap<>(
+            inodes
+                .parallelStream()
+                .collect(
+                    Collectors.groupingByConcurrent(
+                        node -> stratumOf(node, dictionaries), Collectors.counting())));
+    Map<Long, Integer> strataLevels = new HashMap<>(strataSizes.size() * 4 / 3 + 1);
+    strataSizes.forEach((stratum, size) -> strataLevels.put(stratum, levelOf(size, baseLevel)));
+    ConcurrentHashMap<Long, Member> members = new ConcurrentHashMap<>();
+    inodes
+        .parallelStream()
+        .forEach(
+            node -> {
+              int level = strataLevels.get(stratumOf(node, dictionaries));
+              if (hashLevel(node.getId()) >= level) {
+                members.put(node.getId(), new Member(node, level));
+              }
+            });
+    INodeSample sample = new INodeSample(baseLevel, dictionaries, members, strataSizes);
+    long end = System.currentTimeMillis();
+    QueryEngine.LOG.info(
+        "Sampling {} of {} INodes in {} strata took: {} ms.",
+        members.size(),
+        inodes.size(),
+        strataSizes.size(),
+        (end - start));
+    return sample;
+  }
+
+  /**
+   * Bring the sample up to date with the INodes added and removed since the last build or apply.
+   *
+   * @return the number of changes applied
+   */
+  public synchronized int apply() {
+    int applied = 0;
+    Change change;
+    while ((change = changes.poll()) != null) {
+      INode node = change.node;
+      if (change.added) {
+        long stratum = stratumOf(node, dictionaries);
+        long size = strataSizes.merge(stratum, 1L, Long::sum);
+        int level = levelOf(size, baseLevel);
+        if (hashLevel(node.getId()) >= level) {
+          members.put(node.getId(), new Member(node, level));
+        }
+      } else {
+        members.remove(node.getId());
+      }
+      applied++;
+    }
+    return applied;
+  }
+
+  /** @return the number of sampled INodes */
+  public int size() {
+    return members.size();
+  }
+
+  /**
+   * Get the sampled INodes of a set.
+   *
+   * @param set "all", "files" or "dirs"
+   * @return the sampled INodes of the set
+   */
+  public Collection<INode> getINodeSet(String set) {
+    boolean files;
+    boolean dirs;
+    switch (set) {
+      case "all":
+        files = true;
+        dirs = true;
+        break;
+      case "files":
+        files = true;
+        dirs = false;
+        break;
+      case "dirs":
+        files = false;
+        dirs = true;
+        break;
+      default:
+        throw new IllegalArgumentException(
+            "You did not specify a set to use. Please check /sets for available sets.");
+    }
+    List<INode> inodes = new ArrayList<>(members.size());
+    for (Member member : members.values()) {
+      if (member.node.isFile() ? files : dirs) {
+        inodes.add(member.node);
+      }
+    }
+    return inodes;
+  }
+
+  /**
+   * Estimate the result of an aggregation over the INodes that the given sampled INodes were
+   * drawn from. The aggregation is run once for every group of sampled INodes of the same weight.
+   *
+   * @param sampled sampled INodes, e.g. those of {@link #getINodeSet(String)} that pass a filter
+   * @param aggregation the aggregation; its values must add up across subsets, like counts and
+   *     sums do
+   * @return for every key of the aggregation, the estimate followed by the lower and the upper
+   *     bound of its 95% confidence interval
+   * @throws Exception if the aggregation fails
+   */
+  public Map<String, List<Long>> estimate(Collection<INode> sampled, Aggregation aggregation)
+      throws Exception {
+    Map<Integer, List<INode>> subsets = new HashMap<>();
+    for (INode node : sampled) {
+      Member member = members.get(node.getId());
+      if (member == null) {
+        continue;
+      }
+      int subset = (member.level == 0) ? 0 : member.level * GROUPS + groupOf(node.getId());
+      subsets.computeIfAbsent(subset, k -> new ArrayList<>()).add(node);
+    }
+    List<Map.Entry<Integer, List<INode>>> ordered = new ArrayList<>(subsets.entrySet());
+    ordered.sort((left, right) -> Integer.compare(right.getValue().size(), left.getValue().size()));
+
+    // The last total of each key is that of the completely sampled INodes.
+    Map<String, double[]> groupTotals = new LinkedHashMap<>();
+    for (Map.Entry<Integer, List<INode>> subset : ordered) {
+      int level = subset.getKey() / GROUPS;
+      int group = (level == 0) ? GROUPS : subset.getKey() % GROUPS;
+      double weight = Math.scalb(1.0, level);
+      for (Map.Entry<String, Long> entry : aggregation.apply(subset.getValue()).entrySet()) {
+        double[] totals = groupTotals.computeIfAbsent(entry.getKey(), k -> new double[GROUPS + 1]);
+        totals[group] += entry.getValue() * weight;
+      }
+    }
+
+    Map<String, List<Long>> estimates = new LinkedHashMap<>(groupTotals.size() * 4 / 3 + 1);
+    groupTotals.forEach((key, totals) -> estimates.put(key, interval(totals)));
+    return estimates;
+  }
+
+  /**
+   * @param groupTotals the weighted totals of each group followed by the total of the completely
+   *     sampled INodes, which sum to the estimate
+   * @return the estimate and the bounds of its 95% confidence interval
+   */
+  static List<Long> interval(double[] groupTotals) {
+    double sampled = 0;
+    for (int group = 0; group < GROUPS; group++) {
+      sampled += groupTotals[group];
+    }
+    // Each group is a 1/GROUPS subsample, so GROUPS times its total is an estimate on its own.
+    double squares = 0;
+    for (int group = 0; group < GROUPS; group++) {
+      double deviation = groupTotals[group] * GROUPS - sampled;
+      squares += deviation * deviation;
+    }
+    double estimate = sampled + groupTotals[GROUPS];
+    double halfWidth = T_95 * Math.sqrt(squares / (GROUPS * (GROUPS - 1)));
+    List<Long> interval = new ArrayList<>(3);
+    interval.add(Math.round(estimate));
+    interval.add(Math.round(estimate - halfWidth));
+    interval.add(Math.round(estimate + halfWidth));
+    return interval;
+  }
+
+  @Override // INodeListener
+  public void inodeAdded(INode node) {
+    changes.add(new Change(node, true));
+  }
+
+  @Override // INodeListener
+  public void inodeRemoved(INode node) {
+    changes.add(new Change(node, false));
+  }
+
+  /**
+   * @param rate a sampling rate, between 0 and 1
+   * @return the level whose sampling probability is the largest power of 2 not above the rate
+   */
+  static int levelOf(double rate) {
+    if (!(rate > 0) || rate > 1) {
+      throw new IllegalArgumentException("Sampling rate must be in (0, 1], but was: " + rate);
+    }
+    return Math.min(MAX_LEVEL, -Math.getExponent(rate));
+  }
+
+  private static int levelOf(long stratumSize, int baseLevel) {
+    long ratio = stratumSize / MIN_STRATUM_SAMPLE;
+    int level = (ratio == 0) ? 0 : 63 - Long.numberOfLeadingZeros(ratio);
+    return Math.min(level, baseLevel);
+  }
+
+  private static long stratumOf(INode node, UserGroupDictionaries dictionaries) {
+    return (long) dictionaries.userIdOf(node) * SIZE_CLASSES + sizeClassOf(node);
+  }
+
+  private static int sizeClassOf(INode node) {
+    if (!node.isFile()) {
+      return 0;
+    }
+    long size = node.asFile().computeFileSize();
+    if (size == 0) {
+      return 1;
+    } else if (size < MB) {
+      return 2;
+    } else if (size < 128 * MB) {
+      return 3;
+    } else if (size < 1024 * MB) {
+      return 4;
+    }
+    return 5;
+  }
+
+  /** @return the number of leading zero bits of the hash of the id */
+  static int hashLevel(long id) {
+    return Long.numberOfLeadingZeros(mix(id));
+  }
+
+  private static int groupOf(long id) {
+    return (int) ((mix(id) & 0xFFFFFFFFL) % GROUPS);
+  }
+
+  // The finalizer of SplitMix64; spreads consecutive ids over all bits.
+  private static long mix(long id) {
+    long z = id * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -28,6 +28,7 @@ import static com.googlecode.cqengine.query.QueryFactory.greaterThan;
 import static com.googlecode.cqengine.query.QueryFactory.greaterThanOrEqualTo;
 import static com.googlecode.cqengine.query.QueryFactory.lessThan;
 import static com.googlecode.cqengine.query.QueryFactory.lessThanOrEqualTo;
+import static com.googlecode.cqengine.query.QueryFactory.noQueryOptions;
 import static com.googlecode.cqengine.query.QueryFactory.not;
 import static com.googlecode.cqengine.query.QueryFactory.startsWith;
 
@@ -35,13 +36,16 @@ import com.googlecode.cqengine.ConcurrentIndexedCollection;
 import com.googlecode.cqengine.IndexedCollection;
 import com.googlecode.cqengine.attribute.Attribute;
 import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.navigable.NavigableIndex;
 import com.googlecode.cqengine.persistence.wrapping.WrappingPersistence;
+import com.googlecode.cqengine.quantizer.LongQuantizer;
 import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.parser.common.ParseResult;
 import com.googlecode.cqengine.query.parser.sql.SQLParser;
-import com.googlecode.cqengine.resultset.ResultSet;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -52,6 +56,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -59,23 +64,23 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
 import org.apache.hadoop.hdfs.server.namenode.queries.FileTypeHistogram;
 import org.apache.hadoop.hdfs.server.namenode.queries.Histograms;
 import org.apache.hadoop.hdfs.server.namenode.queries.MemorySizeHistogram;
 import org.apache.hadoop.hdfs.server.namenode.queries.SpaceSizeHistogram;
 import org.apache.hadoop.hdfs.server.namenode.queries.TimeHistogram;
-import org.apache.hadoop.io.IOUtils;
 import org.apache.http.HttpStatus;
 
 public class JavaCollectionQEngine extends AbstractQueryEngine {
 
+  private static final int TIME_QUANTUM_MS = 60 * 1000;
+
   private final SimpleAttribute<INode, Long> id =
       attribute("id", node -> getFilterFunctionToLongForINode("id").apply(node));
   private final SimpleAttribute<INode, Long> accessTime =
@@ -151,8 +156,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
   private SimpleAttribute<INode, Long> dirSubTreeNumDirs;
   private SimpleAttribute<INode, Long> storageType;
 
-  private IndexedCollection<INode> indexedFiles;
-  private IndexedCollection<INode> indexedDirs;
+  private CQEngineIndexer indexer;
 
   @Override // QueryEngine
   public void setContexts(NameNodeLoader loader, VersionInterface versionLoader) {
@@ -163,19 +167,9 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
         attribute(
             "dirNumChildren",
             node -> versionLoader.getFilterFunctionToLongForINode("dirNumChildren").apply(node));
-    dirSubTreeSize =
-        attribute(
-            "dirSubTreeSize",
-            node -> versionLoader.getFilterFunctionToLongForINode("dirSubTreeSize").apply(node));
-    dirSubTreeNumFiles =
-        attribute(
-            "dirSubTreeNumFiles",
-            node ->
-                versionLoader.getFilterFunctionToLongForINode("dirSubTreeNumFiles").apply(node));
-    dirSubTreeNumDirs =
-        attribute(
-            "dirSubTreeNumDirs",
-            node -> versionLoader.getFilterFunctionToLongForINode("dirSubTreeNumDirs").apply(node));
+    dirSubTreeSize = subtreeRollupAttribute("dirSubTreeSize", null);
+    dirSubTreeNumFiles = subtreeRollupAttribute("dirSubTreeNumFiles", null);
+    dirSubTreeNumDirs = subtreeRollupAttribute("dirSubTreeNumDirs", null);
     storageType =
         attribute(
             "storageType",
@@ -184,42 +178,71 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     Collection<INode> files = loader.getINodeSetInternal("files");
     Collection<INode> dirs = loader.getINodeSetInternal("dirs");
 
-    indexedFiles =
-        new ConcurrentIndexedCollection<>(
-            WrappingPersistence.aroundCollectionOnPrimaryKey(files, id));
-    //    indexedFiles.addIndex(UniqueIndex.onAttribute(id));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(accessTime));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(modTime));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(fileSize));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(diskspaceConsumed));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(memoryConsumed));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(fileReplica));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(numBlocks));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(numReplicas));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(depth));
-    //    indexedFiles.addIndex(NavigableIndex.onAttribute(permission));
-    //    indexedFiles.addIndex(SuffixTreeIndex.onAttribute(user));
-    //    indexedFiles.addIndex(SuffixTreeIndex.onAttribute(group));
-    //    indexedFiles.addIndex(SuffixTreeIndex.onAttribute(name));
-    //    indexedFiles.addIndex(SuffixTreeIndex.onAttribute(path));
-    //    indexedFiles.addIndex(HashIndex.onAttribute(isUnderConstruction));
-    //    indexedFiles.addIndex(HashIndex.onAttribute(isWithSnapshot));
-    //    indexedFiles.addIndex(HashIndex.onAttribute(hasAcl));
-
-    indexedDirs =
-        new ConcurrentIndexedCollection<>(
-            WrappingPersistence.aroundCollectionOnPrimaryKey(dirs, id));
-    //    indexedDirs.addIndex(UniqueIndex.onAttribute(id));
-    //    indexedDirs.addIndex(NavigableIndex.onAttribute(accessTime));
-    //    indexedDirs.addIndex(NavigableIndex.onAttribute(modTime));
-    //    indexedDirs.addIndex(NavigableIndex.onAttribute(memoryConsumed));
-    //    indexedDirs.addIndex(NavigableIndex.onAttribute(depth));
-    //    indexedDirs.addIndex(NavigableIndex.onAttribute(permission));
-    //    indexedDirs.addIndex(SuffixTreeIndex.onAttribute(user));
-    //    indexedDirs.addIndex(SuffixTreeIndex.onAttribute(group));
-    //    indexedDirs.addIndex(SuffixTreeIndex.onAttribute(name));
-    //    indexedDirs.addIndex(SuffixTreeIndex.onAttribute(path));
-    //    indexedDirs.addIndex(HashIndex.onAttribute(hasQuota));
+    indexer = new CQEngineIndexer(files, dirs, id, this::createIndex);
+    loader.addINodeListener(indexer);
+  }
+
+  /**
+   * Start building CQEngine indexes on the given attributes in the background. Queries scan until
+   * the indexes of their INode set are built.
+   *
+   * @param attributes the attributes to index
+   * @param rebuildMs milliseconds in-between full rebuilds; 0 or less to only build once
+   */
+  void startIndexing(Set<String> attributes, long rebuildMs) {
+    indexer.start(attributes, rebuildMs);
+  }
+
+  /** Stop building CQEngine indexes in the background. */
+  void stopIndexing() {
+    if (indexer != null) {
+      indexer.stop();
+    }
+  }
+
+  /** @return the number of CQEngine indexes built so far in the current build */
+  public int getIndexesBuilt() {
+    return (indexer == null) ? 0 : indexer.getBuilt();
+  }
+
+  /** @return the number of CQEngine indexes configured */
+  public int getIndexesTotal() {
+    return (indexer == null) ? 0 : indexer.getTotal();
+  }
+
+  /** @return the set and attribute currently being indexed; or null if none */
+  public String getIndexBuilding() {
+    return (indexer == null) ? null : indexer.getBuilding();
+  }
+
+  /**
+   * Creates an empty index on an attribute. Times are indexed in quantized buckets of
+   * {@link #TIME_QUANTUM_MS} to keep the number of distinct index keys, and so the heap used by
+   * the index, small; CQEngine filters the boundary buckets so results stay exact.
+   */
+  private Index<INode> createIndex(String attribute) {
+    Attribute<INode, Long> longAttribute = getLongAttributeForINode(attribute);
+    if (longAttribute != null) {
+      if (attribute.equals("modTime") || attribute.equals("accessTime")) {
+        return NavigableIndex.withQuantizerOnAttribute(
+            LongQuantizer.withCompressionFactor(TIME_QUANTUM_MS), longAttribute);
+      }
+      return NavigableIndex.onAttribute(longAttribute);
+    }
+    Attribute<INode, String> stringAttribute = getStringAttributeForINode(attribute);
+    if (stringAttribute != null) {
+      return HashIndex.onAttribute(stringAttribute);
+    }
+    Attribute<INode, Boolean> booleanAttribute = getBooleanAttributeForINode(attribute);
+    if (booleanAttribute != null) {
+      return HashIndex.onAttribute(booleanAttribute);
+    }
+    Attribute<INode, Date> dateAttribute = getDateAttributeForINode(attribute);
+    if (dateAttribute != null) {
+      return NavigableIndex.onAttribute(dateAttribute);
+    }
+    throw new IllegalArgumentException(
+        "Cannot index attribute: " + attribute + ". Please check /filters for available filters.");
   }
 
   @Override // QueryEngine
@@ -234,10 +257,12 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
                     nameNodeLoader.getINodeSetInternal("all"), id));
         break;
       case "files":
-        inodes = indexedFiles;
+        indexer.drain();
+        inodes = indexer.getFiles();
         break;
       case "dirs":
-        inodes = indexedDirs;
+        indexer.drain();
+        inodes = indexer.getDirs();
         break;
       default:
         throw new IllegalArgumentException(
@@ -263,6 +288,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
   @Override // QueryEngine
   public Collection<INode> combinedFilter(
       Collection<INode> inodes, String[] filters, String[] filterOps) {
+    indexer.drain();
     IndexedCollection<INode> indexedINodes;
     if (!(inodes instanceof IndexedCollection)) {
       indexedINodes =
@@ -282,23 +308,21 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
 
     long start = System.currentTimeMillis();
     try {
-      ResultSet<INode> result;
+      Query<INode> query;
       switch (queries.size()) {
         case 0:
           return inodes;
         case 1:
-          result = indexedINodes.retrieve(queries.get(0));
+          query = queries.get(0);
           break;
         case 2:
-          result = indexedINodes.retrieve(and(queries.get(0), queries.get(1)));
+          query = and(queries.get(0), queries.get(1));
           break;
         default:
-          result =
-              indexedINodes.retrieve(
-                  and(queries.get(0), queries.get(1), queries.subList(2, queries.size())));
+          query = and(queries.get(0), queries.get(1), queries.subList(2, queries.size()));
           break;
       }
-      return result.stream().collect(Collectors.toSet());
+      return indexer.retrieve(indexedINodes, query, noQueryOptions()).collect(Collectors.toSet());
     } finally {
       long end = System.currentTimeMillis();
       LOG.info(
@@ -306,6 +330,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
           Arrays.asList(filters),
           Arrays.asList(filterOps),
           (end - start));
+      QueryMetrics.observeStage(QueryMetrics.STAGE_FILTER, end - start);
     }
   }
 
@@ -323,7 +348,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
 
     String[] findOps = find.split(":");
-    Function<INode, Long> findToLong = getFilterFunctionToLongForINode(findOps[1]);
+    ToLongFunction<INode> findToLong = getFindFunctionToPrimitiveLongForINode(findOps[1]);
 
     long start = System.currentTimeMillis();
     Optional<INode> optional;
@@ -331,10 +356,10 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
       Stream<INode> stream = inodes.parallelStream();
       switch (findOps[0]) {
         case "max":
-          optional = stream.max(Comparator.comparingLong(findToLong::apply));
+          optional = stream.max(Comparator.comparingLong(findToLong));
           break;
         case "min":
-          optional = stream.min(Comparator.comparingLong(findToLong::apply));
+          optional = stream.min(Comparator.comparingLong(findToLong));
           break;
         default:
           throw new IllegalArgumentException("Unknown find query type: " + findOps[0]);
@@ -342,6 +367,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     } finally {
       long end = System.currentTimeMillis();
       LOG.info("Performing find: {} took: {} ms.", Arrays.asList(findOps), (end - start));
+      QueryMetrics.observeStage(QueryMetrics.STAGE_FILTER, end - start);
     }
 
     return optional.<Collection<INode>>map(Collections::singleton).orElseGet(Collections::emptySet);
@@ -574,6 +600,23 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
   }
 
+  /**
+   * Get an attribute reading a dirSubTree filter off the subtree rollups.
+   *
+   * @param filter the dirSubTree filter
+   * @param rollups the subtree rollups to read, as captured for a query; or null to read those of
+   *     the loader as they stand
+   * @return the attribute
+   */
+  private SimpleAttribute<INode, Long> subtreeRollupAttribute(
+      String filter, SubtreeRollups rollups) {
+    if (rollups != null) {
+      return attribute(filter, node -> getSubtreeRollup(rollups, filter, node));
+    }
+    return attribute(
+        filter, node -> getSubtreeRollup(nameNodeLoader.getSubtreeRollups(), filter, node));
+  }
+
   private Attribute<INode, Long> getLongAttributeForINode(String filter) {
     switch (filter) {
       case "id":
@@ -601,11 +644,9 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
       case "dirNumChildren":
         return dirNumChildren;
       case "dirSubTreeSize":
-        return dirSubTreeSize;
       case "dirSubTreeNumFiles":
-        return dirSubTreeNumFiles;
       case "dirSubTreeNumDirs":
-        return dirSubTreeNumDirs;
+        return subtreeRollupAttribute(filter, nameNodeLoader.getSubtreeRollups());
       case "storageType":
         return storageType;
       default:
@@ -629,6 +670,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     } finally {
       long endTime = System.currentTimeMillis();
       LOG.info("Performing sum: {} took: {} ms.", sum, (endTime - startTime));
+      QueryMetrics.observeStage(QueryMetrics.STAGE_SUM, endTime - startTime);
     }
   }
 
@@ -641,7 +683,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
   private Function<Collection<INode>, Long> getSumFunctionForCollection(String sum) {
     switch (sum) {
       case "count":
-        return collection -> ((long) collection.size());
+        return FilteredINodeCollection::count;
       case "fileSize":
         return collection ->
             collection.parallelStream().mapToLong(node -> node.asFile().computeFileSize()).sum();
@@ -858,13 +900,13 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
   }
 
-  private Function<INode, Long> getTransformFunction(
-      Function<INode, Long> stdFunc,
+  private ToLongFunction<INode> getTransformFunction(
+      ToLongFunction<INode> stdFunc,
       Map<String, Function<INode, Long>> transformMap,
       String transformKey) {
     if (transformMap.containsKey(transformKey)) {
       LOG.info("Function transformed for: {}", transformKey);
-      return transformMap.get(transformKey);
+      return transformMap.get(transformKey)::apply;
     }
     return stdFunc;
   }
@@ -892,13 +934,13 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
 
   private Map<String, Long> diskspaceConsumedHistogramCpu(
       Collection<INode> inodes, String sum, Map<String, Function<INode, Long>> transformMap) {
-    Function<INode, Long> binFunc =
+    ToLongFunction<INode> binFunc =
         getTransformFunction(
-            getFilterFunctionToLongForINode("diskspaceConsumed"),
+            getFilterFunctionToPrimitiveLongForINode("diskspaceConsumed"),
             transformMap,
             "diskspaceConsumed");
-    Function<INode, Long> sumFunc =
-        getTransformFunction(getSumFunctionForINode(sum), transformMap, sum);
+    ToLongFunction<INode> sumFunc =
+        getTransformFunction(getSumFunctionToPrimitiveLongForINode(sum), transformMap, sum);
     return filteringHistogram(
         inodes,
         sum,
@@ -910,9 +952,9 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
 
   private Map<String, Long> diskspaceConsumedHistogramCpuWithFind(
       Collection<INode> inodes, String find, Map<String, Function<INode, Long>> transformMap) {
-    Function<INode, Long> binFunc =
+    ToLongFunction<INode> binFunc =
         getTransformFunction(
-            getFilterFunctionToLongForINode("diskspaceConsumed"),
+            getFilterFunctionToPrimitiveLongForINode("diskspaceConsumed"),
             transformMap,
             "diskspaceConsumed");
     String[] finds = find.split(":");
@@ -922,7 +964,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         binFunc,
         SpaceSizeHistogram.getBinsArray(),
         SpaceSizeHistogram.getKeys());
@@ -947,7 +989,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
   }
 
   private Map<String, Long> memoryConsumedHistogramCpu(Collection<INode> inodes, String sum) {
-    Function<INode, Long> memConsumedFunction =
+    ToLongFunction<INode> memConsumedFunction =
         node -> {
           long inodeSize = 100L;
           if (node.isFile()) {
@@ -958,7 +1000,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     return filteringHistogram(
         inodes,
         sum,
-        getSumFunctionForINode(sum),
+        getSumFunctionToPrimitiveLongForINode(sum),
         memConsumedFunction,
         MemorySizeHistogram.getBinsArray(),
         MemorySizeHistogram.getKeys());
@@ -966,7 +1008,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
 
   private Map<String, Long> memoryConsumedHistogramCpuWithFind(
       Collection<INode> inodes, String find) {
-    Function<INode, Long> memConsumedFunction =
+    ToLongFunction<INode> memConsumedFunction =
         node -> {
           long inodeSize = 100L;
           if (node.isFile()) {
@@ -982,60 +1024,31 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         memConsumedFunction,
         MemorySizeHistogram.getBinsArray(),
         MemorySizeHistogram.getKeys());
   }
 
-  private long[][] fetchDataViaCpu(
-      Collection<INode> inodes,
-      String sum,
-      Function<INode, Long> sumFunc,
-      Function<INode, Long> nodeToLong) {
-    long start = System.currentTimeMillis();
-
-    long[] data = inodes.parallelStream().mapToLong(nodeToLong::apply).toArray();
-    long[] sums = inodes.parallelStream().mapToLong(sumFunc::apply).toArray();
-
-    long end = System.currentTimeMillis();
-    LOG.info("Fetching {} data took: {} ms.", sum, (end - start));
-
-    return new long[][] {data, sums};
-  }
-
   private Map<String, Long> strictMappingHistogram(
       Collection<INode> inodes,
       String sum,
-      Function<INode, Long> sumFunc,
-      Function<INode, Long> nodeToLong) {
-    long[][] datas = fetchDataViaCpu(inodes, sum, sumFunc, nodeToLong);
-    long[] data = datas[0];
-    long[] sums = datas[1];
-
+      ToLongFunction<INode> sumFunc,
+      ToLongFunction<INode> nodeToLong) {
     long start1 = System.currentTimeMillis();
-    int maxId = (int) LongStream.of(data).parallel().max().orElse(data.length);
     long[] histogram;
     try {
-      if (data.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulateByIndex(inodes, nodeToLong, sumFunc, HistogramKernel.Mode.SUM);
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
       } else {
-        histogram = new long[maxId + 2];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = maxId + 1;
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (histogram) {
-                    histogram[chosenBin] += sums[idx];
-                  }
-                });
+        // Slot 0 holds the unmapped ids; they go in the last bin.
+        long[] slots = accumulator.finish(0L);
+        histogram = new long[slots.length];
+        System.arraycopy(slots, 1, histogram, 0, slots.length - 1);
+        histogram[slots.length - 1] = slots[0];
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -1047,6 +1060,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram result has size: {}.", histogram.length);
     if (histogram.length > 100) {
       LOG.info("It is too big to console out.");
@@ -1060,49 +1074,29 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
       Collection<INode> inodes,
       String findOp,
       String find,
-      Function<INode, Long> findFunc,
-      Function<INode, Long> nodeToLong) {
-    long[][] fetchData = fetchDataViaCpu(inodes, findOp, findFunc, nodeToLong);
-    long[] data = fetchData[0];
-    long[] sums = fetchData[1];
-
+      ToLongFunction<INode> findFunc,
+      ToLongFunction<INode> nodeToLong) {
     long start1 = System.currentTimeMillis();
     long[] histogram;
+    long overflowIndex = 0;
     try {
-      if (data.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulateByIndex(
+              inodes, nodeToLong, findFunc, HistogramKernel.modeOf(find));
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
       } else {
-        histogram = new long[data.length + 1];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = data.length;
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (histogram) {
-                    long currentVal = histogram[chosenBin];
-                    long compareVal = sums[idx];
-                    switch (find) {
-                      case "max":
-                        if (currentVal < compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      case "min":
-                        if (compareVal == 0 || currentVal > compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      default:
-                        break;
-                    }
-                  }
-                });
+        // Slot 0 holds the unmapped ids; ids at or past the INode count are unmapped as well.
+        overflowIndex = accumulator.getTotal();
+        int mapped = (int) Math.min(accumulator.size() - 1, overflowIndex);
+        for (int slot = mapped + 1; slot < accumulator.size(); slot++) {
+          accumulator.fold(slot, 0);
+        }
+        long[] slots = accumulator.finish(0L);
+        histogram = new long[mapped + 1];
+        System.arraycopy(slots, 1, histogram, 0, mapped);
+        histogram[mapped] = slots[0];
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -1114,13 +1108,14 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram (with find) took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram (with find) result has size: {} ", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
     } else {
       LOG.info(", is: {}", Arrays.toString(histogram));
     }
-    return Histograms.mapToNonEmptyIndex(histogram);
+    return Histograms.mapToNonEmptyIndex(histogram, overflowIndex);
   }
 
   @Override // QueryEngine
@@ -1130,33 +1125,22 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
       Function<INode, Long> sumFunc,
       Function<INode, Long> nodeToLong,
       Map<String, Long> binKeyMap) {
-    long[][] datas = fetchDataViaCpu(inodes, sum, sumFunc, nodeToLong);
-    long[] data = datas[0];
-    long[] sums = datas[1];
-    int length = Math.min(data.length, sums.length);
-
     long start1 = System.currentTimeMillis();
     long[] histogram;
     try {
-      if (data.length == 0 || sums.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulate(
+              inodes,
+              nodeToLong::apply,
+              HistogramKernel.indexLocator(binKeyMap.size()),
+              sumFunc::apply,
+              binKeyMap.size() + 1,
+              HistogramKernel.Mode.SUM);
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
       } else {
-        histogram = new long[binKeyMap.size() + 1];
-        IntStream.range(0, length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = binKeyMap.size();
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (histogram) {
-                    histogram[chosenBin] += sums[idx];
-                  }
-                });
+        histogram = accumulator.finish(0L);
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -1168,6 +1152,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram result has size: {}", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
@@ -1184,85 +1169,23 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
       Function<INode, Long> findToLong,
       Function<INode, Long> nodeToLong,
       Map<String, Long> binKeyMap) {
-    long[][] datas = fetchDataViaCpu(inodes, findFunc, findToLong, nodeToLong);
-    long[] data = datas[0];
-    long[] sums = datas[1];
-    int length = Math.min(data.length, sums.length);
-
     long start1 = System.currentTimeMillis();
     long[] histogram;
     try {
-      if (data.length == 0 || sums.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulate(
+              inodes,
+              nodeToLong::apply,
+              HistogramKernel.indexLocator(binKeyMap.size()),
+              findToLong::apply,
+              binKeyMap.size() + 1,
+              HistogramKernel.modeOf(findFunc));
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
-      } else if (findFunc.equals("avg")) {
-        BigInteger[] bigHistogram = new BigInteger[binKeyMap.size() + 1];
-        long[] counts = new long[binKeyMap.size() + 1];
-        Arrays.fill(bigHistogram, BigInteger.valueOf(-1));
-        IntStream.range(0, length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = binKeyMap.size();
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (bigHistogram) {
-                    BigInteger currentVal = bigHistogram[chosenBin];
-                    long sum = sums[idx];
-                    if (currentVal.equals(BigInteger.valueOf(-1))) {
-                      bigHistogram[chosenBin] = BigInteger.valueOf(sum);
-                    } else {
-                      bigHistogram[chosenBin] =
-                          bigHistogram[chosenBin].add(BigInteger.valueOf(sum));
-                    }
-                    counts[chosenBin]++;
-                  }
-                });
-        if (bigHistogram[binKeyMap.size()].equals(BigInteger.valueOf(-1))) {
-          bigHistogram[binKeyMap.size()] = BigInteger.ZERO;
-        }
-        for (int i = 0; i < bigHistogram.length; i++) {
-          if (counts[i] != 0) {
-            bigHistogram[i] = bigHistogram[i].divide(BigInteger.valueOf(counts[i]));
-          }
-        }
-        histogram = Arrays.stream(bigHistogram).mapToLong(BigInteger::longValue).toArray();
-        LOG.info("Histogram returned an array of size: {}", histogram.length);
       } else {
-        histogram = new long[binKeyMap.size() + 1];
-        Arrays.fill(histogram, -1L);
-        IntStream.range(0, length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = binKeyMap.size();
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (histogram) {
-                    long currentVal = histogram[chosenBin];
-                    long compareVal = sums[idx];
-                    switch (findFunc) {
-                      case "max":
-                        if (currentVal < compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      case "min":
-                        if (currentVal == -1 || currentVal > compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      default:
-                        break;
-                    }
-                  }
-                });
+        // Empty mapped bins report -1; an empty unmapped bin reports 0 so it is left out.
+        histogram = accumulator.finish(-1L);
         if (histogram[binKeyMap.size()] == -1) {
           histogram[binKeyMap.size()] = 0;
         }
@@ -1277,6 +1200,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram (with find) took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram (with find) result has size: {}", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
@@ -1289,37 +1213,26 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
   private Map<String, Long> filteringHistogram(
       Collection<INode> inodes,
       String sum,
-      Function<INode, Long> sumFunc,
-      Function<INode, Long> nodeToLong,
+      ToLongFunction<INode> sumFunc,
+      ToLongFunction<INode> nodeToLong,
       final Long[] binsArray,
       List<String> keys) {
-    long[][] datas = fetchDataViaCpu(inodes, sum, sumFunc, nodeToLong);
-    long[] data = datas[0];
-    long[] sums = datas[1];
-
     long start1 = System.currentTimeMillis();
     long[] histogram;
     try {
-      if (data.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulate(
+              inodes,
+              nodeToLong,
+              HistogramKernel.thresholdLocator(binsArray),
+              sumFunc,
+              binsArray.length + 1,
+              HistogramKernel.Mode.SUM);
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
       } else {
-        histogram = new long[binsArray.length + 1];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  long datum = data[idx];
-                  int chosenBin = binsArray.length;
-                  for (int i = 0; i < binsArray.length; i++) {
-                    if (datum <= binsArray[i] && chosenBin == binsArray.length) {
-                      chosenBin = i;
-                    }
-                  }
-                  synchronized (histogram) {
-                    histogram[chosenBin] += sums[idx];
-                  }
-                });
+        histogram = accumulator.finish(0L);
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -1331,6 +1244,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram result has size: {}", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
@@ -1344,86 +1258,26 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
       Collection<INode> inodes,
       String findOp,
       String find,
-      Function<INode, Long> findFunc,
-      Function<INode, Long> nodeToLong,
+      ToLongFunction<INode> findFunc,
+      ToLongFunction<INode> nodeToLong,
       final Long[] binsArray,
       List<String> keys) {
-    long[][] fetchData = fetchDataViaCpu(inodes, findOp, findFunc, nodeToLong);
-    long[] data = fetchData[0];
-    long[] sums = fetchData[1];
-
     long start1 = System.currentTimeMillis();
     long[] histogram;
     try {
-      if (data.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulate(
+              inodes,
+              nodeToLong,
+              HistogramKernel.thresholdLocator(binsArray),
+              findFunc,
+              binsArray.length + 1,
+              HistogramKernel.modeOf(find));
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
-      } else if (find.equals("avg")) {
-        BigInteger[] bigHistogram = new BigInteger[binsArray.length + 1];
-        long[] counts = new long[binsArray.length + 1];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  long datum = data[idx];
-                  int chosenBin = binsArray.length;
-                  for (int i = 0; i < binsArray.length; i++) {
-                    if (datum <= binsArray[i] && chosenBin == binsArray.length) {
-                      chosenBin = i;
-                    }
-                  }
-                  synchronized (bigHistogram) {
-                    BigInteger currentVal = bigHistogram[chosenBin];
-                    long sum = sums[idx];
-                    if (currentVal == null) {
-                      bigHistogram[chosenBin] = BigInteger.valueOf(sum);
-                    } else {
-                      bigHistogram[chosenBin] =
-                          bigHistogram[chosenBin].add(BigInteger.valueOf(sum));
-                    }
-                    counts[chosenBin]++;
-                  }
-                });
-        for (int i = 0; i < bigHistogram.length; i++) {
-          if (counts[i] != 0) {
-            bigHistogram[i] = bigHistogram[i].divide(BigInteger.valueOf(counts[i]));
-          }
-        }
-        histogram =
-            Arrays.stream(bigHistogram).mapToLong(x -> x == null ? 0L : x.longValue()).toArray();
-        LOG.info("Histogram returned an array of size: {}", histogram.length);
       } else {
-        histogram = new long[binsArray.length + 1];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  long datum = data[idx];
-                  int chosenBin = binsArray.length;
-                  for (int i = 0; i < binsArray.length; i++) {
-                    if (datum <= binsArray[i] && chosenBin == binsArray.length) {
-                      chosenBin = i;
-                    }
-                  }
-                  synchronized (histogram) {
-                    long currentVal = histogram[chosenBin];
-                    long compareVal = sums[idx];
-                    switch (find) {
-                      case "max":
-                        if (currentVal < compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      case "min":
-                        if (compareVal == 0 || currentVal > compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      default:
-                        break;
-                    }
-                  }
-                });
+        histogram = accumulator.finish(0L);
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -1435,6 +1289,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram (with find) took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram (with find) result has size: {}", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
@@ -1464,7 +1319,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     return filteringHistogram(
         inodes,
         sum,
-        getSumFunctionForINode(sum),
+        getSumFunctionToPrimitiveLongForINode(sum),
         node -> node.asFile().computeFileSize(),
         SpaceSizeHistogram.getBinsArray(),
         SpaceSizeHistogram.getKeys());
@@ -1478,7 +1333,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         node -> node.asFile().computeFileSize(),
         SpaceSizeHistogram.getBinsArray(),
         SpaceSizeHistogram.getKeys());
@@ -1506,20 +1361,20 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
 
   private Map<String, Long> fileReplicaHistogramCpu(
       Collection<INode> inodes, String sum, Map<String, Function<INode, Long>> transformMap) {
-    Function<INode, Long> binFunc =
+    ToLongFunction<INode> binFunc =
         getTransformFunction(
-            getFilterFunctionToLongForINode("fileReplica"), transformMap, "fileReplica");
-    Function<INode, Long> sumFunc =
-        getTransformFunction(getSumFunctionForINode(sum), transformMap, sum);
+            getFilterFunctionToPrimitiveLongForINode("fileReplica"), transformMap, "fileReplica");
+    ToLongFunction<INode> sumFunc =
+        getTransformFunction(getSumFunctionToPrimitiveLongForINode(sum), transformMap, sum);
     return strictMappingHistogram(inodes, sum, sumFunc, binFunc);
   }
 
   private Map<String, Long> fileReplicaHistogramCpuWithFind(Collection<INode> inodes, String find) {
-    Function<INode, Long> binFunc = getFilterFunctionToLongForINode("fileReplica");
+    ToLongFunction<INode> binFunc = getFilterFunctionToPrimitiveLongForINode("fileReplica");
     String[] finds = find.split(":");
     String findOp = finds[0];
     String findField = finds[1];
-    Function<INode, Long> findFunc = getFilterFunctionToLongForINode(findField);
+    ToLongFunction<INode> findFunc = getFindFunctionToPrimitiveLongForINode(findField);
     return strictMappingHistogramWithFind(inodes, findField, findOp, findFunc, binFunc);
   }
 
@@ -1569,7 +1424,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     return filteringHistogram(
         inodes,
         sum,
-        getSumFunctionForINode(sum),
+        getSumFunctionToPrimitiveLongForINode(sum),
         node -> System.currentTimeMillis() - node.getAccessTime(),
         TimeHistogram.getBinsArray(timeRange),
         TimeHistogram.getKeys(timeRange));
@@ -1584,7 +1439,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         node -> System.currentTimeMillis() - node.getAccessTime(),
         TimeHistogram.getBinsArray(timeRange),
         TimeHistogram.getKeys(timeRange));
@@ -1613,7 +1468,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
     return filteringHistogram(
         inodes,
         sum,
-        getSumFunctionForINode(sum),
+        getSumFunctionToPrimitiveLongForINode(sum),
         node -> System.currentTimeMillis() - node.getModificationTime(),
         TimeHistogram.getBinsArray(timeRange),
         TimeHistogram.getKeys(timeRange));
@@ -1628,49 +1483,12 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         node -> System.currentTimeMillis() - node.getModificationTime(),
         TimeHistogram.getBinsArray(timeRange),
         TimeHistogram.getKeys(timeRange));
   }
 
-  /**
-   * Dump collection of INodes to parameter HTTP response.
-   *
-   * @param inodes the collection to dump
-   * @param limit some limit of inodes to show
-   * @param resp the HTTP response
-   * @throws IOException error in dumping collection
-   */
-  @Override // QueryEngine
-  public void dumpINodePaths(Collection<INode> inodes, Integer limit, HttpServletResponse resp)
-      throws IOException {
-    LOG.info("Dumping a list of {} INodes to a client.", inodes.size());
-    long start = System.currentTimeMillis();
-    PrintWriter writer = resp.getWriter();
-    try {
-      Collection<INode> subCollection;
-      if (limit != null && limit < inodes.size()) {
-        subCollection = inodes.stream().limit(limit).collect(Collectors.toList());
-      } else {
-        subCollection = inodes;
-      }
-      subCollection
-          .stream()
-          .sorted(Comparator.comparing(INode::getFullPathName))
-          .forEach(
-              node -> {
-                writer.write(node.getFullPathName() + '\n');
-                writer.flush();
-              });
-    } finally {
-      IOUtils.closeStream(writer);
-      LOG.info("Closed response.");
-    }
-    long end = System.currentTimeMillis();
-    LOG.info("Sending the entire response took {} ms.", (end - start));
-  }
-
   /**
    * Creates a histogram representation of INodes where the X-axis represents user names.
    *
@@ -1681,50 +1499,8 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
    */
   @Override // QueryEngine
   public Map<String, Long> byUserHistogram(Collection<INode> inodes, String sum, String find) {
-    if (find == null || find.length() == 0) {
-      return byUserHistogramCpu(inodes, sum);
-    }
-    return byUserHistogramCpuWithFind(inodes, find);
-  }
-
-  private Map<String, Long> byUserHistogramCpu(Collection<INode> inodes, String sum) {
-    List<String> distinctUsers =
-        inodes.parallelStream().map(INode::getUserName).distinct().collect(Collectors.toList());
-    Map<String, Long> userToIdMap =
-        distinctUsers
-            .parallelStream()
-            .mapToInt(distinctUsers::indexOf)
-            .boxed()
-            .collect(Collectors.toMap(distinctUsers::get, value -> (long) value));
-
-    return binMappingHistogram(
-        inodes,
-        sum,
-        getSumFunctionForINode(sum),
-        node -> userToIdMap.get(node.getUserName()),
-        userToIdMap);
-  }
-
-  private Map<String, Long> byUserHistogramCpuWithFind(Collection<INode> inodes, String find) {
-    List<String> distinctUsers =
-        inodes.parallelStream().map(INode::getUserName).distinct().collect(Collectors.toList());
-    Map<String, Long> userToIdMap =
-        distinctUsers
-            .parallelStream()
-            .mapToInt(distinctUsers::indexOf)
-            .boxed()
-            .collect(Collectors.toMap(distinctUsers::get, value -> (long) value));
-
-    String[] finds = find.split(":");
-    String findOp = finds[0];
-    String findField = finds[1];
-
-    return binMappingHistogramWithFind(
-        inodes,
-        findOp,
-        getFilterFunctionToLongForINode(findField),
-        node -> userToIdMap.get(node.getUserName()),
-        userToIdMap);
+    UserGroupDictionaries dictionaries = nameNodeLoader.getUserGroupDictionaries();
+    return dictionaryHistogram(inodes, sum, find, dictionaries::userIdOf, dictionaries.getUsers());
   }
 
   /**
@@ -1737,50 +1513,9 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
    */
   @Override // QueryEngine
   public Map<String, Long> byGroupHistogram(Collection<INode> inodes, String sum, String find) {
-    if (find == null || find.length() == 0) {
-      return byGroupHistogramCpu(inodes, sum);
-    }
-    return byGroupHistogramCpuWithFind(inodes, find);
-  }
-
-  private Map<String, Long> byGroupHistogramCpu(Collection<INode> inodes, String sum) {
-    List<String> distinctGroups =
-        inodes.parallelStream().map(INode::getGroupName).distinct().collect(Collectors.toList());
-    Map<String, Long> groupToIdMap =
-        distinctGroups
-            .parallelStream()
-            .mapToInt(distinctGroups::indexOf)
-            .boxed()
-            .collect(Collectors.toMap(distinctGroups::get, value -> (long) value));
-
-    return binMappingHistogram(
-        inodes,
-        sum,
-        getSumFunctionForINode(sum),
-        node -> groupToIdMap.get(node.getGroupName()),
-        groupToIdMap);
-  }
-
-  private Map<String, Long> byGroupHistogramCpuWithFind(Collection<INode> inodes, String find) {
-    List<String> distinctGroups =
-        inodes.parallelStream().map(INode::getGroupName).distinct().collect(Collectors.toList());
-    Map<String, Long> groupToIdMap =
-        distinctGroups
-            .parallelStream()
-            .mapToInt(distinctGroups::indexOf)
-            .boxed()
-            .collect(Collectors.toMap(distinctGroups::get, value -> (long) value));
-
-    String[] finds = find.split(":");
-    String findOp = finds[0];
-    String findField = finds[1];
-
-    return binMappingHistogramWithFind(
-        inodes,
-        findOp,
-        getFilterFunctionToLongForINode(findField),
-        node -> groupToIdMap.get(node.getGroupName()),
-        groupToIdMap);
+    UserGroupDictionaries dictionaries = nameNodeLoader.getUserGroupDictionaries();
+    return dictionaryHistogram(
+        inodes, sum, find, dictionaries::groupIdOf, dictionaries.getGroups());
   }
 
   /**
@@ -1805,98 +1540,18 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
       Collection<INode> inodes, Integer parentDirDepth, String sum) {
     int dirDepth =
         (parentDirDepth == null || parentDirDepth <= 0) ? Integer.MAX_VALUE : parentDirDepth;
-    List<String> distinctDirectories =
-        inodes
-            .parallelStream()
-            .map(
-                node -> {
-                  try {
-                    INodeDirectory parent = node.getParent();
-                    int topParentDepth = new Path(parent.getFullPathName()).depth();
-                    if (topParentDepth < dirDepth) {
-                      return "NO_MAPPING";
-                    }
-                    for (int parentTravs = topParentDepth; parentTravs > dirDepth; parentTravs--) {
-                      parent = parent.getParent();
-                    }
-                    return parent.getFullPathName();
-                  } catch (Exception e) {
-                    return "NO_MAPPING";
-                  }
-                })
-            .distinct()
-            .collect(Collectors.toList());
-
-    final AtomicLong id = new AtomicLong(0L);
-    final Map<String, Long> dirToIdMap =
-        distinctDirectories
-            .parallelStream()
-            .collect(Collectors.toMap(dir -> dir, dir -> id.getAndIncrement()));
-    if (!dirToIdMap.containsKey("NO_MAPPING")) {
-      dirToIdMap.put("NO_MAPPING", id.getAndIncrement());
-    }
-    final long noMappingId = dirToIdMap.get("NO_MAPPING");
-
+    ParentDirBins bins = ParentDirBins.of(inodes, dirDepth);
     Map<String, Long> result =
         binMappingHistogram(
-            inodes,
-            sum,
-            getSumFunctionForINode(sum),
-            node -> {
-              try {
-                INodeDirectory parent = node.getParent();
-                int topParentDepth = new Path(parent.getFullPathName()).depth();
-                if (topParentDepth < dirDepth) {
-                  return noMappingId;
-                }
-                for (int parentTravs = topParentDepth; parentTravs > dirDepth; parentTravs--) {
-                  parent = parent.getParent();
-                }
-                Long index = dirToIdMap.get(parent.getFullPathName());
-                return index != null ? index : noMappingId;
-              } catch (Throwable e) {
-                return noMappingId;
-              }
-            },
-            dirToIdMap);
-    result.remove("NO_MAPPING");
+            inodes, sum, getSumFunctionForINode(sum), bins::binOf, bins.getBinKeyMap());
+    result.remove(ParentDirBins.NO_MAPPING);
     return result;
   }
 
   private Map<String, Long> parentDirHistogramCpuWithFind(
       Collection<INode> inodes, Integer parentDirDepth, String find) {
     int dirDepth = (parentDirDepth != null) ? parentDirDepth : 0;
-    List<String> distinctDirectories =
-        inodes
-            .parallelStream()
-            .map(
-                node -> {
-                  try {
-                    INodeDirectory parent = node.getParent();
-                    int topParentDepth = new Path(parent.getFullPathName()).depth();
-                    if (topParentDepth < dirDepth) {
-                      return "NO_MAPPING";
-                    }
-                    for (int parentTravs = topParentDepth; parentTravs > dirDepth; parentTravs--) {
-                      parent = parent.getParent();
-                    }
-                    return parent.getFullPathName();
-                  } catch (Exception e) {
-                    return "NO_MAPPING";
-                  }
-                })
-            .distinct()
-            .collect(Collectors.toList());
-
-    final AtomicLong id = new AtomicLong(0L);
-    Map<String, Long> dirToIdMap =
-        distinctDirectories
-            .parallelStream()
-            .collect(Collectors.toMap(dir -> dir, dir -> id.getAndIncrement()));
-    if (!dirToIdMap.containsKey("NO_MAPPING")) {
-      dirToIdMap.put("NO_MAPPING", id.getAndIncrement());
-    }
-    final long noMappingId = dirToIdMap.get("NO_MAPPING");
+    ParentDirBins bins = ParentDirBins.of(inodes, dirDepth);
     String[] finds = find.split(":");
     String findOp = finds[0];
     String findField = finds[1];
@@ -1905,25 +1560,10 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
         binMappingHistogramWithFind(
             inodes,
             findOp,
-            getFilterFunctionToLongForINode(findField),
-            node -> {
-              try {
-                INodeDirectory parent = node.getParent();
-                int topParentDepth = new Path(parent.getFullPathName()).depth();
-                if (topParentDepth < dirDepth) {
-                  return noMappingId;
-                }
-                for (int parentTravs = topParentDepth; parentTravs > dirDepth; parentTravs--) {
-                  parent = parent.getParent();
-                }
-                Long index = dirToIdMap.get(parent.getFullPathName());
-                return index != null ? index : noMappingId;
-              } catch (Throwable e) {
-                return noMappingId;
-              }
-            },
-            dirToIdMap);
-    result.remove("NO_MAPPING");
+            getFindFunctionToLongForINode(findField),
+            bins::binOf,
+            bins.getBinKeyMap());
+    result.remove(ParentDirBins.NO_MAPPING);
     return result;
   }
 
@@ -1978,7 +1618,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
 
   private Map<String, Long> dirQuotaHistogramCpu(Collection<INode> inodes, String sum) {
     List<String> distinctDirectories =
-        inodes.parallelStream().map(INode::getFullPathName).distinct().collect(Collectors.toList());
+        inodes.parallelStream().map(PathNames::toString).distinct().collect(Collectors.toList());
 
     final AtomicLong id = new AtomicLong(0L);
     Map<String, Long> dirToIdMap =
@@ -1991,7 +1631,7 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
             inodes,
             sum,
             getSumFunctionForINode(sum),
-            node -> dirToIdMap.get(node.getFullPathName()),
+            node -> dirToIdMap.get(PathNames.toString(node)),
             dirToIdMap);
 
     return removeKeysOnConditional(histogram, "gte:0");
@@ -2196,9 +1836,14 @@ public class JavaCollectionQEngine extends AbstractQueryEngine {
       res.setHeader("Access-Control-Allow-Origin", "*");
       res.setHeader("Content-Type", "text/plain");
       String sql = req.getParameter("sqlStatement");
-      ResultSet<INode> results = parser.retrieve(indexedFiles, sql);
-      for (INode inode : results) {
-        out.println(inode.getFullPathName());
+      indexer.drain();
+      ParseResult<INode> parsed = parser.parse(sql);
+      Iterator<INode> results =
+          indexer
+              .retrieve(indexer.getFiles(), parsed.getQuery(), parsed.getQueryOptions())
+              .iterator();
+      while (results.hasNext()) {
+        PathNames.write(results.next(), out);
         count++;
       }
       res.setStatus(HttpStatus.SC_OK);
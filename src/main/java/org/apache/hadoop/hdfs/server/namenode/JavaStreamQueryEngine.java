@@ -19,9 +19,6 @@
 
 package org.apache.hadoop.hdfs.server.namenode;
 
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.math.BigInteger;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -29,7 +26,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -38,60 +34,72 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.LongStream;
 import java.util.stream.Stream;
-import javax.servlet.http.HttpServletResponse;
-import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
 import org.apache.hadoop.hdfs.server.namenode.queries.FileTypeHistogram;
 import org.apache.hadoop.hdfs.server.namenode.queries.Histograms;
 import org.apache.hadoop.hdfs.server.namenode.queries.MemorySizeHistogram;
 import org.apache.hadoop.hdfs.server.namenode.queries.SpaceSizeHistogram;
 import org.apache.hadoop.hdfs.server.namenode.queries.TimeHistogram;
-import org.apache.hadoop.io.IOUtils;
 
 public class JavaStreamQueryEngine extends AbstractQueryEngine {
 
+  private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+      ThreadLocal.withInitial(() -> new SimpleDateFormat("MM/dd/yyyy"));
+
   /**
    * Main filter method for filtering down a set of INodes to a smaller subset.
    *
    * @param inodes the main inode set to work on
    * @param filters set of filters to use
    * @param filterOps matching length set of filter operands and operators
-   * @return the filtered set of inodes
+   * @return the filtered set of inodes; filtered lazily by whichever pass consumes it
    */
   @Override // QueryEngine
   public Collection<INode> combinedFilter(
       Collection<INode> inodes, String[] filters, String[] filterOps) {
-    final ArrayList<Function<INode, Boolean>> filterArray = new ArrayList<>();
-
-    for (int i = 0; i < filters.length; i++) {
-      String filter = filters[i];
-      String[] filterOp = filterOps[i].split(":");
-      Function<INode, Boolean> filterFunc = getFilter(filter, filterOp);
-      filterArray.add(filterFunc);
+    if (filters.length == 0) {
+      return inodes;
     }
 
-    if (filterArray.size() == 0) {
-      return inodes;
+    FilterCompiler compiler = new FilterCompiler(this, getCurrentSubtreeIndex());
+    List<FilterCompiler.Term> terms = new ArrayList<>(filters.length);
+    for (int i = 0; i < filters.length; i++) {
+      terms.add(compileFilter(compiler, filters[i], filterOps[i].split(":")));
     }
 
     long start = System.currentTimeMillis();
     try {
-      Stream<INode> stream = inodes.parallelStream();
-      for (Function<INode, Boolean> filter : filterArray) {
-        stream = stream.filter(filter::apply);
-      }
-      return stream.collect(Collectors.toList());
+      List<FilterCompiler.Term> ordered = FilterCompiler.order(terms, inodes);
+      LOG.info("Evaluating filters in order: {}", ordered);
+      Predicate<INode> predicate = FilterCompiler.conjunction(ordered);
+      // Filters run inside whatever pass consumes the result; see FilteredINodeCollection.
+      return new FilteredINodeCollection(inodes, predicate);
     } finally {
       long end = System.currentTimeMillis();
       LOG.info(
-          "Performing filters: {} with filterOps: {} took: {} ms.",
+          "Preparing filters: {} with filterOps: {} took: {} ms.",
           Arrays.asList(filters),
           Arrays.asList(filterOps),
           (end - start));
+      QueryMetrics.observeStage(QueryMetrics.STAGE_FILTER, end - start);
+    }
+  }
+
+  /** @return the subtree index if it reflects the live namespace; otherwise null */
+  SubtreeIndex getCurrentSubtreeIndex() {
+    if (nameNodeLoader == null) {
+      return null;
+    }
+    SubtreeIndex subtreeIndex = nameNodeLoader.getSubtreeIndex();
+    if (subtreeIndex == null || !subtreeIndex.isCurrent(nameNodeLoader.getCurrentTxId())) {
+      return null;
     }
+    return subtreeIndex;
   }
 
   /**
@@ -108,7 +116,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
 
     String[] findOps = find.split(":");
-    Function<INode, Long> findToLong = getFilterFunctionToLongForINode(findOps[1]);
+    ToLongFunction<INode> findToLong = getFindFunctionToPrimitiveLongForINode(findOps[1]);
 
     long start = System.currentTimeMillis();
     Optional<INode> optional;
@@ -116,10 +124,10 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
       Stream<INode> stream = inodes.parallelStream();
       switch (findOps[0]) {
         case "max":
-          optional = stream.max(Comparator.comparingLong(findToLong::apply));
+          optional = stream.max(Comparator.comparingLong(findToLong));
           break;
         case "min":
-          optional = stream.min(Comparator.comparingLong(findToLong::apply));
+          optional = stream.min(Comparator.comparingLong(findToLong));
           break;
         default:
           throw new IllegalArgumentException("Unknown find query type: " + findOps[0]);
@@ -127,48 +135,17 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     } finally {
       long end = System.currentTimeMillis();
       LOG.info("Performing find: {} took: {} ms.", Arrays.asList(findOps), (end - start));
+      QueryMetrics.observeStage(QueryMetrics.STAGE_FILTER, end - start);
     }
 
     return optional.<Collection<INode>>map(Collections::singleton).orElseGet(Collections::emptySet);
   }
 
-  private Function<INode, Boolean> getFilter(String filter, String[] filterOps) {
+  private FilterCompiler.Term compileFilter(
+      FilterCompiler compiler, String filter, String[] filterOps) {
     long start = System.currentTimeMillis();
     try {
-      // Values for all other filters
-      String op = filterOps[0];
-      String opValue = filterOps[1];
-
-      // Long value filters
-      Function<INode, Long> longFunction = getFilterFunctionToLongForINode(filter);
-      if (longFunction != null) {
-        Function<Long, Boolean> longCompFunction =
-            getFilterFunctionForLong(Long.parseLong(opValue), op);
-        return longFunction.andThen(longCompFunction);
-      }
-
-      // String value filters
-      Function<INode, String> strFunction = getFilterFunctionToStringForINode(filter);
-      if (strFunction != null) {
-        Function<String, Boolean> strCompFunction = getFilterFunctionForString(opValue, op);
-        return strFunction.andThen(strCompFunction);
-      }
-
-      // Boolean value filters
-      Function<INode, Boolean> boolFunction = getFilterFunctionToBooleanForINode(filter);
-      if (boolFunction != null) {
-        Function<Boolean, Boolean> boolCompFunction =
-            getFilterFunctionForBoolean(Boolean.parseBoolean(opValue), op);
-        return boolFunction.andThen(boolCompFunction);
-      }
-
-      throw new IllegalArgumentException(
-          "Failed to determine filter: "
-              + filter
-              + ", with operations: "
-              + Arrays.asList(filterOps)
-              + ".\nCheck your filter arguments."
-              + "\nPossible filters and operations available at /filters and /filterOps.");
+      return compiler.compile(filter, filterOps);
     } finally {
       long end = System.currentTimeMillis();
       LOG.info(
@@ -195,6 +172,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     } finally {
       long endTime = System.currentTimeMillis();
       LOG.info("Performing sum: {} took: {} ms.", sum, (endTime - startTime));
+      QueryMetrics.observeStage(QueryMetrics.STAGE_SUM, endTime - startTime);
     }
   }
 
@@ -207,7 +185,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
   private Function<Collection<INode>, Long> getSumFunctionForCollection(String sum) {
     switch (sum) {
       case "count":
-        return collection -> ((long) collection.size());
+        return FilteredINodeCollection::count;
       case "fileSize":
         return collection ->
             collection.parallelStream().mapToLong(node -> node.asFile().computeFileSize()).sum();
@@ -280,73 +258,19 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
       case "notContains":
         return s -> !s.contains(value);
       case "dateEq":
-        return s -> {
-          SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
-          try {
-            Date nodeDate = sdf.parse(s);
-            Date valueDate = sdf.parse(value);
-            return nodeDate.equals(valueDate);
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
-          }
-        };
+        return dateFilter(value, c -> c == 0);
       case "dateNotEq":
-        return s -> {
-          SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
-          try {
-            Date nodeDate = sdf.parse(s);
-            Date valueDate = sdf.parse(value);
-            return !nodeDate.equals(valueDate);
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
-          }
-        };
+        return dateFilter(value, c -> c != 0);
       case "dateLt":
-        return s -> {
-          SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
-          try {
-            Date nodeDate = sdf.parse(s);
-            Date valueDate = sdf.parse(value);
-            return nodeDate.before(valueDate);
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
-          }
-        };
+        return dateFilter(value, c -> c < 0);
       case "dateStart":
       case "dateLte":
-        return s -> {
-          SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
-          try {
-            Date nodeDate = sdf.parse(s);
-            Date valueDate = sdf.parse(value);
-            return nodeDate.before(valueDate) || nodeDate.equals(valueDate);
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
-          }
-        };
+        return dateFilter(value, c -> c <= 0);
       case "dateGt":
-        return s -> {
-          SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
-          try {
-            Date nodeDate = sdf.parse(s);
-            Date valueDate = sdf.parse(value);
-            return nodeDate.after(valueDate);
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
-          }
-        };
+        return dateFilter(value, c -> c > 0);
       case "dateEnd":
       case "dateGte":
-        return s -> {
-          SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
-          try {
-            Date nodeDate = sdf.parse(s);
-            Date valueDate = sdf.parse(value);
-            return nodeDate.after(valueDate) || nodeDate.equals(valueDate);
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
-          }
-        };
+        return dateFilter(value, c -> c >= 0);
       default:
         throw new IllegalArgumentException(
             "Failed to determine String filter operation.\n"
@@ -354,6 +278,20 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
   }
 
+  /** Compares dates with the operand parsed once, rather than once per INode. */
+  private static Function<String, Boolean> dateFilter(String value, IntPredicate comparison) {
+    long valueTime = parseDate(value);
+    return s -> comparison.test(Long.compare(parseDate(s), valueTime));
+  }
+
+  private static long parseDate(String date) {
+    try {
+      return DATE_FORMAT.get().parse(date).getTime();
+    } catch (ParseException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Get a Function that converts a Boolean into a Boolean expression.
    *
@@ -424,13 +362,13 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
   }
 
-  private Function<INode, Long> getTransformFunction(
-      Function<INode, Long> stdFunc,
+  private ToLongFunction<INode> getTransformFunction(
+      ToLongFunction<INode> stdFunc,
       Map<String, Function<INode, Long>> transformMap,
       String transformKey) {
     if (transformMap.containsKey(transformKey)) {
       LOG.info("Function transformed for: {}", transformKey);
-      return transformMap.get(transformKey);
+      return transformMap.get(transformKey)::apply;
     }
     return stdFunc;
   }
@@ -458,13 +396,13 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
 
   private Map<String, Long> diskspaceConsumedHistogramCpu(
       Collection<INode> inodes, String sum, Map<String, Function<INode, Long>> transformMap) {
-    Function<INode, Long> binFunc =
+    ToLongFunction<INode> binFunc =
         getTransformFunction(
-            getFilterFunctionToLongForINode("diskspaceConsumed"),
+            getFilterFunctionToPrimitiveLongForINode("diskspaceConsumed"),
             transformMap,
             "diskspaceConsumed");
-    Function<INode, Long> sumFunc =
-        getTransformFunction(getSumFunctionForINode(sum), transformMap, sum);
+    ToLongFunction<INode> sumFunc =
+        getTransformFunction(getSumFunctionToPrimitiveLongForINode(sum), transformMap, sum);
     return filteringHistogram(
         inodes,
         sum,
@@ -476,9 +414,9 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
 
   private Map<String, Long> diskspaceConsumedHistogramCpuWithFind(
       Collection<INode> inodes, String find, Map<String, Function<INode, Long>> transformMap) {
-    Function<INode, Long> binFunc =
+    ToLongFunction<INode> binFunc =
         getTransformFunction(
-            getFilterFunctionToLongForINode("diskspaceConsumed"),
+            getFilterFunctionToPrimitiveLongForINode("diskspaceConsumed"),
             transformMap,
             "diskspaceConsumed");
     String[] finds = find.split(":");
@@ -488,7 +426,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         binFunc,
         SpaceSizeHistogram.getBinsArray(),
         SpaceSizeHistogram.getKeys());
@@ -513,7 +451,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
   }
 
   private Map<String, Long> memoryConsumedHistogramCpu(Collection<INode> inodes, String sum) {
-    Function<INode, Long> memConsumedFunction =
+    ToLongFunction<INode> memConsumedFunction =
         node -> {
           long inodeSize = 100L;
           if (node.isFile()) {
@@ -524,7 +462,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     return filteringHistogram(
         inodes,
         sum,
-        getSumFunctionForINode(sum),
+        getSumFunctionToPrimitiveLongForINode(sum),
         memConsumedFunction,
         MemorySizeHistogram.getBinsArray(),
         MemorySizeHistogram.getKeys());
@@ -532,7 +470,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
 
   private Map<String, Long> memoryConsumedHistogramCpuWithFind(
       Collection<INode> inodes, String find) {
-    Function<INode, Long> memConsumedFunction =
+    ToLongFunction<INode> memConsumedFunction =
         node -> {
           long inodeSize = 100L;
           if (node.isFile()) {
@@ -548,60 +486,31 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         memConsumedFunction,
         MemorySizeHistogram.getBinsArray(),
         MemorySizeHistogram.getKeys());
   }
 
-  private long[][] fetchDataViaCpu(
-      Collection<INode> inodes,
-      String sum,
-      Function<INode, Long> sumFunc,
-      Function<INode, Long> nodeToLong) {
-    long start = System.currentTimeMillis();
-
-    long[] data = inodes.parallelStream().mapToLong(nodeToLong::apply).toArray();
-    long[] sums = inodes.parallelStream().mapToLong(sumFunc::apply).toArray();
-
-    long end = System.currentTimeMillis();
-    LOG.info("Fetching {} data took: {} ms.", sum, (end - start));
-
-    return new long[][] {data, sums};
-  }
-
   private Map<String, Long> strictMappingHistogram(
       Collection<INode> inodes,
       String sum,
-      Function<INode, Long> sumFunc,
-      Function<INode, Long> nodeToLong) {
-    long[][] datas = fetchDataViaCpu(inodes, sum, sumFunc, nodeToLong);
-    long[] data = datas[0];
-    long[] sums = datas[1];
-
+      ToLongFunction<INode> sumFunc,
+      ToLongFunction<INode> nodeToLong) {
     long start1 = System.currentTimeMillis();
-    int maxId = (int) LongStream.of(data).parallel().max().orElse(data.length);
     long[] histogram;
     try {
-      if (data.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulateByIndex(inodes, nodeToLong, sumFunc, HistogramKernel.Mode.SUM);
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
       } else {
-        histogram = new long[maxId + 2];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = maxId + 1;
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (histogram) {
-                    histogram[chosenBin] += sums[idx];
-                  }
-                });
+        // Slot 0 holds the unmapped ids; they go in the last bin.
+        long[] slots = accumulator.finish(0L);
+        histogram = new long[slots.length];
+        System.arraycopy(slots, 1, histogram, 0, slots.length - 1);
+        histogram[slots.length - 1] = slots[0];
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -613,6 +522,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram result has size: {}.", histogram.length);
     if (histogram.length > 100) {
       LOG.info("It is too big to console out.");
@@ -626,49 +536,29 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
       Collection<INode> inodes,
       String findOp,
       String find,
-      Function<INode, Long> findFunc,
-      Function<INode, Long> nodeToLong) {
-    long[][] fetchData = fetchDataViaCpu(inodes, findOp, findFunc, nodeToLong);
-    long[] data = fetchData[0];
-    long[] sums = fetchData[1];
-
+      ToLongFunction<INode> findFunc,
+      ToLongFunction<INode> nodeToLong) {
     long start1 = System.currentTimeMillis();
     long[] histogram;
+    long overflowIndex = 0;
     try {
-      if (data.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulateByIndex(
+              inodes, nodeToLong, findFunc, HistogramKernel.modeOf(find));
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
       } else {
-        histogram = new long[data.length + 1];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = data.length;
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (histogram) {
-                    long currentVal = histogram[chosenBin];
-                    long compareVal = sums[idx];
-                    switch (find) {
-                      case "max":
-                        if (currentVal < compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      case "min":
-                        if (compareVal == 0 || currentVal > compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      default:
-                        break;
-                    }
-                  }
-                });
+        // Slot 0 holds the unmapped ids; ids at or past the INode count are unmapped as well.
+        overflowIndex = accumulator.getTotal();
+        int mapped = (int) Math.min(accumulator.size() - 1, overflowIndex);
+        for (int slot = mapped + 1; slot < accumulator.size(); slot++) {
+          accumulator.fold(slot, 0);
+        }
+        long[] slots = accumulator.finish(0L);
+        histogram = new long[mapped + 1];
+        System.arraycopy(slots, 1, histogram, 0, mapped);
+        histogram[mapped] = slots[0];
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -680,13 +570,14 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram (with find) took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram (with find) result has size: {} ", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
     } else {
       LOG.info(", is: {}", java.util.Arrays.toString(histogram));
     }
-    return Histograms.mapToNonEmptyIndex(histogram);
+    return Histograms.mapToNonEmptyIndex(histogram, overflowIndex);
   }
 
   @Override // QueryEngine
@@ -696,33 +587,22 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
       Function<INode, Long> sumFunc,
       Function<INode, Long> nodeToLong,
       Map<String, Long> binKeyMap) {
-    long[][] datas = fetchDataViaCpu(inodes, sum, sumFunc, nodeToLong);
-    long[] data = datas[0];
-    long[] sums = datas[1];
-    int length = Math.min(data.length, sums.length);
-
     long start1 = System.currentTimeMillis();
     long[] histogram;
     try {
-      if (data.length == 0 || sums.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulate(
+              inodes,
+              nodeToLong::apply,
+              HistogramKernel.indexLocator(binKeyMap.size()),
+              sumFunc::apply,
+              binKeyMap.size() + 1,
+              HistogramKernel.Mode.SUM);
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
       } else {
-        histogram = new long[binKeyMap.size() + 1];
-        IntStream.range(0, length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = binKeyMap.size();
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (histogram) {
-                    histogram[chosenBin] += sums[idx];
-                  }
-                });
+        histogram = accumulator.finish(0L);
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -734,6 +614,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram result has size: {}", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
@@ -750,85 +631,23 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
       Function<INode, Long> findToLong,
       Function<INode, Long> nodeToLong,
       Map<String, Long> binKeyMap) {
-    long[][] datas = fetchDataViaCpu(inodes, findFunc, findToLong, nodeToLong);
-    long[] data = datas[0];
-    long[] sums = datas[1];
-    int length = Math.min(data.length, sums.length);
-
     long start1 = System.currentTimeMillis();
     long[] histogram;
     try {
-      if (data.length == 0 || sums.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulate(
+              inodes,
+              nodeToLong::apply,
+              HistogramKernel.indexLocator(binKeyMap.size()),
+              findToLong::apply,
+              binKeyMap.size() + 1,
+              HistogramKernel.modeOf(findFunc));
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
-      } else if (findFunc.equals("avg")) {
-        BigInteger[] bigHistogram = new BigInteger[binKeyMap.size() + 1];
-        long[] counts = new long[binKeyMap.size() + 1];
-        Arrays.fill(bigHistogram, BigInteger.valueOf(-1));
-        IntStream.range(0, length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = binKeyMap.size();
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (bigHistogram) {
-                    BigInteger currentVal = bigHistogram[chosenBin];
-                    long sum = sums[idx];
-                    if (currentVal.equals(BigInteger.valueOf(-1))) {
-                      bigHistogram[chosenBin] = BigInteger.valueOf(sum);
-                    } else {
-                      bigHistogram[chosenBin] =
-                          bigHistogram[chosenBin].add(BigInteger.valueOf(sum));
-                    }
-                    counts[chosenBin]++;
-                  }
-                });
-        if (bigHistogram[binKeyMap.size()].equals(BigInteger.valueOf(-1))) {
-          bigHistogram[binKeyMap.size()] = BigInteger.ZERO;
-        }
-        for (int i = 0; i < bigHistogram.length; i++) {
-          if (counts[i] != 0) {
-            bigHistogram[i] = bigHistogram[i].divide(BigInteger.valueOf(counts[i]));
-          }
-        }
-        histogram = Arrays.stream(bigHistogram).mapToLong(BigInteger::longValue).toArray();
-        LOG.info("Histogram returned an array of size: {}", histogram.length);
       } else {
-        histogram = new long[binKeyMap.size() + 1];
-        Arrays.fill(histogram, -1L);
-        IntStream.range(0, length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  int id = (int) data[idx];
-                  int chosenBin = binKeyMap.size();
-                  if (id < chosenBin && id != -1) {
-                    // Lock in the bin.
-                    chosenBin = id;
-                  }
-                  synchronized (histogram) {
-                    long currentVal = histogram[chosenBin];
-                    long compareVal = sums[idx];
-                    switch (findFunc) {
-                      case "max":
-                        if (currentVal < compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      case "min":
-                        if (currentVal == -1 || currentVal > compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      default:
-                        break;
-                    }
-                  }
-                });
+        // Empty mapped bins report -1; an empty unmapped bin reports 0 so it is left out.
+        histogram = accumulator.finish(-1L);
         if (histogram[binKeyMap.size()] == -1) {
           histogram[binKeyMap.size()] = 0;
         }
@@ -843,6 +662,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram (with find) took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram (with find) result has size: {}", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
@@ -855,37 +675,26 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
   private Map<String, Long> filteringHistogram(
       Collection<INode> inodes,
       String sum,
-      Function<INode, Long> sumFunc,
-      Function<INode, Long> nodeToLong,
+      ToLongFunction<INode> sumFunc,
+      ToLongFunction<INode> nodeToLong,
       final Long[] binsArray,
       List<String> keys) {
-    long[][] datas = fetchDataViaCpu(inodes, sum, sumFunc, nodeToLong);
-    long[] data = datas[0];
-    long[] sums = datas[1];
-
     long start1 = System.currentTimeMillis();
     long[] histogram;
     try {
-      if (data.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulate(
+              inodes,
+              nodeToLong,
+              HistogramKernel.thresholdLocator(binsArray),
+              sumFunc,
+              binsArray.length + 1,
+              HistogramKernel.Mode.SUM);
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
       } else {
-        histogram = new long[binsArray.length + 1];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  long datum = data[idx];
-                  int chosenBin = binsArray.length;
-                  for (int i = 0; i < binsArray.length; i++) {
-                    if (datum <= binsArray[i] && chosenBin == binsArray.length) {
-                      chosenBin = i;
-                    }
-                  }
-                  synchronized (histogram) {
-                    histogram[chosenBin] += sums[idx];
-                  }
-                });
+        histogram = accumulator.finish(0L);
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -897,6 +706,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram result has size: {}", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
@@ -910,86 +720,26 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
       Collection<INode> inodes,
       String findOp,
       String find,
-      Function<INode, Long> findFunc,
-      Function<INode, Long> nodeToLong,
+      ToLongFunction<INode> findFunc,
+      ToLongFunction<INode> nodeToLong,
       final Long[] binsArray,
       List<String> keys) {
-    long[][] fetchData = fetchDataViaCpu(inodes, findOp, findFunc, nodeToLong);
-    long[] data = fetchData[0];
-    long[] sums = fetchData[1];
-
     long start1 = System.currentTimeMillis();
     long[] histogram;
     try {
-      if (data.length == 0) {
-        histogram = data;
+      HistogramKernel.Accumulator accumulator =
+          HistogramKernel.accumulate(
+              inodes,
+              nodeToLong,
+              HistogramKernel.thresholdLocator(binsArray),
+              findFunc,
+              binsArray.length + 1,
+              HistogramKernel.modeOf(find));
+      if (accumulator.getTotal() == 0) {
+        histogram = new long[0];
         LOG.info("Empty data set; skipping.");
-      } else if (find.equals("avg")) {
-        BigInteger[] bigHistogram = new BigInteger[binsArray.length + 1];
-        long[] counts = new long[binsArray.length + 1];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  long datum = data[idx];
-                  int chosenBin = binsArray.length;
-                  for (int i = 0; i < binsArray.length; i++) {
-                    if (datum <= binsArray[i] && chosenBin == binsArray.length) {
-                      chosenBin = i;
-                    }
-                  }
-                  synchronized (bigHistogram) {
-                    BigInteger currentVal = bigHistogram[chosenBin];
-                    long sum = sums[idx];
-                    if (currentVal == null) {
-                      bigHistogram[chosenBin] = BigInteger.valueOf(sum);
-                    } else {
-                      bigHistogram[chosenBin] =
-                          bigHistogram[chosenBin].add(BigInteger.valueOf(sum));
-                    }
-                    counts[chosenBin]++;
-                  }
-                });
-        for (int i = 0; i < bigHistogram.length; i++) {
-          if (counts[i] != 0) {
-            bigHistogram[i] = bigHistogram[i].divide(BigInteger.valueOf(counts[i]));
-          }
-        }
-        histogram =
-            Arrays.stream(bigHistogram).mapToLong(x -> x == null ? 0L : x.longValue()).toArray();
-        LOG.info("Histogram returned an array of size: {}", histogram.length);
       } else {
-        histogram = new long[binsArray.length + 1];
-        IntStream.range(0, data.length)
-            .parallel()
-            .forEach(
-                idx -> {
-                  long datum = data[idx];
-                  int chosenBin = binsArray.length;
-                  for (int i = 0; i < binsArray.length; i++) {
-                    if (datum <= binsArray[i] && chosenBin == binsArray.length) {
-                      chosenBin = i;
-                    }
-                  }
-                  synchronized (histogram) {
-                    long currentVal = histogram[chosenBin];
-                    long compareVal = sums[idx];
-                    switch (find) {
-                      case "max":
-                        if (currentVal < compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      case "min":
-                        if (compareVal == 0 || currentVal > compareVal) {
-                          histogram[chosenBin] = compareVal;
-                        }
-                        break;
-                      default:
-                        break;
-                    }
-                  }
-                });
+        histogram = accumulator.finish(0L);
         LOG.info("Histogram returned an array of size: {}", histogram.length);
       }
     } catch (Throwable e) {
@@ -1001,6 +751,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     }
     long end1 = System.currentTimeMillis();
     LOG.info("Histogram (with find) took: {} ms.", (end1 - start1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_BIN, end1 - start1);
     LOG.info("Histogram (with find) result has size: {}", histogram.length);
     if (histogram.length > 100) {
       LOG.info(". It is too big to console out.");
@@ -1030,7 +781,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     return filteringHistogram(
         inodes,
         sum,
-        getSumFunctionForINode(sum),
+        getSumFunctionToPrimitiveLongForINode(sum),
         node -> node.asFile().computeFileSize(),
         SpaceSizeHistogram.getBinsArray(),
         SpaceSizeHistogram.getKeys());
@@ -1044,7 +795,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         node -> node.asFile().computeFileSize(),
         SpaceSizeHistogram.getBinsArray(),
         SpaceSizeHistogram.getKeys());
@@ -1072,20 +823,20 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
 
   private Map<String, Long> fileReplicaHistogramCpu(
       Collection<INode> inodes, String sum, Map<String, Function<INode, Long>> transformMap) {
-    Function<INode, Long> binFunc =
+    ToLongFunction<INode> binFunc =
         getTransformFunction(
-            getFilterFunctionToLongForINode("fileReplica"), transformMap, "fileReplica");
-    Function<INode, Long> sumFunc =
-        getTransformFunction(getSumFunctionForINode(sum), transformMap, sum);
+            getFilterFunctionToPrimitiveLongForINode("fileReplica"), transformMap, "fileReplica");
+    ToLongFunction<INode> sumFunc =
+        getTransformFunction(getSumFunctionToPrimitiveLongForINode(sum), transformMap, sum);
     return strictMappingHistogram(inodes, sum, sumFunc, binFunc);
   }
 
   private Map<String, Long> fileReplicaHistogramCpuWithFind(Collection<INode> inodes, String find) {
-    Function<INode, Long> binFunc = getFilterFunctionToLongForINode("fileReplica");
+    ToLongFunction<INode> binFunc = getFilterFunctionToPrimitiveLongForINode("fileReplica");
     String[] finds = find.split(":");
     String findOp = finds[0];
     String findField = finds[1];
-    Function<INode, Long> findFunc = getFilterFunctionToLongForINode(findField);
+    ToLongFunction<INode> findFunc = getFindFunctionToPrimitiveLongForINode(findField);
     return strictMappingHistogramWithFind(inodes, findField, findOp, findFunc, binFunc);
   }
 
@@ -1135,7 +886,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     return filteringHistogram(
         inodes,
         sum,
-        getSumFunctionForINode(sum),
+        getSumFunctionToPrimitiveLongForINode(sum),
         node -> System.currentTimeMillis() - node.getAccessTime(),
         TimeHistogram.getBinsArray(timeRange),
         TimeHistogram.getKeys(timeRange));
@@ -1150,7 +901,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         node -> System.currentTimeMillis() - node.getAccessTime(),
         TimeHistogram.getBinsArray(timeRange),
         TimeHistogram.getKeys(timeRange));
@@ -1179,7 +930,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
     return filteringHistogram(
         inodes,
         sum,
-        getSumFunctionForINode(sum),
+        getSumFunctionToPrimitiveLongForINode(sum),
         node -> System.currentTimeMillis() - node.getModificationTime(),
         TimeHistogram.getBinsArray(timeRange),
         TimeHistogram.getKeys(timeRange));
@@ -1194,49 +945,12 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
         inodes,
         findField,
         findOp,
-        getFilterFunctionToLongForINode(findField),
+        getFindFunctionToPrimitiveLongForINode(findField),
         node -> System.currentTimeMillis() - node.getModificationTime(),
         TimeHistogram.getBinsArray(timeRange),
         TimeHistogram.getKeys(timeRange));
   }
 
-  /**
-   * Dump collection of INodes to parameter HTTP response.
-   *
-   * @param inodes the collection to dump
-   * @param limit some limit of inodes to show
-   * @param resp the HTTP response
-   * @throws IOException error in dumping collection
-   */
-  @Override // QueryEngine
-  public void dumpINodePaths(Collection<INode> inodes, Integer limit, HttpServletResponse resp)
-      throws IOException {
-    LOG.info("Dumping a list of {} INodes to a client.", inodes.size());
-    long start = System.currentTimeMillis();
-    PrintWriter writer = resp.getWriter();
-    try {
-      Collection<INode> subCollection;
-      if (limit != null && limit < inodes.size()) {
-        subCollection = inodes.stream().limit(limit).collect(Collectors.toList());
-      } else {
-        subCollection = inodes;
-      }
-      subCollection
-          .stream()
-          .sorted(Comparator.comparing(INode::getFullPathName))
-          .forEach(
-              node -> {
-                writer.write(node.getFullPathName() + '\n');
-                writer.flush();
-              });
-    } finally {
-      IOUtils.closeStream(writer);
-      LOG.info("Closed response.");
-    }
-    long end = System.currentTimeMillis();
-    LOG.info("Sending the entire response took {} ms.", (end - start));
-  }
-
   /**
    * Creates a histogram representation of INodes where the X-axis represents user names.
    *
@@ -1247,50 +961,8 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
    */
   @Override // QueryEngine
   public Map<String, Long> byUserHistogram(Collection<INode> inodes, String sum, String find) {
-    if (find == null || find.length() == 0) {
-      return byUserHistogramCpu(inodes, sum);
-    }
-    return byUserHistogramCpuWithFind(inodes, find);
-  }
-
-  private Map<String, Long> byUserHistogramCpu(Collection<INode> inodes, String sum) {
-    List<String> distinctUsers =
-        inodes.parallelStream().map(INode::getUserName).distinct().collect(Collectors.toList());
-    Map<String, Long> userToIdMap =
-        distinctUsers
-            .parallelStream()
-            .mapToInt(distinctUsers::indexOf)
-            .boxed()
-            .collect(Collectors.toMap(distinctUsers::get, value -> (long) value));
-
-    return binMappingHistogram(
-        inodes,
-        sum,
-        getSumFunctionForINode(sum),
-        node -> userToIdMap.get(node.getUserName()),
-        userToIdMap);
-  }
-
-  private Map<String, Long> byUserHistogramCpuWithFind(Collection<INode> inodes, String find) {
-    List<String> distinctUsers =
-        inodes.parallelStream().map(INode::getUserName).distinct().collect(Collectors.toList());
-    Map<String, Long> userToIdMap =
-        distinctUsers
-            .parallelStream()
-            .mapToInt(distinctUsers::indexOf)
-            .boxed()
-            .collect(Collectors.toMap(distinctUsers::get, value -> (long) value));
-
-    String[] finds = find.split(":");
-    String findOp = finds[0];
-    String findField = finds[1];
-
-    return binMappingHistogramWithFind(
-        inodes,
-        findOp,
-        getFilterFunctionToLongForINode(findField),
-        node -> userToIdMap.get(node.getUserName()),
-        userToIdMap);
+    UserGroupDictionaries dictionaries = nameNodeLoader.getUserGroupDictionaries();
+    return dictionaryHistogram(inodes, sum, find, dictionaries::userIdOf, dictionaries.getUsers());
   }
 
   /**
@@ -1303,50 +975,9 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
    */
   @Override // QueryEngine
   public Map<String, Long> byGroupHistogram(Collection<INode> inodes, String sum, String find) {
-    if (find == null || find.length() == 0) {
-      return byGroupHistogramCpu(inodes, sum);
-    }
-    return byGroupHistogramCpuWithFind(inodes, find);
-  }
-
-  private Map<String, Long> byGroupHistogramCpu(Collection<INode> inodes, String sum) {
-    List<String> distinctGroups =
-        inodes.parallelStream().map(INode::getGroupName).distinct().collect(Collectors.toList());
-    Map<String, Long> groupToIdMap =
-        distinctGroups
-            .parallelStream()
-            .mapToInt(distinctGroups::indexOf)
-            .boxed()
-            .collect(Collectors.toMap(distinctGroups::get, value -> (long) value));
-
-    return binMappingHistogram(
-        inodes,
-        sum,
-        getSumFunctionForINode(sum),
-        node -> groupToIdMap.get(node.getGroupName()),
-        groupToIdMap);
-  }
-
-  private Map<String, Long> byGroupHistogramCpuWithFind(Collection<INode> inodes, String find) {
-    List<String> distinctGroups =
-        inodes.parallelStream().map(INode::getGroupName).distinct().collect(Collectors.toList());
-    Map<String, Long> groupToIdMap =
-        distinctGroups
-            .parallelStream()
-            .mapToInt(distinctGroups::indexOf)
-            .boxed()
-            .collect(Collectors.toMap(distinctGroups::get, value -> (long) value));
-
-    String[] finds = find.split(":");
-    String findOp = finds[0];
-    String findField = finds[1];
-
-    return binMappingHistogramWithFind(
-        inodes,
-        findOp,
-        getFilterFunctionToLongForINode(findField),
-        node -> groupToIdMap.get(node.getGroupName()),
-        groupToIdMap);
+    UserGroupDictionaries dictionaries = nameNodeLoader.getUserGroupDictionaries();
+    return dictionaryHistogram(
+        inodes, sum, find, dictionaries::groupIdOf, dictionaries.getGroups());
   }
 
   /**
@@ -1371,98 +1002,18 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
       Collection<INode> inodes, Integer parentDirDepth, String sum) {
     int dirDepth =
         (parentDirDepth == null || parentDirDepth <= 0) ? Integer.MAX_VALUE : parentDirDepth;
-    List<String> distinctDirectories =
-        inodes
-            .parallelStream()
-            .map(
-                node -> {
-                  try {
-                    INodeDirectory parent = node.getParent();
-                    int topParentDepth = new Path(parent.getFullPathName()).depth();
-                    if (topParentDepth < dirDepth) {
-                      return "NO_MAPPING";
-                    }
-                    for (int parentTravs = topParentDepth; parentTravs > dirDepth; parentTravs--) {
-                      parent = parent.getParent();
-                    }
-                    return parent.getFullPathName();
-                  } catch (Exception e) {
-                    return "NO_MAPPING";
-                  }
-                })
-            .distinct()
-            .collect(Collectors.toList());
-
-    final AtomicLong id = new AtomicLong(0L);
-    final Map<String, Long> dirToIdMap =
-        distinctDirectories
-            .parallelStream()
-            .collect(Collectors.toMap(dir -> dir, dir -> id.getAndIncrement()));
-    if (!dirToIdMap.containsKey("NO_MAPPING")) {
-      dirToIdMap.put("NO_MAPPING", id.getAndIncrement());
-    }
-    final long noMappingId = dirToIdMap.get("NO_MAPPING");
-
+    ParentDirBins bins = ParentDirBins.of(inodes, dirDepth);
     Map<String, Long> result =
         binMappingHistogram(
-            inodes,
-            sum,
-            getSumFunctionForINode(sum),
-            node -> {
-              try {
-                INodeDirectory parent = node.getParent();
-                int topParentDepth = new Path(parent.getFullPathName()).depth();
-                if (topParentDepth < dirDepth) {
-                  return noMappingId;
-                }
-                for (int parentTravs = topParentDepth; parentTravs > dirDepth; parentTravs--) {
-                  parent = parent.getParent();
-                }
-                Long index = dirToIdMap.get(parent.getFullPathName());
-                return index != null ? index : noMappingId;
-              } catch (Throwable e) {
-                return noMappingId;
-              }
-            },
-            dirToIdMap);
-    result.remove("NO_MAPPING");
+            inodes, sum, getSumFunctionForINode(sum), bins::binOf, bins.getBinKeyMap());
+    result.remove(ParentDirBins.NO_MAPPING);
     return result;
   }
 
   private Map<String, Long> parentDirHistogramCpuWithFind(
       Collection<INode> inodes, Integer parentDirDepth, String find) {
     int dirDepth = (parentDirDepth != null) ? parentDirDepth : 0;
-    List<String> distinctDirectories =
-        inodes
-            .parallelStream()
-            .map(
-                node -> {
-                  try {
-                    INodeDirectory parent = node.getParent();
-                    int topParentDepth = new Path(parent.getFullPathName()).depth();
-                    if (topParentDepth < dirDepth) {
-                      return "NO_MAPPING";
-                    }
-                    for (int parentTravs = topParentDepth; parentTravs > dirDepth; parentTravs--) {
-                      parent = parent.getParent();
-                    }
-                    return parent.getFullPathName();
-                  } catch (Exception e) {
-                    return "NO_MAPPING";
-                  }
-                })
-            .distinct()
-            .collect(Collectors.toList());
-
-    final AtomicLong id = new AtomicLong(0L);
-    Map<String, Long> dirToIdMap =
-        distinctDirectories
-            .parallelStream()
-            .collect(Collectors.toMap(dir -> dir, dir -> id.getAndIncrement()));
-    if (!dirToIdMap.containsKey("NO_MAPPING")) {
-      dirToIdMap.put("NO_MAPPING", id.getAndIncrement());
-    }
-    final long noMappingId = dirToIdMap.get("NO_MAPPING");
+    ParentDirBins bins = ParentDirBins.of(inodes, dirDepth);
     String[] finds = find.split(":");
     String findOp = finds[0];
     String findField = finds[1];
@@ -1471,25 +1022,10 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
         binMappingHistogramWithFind(
             inodes,
             findOp,
-            getFilterFunctionToLongForINode(findField),
-            node -> {
-              try {
-                INodeDirectory parent = node.getParent();
-                int topParentDepth = new Path(parent.getFullPathName()).depth();
-                if (topParentDepth < dirDepth) {
-                  return noMappingId;
-                }
-                for (int parentTravs = topParentDepth; parentTravs > dirDepth; parentTravs--) {
-                  parent = parent.getParent();
-                }
-                Long index = dirToIdMap.get(parent.getFullPathName());
-                return index != null ? index : noMappingId;
-              } catch (Throwable e) {
-                return noMappingId;
-              }
-            },
-            dirToIdMap);
-    result.remove("NO_MAPPING");
+            getFindFunctionToLongForINode(findField),
+            bins::binOf,
+            bins.getBinKeyMap());
+    result.remove(ParentDirBins.NO_MAPPING);
     return result;
   }
 
@@ -1544,7 +1080,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
 
   private Map<String, Long> dirQuotaHistogramCpu(Collection<INode> inodes, String sum) {
     List<String> distinctDirectories =
-        inodes.parallelStream().map(INode::getFullPathName).distinct().collect(Collectors.toList());
+        inodes.parallelStream().map(PathNames::toString).distinct().collect(Collectors.toList());
 
     final AtomicLong id = new AtomicLong(0L);
     Map<String, Long> dirToIdMap =
@@ -1557,7 +1093,7 @@ public class JavaStreamQueryEngine extends AbstractQueryEngine {
             inodes,
             sum,
             getSumFunctionForINode(sum),
-            node -> dirToIdMap.get(node.getFullPathName()),
+            node -> dirToIdMap.get(PathNames.toString(node)),
             dirToIdMap);
 
     return removeKeysOnConditional(histogram, "gte:0");
@@ -20,23 +20,24 @@
 package org.apache.hadoop.hdfs.server.namenode;
 
 import com.paypal.namenode.HsqlDriver;
+import com.paypal.namenode.QueryAdmissionController;
 import com.paypal.namenode.WebServerMain;
 import com.paypal.security.SecurityConfiguration;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.util.Collection;
-import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
@@ -47,6 +48,7 @@ import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.DFSUtil;
 import org.apache.hadoop.hdfs.protocol.HdfsConstants;
 import org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsEngine;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
 import org.apache.hadoop.hdfs.server.namenode.startupprogress.Phase;
 import org.apache.hadoop.hdfs.server.namenode.startupprogress.StartupProgressView;
 import org.apache.hadoop.hdfs.server.namenode.startupprogress.Step;
@@ -58,6 +60,7 @@ import org.apache.hadoop.security.token.delegation.TokenExtractor;
 import org.apache.hadoop.util.CollectionsView;
 import org.apache.hadoop.util.GSet;
 import org.apache.hadoop.util.GSetSeperatorWrapper;
+import org.apache.hadoop.util.INodeListener;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
@@ -68,18 +71,37 @@ public class NameNodeLoader {
 
   public static final Logger LOG = LoggerFactory.getLogger(NameNodeLoader.class.getName());
 
+  public static final String RELOAD_CLEAR = "clear";
+  public static final String RELOAD_SWAP = "swap";
+  public static final String RELOAD_STREAM = "stream";
+
   private final VersionInterface versionLoader;
   private final SuggestionsEngine suggestionsEngine;
+  private final ExecutorService snapshotWriter =
+      ParallelImageLoader.newWorkers(1, "SnapshotWriter-");
+  private final ExecutorService columnsBuilder =
+      ParallelImageLoader.newWorkers(1, "ColumnsBuilder-");
+  private final AtomicBoolean columnsRefreshing = new AtomicBoolean(false);
 
   private QueryEngine queryEngine = null;
   private AtomicBoolean inited = new AtomicBoolean(false);
   private AtomicBoolean historical = new AtomicBoolean(false);
   private Configuration conf = null;
   private FSNamesystem namesystem = null;
+  private long imageTxId = -1L;
+  private AnalyticsSnapshot snapshot = null;
   private HsqlDriver hsqlDriver = null;
   private Collection<INode> all = null;
-  private Map<INode, INodeWithAdditionalFields> files = null;
-  private Map<INode, INodeWithAdditionalFields> dirs = null;
+  private INodeRegistry files = null;
+  private INodeRegistry dirs = null;
+  private UserGroupDictionaries dictionaries = null;
+  private volatile INodeColumns columns = null;
+  private volatile SubtreeIndex subtreeIndex = null;
+  private volatile SubtreeRollups subtreeRollups = null;
+  private volatile INodeSample sample = null;
+  private volatile double sampleRate = 0.01;
+  private volatile long columnsMaxLagMs = 60000L;
+  private GSetSeperatorWrapper inodeMapWrapper = null;
   private TokenExtractor tokenExtractor = null;
 
   /** Constructor. */
@@ -104,6 +126,92 @@ public class NameNodeLoader {
     return queryEngine;
   }
 
+  /**
+   * Get the user and group dictionaries of the INodes.
+   *
+   * @return the dictionaries; or null if no INodes are loaded
+   */
+  public UserGroupDictionaries getUserGroupDictionaries() {
+    return dictionaries;
+  }
+
+  /**
+   * Get the latest columnar snapshot of the INodes.
+   *
+   * @return the columnar snapshot; or null if the query engine does not use columns
+   */
+  public INodeColumns getINodeColumns() {
+    return columns;
+  }
+
+  /**
+   * Get the columnar snapshot for a query. If the namespace has moved past the txid of the
+   * snapshot, a rebuild is started in the background; meanwhile the stale snapshot is only handed
+   * out while it is at most nna.query.columnar.max.lag.ms old.
+   *
+   * @return the columnar snapshot; or null if the query should scan the INodes instead
+   */
+  public INodeColumns getCurrentINodeColumns() {
+    INodeColumns current = columns;
+    if (current == null || current.getTxId() == getCurrentTxId()) {
+      return current;
+    }
+    if (columnsRefreshing.compareAndSet(false, true)) {
+      columnsBuilder.submit(
+          () -> {
+            try {
+              refreshColumns();
+            } catch (Throwable e) {
+              LOG.info("Failed to refresh columnar snapshot: {}", e);
+            } finally {
+              columnsRefreshing.set(false);
+            }
+          });
+    }
+    long lag = System.currentTimeMillis() - current.getBuildTime();
+    return (lag <= columnsMaxLagMs) ? current : null;
+  }
+
+  /**
+   * Add a listener to the INode map so that it sees the INodes added and removed by edit log
+   * tailing. Does nothing if the INodes were preloaded, as they are never tailed.
+   *
+   * @param listener the listener to add
+   */
+  public void addINodeListener(INodeListener listener) {
+    if (inodeMapWrapper != null) {
+      inodeMapWrapper.addListener(listener);
+    }
+  }
+
+  /**
+   * Get the latest subtree index of the INodes. Check {@link SubtreeIndex#isCurrent(long)} before
+   * using it to answer for the live namespace.
+   *
+   * @return the subtree index; or null if none was built yet
+   */
+  public SubtreeIndex getSubtreeIndex() {
+    return subtreeIndex;
+  }
+
+  /**
+   * Get the subtree rollups of the directories, without applying the latest edits to them.
+   *
+   * @return the subtree rollups; or null if none were built yet
+   */
+  public SubtreeRollups getSubtreeRollups() {
+    return subtreeRollups;
+  }
+
+  /**
+   * Get the sample of the INodes, without applying the latest edits to it.
+   *
+   * @return the sample; or null if none was built yet
+   */
+  public INodeSample getSample() {
+    return sample;
+  }
+
   public boolean isInit() {
     return inited.get();
   }
@@ -119,7 +227,7 @@ public class NameNodeLoader {
    */
   public long getCurrentTxId() {
     if (namesystem == null) {
-      return -1L;
+      return imageTxId;
     }
     return namesystem.getFSImage().lastAppliedTxId;
   }
@@ -288,6 +396,121 @@ public class NameNodeLoader {
     }
   }
 
+  /**
+   * Saves the current in-memory INodes to the local analytics snapshot at the current txid, so that
+   * the next load can start from it instead of from an FsImage.
+   *
+   * @throws IOException if snapshots are not enabled or the snapshot could not be written
+   */
+  public void saveSnapshot() throws IOException {
+    if (!isInit()) {
+      throw new IllegalStateException("Namesystem is not initalized. Cannot saveSnapshot.");
+    }
+    if (snapshot == null) {
+      throw new IOException("Snapshots are not enabled. Please set nna.snapshot.enable=true.");
+    }
+    if (namesystem != null) {
+      namesystem.readLock();
+    }
+    try {
+      writeSnapshot();
+    } finally {
+      if (namesystem != null) {
+        namesystem.readUnlock();
+      }
+    }
+  }
+
+  private void writeSnapshot() throws IOException {
+    snapshot.write(getCurrentTxId(), namesystem, files, dirs, versionLoader);
+  }
+
+  /**
+   * Writes the snapshot of a freshly loaded namespace on a background thread, so that bootstrap
+   * does not wait for it. The namesystem is read locked while the INodes are written; EditLog
+   * tailing pauses in the meantime, queries do not.
+   *
+   * @param target the snapshot to write
+   * @param namespace the loaded namespace
+   */
+  private void writeSnapshotInBackground(AnalyticsSnapshot target, Namespace namespace) {
+    FSNamesystem loaded = namespace.namesystem;
+    snapshotWriter.submit(
+        () -> {
+          loaded.readLock();
+          try {
+            target.write(
+                namespace.getCurrentTxId(),
+                loaded,
+                namespace.files,
+                namespace.dirs,
+                versionLoader);
+          } catch (Throwable e) {
+            LOG.info("Failed to write snapshot: {}", e);
+          } finally {
+            loaded.readUnlock();
+          }
+        });
+  }
+
+  /**
+   * Loads the INodes from the analytics snapshot into a namesystem that tails from the txid of the
+   * snapshot, unless there is no snapshot or a newer FsImage exists.
+   *
+   * @param namespace the namespace being loaded
+   * @param threads the number of loader threads; 0 or less uses one per available core
+   * @return the loaded INodes; or null if they should be loaded from the FsImage instead
+   */
+  private GSet<INode, INodeWithAdditionalFields> loadSnapshot(Namespace namespace, int threads) {
+    long snapshotTxId = snapshot.readTxId();
+    long latestImageTxId = ParallelImageLoader.getLatestImageTxId(conf);
+    if (snapshotTxId < 0 || snapshotTxId < latestImageTxId) {
+      LOG.info(
+          "Snapshot: {} at txid: {} is older than FsImage at txid: {}.",
+          snapshot.getFile(),
+          snapshotTxId,
+          latestImageTxId);
+      return null;
+    }
+    try {
+      GSet<INode, INodeWithAdditionalFields> gset = snapshot.load(conf, threads);
+      FSNamesystem loaded = StandbyNamesystem.build(conf, gset, snapshotTxId);
+      loaded.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
+      namespace.namesystem = loaded;
+      namespace.imageTxId = snapshotTxId;
+      return gset;
+    } catch (IOException e) {
+      LOG.warn("Failed to load snapshot; loading from FsImage instead: {}", e);
+      return null;
+    }
+  }
+
+  /**
+   * Loads the INodes of the latest FsImage on a pool of threads into a namesystem that tails from
+   * the txid of the image.
+   *
+   * @param namespace the namespace being loaded
+   * @param threads the number of loader threads; 0 or less uses one per available core
+   * @return the loaded INodes; or null if they should be loaded by a full FsImage load instead
+   */
+  private GSet<INode, INodeWithAdditionalFields> loadImageInParallel(
+      Namespace namespace, int threads) {
+    LOG.info(
+        "Loading image in parallel from: {}", conf.get(DFSConfigKeys.DFS_NAMENODE_NAME_DIR_KEY));
+    ParallelImageLoader imageLoader = new ParallelImageLoader(conf, threads);
+    try {
+      GSet<INode, INodeWithAdditionalFields> gset = imageLoader.load();
+      FSNamesystem loaded = StandbyNamesystem.build(conf, gset, imageLoader.getImageTxId());
+      loaded.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
+      namespace.namesystem = loaded;
+      namespace.imageTxId = imageLoader.getImageTxId();
+      return gset;
+    } catch (IOException e) {
+      LOG.warn("Failed to load image in parallel; falling back to a full load: {}", e);
+      return null;
+    }
+  }
+
   /**
    * Saves the current in-memory file system to a binary file snapshot locally as a legacy image.
    * Does not communicate with active HDFS cluster.
@@ -316,7 +539,6 @@ public class NameNodeLoader {
    * @throws NoSuchFieldException error in fetching inodes from fsimage
    * @throws IllegalAccessException error in fetching inodes from fsimage
    */
-  @SuppressWarnings("unchecked") /* We do unchecked casting to extract GSets */
   public void load(
       GSet<INode, INodeWithAdditionalFields> preloadedInodes,
       Configuration preloadedHadoopConf,
@@ -342,74 +564,294 @@ public class NameNodeLoader {
     handleConfigurationOverrides(conf, nnaConf);
     final long start = System.currentTimeMillis();
 
-    GSet<INode, INodeWithAdditionalFields> gsetMap;
+    INodeListener listener =
+        nnaConf.getIncrementalSuggestionsEnabled() ? suggestionsEngine.getINodeListener() : null;
+    Namespace namespace = loadNamespace(preloadedInodes, nnaConf, queryEngine, listener, true);
+    if (namespace == null) {
+      return;
+    }
+    install(namespace, nnaConf);
+
+    long end = System.currentTimeMillis();
+    LOG.info("NameNodeLoader bootstrap'd in: {} ms.", (end - start));
+    inited.set(true);
+  }
+
+  /**
+   * Reloads the INodes from the latest local snapshot or FsImage, in the way set by
+   * "nna.reload.mode".
+   *
+   * <p>In "swap" mode the new INodes, query engine and columns are loaded in the background while
+   * the current ones keep serving queries; exclusive access is only taken to swap them. "stream"
+   * mode first drops the columns and subtree index of the current INodes, so that only the INodes
+   * are held twice, and queries scan INodes until the columns are rebuilt after the swap. "clear"
+   * mode drops the current INodes under exclusive access and then loads the new ones. Swap mode
+   * falls back to clear mode if the heap lacks the headroom for a second copy, as stream mode
+   * still holds the INodes twice.
+   *
+   * <p>Structures derived from the INodes are dropped and swapped under both exclusive access and
+   * the loader monitor, so that neither running queries nor a concurrent refresh see them change.
+   * The storage locks of the current namesystem are handed to the new one and taken back if the
+   * load fails. Incremental suggestions stop counting INode changes from the start of the reload
+   * until the next full suggestions report on the new INodes, as the new namesystem replays edits
+   * that the current counts already hold.
+   *
+   * @param nnaConf the NNA application configuration
+   * @param admissionController guards the INodes against running queries
+   * @return the reload mode that was used
+   * @throws IOException error in loading inodes
+   * @throws NoSuchFieldException error in fetching inodes from fsimage
+   * @throws IllegalAccessException error in fetching inodes from fsimage
+   */
+  public String reload(SecurityConfiguration nnaConf, QueryAdmissionController admissionController)
+      throws IOException, NoSuchFieldException, IllegalAccessException, URISyntaxException,
+          ClassNotFoundException {
+    String mode = nnaConf.getReloadMode();
+    // The new namesystem replays edits from its image; counts resume with the next full report.
+    suggestionsEngine.invalidateINodeChanges();
+    if (RELOAD_SWAP.equals(mode) && !hasReloadHeadroom(nnaConf.getReloadMemoryHeadroom())) {
+      LOG.warn("Not enough heap headroom to swap; reloading in mode: {}.", RELOAD_CLEAR);
+      mode = RELOAD_CLEAR;
+    }
+    if (!isInit() || (!RELOAD_SWAP.equals(mode) && !RELOAD_STREAM.equals(mode))) {
+      admissionController.acquireExclusive();
+      try {
+        clear();
+        load(null, null, nnaConf);
+      } finally {
+        admissionController.releaseExclusive();
+      }
+      return RELOAD_CLEAR;
+    }
+
+    long start = System.currentTimeMillis();
+    boolean stream = RELOAD_STREAM.equals(mode);
+    if (stream) {
+      admissionController.acquireExclusive();
+      try {
+        synchronized (this) {
+          columns = null;
+          subtreeIndex = null;
+          subtreeRollups = null;
+          sample = null;
+        }
+      } finally {
+        admissionController.releaseExclusive();
+      }
+    }
+    FSNamesystem previousNamesystem = namesystem;
+    QueryEngine previousEngine = queryEngine;
+    GSetSeperatorWrapper previousWrapper = inodeMapWrapper;
+    if (previousNamesystem != null) {
+      // The new namesystem locks the same namespace directories; tailing needs no lock.
+      previousNamesystem.getFSImage().getStorage().unlockAll();
+    }
+    INodeListener listener =
+        nnaConf.getIncrementalSuggestionsEnabled() ? suggestionsEngine.getINodeListener() : null;
+    Namespace namespace = null;
+    try {
+      namespace = loadNamespace(null, nnaConf, initializeQueryEngine(nnaConf), listener, !stream);
+    } finally {
+      if (namespace == null && previousNamesystem != null) {
+        relockStorage(previousNamesystem);
+      }
+    }
+    if (namespace == null) {
+      throw new IOException("Failed to load namespace; still serving txid: " + getCurrentTxId());
+    }
+
+    admissionController.acquireExclusive();
+    try {
+      synchronized (this) {
+        install(namespace, nnaConf);
+      }
+    } finally {
+      admissionController.releaseExclusive();
+    }
+    if (listener != null && previousWrapper != null) {
+      // The previous namesystem tails until it is shut down; only the served one feeds it.
+      previousWrapper.removeListener(listener);
+    }
+    if (previousEngine instanceof JavaCollectionQEngine) {
+      ((JavaCollectionQEngine) previousEngine).stopIndexing();
+    }
+    shutdownNamesystem(previousNamesystem);
+    if (stream && queryEngine instanceof ColumnarQueryEngine) {
+      refreshColumns();
+    }
+    long end = System.currentTimeMillis();
+    LOG.info("Reloading namespace in mode: {} took: {} ms.", mode, (end - start));
+    return mode;
+  }
+
+  /** Takes back the storage locks of a namesystem that keeps serving after a failed reload. */
+  private static void relockStorage(FSNamesystem namesystem) {
+    try {
+      namesystem.getFSImage().getStorage().lockAll();
+    } catch (IOException e) {
+      LOG.warn("Failed to lock the storage of the namesystem still served: {}", e);
+    }
+  }
+
+  private static boolean hasReloadHeadroom(double headroom) {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    long max = (heap.getMax() > 0) ? heap.getMax() : Runtime.getRuntime().maxMemory();
+    long needed = (long) (heap.getUsed() * headroom);
+    LOG.info(
+        "Heap has: {} of: {} bytes free; a second namespace needs about: {} bytes.",
+        (max - heap.getUsed()),
+        max,
+        needed);
+    return max - heap.getUsed() >= needed;
+  }
+
+  /**
+   * Loads INodes from parameter, from the local snapshot or from the local FsImage without
+   * touching the INodes currently served.
+   *
+   * @return the loaded namespace; or null if it could not be loaded
+   */
+  @SuppressWarnings("unchecked") /* We do unchecked casting to extract GSets */
+  private Namespace loadNamespace(
+      GSet<INode, INodeWithAdditionalFields> preloadedInodes,
+      SecurityConfiguration nnaConf,
+      QueryEngine engine,
+      INodeListener listener,
+      boolean buildColumns)
+      throws IOException, NoSuchFieldException, IllegalAccessException {
+    Namespace namespace = new Namespace();
+    namespace.queryEngine = engine;
     if (preloadedInodes == null) {
       UserGroupInformation.setConfiguration(conf);
       reloadKeytab();
+    }
+    snapshot =
+        (preloadedInodes == null && nnaConf.getSnapshotEnabled())
+            ? new AnalyticsSnapshot(new File(nnaConf.getSnapshotFile()))
+            : null;
 
+    GSet<INode, INodeWithAdditionalFields> gsetMap =
+        (snapshot != null) ? loadSnapshot(namespace, nnaConf.getParallelImageLoadThreads()) : null;
+    final boolean fromSnapshot = (gsetMap != null);
+    if (!fromSnapshot && preloadedInodes == null && nnaConf.getParallelImageLoadEnabled()) {
+      gsetMap = loadImageInParallel(namespace, nnaConf.getParallelImageLoadThreads());
+    }
+    if (gsetMap != null) {
+      FSNamesystem loaded = namespace.namesystem;
+      loaded.writeLock();
+      namespace.tokenExtractor = new TokenExtractor(loaded.dtSecretManager, loaded);
+    } else if (preloadedInodes == null) {
       LOG.info("Loading with configuration: {}", conf.toString());
       LOG.info(
           "FileSystem seen as: {}", conf.get(CommonConfigurationKeysPublic.FS_DEFAULT_NAME_KEY));
       LOG.info("Loading image from: {}", conf.get(DFSConfigKeys.DFS_NAMENODE_NAME_DIR_KEY));
       long start1 = System.currentTimeMillis();
+      FSNamesystem loaded;
       try {
-        namesystem = FSNamesystem.loadFromDisk(conf);
-        namesystem.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
+        loaded = FSNamesystem.loadFromDisk(conf);
+        loaded.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
       } catch (IOException e) {
         LOG.info("Failed to load namesystem: {}", e);
-        return;
+        return null;
       }
       long end1 = System.currentTimeMillis();
       LOG.info("FSImage loaded in: {} ms.", (end1 - start1));
-      LOG.info("Loaded in {} Inodes", namesystem.getFilesTotal());
+      LOG.info("Loaded in {} Inodes", loaded.getFilesTotal());
 
-      namesystem.writeLock();
-      tokenExtractor = new TokenExtractor(namesystem.dtSecretManager, namesystem);
-      FSDirectory fsDirectory = namesystem.getFSDirectory();
+      loaded.writeLock();
+      namespace.namesystem = loaded;
+      namespace.tokenExtractor = new TokenExtractor(loaded.dtSecretManager, loaded);
+      FSDirectory fsDirectory = loaded.getFSDirectory();
       INodeMap inodeMap = fsDirectory.getINodeMap();
       Field mapField = inodeMap.getClass().getDeclaredField("map");
       mapField.setAccessible(true);
       gsetMap = (GSet<INode, INodeWithAdditionalFields>) mapField.get(inodeMap);
     } else {
       gsetMap = preloadedInodes;
-      tokenExtractor = new TokenExtractor(null, null);
+      namespace.tokenExtractor = new TokenExtractor(null, null);
     }
 
     final long s1 = System.currentTimeMillis();
-    files =
-        StreamSupport.stream(gsetMap.spliterator(), true)
-            .filter(INode::isFile)
-            .collect(Collectors.toConcurrentMap(node -> node, node -> node));
-    dirs =
-        StreamSupport.stream(gsetMap.spliterator(), true)
-            .filter(INode::isDirectory)
-            .collect(Collectors.toConcurrentMap(node -> node, node -> node));
-    all = CollectionsView.combine(files.keySet(), dirs.keySet());
+    INodeRegistry files = new INodeRegistry();
+    INodeRegistry dirs = new INodeRegistry();
+    for (INodeWithAdditionalFields node : gsetMap) {
+      if (node.isFile()) {
+        files.add(node);
+      } else if (node.isDirectory()) {
+        dirs.add(node);
+      }
+    }
+    files.trimToSize();
+    dirs.trimToSize();
+    namespace.files = files;
+    namespace.dirs = dirs;
     long e1 = System.currentTimeMillis();
     LOG.info("Filtering {} files and {} dirs took: {} ms.", files.size(), dirs.size(), (e1 - s1));
+    namespace.dictionaries = UserGroupDictionaries.build(CollectionsView.combine(files, dirs));
 
-    if (preloadedInodes == null) {
+    FSNamesystem loaded = namespace.namesystem;
+    if (loaded != null) {
       // Start tailing and updating security credentials threads.
       try {
-        FSDirectory fsDirectory = namesystem.getFSDirectory();
+        FSDirectory fsDirectory = loaded.getFSDirectory();
         INodeMap inodeMap = fsDirectory.getINodeMap();
         Field mapField = inodeMap.getClass().getDeclaredField("map");
         mapField.setAccessible(true);
-        GSet<INode, INodeWithAdditionalFields> newGSet = new GSetSeperatorWrapper(files, dirs);
+        GSetSeperatorWrapper newGSet = new GSetSeperatorWrapper(files, dirs);
+        newGSet.addListener(namespace.dictionaries);
+        if (listener != null) {
+          newGSet.addListener(listener);
+        }
         mapField.set(inodeMap, newGSet);
-        namesystem.writeUnlock();
+        namespace.inodeMapWrapper = newGSet;
+        loaded.writeUnlock();
 
-        namesystem.startStandbyServices(conf);
-        versionLoader.setNamesystem(namesystem);
+        loaded.startStandbyServices(conf);
+        if (listener != null) {
+          ObservedEditLog.install(conf, loaded, newGSet);
+        }
       } catch (Throwable e) {
         LOG.info("ERROR: Failed to start EditLogTailer: {}", e);
       }
+      if (snapshot != null && !fromSnapshot) {
+        writeSnapshotInBackground(snapshot, namespace);
+      }
     }
-    queryEngine.setContexts(this, versionLoader);
+    if (buildColumns && engine instanceof ColumnarQueryEngine) {
+      namespace.columns =
+          INodeColumns.build(
+              files, dirs, namespace.dictionaries, versionLoader, namespace.getCurrentTxId());
+    }
+    return namespace;
+  }
 
-    long end = System.currentTimeMillis();
-    LOG.info("NameNodeLoader bootstrap'd in: {} ms.", (end - start));
-    inited.set(true);
+  /** Makes a loaded namespace the one that is served. */
+  private void install(Namespace namespace, SecurityConfiguration nnaConf) {
+    // Also drops counts reset from the INodes being replaced while the new ones were loading.
+    suggestionsEngine.invalidateINodeChanges();
+    namesystem = namespace.namesystem;
+    imageTxId = namespace.imageTxId;
+    tokenExtractor = namespace.tokenExtractor;
+    files = namespace.files;
+    dirs = namespace.dirs;
+    all = CollectionsView.combine(files, dirs);
+    dictionaries = namespace.dictionaries;
+    inodeMapWrapper = namespace.inodeMapWrapper;
+    columns = namespace.columns;
+    subtreeIndex = null;
+    subtreeRollups = null;
+    sample = null;
+    sampleRate = nnaConf.getApproxSampleRate();
+    columnsMaxLagMs = nnaConf.getColumnarMaxLagMs();
+    if (namesystem != null) {
+      versionLoader.setNamesystem(namesystem);
+    }
+    queryEngine = namespace.queryEngine;
+    queryEngine.setContexts(this, versionLoader);
+    if (queryEngine instanceof JavaCollectionQEngine) {
+      ((JavaCollectionQEngine) queryEngine)
+          .startIndexing(nnaConf.getCQEngineIndexes(), nnaConf.getCQEngineIndexRebuildMs());
+    }
   }
 
   @SuppressWarnings("unchecked")
@@ -500,17 +942,12 @@ public class NameNodeLoader {
   /** Wipes out all the in-memory INode tree. Stops EditLog tailing. Stops report processing. */
   public void clear() {
     suggestionsEngine.stop();
-    if (namesystem != null) {
-      try {
-        namesystem.stopStandbyServices();
-        namesystem.getFSImage().getStorage().unlockAll();
-        namesystem.shutdown();
-      } catch (IOException e) {
-        LOG.info("Failed to shutdown namesystem: " + e);
-      } finally {
-        namesystem = null;
-      }
+    if (queryEngine instanceof JavaCollectionQEngine) {
+      ((JavaCollectionQEngine) queryEngine).stopIndexing();
     }
+    shutdownNamesystem(namesystem);
+    namesystem = null;
+    imageTxId = -1L;
     if (all != null) {
       all.clear();
     }
@@ -520,9 +957,140 @@ public class NameNodeLoader {
     if (dirs != null) {
       dirs.clear();
     }
+    dictionaries = null;
+    columns = null;
+    subtreeIndex = null;
+    subtreeRollups = null;
+    sample = null;
     inited.set(false);
   }
 
+  private static void shutdownNamesystem(FSNamesystem namesystem) {
+    if (namesystem == null) {
+      return;
+    }
+    try {
+      namesystem.stopStandbyServices();
+      namesystem.getFSImage().getStorage().unlockAll();
+      namesystem.shutdown();
+    } catch (IOException e) {
+      LOG.info("Failed to shutdown namesystem: " + e);
+    }
+  }
+
+  /**
+   * Rebuilds the columnar snapshot of the INodes if the namespace has moved past the txid of the
+   * current snapshot. Queries that are already running keep using the snapshot they started with.
+   */
+  public synchronized void refreshColumns() {
+    INodeColumns current = columns;
+    long txId = getCurrentTxId();
+    if (current != null && current.getTxId() == txId) {
+      LOG.debug("Columnar snapshot is up to date at txid: {}.", txId);
+      return;
+    }
+    INodeRegistry builtFiles = files;
+    if (builtFiles == null) {
+      return;
+    }
+    INodeColumns built = INodeColumns.build(builtFiles, dirs, dictionaries, versionLoader, txId);
+    if (files == builtFiles) {
+      // Only publish columns of the INodes that are still served.
+      columns = built;
+    }
+  }
+
+  /**
+   * Renumbers the subtree index of the INodes unless the current index already reflects the
+   * namespace at the current txid.
+   *
+   * @return the up to date subtree index
+   */
+  public synchronized SubtreeIndex refreshSubtreeIndex() {
+    SubtreeIndex current = subtreeIndex;
+    long txId = getCurrentTxId();
+    if (current != null && current.isCurrent(txId)) {
+      LOG.info("Subtree index is up to date at txid: {}.", txId);
+      return current;
+    }
+    long start = System.currentTimeMillis();
+    current = SubtreeIndex.build(files, dirs, txId, getCurrentTxId());
+    subtreeIndex = current;
+    long end = System.currentTimeMillis();
+    LOG.info("Building subtree index of {} INodes took: {} ms.", current.size(), (end - start));
+    return current;
+  }
+
+  /**
+   * Builds the subtree rollups of the directories on first use, and afterwards applies the edits
+   * tailed since the last call to them. Either runs under the namesystem read lock, so that the
+   * tailer does not move INodes meanwhile.
+   *
+   * @return the up to date subtree rollups; or null if no INodes are loaded
+   */
+  public synchronized SubtreeRollups refreshSubtreeRollups() {
+    if (dirs == null) {
+      return null;
+    }
+    FSNamesystem locked = namesystem;
+    if (locked != null) {
+      locked.readLock();
+    }
+    try {
+      SubtreeRollups current = subtreeRollups;
+      if (current == null) {
+        current = SubtreeRollups.build(dirs);
+        addINodeListener(current);
+        subtreeRollups = current;
+        return current;
+      }
+      long start = System.currentTimeMillis();
+      int changed = current.apply();
+      long end = System.currentTimeMillis();
+      LOG.info("Re-totalling {} dirs of the subtree rollups took: {} ms.", changed, (end - start));
+      return current;
+    } finally {
+      if (locked != null) {
+        locked.readUnlock();
+      }
+    }
+  }
+
+  /**
+   * Samples the INodes on first use, and afterwards applies the edits tailed since the last call
+   * to the sample. Either runs under the namesystem read lock, so that the tailer does not move
+   * INodes meanwhile.
+   *
+   * @return the up to date sample; or null if no INodes are loaded
+   */
+  public synchronized INodeSample refreshSample() {
+    if (all == null) {
+      return null;
+    }
+    FSNamesystem locked = namesystem;
+    if (locked != null) {
+      locked.readLock();
+    }
+    try {
+      INodeSample current = sample;
+      if (current == null) {
+        current = INodeSample.build(all, dictionaries, sampleRate);
+        addINodeListener(current);
+        sample = current;
+        return current;
+      }
+      long start = System.currentTimeMillis();
+      int changed = current.apply();
+      long end = System.currentTimeMillis();
+      LOG.info("Applying {} changes to the sample took: {} ms.", changed, (end - start));
+      return current;
+    } finally {
+      if (locked != null) {
+        locked.readUnlock();
+      }
+    }
+  }
+
   /**
    * Takes the FSNamesystem writeLock. Certain queries may wish to take the lock if they are finding
    * inconsistent results or for debugging.
@@ -554,7 +1122,11 @@ public class NameNodeLoader {
    * @return the in-memory set that represents the inodes asked for; a large collection typically
    */
   public Collection<INode> getINodeSet(String set) {
-    return queryEngine.getINodeSet(set);
+    long start = System.currentTimeMillis();
+    Collection<INode> inodes = queryEngine.getINodeSet(set);
+    QueryMetrics.observeStage(QueryMetrics.STAGE_FETCH, System.currentTimeMillis() - start);
+    QueryMetrics.addScanned(inodes.size());
+    return inodes;
   }
 
   Collection<INode> getINodeSetInternal(String set) {
@@ -565,10 +1137,10 @@ public class NameNodeLoader {
         inodes = all;
         break;
       case "files":
-        inodes = files.keySet();
+        inodes = files;
         break;
       case "dirs":
-        inodes = dirs.keySet();
+        inodes = dirs;
         break;
       default:
         throw new IllegalArgumentException(
@@ -585,17 +1157,31 @@ public class NameNodeLoader {
 
   /**
    * Initializes the background thread that performs cached reporting for all users. Initializes the
-   * background thread that refreshes Kerberos keytab for NNA process.
+   * background thread that refreshes Kerberos keytab for NNA process. If incremental suggestions
+   * are enabled, also initializes the background thread that applies tailed INode changes to the
+   * cached reports in-between full reports.
    *
    * @param internalService threadExecutor service hosted by {@link WebServerMain}
    * @param conf the application configuration
    */
   public void initReloadThreads(ExecutorService internalService, SecurityConfiguration conf) {
+    final boolean incremental = conf.getIncrementalSuggestionsEnabled();
+    final int reloadSleepMs =
+        incremental ? conf.getIncrementalSuggestionsRescanMs() : conf.getSuggestionsReloadSleepMs();
     Future<Void> reload =
         internalService.submit(
             () -> {
               while (true) {
                 try {
+                  if (queryEngine instanceof ColumnarQueryEngine) {
+                    refreshColumns();
+                  }
+                  if (subtreeRollups != null) {
+                    refreshSubtreeRollups();
+                  }
+                  if (sample != null) {
+                    refreshSample();
+                  }
                   suggestionsEngine.reloadSuggestions(this);
                 } catch (Throwable e) {
                   LOG.info("Suggestion reload failed: {}", e);
@@ -604,7 +1190,7 @@ public class NameNodeLoader {
                   }
                 }
                 try {
-                  Thread.sleep(conf.getSuggestionsReloadSleepMs());
+                  Thread.sleep(reloadSleepMs);
                 } catch (InterruptedException ignored) {
                   LOG.debug("Suggestion reload was interrupted by: {}", ignored);
                 }
@@ -623,6 +1209,27 @@ public class NameNodeLoader {
                 reloadKeytab();
               }
             });
+    if (incremental) {
+      Future<Void> apply =
+          internalService.submit(
+              () -> {
+                while (true) {
+                  try {
+                    Thread.sleep(conf.getIncrementalSuggestionsSleepMs());
+                  } catch (InterruptedException ignored) {
+                    LOG.debug("Incremental suggestions were interrupted by: {}", ignored);
+                  }
+                  try {
+                    suggestionsEngine.applyINodeChanges(queryEngine);
+                  } catch (Throwable e) {
+                    LOG.info("Incremental suggestions failed: {}", e);
+                  }
+                }
+              });
+      if (apply.isDone()) {
+        LOG.error("Incremental suggestions service exited; suggestions will update less often.");
+      }
+    }
     if (reload.isDone()) {
       LOG.error("Suggestion reload service exited; suggestions will not update.");
     }
@@ -648,4 +1255,21 @@ public class NameNodeLoader {
       historical.set(true);
     }
   }
+
+  /** INodes loaded from one image, together with what is needed to serve and update them. */
+  private static final class Namespace {
+    private FSNamesystem namesystem = null;
+    private long imageTxId = -1L;
+    private TokenExtractor tokenExtractor = null;
+    private INodeRegistry files = null;
+    private INodeRegistry dirs = null;
+    private UserGroupDictionaries dictionaries = null;
+    private GSetSeperatorWrapper inodeMapWrapper = null;
+    private QueryEngine queryEngine = null;
+    private INodeColumns columns = null;
+
+    private long getCurrentTxId() {
+      return (namesystem == null) ? imageTxId : namesystem.getFSImage().lastAppliedTxId;
+    }
+  }
 }
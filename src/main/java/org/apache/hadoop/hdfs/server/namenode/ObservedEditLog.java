@@ -0,0 +1,280 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.namenode.ha.EditLogTailer;
+import org.apache.hadoop.util.GSetSeperatorWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stands in for the edit log of an EditLog tailer, so that the listeners of the INode map hear of
+ * the INodes that tailed ops change in place, such as by setReplication, close or addBlock, which
+ * {@link GSetSeperatorWrapper} never sees.
+ *
+ * <p>The tailer only selects input streams from its edit log. Those are taken from the
+ * namesystem's own edit log, which is left untouched, and wrapped so that every op that changes an
+ * existing INode resolves it and reports it before the EditLog loader applies the op. Ops are
+ * matched by op code name and their path read reflectively, as the op classes differ across Hadoop
+ * versions.
+ */
+final class ObservedEditLog extends FSEditLog {
+
+  public static final Logger LOG = LoggerFactory.getLogger(ObservedEditLog.class.getName());
+
+  /** Ops that change an existing INode in place, by op code name, and their path field. */
+  private static final Map<String, String> PATH_FIELDS =
+      ImmutableMap.<String, String>builder()
+          .put("OP_ADD", "path")
+          .put("OP_CLOSE", "path")
+          .put("OP_APPEND", "path")
+          .put("OP_ADD_BLOCK", "path")
+          .put("OP_UPDATE_BLOCKS", "path")
+          .put("OP_SET_REPLICATION", "path")
+          .put("OP_SET_OWNER", "src")
+          .put("OP_TIMES", "path")
+          .put("OP_TRUNCATE", "src")
+          .put("OP_CONCAT_DELETE", "trg")
+          .build();
+
+  private final FSEditLog editLog;
+  private final FSDirectory fsDirectory;
+  private final GSetSeperatorWrapper inodeMap;
+  private final Method selectDurableInputStreams;
+  // Only used by the tailer thread.
+  private final Map<Class<?>, Field> pathFields = new HashMap<>();
+
+  private ObservedEditLog(
+      Configuration conf,
+      FSNamesystem namesystem,
+      FSEditLog editLog,
+      GSetSeperatorWrapper inodeMap) {
+    super(conf, namesystem.getFSImage().getStorage(), Collections.<URI>emptyList());
+    this.editLog = editLog;
+    this.fsDirectory = namesystem.getFSDirectory();
+    this.inodeMap = inodeMap;
+    Method method;
+    try {
+      method =
+          FSEditLog.class.getMethod(
+              "selectInputStreams",
+              long.class,
+              long.class,
+              MetaRecoveryContext.class,
+              boolean.class,
+              boolean.class);
+    } catch (NoSuchMethodException e) {
+      method = null;
+    }
+    this.selectDurableInputStreams = method;
+  }
+
+  /**
+   * Make the running EditLog tailer of a namesystem report in-place INode changes to the listeners
+   * of its INode map. Without it those changes are only seen by full scans of the INodes.
+   *
+   * @param conf the HDFS configuration
+   * @param namesystem the namesystem whose standby services have been started
+   * @param inodeMap the INode map of the namesystem
+   */
+  static void install(
+      Configuration conf, FSNamesystem namesystem, GSetSeperatorWrapper inodeMap) {
+    EditLogTailer tailer = namesystem.getEditLogTailer();
+    if (tailer == null) {
+      LOG.warn("No EditLog tailer to observe; in-place INode changes are not reported.");
+      return;
+    }
+    try {
+      Field editLogField = EditLogTailer.class.getDeclaredField("editLog");
+      editLogField.setAccessible(true);
+      FSEditLog editLog = (FSEditLog) editLogField.get(tailer);
+      editLogField.set(tailer, new ObservedEditLog(conf, namesystem, editLog, inodeMap));
+    } catch (ReflectiveOperationException e) {
+      LOG.warn("Failed to observe EditLog tailing; in-place INode changes are not reported: {}", e);
+    }
+  }
+
+  @Override // FSEditLog
+  public Collection<EditLogInputStream> selectInputStreams(
+      long fromTxId, long toAtLeastTxId, MetaRecoveryContext recovery, boolean inProgressOk)
+      throws IOException {
+    return observe(editLog.selectInputStreams(fromTxId, toAtLeastTxId, recovery, inProgressOk));
+  }
+
+  /**
+   * The overload that Hadoop versions with in-progress tailing select with; an extra overload in
+   * versions without it.
+   */
+  @SuppressWarnings("unchecked")
+  public Collection<EditLogInputStream> selectInputStreams(
+      long fromTxId,
+      long toAtLeastTxId,
+      MetaRecoveryContext recovery,
+      boolean inProgressOk,
+      boolean onlyDurableTxns)
+      throws IOException {
+    if (selectDurableInputStreams == null) {
+      return selectInputStreams(fromTxId, toAtLeastTxId, recovery, inProgressOk);
+    }
+    try {
+      return observe(
+          (Collection<EditLogInputStream>)
+              selectDurableInputStreams.invoke(
+                  editLog, fromTxId, toAtLeastTxId, recovery, inProgressOk, onlyDurableTxns));
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to select edit log input streams.", e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new IOException("Failed to select edit log input streams.", e);
+    }
+  }
+
+  private Collection<EditLogInputStream> observe(Collection<EditLogInputStream> streams) {
+    List<EditLogInputStream> observed = new ArrayList<>(streams.size());
+    for (EditLogInputStream stream : streams) {
+      observed.add(new ObservedInputStream(stream));
+    }
+    return observed;
+  }
+
+  /** Reports the INode an op is about to change; the EditLog loader applies ops as read. */
+  private void beforeApply(FSEditLogOp op) {
+    String fieldName = PATH_FIELDS.get(op.opCode.name());
+    if (fieldName == null) {
+      return;
+    }
+    try {
+      String path = (String) pathField(op.getClass(), fieldName).get(op);
+      INode node = (path == null) ? null : fsDirectory.getINode(path);
+      if (node != null) {
+        inodeMap.modifying(node);
+      }
+    } catch (IOException | ReflectiveOperationException e) {
+      LOG.debug("Failed to resolve the INode changed by op: {}; {}", op.opCode, e);
+    }
+  }
+
+  private Field pathField(Class<?> opClass, String name) throws NoSuchFieldException {
+    Field field = pathFields.get(opClass);
+    if (field != null) {
+      return field;
+    }
+    for (Class<?> clazz = opClass; clazz != null; clazz = clazz.getSuperclass()) {
+      try {
+        field = clazz.getDeclaredField(name);
+      } catch (NoSuchFieldException e) {
+        continue;
+      }
+      field.setAccessible(true);
+      pathFields.put(opClass, field);
+      return field;
+    }
+    throw new NoSuchFieldException(opClass.getSimpleName() + "." + name);
+  }
+
+  /** Passes every op read through {@link #beforeApply(FSEditLogOp)}. */
+  private final class ObservedInputStream extends EditLogInputStream {
+
+    private final EditLogInputStream in;
+
+    private ObservedInputStream(EditLogInputStream in) {
+      this.in = in;
+    }
+
+    @Override // EditLogInputStream
+    protected FSEditLogOp nextOp() throws IOException {
+      FSEditLogOp op = in.readOp();
+      if (op != null) {
+        beforeApply(op);
+      }
+      return op;
+    }
+
+    @Override // EditLogInputStream
+    public String getName() {
+      return in.getName();
+    }
+
+    @Override // EditLogInputStream
+    public long getFirstTxId() {
+      return in.getFirstTxId();
+    }
+
+    @Override // EditLogInputStream
+    public long getLastTxId() {
+      return in.getLastTxId();
+    }
+
+    @Override // EditLogInputStream
+    public void close() throws IOException {
+      in.close();
+    }
+
+    @Override // EditLogInputStream
+    public int getVersion(boolean verifyVersion) throws IOException {
+      return in.getVersion(verifyVersion);
+    }
+
+    @Override // EditLogInputStream
+    public long getPosition() {
+      return in.getPosition();
+    }
+
+    @Override // EditLogInputStream
+    public long length() throws IOException {
+      return in.length();
+    }
+
+    @Override // EditLogInputStream
+    public boolean isInProgress() {
+      return in.isInProgress();
+    }
+
+    @Override // EditLogInputStream
+    public void setMaxOpSize(int maxOpSize) {
+      in.setMaxOpSize(maxOpSize);
+    }
+
+    @Override // EditLogInputStream
+    public boolean isLocalLog() {
+      return in.isLocalLog();
+    }
+
+    @Override
+    public String toString() {
+      return in.toString();
+    }
+  }
+}
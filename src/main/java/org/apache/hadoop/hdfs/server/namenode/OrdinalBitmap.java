@@ -0,0 +1,630 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An immutable, compressed set of non-negative int ordinals.
+ *
+ * <p>Ordinals are split by their high 16 bits into chunks of 65536. Each non-empty chunk is held
+ * in a container: a sorted char array when it has at most {@link #ARRAY_MAX} members, and a
+ * 1024-word bitmap otherwise. Sparse results therefore cost two bytes per member and dense results
+ * one bit per ordinal, and intersection, union and difference work container by container without
+ * touching the INodes.
+ */
+public final class OrdinalBitmap {
+
+  static final int ARRAY_MAX = 4096;
+  private static final int WORDS = 1024;
+  private static final long[] FULL = fullWords();
+  private static final OrdinalBitmap EMPTY = new OrdinalBitmap(new char[0], new Object[0]);
+
+  private final char[] keys;
+  private final Object[] containers;
+  private final int[] offsets;
+
+  private OrdinalBitmap(char[] keys, Object[] containers) {
+    this.keys = keys;
+    this.containers = containers;
+    this.offsets = new int[keys.length + 1];
+    for (int i = 0; i < keys.length; i++) {
+      offsets[i + 1] = offsets[i] + cardinality(containers[i]);
+    }
+  }
+
+  public static OrdinalBitmap empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Create a bitmap of a contiguous range of ordinals.
+   *
+   * @param from the first ordinal, inclusive
+   * @param to the last ordinal, exclusive
+   * @return the bitmap
+   */
+  public static OrdinalBitmap range(int from, int to) {
+    if (from >= to) {
+      return EMPTY;
+    }
+    int firstKey = from >>> 16;
+    int lastKey = (to - 1) >>> 16;
+    char[] keys = new char[lastKey - firstKey + 1];
+    Object[] containers = new Object[keys.length];
+    for (int key = firstKey; key <= lastKey; key++) {
+      int low = (key == firstKey) ? from & 0xFFFF : 0;
+      int high = (key == lastKey) ? ((to - 1) & 0xFFFF) + 1 : 1 << 16;
+      keys[key - firstKey] = (char) key;
+      if (low == 0 && high == 1 << 16) {
+        containers[key - firstKey] = FULL;
+      } else {
+        long[] words = new long[WORDS];
+        for (int bit = low; bit < high; bit++) {
+          words[bit >>> 6] |= 1L << bit;
+        }
+        containers[key - firstKey] = normalize(words, high - low);
+      }
+    }
+    return new OrdinalBitmap(keys, containers);
+  }
+
+  /**
+   * Create a bitmap of the given ordinals.
+   *
+   * @param ordinals the ordinals, in any order
+   * @return the bitmap
+   */
+  public static OrdinalBitmap of(int... ordinals) {
+    int[] sorted = ordinals.clone();
+    Arrays.sort(sorted);
+    Builder builder = new Builder();
+    for (int ordinal : sorted) {
+      builder.add(ordinal);
+    }
+    return builder.build();
+  }
+
+  /** @return the number of ordinals in this bitmap */
+  public int cardinality() {
+    return offsets[keys.length];
+  }
+
+  public boolean isEmpty() {
+    return keys.length == 0;
+  }
+
+  /**
+   * Check whether an ordinal is a member of this bitmap.
+   *
+   * @param ordinal the ordinal to look for
+   * @return true if the ordinal is a member
+   */
+  public boolean contains(int ordinal) {
+    if (ordinal < 0) {
+      return false;
+    }
+    int index = Arrays.binarySearch(keys, (char) (ordinal >>> 16));
+    return index >= 0 && containerContains(containers[index], ordinal & 0xFFFF);
+  }
+
+  /**
+   * Get the ordinal at a rank of this bitmap.
+   *
+   * @param rank the position, from 0 to cardinality() - 1
+   * @return the rank-th smallest ordinal
+   */
+  public int select(int rank) {
+    if (rank < 0 || rank >= cardinality()) {
+      throw new IndexOutOfBoundsException("Rank: " + rank + ", cardinality: " + cardinality());
+    }
+    int index = Arrays.binarySearch(offsets, rank);
+    if (index < 0) {
+      // Empty containers are never stored, so offsets are strictly ascending.
+      index = -index - 2;
+    }
+    int base = keys[index] << 16;
+    int remaining = rank - offsets[index];
+    Object container = containers[index];
+    if (container instanceof char[]) {
+      return base | ((char[]) container)[remaining];
+    }
+    long[] words = (long[]) container;
+    for (int w = 0; w < WORDS; w++) {
+      int count = Long.bitCount(words[w]);
+      if (remaining < count) {
+        long word = words[w];
+        for (int i = 0; i < remaining; i++) {
+          word &= word - 1;
+        }
+        return base | (w << 6) | Long.numberOfTrailingZeros(word);
+      }
+      remaining -= count;
+    }
+    throw new IllegalStateException("Container cardinality out of sync at rank: " + rank);
+  }
+
+  /**
+   * Get the ordinals of this bitmap in ascending order. Parallel streams split by container.
+   *
+   * @return a sequential stream of ordinals
+   */
+  public IntStream stream() {
+    return IntStream.range(0, keys.length).flatMap(this::containerStream);
+  }
+
+  /**
+   * Keep the ordinals that match a predicate. Containers are filtered in parallel and only the
+   * ordinals that are members are tested.
+   *
+   * @param predicate the predicate to test ordinals with
+   * @return the matching ordinals
+   */
+  public OrdinalBitmap filter(IntPredicate predicate) {
+    Object[] filtered =
+        IntStream.range(0, keys.length)
+            .parallel()
+            .mapToObj(i -> filterContainer(keys[i] << 16, containers[i], predicate))
+            .toArray();
+    return compact(keys, filtered);
+  }
+
+  /**
+   * Intersect this bitmap with another.
+   *
+   * @param other the other bitmap
+   * @return the ordinals in both bitmaps
+   */
+  public OrdinalBitmap and(OrdinalBitmap other) {
+    int size = Math.min(keys.length, other.keys.length);
+    char[] resultKeys = new char[size];
+    Object[] resultContainers = new Object[size];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < keys.length && j < other.keys.length) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        resultKeys[count] = keys[i];
+        resultContainers[count++] = andContainers(containers[i++], other.containers[j++]);
+      }
+    }
+    return compact(Arrays.copyOf(resultKeys, count), Arrays.copyOf(resultContainers, count));
+  }
+
+  /**
+   * Unite this bitmap with another.
+   *
+   * @param other the other bitmap
+   * @return the ordinals in either bitmap
+   */
+  public OrdinalBitmap or(OrdinalBitmap other) {
+    int size = keys.length + other.keys.length;
+    char[] resultKeys = new char[size];
+    Object[] resultContainers = new Object[size];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < keys.length || j < other.keys.length) {
+      if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+        resultKeys[count] = keys[i];
+        resultContainers[count++] = containers[i++];
+      } else if (i == keys.length || keys[i] > other.keys[j]) {
+        resultKeys[count] = other.keys[j];
+        resultContainers[count++] = other.containers[j++];
+      } else {
+        resultKeys[count] = keys[i];
+        resultContainers[count++] = orContainers(containers[i++], other.containers[j++]);
+      }
+    }
+    return new OrdinalBitmap(
+        Arrays.copyOf(resultKeys, count), Arrays.copyOf(resultContainers, count));
+  }
+
+  /**
+   * Remove the ordinals of another bitmap from this one.
+   *
+   * @param other the bitmap of ordinals to remove
+   * @return the ordinals in this bitmap but not the other
+   */
+  public OrdinalBitmap andNot(OrdinalBitmap other) {
+    Object[] resultContainers = containers.clone();
+    int j = 0;
+    for (int i = 0; i < keys.length && j < other.keys.length; i++) {
+      while (j < other.keys.length && other.keys[j] < keys[i]) {
+        j++;
+      }
+      if (j < other.keys.length && other.keys[j] == keys[i]) {
+        resultContainers[i] = andNotContainers(containers[i], other.containers[j++]);
+      }
+    }
+    return compact(keys, resultContainers);
+  }
+
+  /** @return the number of containers; exposed for tests and logging */
+  int containerCount() {
+    return keys.length;
+  }
+
+  /** @return the number of containers held as bitmaps; exposed for tests and logging */
+  int bitmapContainerCount() {
+    int count = 0;
+    for (Object container : containers) {
+      if (container instanceof long[]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof OrdinalBitmap)) {
+      return false;
+    }
+    OrdinalBitmap other = (OrdinalBitmap) o;
+    if (!Arrays.equals(keys, other.keys) || !Arrays.equals(offsets, other.offsets)) {
+      return false;
+    }
+    for (int i = 0; i < containers.length; i++) {
+      Object left = containers[i];
+      Object right = other.containers[i];
+      boolean same =
+          (left instanceof char[] && right instanceof char[])
+              ? Arrays.equals((char[]) left, (char[]) right)
+              : Arrays.equals(toWords(left), toWords(right));
+      if (!same) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(keys) + Arrays.hashCode(offsets);
+  }
+
+  @Override
+  public String toString() {
+    return "OrdinalBitmap{cardinality="
+        + cardinality()
+        + ", containers="
+        + containerCount()
+        + ", bitmapContainers="
+        + bitmapContainerCount()
+        + "}";
+  }
+
+  private IntStream containerStream(int index) {
+    int base = keys[index] << 16;
+    Object container = containers[index];
+    if (container instanceof char[]) {
+      char[] array = (char[]) container;
+      return IntStream.range(0, array.length).map(i -> base | array[i]);
+    }
+    PrimitiveIterator.OfInt bits = new WordIterator(base, (long[]) container);
+    int characteristics =
+        Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.SORTED | Spliterator.NONNULL;
+    return StreamSupport.intStream(
+        Spliterators.spliterator(bits, cardinality(container), characteristics), false);
+  }
+
+  /** Drop containers that became empty. */
+  private static OrdinalBitmap compact(char[] keys, Object[] containers) {
+    int count = 0;
+    for (Object container : containers) {
+      if (container != null) {
+        count++;
+      }
+    }
+    if (count == containers.length) {
+      return new OrdinalBitmap(keys, containers);
+    }
+    char[] resultKeys = new char[count];
+    Object[] resultContainers = new Object[count];
+    count = 0;
+    for (int i = 0; i < containers.length; i++) {
+      if (containers[i] != null) {
+        resultKeys[count] = keys[i];
+        resultContainers[count++] = containers[i];
+      }
+    }
+    return new OrdinalBitmap(resultKeys, resultContainers);
+  }
+
+  private static Object filterContainer(int base, Object container, IntPredicate predicate) {
+    if (container instanceof char[]) {
+      char[] array = (char[]) container;
+      char[] result = new char[array.length];
+      int count = 0;
+      for (char low : array) {
+        if (predicate.test(base | low)) {
+          result[count++] = low;
+        }
+      }
+      return (count == 0) ? null : Arrays.copyOf(result, count);
+    }
+    long[] words = (long[]) container;
+    long[] result = new long[WORDS];
+    int count = 0;
+    for (int w = 0; w < WORDS; w++) {
+      long word = words[w];
+      while (word != 0) {
+        long lowest = word & -word;
+        if (predicate.test(base | (w << 6) | Long.numberOfTrailingZeros(word))) {
+          result[w] |= lowest;
+          count++;
+        }
+        word ^= lowest;
+      }
+    }
+    return normalize(result, count);
+  }
+
+  private static Object andContainers(Object left, Object right) {
+    if (left instanceof char[]) {
+      return retain((char[]) left, right, true);
+    }
+    if (right instanceof char[]) {
+      return retain((char[]) right, left, true);
+    }
+    long[] leftWords = (long[]) left;
+    long[] rightWords = (long[]) right;
+    long[] result = new long[WORDS];
+    int count = 0;
+    for (int w = 0; w < WORDS; w++) {
+      result[w] = leftWords[w] & rightWords[w];
+      count += Long.bitCount(result[w]);
+    }
+    return normalize(result, count);
+  }
+
+  private static Object orContainers(Object left, Object right) {
+    if (left instanceof char[] && right instanceof char[]) {
+      char[] leftArray = (char[]) left;
+      char[] rightArray = (char[]) right;
+      if (leftArray.length + rightArray.length <= ARRAY_MAX) {
+        return mergeArrays(leftArray, rightArray);
+      }
+    }
+    long[] result = toWords(left).clone();
+    if (right instanceof char[]) {
+      for (char low : (char[]) right) {
+        result[low >>> 6] |= 1L << low;
+      }
+    } else {
+      long[] rightWords = (long[]) right;
+      for (int w = 0; w < WORDS; w++) {
+        result[w] |= rightWords[w];
+      }
+    }
+    int count = 0;
+    for (long word : result) {
+      count += Long.bitCount(word);
+    }
+    return normalize(result, count);
+  }
+
+  private static Object andNotContainers(Object left, Object right) {
+    if (left instanceof char[]) {
+      return retain((char[]) left, right, false);
+    }
+    long[] result = ((long[]) left).clone();
+    if (right instanceof char[]) {
+      for (char low : (char[]) right) {
+        result[low >>> 6] &= ~(1L << low);
+      }
+    } else {
+      long[] rightWords = (long[]) right;
+      for (int w = 0; w < WORDS; w++) {
+        result[w] &= ~rightWords[w];
+      }
+    }
+    int count = 0;
+    for (long word : result) {
+      count += Long.bitCount(word);
+    }
+    return normalize(result, count);
+  }
+
+  /** Keep the array members that are (or are not) members of the other container. */
+  private static Object retain(char[] array, Object other, boolean member) {
+    char[] result = new char[array.length];
+    int count = 0;
+    for (char low : array) {
+      if (containerContains(other, low) == member) {
+        result[count++] = low;
+      }
+    }
+    return (count == 0) ? null : Arrays.copyOf(result, count);
+  }
+
+  private static char[] mergeArrays(char[] left, char[] right) {
+    char[] result = new char[left.length + right.length];
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < left.length || j < right.length) {
+      if (j == right.length || (i < left.length && left[i] < right[j])) {
+        result[count++] = left[i++];
+      } else if (i == left.length || left[i] > right[j]) {
+        result[count++] = right[j++];
+      } else {
+        result[count++] = left[i++];
+        j++;
+      }
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  private static boolean containerContains(Object container, int low) {
+    if (container instanceof char[]) {
+      return Arrays.binarySearch((char[]) container, (char) low) >= 0;
+    }
+    return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+  }
+
+  private static int cardinality(Object container) {
+    if (container instanceof char[]) {
+      return ((char[]) container).length;
+    }
+    int count = 0;
+    for (long word : (long[]) container) {
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+
+  private static long[] toWords(Object container) {
+    if (container instanceof long[]) {
+      return (long[]) container;
+    }
+    long[] words = new long[WORDS];
+    for (char low : (char[]) container) {
+      words[low >>> 6] |= 1L << low;
+    }
+    return words;
+  }
+
+  /** Pick the smaller container representation for a bitmap with the given cardinality. */
+  private static Object normalize(long[] words, int count) {
+    if (count == 0) {
+      return null;
+    }
+    if (count > ARRAY_MAX) {
+      return words;
+    }
+    char[] array = new char[count];
+    int index = 0;
+    for (int w = 0; w < WORDS; w++) {
+      long word = words[w];
+      while (word != 0) {
+        array[index++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return array;
+  }
+
+  private static long[] fullWords() {
+    long[] words = new long[WORDS];
+    Arrays.fill(words, -1L);
+    return words;
+  }
+
+  /** Iterates the set bits of a bitmap container. */
+  private static final class WordIterator implements PrimitiveIterator.OfInt {
+    private final int base;
+    private final long[] words;
+    private int index = 0;
+    private long word;
+
+    WordIterator(int base, long[] words) {
+      this.base = base;
+      this.words = words;
+      this.word = words[0];
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (word == 0 && index < WORDS - 1) {
+        word = words[++index];
+      }
+      return word != 0;
+    }
+
+    @Override
+    public int nextInt() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int ordinal = base | (index << 6) | Long.numberOfTrailingZeros(word);
+      word &= word - 1;
+      return ordinal;
+    }
+  }
+
+  /** Builds a bitmap from ordinals added in ascending order. */
+  public static final class Builder {
+    private final List<Object> containers = new ArrayList<>();
+    private char[] keys = new char[16];
+    private int size = 0;
+    private int currentKey = -1;
+    private long[] words = new long[WORDS];
+    private int count = 0;
+    private int last = -1;
+
+    /**
+     * Add an ordinal. Ordinals must be added in strictly ascending order.
+     *
+     * @param ordinal the ordinal to add
+     * @return this builder
+     */
+    public Builder add(int ordinal) {
+      if (ordinal <= last) {
+        throw new IllegalArgumentException(
+            "Ordinals must be added in ascending order; got " + ordinal + " after " + last);
+      }
+      last = ordinal;
+      int key = ordinal >>> 16;
+      if (key != currentKey) {
+        flush();
+        currentKey = key;
+      }
+      words[(ordinal & 0xFFFF) >>> 6] |= 1L << ordinal;
+      count++;
+      return this;
+    }
+
+    public OrdinalBitmap build() {
+      flush();
+      Object[] result = containers.toArray();
+      return (size == 0) ? EMPTY : new OrdinalBitmap(Arrays.copyOf(keys, size), result);
+    }
+
+    private void flush() {
+      if (count > 0) {
+        if (size == keys.length) {
+          keys = Arrays.copyOf(keys, size * 2);
+        }
+        keys[size++] = (char) currentKey;
+        containers.add(normalize(words, count));
+        words = new long[WORDS];
+        count = 0;
+      }
+    }
+  }
+}
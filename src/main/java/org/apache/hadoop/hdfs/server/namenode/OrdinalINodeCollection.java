@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * A read-only collection of INodes backed by ordinals of an {@link INodeColumns} snapshot. The
+ * ordinals are either a contiguous range or an {@link OrdinalBitmap} produced by a filter scan.
+ *
+ * <p>Column-aware query engines read the ordinals directly; everything else sees a normal
+ * Collection whose INodes are looked up lazily from the snapshot. Collections of the same snapshot
+ * can be intersected, united and subtracted as bitmaps without visiting any INode.
+ */
+public class OrdinalINodeCollection extends AbstractCollection<INode> {
+
+  private final INodeColumns columns;
+  private final OrdinalBitmap bitmap;
+  private final int from;
+  private final int to;
+
+  OrdinalINodeCollection(INodeColumns columns, int from, int to) {
+    this.columns = columns;
+    this.bitmap = null;
+    this.from = from;
+    this.to = to;
+  }
+
+  OrdinalINodeCollection(INodeColumns columns, OrdinalBitmap bitmap) {
+    this.columns = columns;
+    this.bitmap = bitmap;
+    this.from = 0;
+    this.to = bitmap.cardinality();
+  }
+
+  public INodeColumns getColumns() {
+    return columns;
+  }
+
+  /** @return true if this collection is a contiguous range of ordinals, such as a whole set */
+  boolean isRange() {
+    return bitmap == null;
+  }
+
+  /**
+   * Get the ordinals of this collection in ascending order.
+   *
+   * @return a sequential stream of ordinals
+   */
+  public IntStream ordinals() {
+    if (bitmap == null) {
+      return IntStream.range(from, to);
+    }
+    return bitmap.stream();
+  }
+
+  /**
+   * Get the ordinals of this collection as a bitmap.
+   *
+   * @return the bitmap of ordinals
+   */
+  public OrdinalBitmap bitmap() {
+    return (bitmap == null) ? OrdinalBitmap.range(from, to) : bitmap;
+  }
+
+  /**
+   * Keep the INodes whose ordinals match a predicate. Only the ordinals of this collection are
+   * tested.
+   *
+   * @param predicate the ordinal predicate
+   * @return the matching INodes of the same snapshot
+   */
+  public OrdinalINodeCollection filter(IntPredicate predicate) {
+    return new OrdinalINodeCollection(columns, bitmap().filter(predicate));
+  }
+
+  /**
+   * Intersect with another collection of the same snapshot.
+   *
+   * @param other the other collection
+   * @return the INodes in both collections
+   */
+  public OrdinalINodeCollection and(OrdinalINodeCollection other) {
+    checkSameColumns(other);
+    if (bitmap == null && other.bitmap == null) {
+      int low = Math.max(from, other.from);
+      int high = Math.min(to, other.to);
+      return new OrdinalINodeCollection(columns, low, Math.max(low, high));
+    }
+    return new OrdinalINodeCollection(columns, bitmap().and(other.bitmap()));
+  }
+
+  /**
+   * Unite with another collection of the same snapshot.
+   *
+   * @param other the other collection
+   * @return the INodes in either collection
+   */
+  public OrdinalINodeCollection or(OrdinalINodeCollection other) {
+    checkSameColumns(other);
+    return new OrdinalINodeCollection(columns, bitmap().or(other.bitmap()));
+  }
+
+  /**
+   * Subtract another collection of the same snapshot.
+   *
+   * @param other the collection of INodes to remove
+   * @return the INodes in this collection but not the other
+   */
+  public OrdinalINodeCollection andNot(OrdinalINodeCollection other) {
+    checkSameColumns(other);
+    return new OrdinalINodeCollection(columns, bitmap().andNot(other.bitmap()));
+  }
+
+  /**
+   * Check whether a collection can take part in bitmap set operations with this one.
+   *
+   * @param other the other collection
+   * @return true if the other collection is ordinal-backed by the same snapshot
+   */
+  public boolean isCompatible(Collection<INode> other) {
+    return other instanceof OrdinalINodeCollection
+        && ((OrdinalINodeCollection) other).columns == columns;
+  }
+
+  private void checkSameColumns(OrdinalINodeCollection other) {
+    if (other.columns != columns) {
+      throw new IllegalArgumentException(
+          "Set operations need INode sets of the same snapshot; got txids: "
+              + columns.getTxId()
+              + " and "
+              + other.columns.getTxId()
+              + ".");
+    }
+  }
+
+  /**
+   * Get the ordinal at a position of this collection.
+   *
+   * @param index the position, from 0 to size() - 1
+   * @return the ordinal at that position
+   */
+  public int ordinalAt(int index) {
+    return (bitmap == null) ? from + index : bitmap.select(index);
+  }
+
+  /**
+   * Check whether every ordinal of this collection lies in a range.
+   *
+   * @param range a range of the same snapshot; see {@link #isRange()}
+   * @return true if this collection is empty or within the range
+   */
+  boolean isWithin(OrdinalINodeCollection range) {
+    if (isEmpty()) {
+      return true;
+    }
+    return ordinalAt(0) >= range.from && ordinalAt(size() - 1) < range.to;
+  }
+
+  /**
+   * Get a key for the ordinal range of this collection; see {@link #isRange()}.
+   *
+   * @return the key of the range
+   */
+  String rangeKey() {
+    return from + "-" + to;
+  }
+
+  @Override
+  public int size() {
+    return to - from;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof INode)) {
+      return false;
+    }
+    int ordinal = columns.ordinalOf((INode) o);
+    if (ordinal < 0) {
+      return false;
+    }
+    if (bitmap == null) {
+      return ordinal >= from && ordinal < to;
+    }
+    return bitmap.contains(ordinal);
+  }
+
+  @Override
+  public Iterator<INode> iterator() {
+    return ordinals().mapToObj(columns::getNode).iterator();
+  }
+
+  @Override
+  public Spliterator<INode> spliterator() {
+    return ordinals().mapToObj(columns::getNode).spliterator();
+  }
+}
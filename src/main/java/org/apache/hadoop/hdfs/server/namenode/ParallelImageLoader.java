@@ -0,0 +1,603 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import com.google.common.io.LimitInputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.namenode.FSImageFormatProtobuf.LoaderContext;
+import org.apache.hadoop.hdfs.server.namenode.FSImageFormatProtobuf.SectionName;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.CacheManagerSection;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.FileSummary;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.INodeDirectorySection;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.INodeReferenceSection;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.INodeSection;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.SnapshotSection;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.StringTableSection;
+import org.apache.hadoop.util.GSet;
+import org.apache.hadoop.util.LightWeightGSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the INodes of the latest protobuf FsImage in the configured namespace directories on a
+ * pool of threads, as an analytics-only alternative to {@link FSNamesystem#loadFromDisk}.
+ *
+ * <p>The INODE and INODE_DIR sections are pre-scanned on the calling thread, which only splits
+ * them into batches of raw length-delimited records. Parsing of the records into INodes, and the
+ * linking of directories to their children, happens on the worker pool. INodes are built by the
+ * same Hadoop code that the NameNode uses, so they are identical to those of a regular load.
+ *
+ * <p>Only the current namespace tree is loaded; the secret manager section is skipped. Images with
+ * snapshottable directories or cache pools are rejected, since EditLog tailing could not replay
+ * their changes. {@link StandbyNamesystem} registers the blocks and leases of the result, so that
+ * it is updated by EditLog tailing from the txid of the image.
+ */
+class ParallelImageLoader {
+
+  public static final Logger LOG = LoggerFactory.getLogger(ParallelImageLoader.class.getName());
+
+  private static final Pattern IMAGE_NAME = Pattern.compile("fsimage_(\\d+)");
+  private static final int BATCH_RECORDS = 1 << 13;
+
+  private final Configuration conf;
+  private final int threads;
+  private long imageTxId = -1L;
+
+  /**
+   * @param conf the HDFS configuration holding the namespace directories
+   * @param threads the number of worker threads; 0 or less uses one per available core
+   */
+  ParallelImageLoader(Configuration conf, int threads) {
+    this.conf = conf;
+    this.threads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  /** @return the transaction id of the last loaded image, or -1 if none was loaded */
+  long getImageTxId() {
+    return imageTxId;
+  }
+
+  /**
+   * Load the latest FsImage.
+   *
+   * @return a GSet of all INodes in the image, linked into a tree under the root
+   * @throws IOException if there is no image or it could not be read
+   */
+  GSet<INode, INodeWithAdditionalFields> load() throws IOException {
+    File image = findLatestImage(conf);
+    if (image == null) {
+      throw new IOException("No FsImage found in: " + FSNamesystem.getNamespaceDirs(conf));
+    }
+    LOG.info("Loading image: {} with {} threads.", image, threads);
+    long start = System.currentTimeMillis();
+    FSNamesystem namesystem = new FSNamesystem(conf, new FSImage(conf));
+    ExecutorService workers = newWorkers(threads, "ImageLoader-");
+    try (RandomAccessFile file = new RandomAccessFile(image, "r")) {
+      if (!FSImageUtil.checkFileFormat(file)) {
+        throw new IOException("Unrecognized FsImage format: " + image);
+      }
+      FileSummary summary = FSImageUtil.loadSummary(file);
+      String codec = summary.hasCodec() ? summary.getCodec() : null;
+      Map<SectionName, FileSummary.Section> sections = new HashMap<>();
+      for (FileSummary.Section section : summary.getSectionsList()) {
+        SectionName name = SectionName.fromString(section.getName());
+        if (name != null) {
+          sections.put(name, section);
+        }
+      }
+
+      checkTailable(image, codec, sections);
+      String[] stringTable = loadStringTable(image, codec, sections.get(SectionName.STRING_TABLE));
+      INodeParser parser = new INodeParser(conf, namesystem, stringTable);
+      INodeTable table = loadINodes(image, codec, sections.get(SectionName.INODE), parser, workers);
+      long[] references = loadReferences(image, codec, sections.get(SectionName.INODE_REFERENCE));
+
+      GSet<INode, INodeWithAdditionalFields> gset =
+          new LightWeightGSet<>(LightWeightGSet.computeCapacity(1, "INodeMap"));
+      Future<?> mapping = workers.submit(() -> table.forEach(gset::put));
+      linkDirectories(
+          image, codec, sections.get(SectionName.INODE_DIR), table, references, workers);
+      await(mapping);
+
+      imageTxId = txIdOf(image);
+      long end = System.currentTimeMillis();
+      LOG.info("Parallel load of {} INodes took: {} ms.", gset.size(), (end - start));
+      return gset;
+    } finally {
+      workers.shutdownNow();
+      namesystem.shutdown();
+    }
+  }
+
+  /**
+   * @param conf the HDFS configuration holding the namespace directories
+   * @return the transaction id of the latest FsImage, or -1 if there is none
+   */
+  static long getLatestImageTxId(Configuration conf) {
+    File image = findLatestImage(conf);
+    return (image == null) ? -1L : txIdOf(image);
+  }
+
+  static ExecutorService newWorkers(int threads, String namePrefix) {
+    AtomicInteger threadCount = new AtomicInteger(0);
+    return Executors.newFixedThreadPool(
+        threads,
+        runnable -> {
+          Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  private static File findLatestImage(Configuration conf) {
+    File latest = null;
+    long latestTxId = -1L;
+    for (URI dir : FSNamesystem.getNamespaceDirs(conf)) {
+      File[] images = new File(new File(dir.getPath()), "current").listFiles();
+      if (images == null) {
+        continue;
+      }
+      for (File image : images) {
+        Matcher matcher = IMAGE_NAME.matcher(image.getName());
+        if (matcher.matches() && Long.parseLong(matcher.group(1)) > latestTxId) {
+          latestTxId = Long.parseLong(matcher.group(1));
+          latest = image;
+        }
+      }
+    }
+    return latest;
+  }
+
+  private static long txIdOf(File image) {
+    Matcher matcher = IMAGE_NAME.matcher(image.getName());
+    return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1L;
+  }
+
+  private InputStream openSection(File image, String codec, FileSummary.Section section)
+      throws IOException {
+    if (section == null) {
+      throw new IOException("FsImage is missing a required section: " + image);
+    }
+    FileInputStream fin = new FileInputStream(image);
+    try {
+      fin.getChannel().position(section.getOffset());
+      InputStream in =
+          new BufferedInputStream(new LimitInputStream(fin, section.getLength()), 1 << 20);
+      return (codec == null) ? in : FSImageUtil.wrapInputStreamForCompression(conf, codec, in);
+    } catch (IOException e) {
+      fin.close();
+      throw e;
+    }
+  }
+
+  /** Rejects images holding state that EditLog tailing can not replay onto the loaded INodes. */
+  private void checkTailable(
+      File image, String codec, Map<SectionName, FileSummary.Section> sections) throws IOException {
+    FileSummary.Section snapshots = sections.get(SectionName.SNAPSHOT);
+    if (snapshots != null) {
+      try (InputStream in = openSection(image, codec, snapshots)) {
+        if (SnapshotSection.parseDelimitedFrom(in).getSnapshottableDirCount() > 0) {
+          throw new IOException("FsImage has snapshottable directories: " + image);
+        }
+      }
+    }
+    FileSummary.Section cachePools = sections.get(SectionName.CACHE_MANAGER);
+    if (cachePools != null) {
+      try (InputStream in = openSection(image, codec, cachePools)) {
+        if (CacheManagerSection.parseDelimitedFrom(in).getNumPools() > 0) {
+          throw new IOException("FsImage has cache pools: " + image);
+        }
+      }
+    }
+  }
+
+  private String[] loadStringTable(File image, String codec, FileSummary.Section section)
+      throws IOException {
+    if (section == null) {
+      return new String[0];
+    }
+    try (InputStream in = openSection(image, codec, section)) {
+      StringTableSection header = StringTableSection.parseDelimitedFrom(in);
+      String[] stringTable = new String[header.getNumEntry() + 1];
+      for (int i = 0; i < header.getNumEntry(); i++) {
+        StringTableSection.Entry entry = StringTableSection.Entry.parseDelimitedFrom(in);
+        stringTable[entry.getId()] = entry.getStr();
+      }
+      return stringTable;
+    }
+  }
+
+  private INodeTable loadINodes(
+      File image,
+      String codec,
+      FileSummary.Section section,
+      INodeParser parser,
+      ExecutorService workers)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    try (InputStream in = openSection(image, codec, section)) {
+      INodeSection header = INodeSection.parseDelimitedFrom(in);
+      INodeTable table = new INodeTable(header.getLastInodeId());
+      List<Future<?>> parsing = new ArrayList<>();
+      Semaphore inFlight = new Semaphore(threads * 2);
+      long remaining = header.getNumInodes();
+      while (remaining > 0) {
+        RecordBatch batch = RecordBatch.read(in, (int) Math.min(remaining, BATCH_RECORDS));
+        remaining -= batch.records;
+        acquire(inFlight);
+        parsing.add(
+            workers.submit(
+                () -> {
+                  try {
+                    InputStream records = batch.open();
+                    for (int i = 0; i < batch.records; i++) {
+                      table.put(parser.parse(INodeSection.INode.parseDelimitedFrom(records)));
+                    }
+                    return null;
+                  } finally {
+                    inFlight.release();
+                  }
+                }));
+      }
+      for (Future<?> future : parsing) {
+        await(future);
+      }
+      long end = System.currentTimeMillis();
+      LOG.info("Parsing {} INodes took: {} ms.", header.getNumInodes(), (end - start));
+      return table;
+    }
+  }
+
+  private long[] loadReferences(File image, String codec, FileSummary.Section section)
+      throws IOException {
+    if (section == null) {
+      return new long[0];
+    }
+    List<INodeReferenceSection.INodeReference> references = new ArrayList<>();
+    try (InputStream in = openSection(image, codec, section)) {
+      INodeReferenceSection.INodeReference reference;
+      while ((reference = INodeReferenceSection.INodeReference.parseDelimitedFrom(in)) != null) {
+        references.add(reference);
+      }
+    }
+    // Only references into the current tree are linked; the others belong to snapshots.
+    long[] referredIds = new long[references.size()];
+    for (int i = 0; i < referredIds.length; i++) {
+      INodeReferenceSection.INodeReference reference = references.get(i);
+      referredIds[i] = reference.hasDstSnapshotId() ? reference.getReferredId() : -1L;
+    }
+    return referredIds;
+  }
+
+  private void linkDirectories(
+      File image,
+      String codec,
+      FileSummary.Section section,
+      INodeTable table,
+      long[] references,
+      ExecutorService workers)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    AtomicLong directories = new AtomicLong();
+    AtomicInteger skipped = new AtomicInteger();
+    try (InputStream in = openSection(image, codec, section)) {
+      List<Future<?>> linking = new ArrayList<>();
+      Semaphore inFlight = new Semaphore(threads * 2);
+      RecordBatch batch;
+      while ((batch = RecordBatch.read(in, BATCH_RECORDS)).records > 0) {
+        final RecordBatch entries = batch;
+        acquire(inFlight);
+        linking.add(
+            workers.submit(
+                () -> {
+                  try {
+                    InputStream records = entries.open();
+                    for (int i = 0; i < entries.records; i++) {
+                      INodeDirectorySection.DirEntry entry =
+                          INodeDirectorySection.DirEntry.parseDelimitedFrom(records);
+                      INodeDirectory parent = table.get(entry.getParent()).asDirectory();
+                      synchronized (parent) {
+                        for (long childId : entry.getChildrenList()) {
+                          link(parent, table.get(childId), skipped);
+                        }
+                        for (int refId : entry.getRefChildrenList()) {
+                          long referredId = references[refId];
+                          link(parent, (referredId < 0) ? null : table.get(referredId), skipped);
+                        }
+                      }
+                      directories.incrementAndGet();
+                    }
+                    return null;
+                  } finally {
+                    inFlight.release();
+                  }
+                }));
+      }
+      for (Future<?> future : linking) {
+        await(future);
+      }
+    }
+    if (skipped.get() > 0) {
+      LOG.info("Skipped linking {} INodes that only exist in snapshots.", skipped.get());
+    }
+    long end = System.currentTimeMillis();
+    LOG.info("Linking {} directories took: {} ms.", directories.get(), (end - start));
+  }
+
+  private static void link(INodeDirectory parent, INode child, AtomicInteger skipped) {
+    if (child == null) {
+      skipped.incrementAndGet();
+      return;
+    }
+    if (parent.addChild(child)) {
+      child.setParent(parent);
+    }
+  }
+
+  private static void acquire(Semaphore inFlight) throws IOException {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading INodes.", e);
+    }
+  }
+
+  static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading INodes.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to load INodes.", e.getCause());
+    }
+  }
+
+  /**
+   * Length-delimited protobuf records copied verbatim out of a section. Copying needs no parsing,
+   * so the reading thread stays ahead of the workers that parse the batches.
+   */
+  private static final class RecordBatch {
+    private byte[] buffer = new byte[1 << 16];
+    private int length;
+    private int records;
+
+    private static RecordBatch read(InputStream in, int maxRecords) throws IOException {
+      RecordBatch batch = new RecordBatch();
+      while (batch.records < maxRecords) {
+        int first = in.read();
+        if (first < 0) {
+          break;
+        }
+        int size = batch.copyVarint(first, in);
+        batch.ensureCapacity(size);
+        readFully(in, batch.buffer, batch.length, size);
+        batch.length += size;
+        batch.records++;
+      }
+      return batch;
+    }
+
+    private int copyVarint(int first, InputStream in) throws IOException {
+      ensureCapacity(5);
+      int value = 0;
+      int shift = 0;
+      int next = first;
+      while (true) {
+        if (next < 0 || shift > 28) {
+          throw new EOFException("Truncated or malformed record length in FsImage.");
+        }
+        buffer[length++] = (byte) next;
+        value |= (next & 0x7F) << shift;
+        if ((next & 0x80) == 0) {
+          return value;
+        }
+        shift += 7;
+        next = in.read();
+      }
+    }
+
+    private void ensureCapacity(int extra) {
+      if (length + extra > buffer.length) {
+        byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+        System.arraycopy(buffer, 0, grown, 0, length);
+        buffer = grown;
+      }
+    }
+
+    private InputStream open() {
+      return new ByteArrayInputStream(buffer, 0, length);
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int off, int len)
+        throws IOException {
+      while (len > 0) {
+        int read = in.read(buf, off, len);
+        if (read < 0) {
+          throw new EOFException("Premature end of FsImage section.");
+        }
+        off += read;
+        len -= read;
+      }
+    }
+  }
+
+  /**
+   * INodes by id. Ids are handed out sequentially from the root's, so a paged array indexed by id
+   * is mostly dense and, since every INode has its own slot, can be filled from many threads at
+   * once. Pages are only allocated once an id in their range is put, so the ranges left empty by
+   * deleted INodes cost a page reference rather than a page.
+   */
+  static final class INodeTable {
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    private final AtomicReferenceArray<INode[]> pages;
+
+    INodeTable(long lastInodeId) throws IOException {
+      long slots = lastInodeId - INodeId.ROOT_INODE_ID + 1;
+      long pageCount = (slots + PAGE_MASK) >>> PAGE_SHIFT;
+      if (pageCount > Integer.MAX_VALUE - 8) {
+        throw new IOException(
+            "Last INode id " + lastInodeId + " is too large to load in parallel.");
+      }
+      pages = new AtomicReferenceArray<>((int) Math.max(pageCount, 0L));
+    }
+
+    void put(INode inode) throws IOException {
+      long slot = inode.getId() - INodeId.ROOT_INODE_ID;
+      if (slot < 0 || (slot >>> PAGE_SHIFT) >= pages.length()) {
+        throw new IOException("INode id " + inode.getId() + " is out of range of the FsImage.");
+      }
+      int index = (int) (slot >>> PAGE_SHIFT);
+      INode[] page = pages.get(index);
+      if (page == null) {
+        pages.compareAndSet(index, null, new INode[1 << PAGE_SHIFT]);
+        page = pages.get(index);
+      }
+      page[(int) (slot & PAGE_MASK)] = inode;
+    }
+
+    INode get(long id) {
+      long slot = id - INodeId.ROOT_INODE_ID;
+      if (slot < 0 || (slot >>> PAGE_SHIFT) >= pages.length()) {
+        return null;
+      }
+      INode[] page = pages.get((int) (slot >>> PAGE_SHIFT));
+      return (page == null) ? null : page[(int) (slot & PAGE_MASK)];
+    }
+
+    /** @return the number of pages allocated so far */
+    int getAllocatedPages() {
+      int allocated = 0;
+      for (int i = 0; i < pages.length(); i++) {
+        if (pages.get(i) != null) {
+          allocated++;
+        }
+      }
+      return allocated;
+    }
+
+    void forEach(Consumer<INodeWithAdditionalFields> action) {
+      for (int i = 0; i < pages.length(); i++) {
+        INode[] page = pages.get(i);
+        if (page == null) {
+          continue;
+        }
+        for (INode inode : page) {
+          if (inode != null) {
+            action.accept((INodeWithAdditionalFields) inode);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds INodes through the NameNode's own FSImageFormatPBINode.Loader, whose constructor and
+   * INode conversion differ in visibility and signature between Hadoop versions.
+   */
+  static final class INodeParser {
+    private final FSImageFormatPBINode.Loader loader;
+    private final Method loadINode;
+
+    INodeParser(Configuration conf, FSNamesystem namesystem, String[] stringTable)
+        throws IOException {
+      try {
+        FSImageFormatProtobuf.Loader imageLoader = newImageLoader(conf, namesystem);
+        Field stringTableField = LoaderContext.class.getDeclaredField("stringTable");
+        stringTableField.setAccessible(true);
+        stringTableField.set(imageLoader.getLoaderContext(), stringTable);
+        loader = new FSImageFormatPBINode.Loader(namesystem, imageLoader);
+        loadINode =
+            FSImageFormatPBINode.Loader.class.getDeclaredMethod(
+                "loadINode", INodeSection.INode.class);
+        loadINode.setAccessible(true);
+      } catch (ReflectiveOperationException e) {
+        throw new IOException("Unsupported Hadoop version for parallel FsImage loading.", e);
+      }
+    }
+
+    private static FSImageFormatProtobuf.Loader newImageLoader(
+        Configuration conf, FSNamesystem namesystem) throws ReflectiveOperationException {
+      for (Constructor<?> constructor :
+          FSImageFormatProtobuf.Loader.class.getDeclaredConstructors()) {
+        Class<?>[] params = constructor.getParameterTypes();
+        if (params.length < 2
+            || params[0] != Configuration.class
+            || params[1] != FSNamesystem.class) {
+          continue;
+        }
+        Object[] args = new Object[params.length];
+        args[0] = conf;
+        args[1] = namesystem;
+        for (int i = 2; i < params.length; i++) {
+          args[i] = (params[i] == boolean.class) ? Boolean.FALSE : null;
+        }
+        constructor.setAccessible(true);
+        return (FSImageFormatProtobuf.Loader) constructor.newInstance(args);
+      }
+      throw new NoSuchMethodException("FSImageFormatProtobuf.Loader(Configuration, FSNamesystem)");
+    }
+
+    INode parse(INodeSection.INode proto) throws IOException {
+      try {
+        return (INode) loadINode.invoke(loader, proto);
+      } catch (IllegalAccessException e) {
+        throw new IOException(e);
+      } catch (InvocationTargetException e) {
+        throw new IOException("Failed to load INode: " + proto.getId(), e.getCause());
+      }
+    }
+  }
+}
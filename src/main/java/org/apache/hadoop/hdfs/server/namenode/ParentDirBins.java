@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps INodes to the bin of their ancestor directory at a given depth, for the parentDir
+ * histograms.
+ *
+ * <p>The ancestor is found by walking parent pointers once per distinct parent directory and is
+ * memoized by that parent, so every other INode of the directory resolves with a single hash lookup
+ * on its parent and no path is built for it. Bins are keyed by the ancestor directory itself; only
+ * the final bin keys are rendered as paths.
+ */
+final class ParentDirBins {
+
+  /** Bin key of the INodes that have no ancestor at the requested depth. */
+  static final String NO_MAPPING = "NO_MAPPING";
+
+  private static final Object NO_ANCESTOR = new Object();
+
+  private final Map<String, Long> binKeyMap;
+  private final Map<INodeDirectory, Long> parentBins;
+  private final Long noMappingBin;
+
+  private ParentDirBins(
+      Map<String, Long> binKeyMap, Map<INodeDirectory, Long> parentBins, Long noMappingBin) {
+    this.binKeyMap = binKeyMap;
+    this.parentBins = parentBins;
+    this.noMappingBin = noMappingBin;
+  }
+
+  /**
+   * @param inodes the INodes that will be binned
+   * @param dirDepth the depth of the ancestor directories to bin on
+   * @return the bins of the ancestors of the given INodes
+   */
+  static ParentDirBins of(Collection<INode> inodes, int dirDepth) {
+    ConcurrentHashMap<INodeDirectory, Object> ancestors = new ConcurrentHashMap<>();
+    inodes
+        .parallelStream()
+        .forEach(
+            node -> {
+              INodeDirectory parent = node.getParent();
+              // Look first: computeIfAbsent locks the bin even when the parent is already there.
+              if (parent != null && !ancestors.containsKey(parent)) {
+                ancestors.computeIfAbsent(parent, dir -> ancestorAt(dir, dirDepth));
+              }
+            });
+
+    Map<INode, Long> ancestorBins = new HashMap<>();
+    Map<String, Long> binKeyMap = new HashMap<>();
+    Map<INodeDirectory, Long> parentBins = new HashMap<>(ancestors.size() * 4 / 3 + 1);
+    for (Object ancestor : ancestors.values()) {
+      if (ancestor != NO_ANCESTOR && !ancestorBins.containsKey(ancestor)) {
+        String key = PathNames.toString((INode) ancestor);
+        Long bin = binKeyMap.computeIfAbsent(key, k -> (long) binKeyMap.size());
+        ancestorBins.put((INode) ancestor, bin);
+      }
+    }
+    Long noMappingBin = binKeyMap.computeIfAbsent(NO_MAPPING, k -> (long) binKeyMap.size());
+    for (Map.Entry<INodeDirectory, Object> entry : ancestors.entrySet()) {
+      Object ancestor = entry.getValue();
+      Long bin = (ancestor == NO_ANCESTOR) ? noMappingBin : ancestorBins.get(ancestor);
+      parentBins.put(entry.getKey(), bin);
+    }
+    return new ParentDirBins(Collections.unmodifiableMap(binKeyMap), parentBins, noMappingBin);
+  }
+
+  /**
+   * @param dir a directory
+   * @param dirDepth the depth of the wanted ancestor
+   * @return the ancestor of the directory, or the directory itself, at the given depth; {@link
+   *     #NO_ANCESTOR} if the directory is not that deep or is detached while walking
+   */
+  private static Object ancestorAt(INodeDirectory dir, int dirDepth) {
+    try {
+      int depth = PathNames.depth(dir);
+      if (depth < dirDepth) {
+        return NO_ANCESTOR;
+      }
+      INodeDirectory ancestor = dir;
+      for (; depth > dirDepth; depth--) {
+        ancestor = ancestor.getParent();
+      }
+      return ancestor;
+    } catch (Exception e) {
+      return NO_ANCESTOR;
+    }
+  }
+
+  /** @return the bin keys, rendered as paths, mapped to their bin index */
+  Map<String, Long> getBinKeyMap() {
+    return binKeyMap;
+  }
+
+  /**
+   * @param node an INode passed to {@link #of(Collection, int)}
+   * @return the bin index of the INode's ancestor; the {@link #NO_MAPPING} bin if it has none
+   */
+  Long binOf(INode node) {
+    INodeDirectory parent = node.getParent();
+    Long bin = (parent != null) ? parentBins.get(parent) : null;
+    return (bin != null) ? bin : noMappingBin;
+  }
+}
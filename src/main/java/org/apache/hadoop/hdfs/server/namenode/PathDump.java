@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import com.google.common.collect.Iterables;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.StreamingGzipOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the full paths of a set of INodes to an HTTP response.
+ *
+ * <p>Paths are rendered by {@link PathNames} into one large buffered writer, optionally through
+ * {@link StreamingGzipOutputStream}, and only flushed when the buffer fills. Unsorted dumps write
+ * the INodes as they are iterated. Sorted dumps sort an array of INode references with a parallel
+ * merge sort on {@link PathNames#COMPARATOR}, which renders no path Strings.
+ *
+ * <p>Unsorted, unpaged dumps are written from a parallel stream over the INodes, so a lazy filter
+ * result is filtered in parallel while its paths are written and is never collected. Only sorting
+ * and paging, and a limit on a sorted or paged dump, collect the INodes first.
+ *
+ * <p>Given a page size, a dump returns at most that many paths and a continuation cursor in the
+ * {@link #CURSOR_HEADER} response header; passing the cursor back returns the next page. A page
+ * is selected with one pass over the INodes that keeps a bounded heap of the page size, so server
+ * memory is bounded by the page rather than the result set. Sorted pages are ordered by path and
+ * their cursor is the last path; unsorted pages are ordered by INode id and their cursor is the
+ * last id. Pages reflect the namespace as of each request.
+ */
+public final class PathDump {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PathDump.class.getName());
+
+  public static final String CURSOR_HEADER = "X-Next-Cursor";
+
+  static final int BUFFER_SIZE = 1 << 16;
+
+  private static final String PATH_CURSOR = "p";
+  private static final String ID_CURSOR = "i";
+
+  private static final Comparator<INode> ID_ORDER = Comparator.comparingLong(INode::getId);
+
+  private final Integer limit;
+  private final boolean sorted;
+  private final boolean gzip;
+  private final Integer pageSize;
+  private final String cursor;
+
+  /**
+   * Constructor.
+   *
+   * @param limit optional; only dump the first this many INodes of the set, as iterated;
+   *     {@link Integer#MAX_VALUE} is no limit
+   * @param sorted whether to sort by path; otherwise pages are in INode id order
+   * @param gzip whether to gzip the response
+   * @param pageSize optional; the maximum number of paths to dump
+   * @param cursor optional; the cursor returned with the previous page
+   */
+  public PathDump(Integer limit, boolean sorted, boolean gzip, Integer pageSize, String cursor) {
+    if (pageSize != null && pageSize <= 0) {
+      throw new IllegalArgumentException(
+          "Page size must be positive.\nPlease check /filter for the pageSize parameter.");
+    }
+    this.limit = (limit == null || limit == Integer.MAX_VALUE) ? null : limit;
+    this.sorted = sorted;
+    this.gzip = gzip;
+    this.pageSize = pageSize;
+    this.cursor = (cursor == null || cursor.isEmpty()) ? null : cursor;
+  }
+
+  /**
+   * Dump the paths of the INodes to the response.
+   *
+   * @param inodes the INodes to dump
+   * @param resp the HTTP response
+   * @throws IOException error in writing the response
+   */
+  public void write(Collection<INode> inodes, HttpServletResponse resp) throws IOException {
+    LOG.info("Dumping a list of INodes to a client.");
+    long start = System.currentTimeMillis();
+    Stream<INode> paths;
+    if (!sorted && pageSize == null && cursor == null) {
+      paths = (limit != null) ? inodes.stream().limit(limit) : inodes.parallelStream();
+    } else {
+      Collection<INode> subCollection;
+      if (limit != null) {
+        subCollection = inodes.stream().limit(limit).collect(Collectors.toList());
+      } else {
+        subCollection = inodes;
+      }
+      Collection<INode> page = select(subCollection);
+      if (pageSize != null && page.size() == pageSize) {
+        resp.setHeader(CURSOR_HEADER, cursorOf(Iterables.getLast(page)));
+      }
+      long selected = System.currentTimeMillis();
+      LOG.info("Selecting INodes to dump took: {} ms.", (selected - start));
+      paths = page.stream();
+    }
+
+    OutputStream out = resp.getOutputStream();
+    if (gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
+      out = new StreamingGzipOutputStream(out);
+    }
+    PrintWriter writer =
+        new PrintWriter(
+            new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE));
+    // Counted while writing; an unsorted dump of a lazy filter result is only iterated once.
+    LongAdder written = new LongAdder();
+    try {
+      paths.forEach(
+          node -> {
+            synchronized (writer) {
+              PathNames.write(node, writer);
+            }
+            written.increment();
+          });
+    } finally {
+      IOUtils.closeStream(writer);
+      LOG.info("Closed response.");
+    }
+    long count = written.sum();
+    QueryMetrics.observeResultSize("dump", count);
+    long end = System.currentTimeMillis();
+    LOG.info("Sending {} paths took {} ms.", count, (end - start));
+  }
+
+  private Collection<INode> select(Collection<INode> inodes) {
+    Comparator<INode> order = sorted ? PathNames.COMPARATOR : ID_ORDER;
+    if (cursor == null && pageSize == null) {
+      INode[] array = inodes.toArray(new INode[0]);
+      Arrays.parallelSort(array, order);
+      return Arrays.asList(array);
+    }
+
+    Predicate<INode> after = afterCursor();
+    INode[] array;
+    if (pageSize == null) {
+      array = inodes.parallelStream().filter(after).toArray(INode[]::new);
+    } else {
+      array =
+          inodes
+              .parallelStream()
+              .filter(after)
+              .collect(smallest(pageSize, order))
+              .toArray(new INode[0]);
+    }
+    Arrays.parallelSort(array, order);
+    return Arrays.asList(array);
+  }
+
+  private Predicate<INode> afterCursor() {
+    if (cursor == null) {
+      return node -> true;
+    }
+    String kind = sorted ? PATH_CURSOR : ID_CURSOR;
+    if (!cursor.startsWith(kind)) {
+      throw new IllegalArgumentException(
+          "Cursor: "
+              + cursor
+              + " does not belong to a "
+              + (sorted ? "sorted" : "unsorted")
+              + " dump.\nPlease check /filter and pass the same sort as the previous page.");
+    }
+    String value = cursor.substring(kind.length());
+    try {
+      if (sorted) {
+        byte[] path = Base64.getUrlDecoder().decode(value);
+        return node -> PathNames.compare(node, path) > 0;
+      }
+      long id = Long.parseLong(value);
+      return node -> node.getId() > id;
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          "Could not parse cursor: " + cursor + ".\nPlease check /filter for the cursor parameter.");
+    }
+  }
+
+  private String cursorOf(INode last) {
+    if (sorted) {
+      byte[] path = PathNames.toString(last).getBytes(StandardCharsets.UTF_8);
+      return PATH_CURSOR + Base64.getUrlEncoder().withoutPadding().encodeToString(path);
+    }
+    return ID_CURSOR + last.getId();
+  }
+
+  /** Collects the given number of smallest INodes in a bounded max-heap. */
+  private static Collector<INode, ?, PriorityQueue<INode>> smallest(
+      int count, Comparator<INode> order) {
+    return Collector.of(
+        () -> new PriorityQueue<>(order.reversed()),
+        (heap, node) -> offer(heap, node, count, order),
+        (left, right) -> {
+          for (INode node : right) {
+            offer(left, node, count, order);
+          }
+          return left;
+        });
+  }
+
+  private static void offer(
+      PriorityQueue<INode> heap, INode node, int count, Comparator<INode> order) {
+    if (heap.size() < count) {
+      heap.add(node);
+    } else if (order.compare(node, heap.peek()) < 0) {
+      heap.poll();
+      heap.add(node);
+    }
+  }
+}
@@ -0,0 +1,326 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.MapMaker;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Works with full INode paths without asking every INode for {@link INode#getFullPathName()},
+ * which builds a fresh component array, byte array and String on every call.
+ *
+ * <p>Paths are read by walking parent pointers into a per-thread ancestor buffer. Directory names
+ * are decoded once into a shared dictionary, keyed by the identity of the INode's name bytes so
+ * that lookups allocate nothing and a rename (which replaces the name bytes) is never served a
+ * stale name; equal names share one weakly interned String. Paths are rendered into per-thread
+ * buffers, and compared or prefix-matched byte by byte across the components, so that sorting,
+ * dumping and path filters no longer allocate per INode.
+ *
+ * <p>Comparisons run over the UTF-8 bytes of the path, which orders every path exactly like
+ * {@link String#compareTo(String)} does except for names mixing supplementary characters with
+ * characters in U+E000 to U+FFFF.
+ */
+public final class PathNames {
+
+  /** Soft bound on the dictionary; directories beyond it are decoded on every render. */
+  static final int MAX_DICTIONARY_SIZE = 1 << 22;
+
+  private static final byte[] ROOT = {'/'};
+
+  private static final ConcurrentMap<byte[], String> DICTIONARY =
+      new MapMaker().weakKeys().makeMap();
+  // Weak, so that names of deleted and renamed directories are not held once no entry uses them.
+  private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+  private static final ThreadLocal<Cursor[]> CURSORS =
+      ThreadLocal.withInitial(() -> new Cursor[] {new Cursor(), new Cursor()});
+  private static final ThreadLocal<StringBuilder> BUILDER =
+      ThreadLocal.withInitial(() -> new StringBuilder(256));
+  private static final ThreadLocal<char[]> CHARS = ThreadLocal.withInitial(() -> new char[256]);
+
+  /** Orders INodes by full path, like comparing {@link INode#getFullPathName()} would. */
+  public static final Comparator<INode> COMPARATOR = PathNames::compare;
+
+  private PathNames() {}
+
+  /**
+   * The ancestors of an INode, top-most first, read as a stream of path bytes. The bytes are the
+   * local names joined by '/'; the root has an empty name, except when alone where it reads "/".
+   */
+  private static final class Cursor {
+    private INode[] nodes = new INode[64];
+    private int length;
+    private int component;
+    private int offset;
+    private byte[] name;
+
+    private Cursor of(INode node) {
+      length = 0;
+      for (INode current = node; current != null; current = current.getParent()) {
+        if (length == nodes.length) {
+          nodes = Arrays.copyOf(nodes, length * 2);
+        }
+        nodes[length++] = current;
+      }
+      for (int i = 0, j = length - 1; i < j; i++, j--) {
+        INode swap = nodes[i];
+        nodes[i] = nodes[j];
+        nodes[j] = swap;
+      }
+      return this;
+    }
+
+    private void seek(int startComponent) {
+      component = startComponent;
+      offset = 0;
+      name = nodes[component].getLocalNameBytes();
+      if (length == 1 && name.length == 0) {
+        name = ROOT;
+      }
+    }
+
+    /** @return the next path byte as an unsigned value; or -1 at the end of the path */
+    private int next() {
+      if (offset < name.length) {
+        return name[offset++] & 0xff;
+      }
+      if (component + 1 < length) {
+        seek(component + 1);
+        return '/';
+      }
+      return -1;
+    }
+
+    private void clear() {
+      Arrays.fill(nodes, 0, length, null);
+      length = 0;
+    }
+  }
+
+  /**
+   * @param node the INode
+   * @return the number of path components below the root, e.g. 2 for "/a/b" and 0 for "/"
+   */
+  public static int depth(INode node) {
+    int depth = 0;
+    for (INode parent = node.getParent(); parent != null; parent = parent.getParent()) {
+      depth++;
+    }
+    return depth;
+  }
+
+  /**
+   * @param node the INode
+   * @return the full path of the INode; equal to {@link INode#getFullPathName()}
+   */
+  public static String toString(INode node) {
+    StringBuilder builder = BUILDER.get();
+    builder.setLength(0);
+    return render(node, builder).toString();
+  }
+
+  /**
+   * Append the full path of an INode.
+   *
+   * @param node the INode
+   * @param builder the builder to append to
+   * @return the builder
+   */
+  public static StringBuilder render(INode node, StringBuilder builder) {
+    Cursor cursor = CURSORS.get()[0].of(node);
+    try {
+      if (cursor.length == 1 && cursor.nodes[0].getLocalNameBytes().length == 0) {
+        return builder.append('/');
+      }
+      for (int i = 0; i < cursor.length; i++) {
+        if (i > 0) {
+          builder.append('/');
+        }
+        INode component = cursor.nodes[i];
+        if (component.isDirectory()) {
+          builder.append(directoryName(component));
+        } else {
+          appendName(component.getLocalNameBytes(), builder);
+        }
+      }
+      return builder;
+    } finally {
+      cursor.clear();
+    }
+  }
+
+  /**
+   * Write the full path of an INode followed by a newline, without creating a String.
+   *
+   * @param node the INode
+   * @param writer the writer to write to
+   */
+  public static void write(INode node, PrintWriter writer) {
+    StringBuilder builder = BUILDER.get();
+    builder.setLength(0);
+    render(node, builder).append('\n');
+    char[] chars = CHARS.get();
+    if (chars.length < builder.length()) {
+      chars = new char[builder.length() * 2];
+      CHARS.set(chars);
+    }
+    builder.getChars(0, builder.length(), chars, 0);
+    writer.write(chars, 0, builder.length());
+  }
+
+  /**
+   * Compare the full paths of two INodes.
+   *
+   * @param a an INode
+   * @param b another INode
+   * @return negative, zero or positive as the path of a sorts before, with or after that of b
+   */
+  public static int compare(INode a, INode b) {
+    if (a == b) {
+      return 0;
+    }
+    Cursor[] cursors = CURSORS.get();
+    Cursor left = cursors[0].of(a);
+    Cursor right = cursors[1].of(b);
+    try {
+      // Skip the shared ancestors; the bytes up to and including them are equal.
+      int shared = 0;
+      int length = Math.min(left.length, right.length);
+      while (shared < length && left.nodes[shared] == right.nodes[shared]) {
+        shared++;
+      }
+      int start = Math.max(0, Math.min(shared, length - 1));
+      left.seek(start);
+      right.seek(start);
+      while (true) {
+        int x = left.next();
+        int y = right.next();
+        if (x != y) {
+          return (x < y) ? -1 : 1;
+        }
+        if (x < 0) {
+          return 0;
+        }
+      }
+    } finally {
+      left.clear();
+      right.clear();
+    }
+  }
+
+  /**
+   * Compare the full path of an INode to a path.
+   *
+   * @param node the INode
+   * @param path the UTF-8 bytes of a path
+   * @return negative, zero or positive as the path of the INode sorts before, with or after path
+   */
+  public static int compare(INode node, byte[] path) {
+    Cursor cursor = CURSORS.get()[0].of(node);
+    try {
+      cursor.seek(0);
+      for (byte b : path) {
+        int x = cursor.next();
+        int y = b & 0xff;
+        if (x != y) {
+          return (x < y) ? -1 : 1;
+        }
+      }
+      return (cursor.next() < 0) ? 0 : 1;
+    } finally {
+      cursor.clear();
+    }
+  }
+
+  /**
+   * @param node the INode
+   * @param prefix the UTF-8 bytes of a path prefix
+   * @return true if the full path of the INode starts with the prefix
+   */
+  public static boolean startsWith(INode node, byte[] prefix) {
+    return match(node, prefix, false);
+  }
+
+  /**
+   * @param node the INode
+   * @param path the UTF-8 bytes of a path
+   * @return true if the full path of the INode is the path
+   */
+  public static boolean equals(INode node, byte[] path) {
+    return match(node, path, true);
+  }
+
+  private static boolean match(INode node, byte[] bytes, boolean exact) {
+    Cursor cursor = CURSORS.get()[0].of(node);
+    try {
+      cursor.seek(0);
+      for (byte b : bytes) {
+        if (cursor.next() != (b & 0xff)) {
+          return false;
+        }
+      }
+      return !exact || cursor.next() < 0;
+    } finally {
+      cursor.clear();
+    }
+  }
+
+  /**
+   * @param dir a directory INode
+   * @return the local name of the directory, from the shared dictionary
+   */
+  static String directoryName(INode dir) {
+    byte[] bytes = dir.getLocalNameBytes();
+    String name = DICTIONARY.get(bytes);
+    if (name != null) {
+      return name;
+    }
+    name = new String(bytes, StandardCharsets.UTF_8);
+    if (DICTIONARY.size() >= MAX_DICTIONARY_SIZE) {
+      return name;
+    }
+    name = NAMES.intern(name);
+    DICTIONARY.put(bytes, name);
+    return name;
+  }
+
+  /** @return the number of directory names held by the dictionary */
+  static int getDictionarySize() {
+    return DICTIONARY.size();
+  }
+
+  private static void appendName(byte[] bytes, StringBuilder builder) {
+    for (byte b : bytes) {
+      if (b < 0) {
+        builder.append(new String(bytes, StandardCharsets.UTF_8));
+        return;
+      }
+    }
+    for (byte b : bytes) {
+      builder.append((char) b);
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A mergeable KLL quantile sketch of long values.
+ *
+ * <p>Values enter the compactor of level 0. A full compactor sorts itself and promotes every other
+ * value, starting at a random offset, to the next level, where each value stands for twice as
+ * many. Lower levels get geometrically smaller capacities, so the sketch holds O(k) values however
+ * many were added, and the rank error of a quantile is about 1.7 / k of the count.
+ */
+final class QuantileSketch implements HistogramKernel.Sketch {
+
+  /** The capacity of the top compactor; bounds the rank error. */
+  static final int K = 200;
+
+  private static final double C = 2.0 / 3.0;
+
+  private final double quantile;
+  private long[][] levels = new long[1][];
+  private int[] sizes = new int[1];
+  private int retained;
+  private int maxRetained;
+
+  /** @param quantile the quantile reported by {@link #result()}, between 0 and 1 */
+  QuantileSketch(double quantile) {
+    this.quantile = quantile;
+    this.levels[0] = new long[8];
+    this.maxRetained = capacity(0);
+  }
+
+  @Override // Sketch
+  public void add(long value) {
+    append(0, value);
+    retained++;
+    if (retained >= maxRetained) {
+      compress();
+    }
+  }
+
+  @Override // Sketch
+  public void merge(HistogramKernel.Sketch other) {
+    QuantileSketch that = (QuantileSketch) other;
+    while (levels.length < that.levels.length) {
+      grow();
+    }
+    for (int level = 0; level < that.levels.length; level++) {
+      for (int i = 0; i < that.sizes[level]; i++) {
+        append(level, that.levels[level][i]);
+      }
+    }
+    retained += that.retained;
+    while (retained >= maxRetained) {
+      compress();
+    }
+  }
+
+  @Override // Sketch
+  public long result() {
+    return getQuantile(quantile);
+  }
+
+  /**
+   * @param q the quantile, between 0 and 1
+   * @return the smallest retained value whose estimated rank reaches q of the weight; or 0 if no
+   *     value was added
+   */
+  long getQuantile(double q) {
+    long[] values = new long[retained];
+    long[] weights = new long[retained];
+    int n = 0;
+    for (int level = 0; level < levels.length; level++) {
+      for (int i = 0; i < sizes[level]; i++) {
+        values[n] = levels[level][i];
+        weights[n] = 1L << level;
+        n++;
+      }
+    }
+    if (n == 0) {
+      return 0L;
+    }
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (left, right) -> Long.compare(values[left], values[right]));
+    long total = 0;
+    for (long weight : weights) {
+      total += weight;
+    }
+    double target = q * total;
+    long cumulative = 0;
+    for (Integer index : order) {
+      cumulative += weights[index];
+      if (cumulative >= target) {
+        return values[index];
+      }
+    }
+    return values[order[n - 1]];
+  }
+
+  private int capacity(int level) {
+    int depth = levels.length - level - 1;
+    return (int) Math.ceil(K * Math.pow(C, depth)) + 1;
+  }
+
+  private void append(int level, long value) {
+    long[] compactor = levels[level];
+    int size = sizes[level];
+    if (size == compactor.length) {
+      compactor = Arrays.copyOf(compactor, size * 2);
+      levels[level] = compactor;
+    }
+    compactor[size] = value;
+    sizes[level] = size + 1;
+  }
+
+  private void grow() {
+    int height = levels.length;
+    levels = Arrays.copyOf(levels, height + 1);
+    sizes = Arrays.copyOf(sizes, height + 1);
+    levels[height] = new long[8];
+    int max = 0;
+    for (int level = 0; level <= height; level++) {
+      max += capacity(level);
+    }
+    maxRetained = max;
+  }
+
+  private void compress() {
+    for (int level = 0; level < levels.length; level++) {
+      if (sizes[level] >= capacity(level)) {
+        if (level + 1 >= levels.length) {
+          grow();
+        }
+        long[] compactor = levels[level];
+        int size = sizes[level];
+        Arrays.sort(compactor, 0, size);
+        int promoted = 0;
+        for (int i = ThreadLocalRandom.current().nextInt(2); i < size; i += 2) {
+          append(level + 1, compactor[i]);
+          promoted++;
+        }
+        sizes[level] = 0;
+        retained += promoted - size;
+        if (retained < maxRetained) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -24,6 +24,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,10 +46,18 @@ public interface QueryEngine {
 
   Function<INode, Long> getFilterFunctionToLongForINode(String filter);
 
+  ToLongFunction<INode> getFilterFunctionToPrimitiveLongForINode(String filter);
+
+  Function<INode, Long> getFindFunctionToLongForINode(String findField);
+
+  ToLongFunction<INode> getFindFunctionToPrimitiveLongForINode(String findField);
+
   Function<INode, String> getFilterFunctionToStringForINode(String filter);
 
   Function<INode, Boolean> getFilterFunctionToBooleanForINode(String filter);
 
+  Predicate<INode> getFilterPredicateForINode(String filter);
+
   Function<String, Boolean> getFilterFunctionForString(String value, String op);
 
   Function<Boolean, Boolean> getFilterFunctionForBoolean(Boolean value, String op);
@@ -108,6 +118,8 @@ public interface QueryEngine {
 
   Function<INode, Long> getSumFunctionForINode(String sum);
 
+  ToLongFunction<INode> getSumFunctionToPrimitiveLongForINode(String sum);
+
   Map<String, Long> removeKeysOnConditional(
       Map<String, Long> histogram, String histogramConditionsStr);
 
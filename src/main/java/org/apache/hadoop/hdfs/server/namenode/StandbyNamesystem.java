@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.blockmanagement.BlockManager;
+import org.apache.hadoop.hdfs.server.common.Storage.StorageDirectory;
+import org.apache.hadoop.util.GSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds an FSNamesystem around INodes that were not loaded by the FSNamesystem itself, such as
+ * those of an {@link AnalyticsSnapshot} or a {@link ParallelImageLoader}, so that the namespace
+ * can be kept up to date by EditLog tailing from the txid the INodes reflect.
+ *
+ * <p>The INodes become the namesystem's tree and INodeMap, their blocks are registered with the
+ * BlockManager and leases are added for files under construction, which is what the EditLog loader
+ * expects of a namespace loaded from an FsImage. The namespace, cluster and block pool ids are read
+ * from the VERSION file of the configured namespace directories. Directory quota usage is counted
+ * by the first tailing pass.
+ */
+final class StandbyNamesystem {
+
+  public static final Logger LOG = LoggerFactory.getLogger(StandbyNamesystem.class.getName());
+
+  private StandbyNamesystem() {}
+
+  /**
+   * Build a namesystem that starts tailing after the given txid.
+   *
+   * @param conf the HDFS configuration holding the namespace and shared edits directories
+   * @param inodes all INodes of the namespace, linked into a tree under the root
+   * @param txId the txid the INodes reflect
+   * @return the namesystem, which is not yet tailing
+   * @throws IOException if the storage could not be read or the INodes could not be installed
+   */
+  static FSNamesystem build(
+      Configuration conf, GSet<INode, INodeWithAdditionalFields> inodes, long txId)
+      throws IOException {
+    long start = System.currentTimeMillis();
+    FSImage image = new FSImage(conf);
+    readStorageInfo(conf, image.getStorage());
+    FSNamesystem namesystem = new FSNamesystem(conf, image);
+    try {
+      namesystem.setBlockPoolId(image.getStorage().getBlockPoolID());
+      install(namesystem, inodes);
+      image.lastAppliedTxId = txId;
+    } catch (IOException | RuntimeException e) {
+      namesystem.shutdown();
+      throw e;
+    }
+    long end = System.currentTimeMillis();
+    LOG.info("Building namesystem at txid: {} took: {} ms.", txId, (end - start));
+    return namesystem;
+  }
+
+  private static void readStorageInfo(Configuration conf, NNStorage storage) throws IOException {
+    for (StorageDirectory sd : storage.dirIterable(NNStorage.NameNodeDirType.IMAGE)) {
+      if (sd.getVersionFile().isFile()) {
+        storage.readProperties(sd);
+        return;
+      }
+    }
+    throw new IOException(
+        "No formatted namespace directory in: " + FSNamesystem.getNamespaceDirs(conf));
+  }
+
+  private static void install(
+      FSNamesystem namesystem, GSet<INode, INodeWithAdditionalFields> inodes) throws IOException {
+    FSDirectory fsDirectory = namesystem.getFSDirectory();
+    BlockManager blockManager = namesystem.getBlockManager();
+    try {
+      Method updateBlocksMap =
+          FSImageFormatPBINode.Loader.class.getDeclaredMethod(
+              "updateBlocksMap", INodeFile.class, BlockManager.class);
+      updateBlocksMap.setAccessible(true);
+      Method addLease = findMethod(LeaseManager.class, "addLease", 2);
+
+      INodeDirectory root = null;
+      long lastInodeId = INodeId.ROOT_INODE_ID;
+      for (INodeWithAdditionalFields inode : inodes) {
+        lastInodeId = Math.max(lastInodeId, inode.getId());
+        if (inode.getId() == INodeId.ROOT_INODE_ID) {
+          root = inode.asDirectory();
+        }
+        if (!inode.isFile()) {
+          continue;
+        }
+        INodeFile file = inode.asFile();
+        updateBlocksMap.invoke(null, file, blockManager);
+        if (file.isUnderConstruction()) {
+          // Leases are keyed by path in older versions and by INode id in newer ones.
+          String holder = file.getFileUnderConstructionFeature().getClientName();
+          Object key =
+              (addLease.getParameterTypes()[1] == long.class)
+                  ? file.getId()
+                  : file.getFullPathName();
+          addLease.invoke(namesystem.leaseManager, holder, key);
+        }
+      }
+      if (root == null) {
+        throw new IOException("INodes have no root directory.");
+      }
+
+      Field rootDir = FSDirectory.class.getDeclaredField("rootDir");
+      rootDir.setAccessible(true);
+      rootDir.set(fsDirectory, root);
+      INodeMap inodeMap = fsDirectory.getINodeMap();
+      Field mapField = inodeMap.getClass().getDeclaredField("map");
+      mapField.setAccessible(true);
+      mapField.set(inodeMap, inodes);
+
+      invokeFirst("resetLastInodeId", lastInodeId, fsDirectory, namesystem);
+      invokeFirst("imageLoadComplete", null, namesystem, fsDirectory);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to install INodes.", e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unsupported Hadoop version for building a namesystem.", e);
+    }
+  }
+
+  /** Invokes the named method on the first of the targets to declare it. */
+  private static void invokeFirst(String name, Object arg, Object... targets)
+      throws ReflectiveOperationException {
+    int params = (arg == null) ? 0 : 1;
+    for (Object target : targets) {
+      Method method;
+      try {
+        method = findMethod(target.getClass(), name, params);
+      } catch (NoSuchMethodException e) {
+        continue;
+      }
+      if (params == 0) {
+        method.invoke(target);
+      } else {
+        method.invoke(target, arg);
+      }
+      return;
+    }
+    throw new NoSuchMethodException(name);
+  }
+
+  private static Method findMethod(Class<?> clazz, String name, int params)
+      throws NoSuchMethodException {
+    for (Method method : clazz.getDeclaredMethods()) {
+      if (method.getName().equals(name) && method.getParameterTypes().length == params) {
+        method.setAccessible(true);
+        return method;
+      }
+    }
+    throw new NoSuchMethodException(clazz.getSimpleName() + "." + name);
+  }
+}
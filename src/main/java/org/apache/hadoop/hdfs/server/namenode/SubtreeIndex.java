@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import com.google.common.primitives.UnsignedBytes;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Numbers INodes in pre-order, visiting the children of every directory in name order, so that
+ * the INodes whose full path starts with any given string form one contiguous range of ranks.
+ *
+ * <p>A directory's subtree is the range [rank, end) of that directory. A path prefix like
+ * "/user/fo" resolves, by walking the components from the root, to the children of "/user" whose
+ * names start with "fo"; as children are in name order those children and their subtrees are
+ * adjacent. Path startsWith filters then become a rank range check per INode, or a direct
+ * iteration of the range, instead of building every INode's full path string.
+ *
+ * <p>The index is immutable and reflects the namespace when it was built. Renames move subtrees
+ * without passing through the INode map, so rather than being maintained incrementally the index
+ * is renumbered by {@link NameNodeLoader#refreshSubtreeIndex()} and only trusted for live
+ * queries while no edits were applied since; see {@link #isCurrent(long)}.
+ */
+public final class SubtreeIndex {
+
+  private static final Comparator<byte[]> NAME_ORDER = UnsignedBytes.lexicographicalComparator();
+
+  private final INode[] nodes;
+  private final int[] ends;
+  private final int[] childOffsets;
+  private final int[] childRanks;
+  private final long[] sortedIds;
+  private final int[] sortedIdRanks;
+  private final long txId;
+  private final boolean consistent;
+
+  private SubtreeIndex(
+      INode[] nodes,
+      int[] ends,
+      int[] childOffsets,
+      int[] childRanks,
+      long[] sortedIds,
+      int[] sortedIdRanks,
+      long txId,
+      boolean consistent) {
+    this.nodes = nodes;
+    this.ends = ends;
+    this.childOffsets = childOffsets;
+    this.childRanks = childRanks;
+    this.sortedIds = sortedIds;
+    this.sortedIdRanks = sortedIdRanks;
+    this.txId = txId;
+    this.consistent = consistent;
+  }
+
+  /**
+   * Build the index. INodes that are not connected to the root are left out.
+   *
+   * @param files the file INodes
+   * @param dirs the directory INodes, including the root
+   * @param txId the last applied txid before the INodes were read
+   * @param txIdAfter the last applied txid after the INodes were read
+   * @return the index
+   */
+  static SubtreeIndex build(
+      Collection<INode> files, Collection<INode> dirs, long txId, long txIdAfter) {
+    List<INode> all = new ArrayList<>(files.size() + dirs.size());
+    all.addAll(files);
+    all.addAll(dirs);
+    INode[] byId = all.toArray(new INode[0]);
+    Arrays.parallelSort(byId, Comparator.comparingLong(INode::getId));
+    int size = byId.length;
+    long[] ids = new long[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = byId[i].getId();
+    }
+
+    // Group children under their parent, in name order, as positions into byId.
+    INode[] byParent = Arrays.copyOf(byId, size);
+    Arrays.parallelSort(
+        byParent,
+        Comparator.comparingLong(SubtreeIndex::parentId)
+            .thenComparing(INode::getLocalNameBytes, NAME_ORDER));
+    int[] childStart = new int[size];
+    int[] childCount = new int[size];
+    int[] childPositions = new int[size];
+    List<Integer> roots = new ArrayList<>(1);
+    for (int i = 0; i < size; i++) {
+      INode node = byParent[i];
+      childPositions[i] = Arrays.binarySearch(ids, node.getId());
+      if (node.getParent() == null) {
+        roots.add(childPositions[i]);
+        continue;
+      }
+      int parent = Arrays.binarySearch(ids, node.getParent().getId());
+      if (parent >= 0) {
+        if (childCount[parent] == 0) {
+          childStart[parent] = i;
+        }
+        childCount[parent]++;
+      }
+    }
+
+    // Pre-order walk with an explicit stack.
+    INode[] nodes = new INode[size];
+    int[] positions = new int[size];
+    int[] ends = new int[size];
+    int[] ranks = new int[size];
+    Arrays.fill(ranks, -1);
+    int[] stack = new int[size];
+    int[] next = new int[size];
+    int rank = 0;
+    for (int root : roots) {
+      int depth = 0;
+      stack[depth] = root;
+      next[depth] = 0;
+      ranks[root] = rank;
+      positions[rank] = root;
+      nodes[rank++] = byId[root];
+      depth++;
+      while (depth > 0) {
+        int position = stack[depth - 1];
+        if (next[depth - 1] < childCount[position]) {
+          int child = childPositions[childStart[position] + next[depth - 1]++];
+          ranks[child] = rank;
+          positions[rank] = child;
+          nodes[rank++] = byId[child];
+          stack[depth] = child;
+          next[depth] = 0;
+          depth++;
+        } else {
+          ends[ranks[position]] = rank;
+          depth--;
+        }
+      }
+    }
+
+    // Children of every rank, in name order, as ranks.
+    int[] childOffsets = new int[rank + 1];
+    int[] childRanks = new int[Math.max(rank - 1, 0)];
+    int offset = 0;
+    for (int r = 0; r < rank; r++) {
+      childOffsets[r] = offset;
+      int position = positions[r];
+      for (int c = 0; c < childCount[position]; c++) {
+        childRanks[offset++] = ranks[childPositions[childStart[position] + c]];
+      }
+    }
+    childOffsets[rank] = offset;
+
+    return new SubtreeIndex(
+        Arrays.copyOf(nodes, rank),
+        Arrays.copyOf(ends, rank),
+        childOffsets,
+        Arrays.copyOf(childRanks, offset),
+        ids,
+        ranks,
+        txId,
+        txId == txIdAfter);
+  }
+
+  private static long parentId(INode node) {
+    INodeDirectory parent = node.getParent();
+    return (parent == null) ? Long.MIN_VALUE : parent.getId();
+  }
+
+  /** @return the number of INodes in the index */
+  public int size() {
+    return nodes.length;
+  }
+
+  /** @return the last applied txid when the index was built */
+  public long getTxId() {
+    return txId;
+  }
+
+  /**
+   * Whether the index can answer for the live namespace. The INode map does not see renames, so
+   * the index is only current while no edits were applied since it was built.
+   *
+   * @param currentTxId the last applied txid now
+   * @return true if the index reflects the namespace at the given txid
+   */
+  public boolean isCurrent(long currentTxId) {
+    return consistent && txId == currentTxId;
+  }
+
+  /**
+   * @param node the INode
+   * @return the pre-order rank of the INode; or -1 if this exact INode is not in the index
+   */
+  public int rankOf(INode node) {
+    int position = Arrays.binarySearch(sortedIds, node.getId());
+    if (position < 0) {
+      return -1;
+    }
+    int rank = sortedIdRanks[position];
+    return (rank >= 0 && nodes[rank] == node) ? rank : -1;
+  }
+
+  /**
+   * @param rank the pre-order rank
+   * @return the INode at that rank
+   */
+  public INode nodeAt(int rank) {
+    return nodes[rank];
+  }
+
+  /**
+   * Resolve a path prefix to the range of ranks whose full path starts with it.
+   *
+   * @param prefix the path prefix, as given to a path startsWith filter
+   * @return two ints: the inclusive start and exclusive end of the range
+   */
+  public int[] prefixRange(String prefix) {
+    if (prefix.isEmpty()) {
+      return new int[] {0, size()};
+    }
+    if (!prefix.startsWith("/") || size() == 0) {
+      return new int[] {0, 0};
+    }
+    int dir = 0;
+    int from = 1;
+    int slash;
+    while ((slash = prefix.indexOf('/', from)) >= 0) {
+      dir = findChild(dir, prefix.substring(from, slash).getBytes(StandardCharsets.UTF_8));
+      if (dir < 0) {
+        return new int[] {0, 0};
+      }
+      from = slash + 1;
+    }
+    byte[] namePrefix = prefix.substring(from).getBytes(StandardCharsets.UTF_8);
+    if (from == 1 && namePrefix.length == 0) {
+      // "/" itself, which every path starts with.
+      return new int[] {0, size()};
+    }
+    int lower = childOffsets[dir];
+    int upper = childOffsets[dir + 1];
+    int first = searchChildren(lower, upper, namePrefix, false);
+    int last = searchChildren(first, upper, namePrefix, true);
+    if (first == last) {
+      return new int[] {0, 0};
+    }
+    return new int[] {childRanks[first], ends[childRanks[last - 1]]};
+  }
+
+  /**
+   * Compile a path startsWith filter into a predicate that checks ranks. INodes not in the index
+   * fall back to comparing their full path.
+   *
+   * @param prefix the path prefix
+   * @return the predicate
+   */
+  public Predicate<INode> startsWith(String prefix) {
+    int[] range = prefixRange(prefix);
+    byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+    return node -> {
+      int rank = rankOf(node);
+      if (rank < 0) {
+        return PathNames.startsWith(node, prefixBytes);
+      }
+      return rank >= range[0] && rank < range[1];
+    };
+  }
+
+  /**
+   * @param prefix the path prefix
+   * @return the file INodes whose full path starts with the prefix, in pre-order
+   */
+  public List<INode> getFiles(String prefix) {
+    int[] range = prefixRange(prefix);
+    List<INode> result = new ArrayList<>();
+    for (int rank = range[0]; rank < range[1]; rank++) {
+      if (nodes[rank].isFile()) {
+        result.add(nodes[rank]);
+      }
+    }
+    return result;
+  }
+
+  /** @return the rank of the child of dir with exactly the given name; or -1 if none */
+  private int findChild(int dir, byte[] name) {
+    int lower = childOffsets[dir];
+    int upper = childOffsets[dir + 1];
+    int found = searchChildren(lower, upper, name, false);
+    if (found < upper && Arrays.equals(nodes[childRanks[found]].getLocalNameBytes(), name)) {
+      return childRanks[found];
+    }
+    return -1;
+  }
+
+  /**
+   * Binary search the children in [lower, upper) for the first child whose name, compared to
+   * the prefix, is at least (or, if after is set, greater than) a match.
+   */
+  private int searchChildren(int lower, int upper, byte[] prefix, boolean after) {
+    while (lower < upper) {
+      int mid = (lower + upper) >>> 1;
+      int cmp = comparePrefix(nodes[childRanks[mid]].getLocalNameBytes(), prefix);
+      if (cmp < 0 || (after && cmp == 0)) {
+        lower = mid + 1;
+      } else {
+        upper = mid;
+      }
+    }
+    return lower;
+  }
+
+  /** Compares a name to a prefix; names that start with the prefix compare as equal. */
+  private static int comparePrefix(byte[] name, byte[] prefix) {
+    int length = Math.min(name.length, prefix.length);
+    for (int i = 0; i < length; i++) {
+      int cmp = UnsignedBytes.compare(name[i], prefix[i]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return (name.length >= prefix.length) ? 0 : -1;
+  }
+}
@@ -0,0 +1,395 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+import org.apache.hadoop.util.INodeListener;
+
+/**
+ * The subtree totals of every directory: the length and disk space of the files under it and the
+ * number of files and directories under it, itself included, as a content summary counts them.
+ *
+ * <p>The totals are columns indexed by directory ordinal, directories being ordered by id. They are
+ * built by one post-order pass that runs level by level from the deepest directories up, each level
+ * in parallel and every directory adding up only its own children.
+ *
+ * <p>Afterwards {@link #apply()} keeps the columns current instead of rebuilding them. The INode
+ * map callbacks queue the INodes that edits add and remove, and every apply also looks for the
+ * directories whose modification time moved, which covers the creates, deletes and renames under
+ * them. Each such directory, and the parent of every file still being written, is re-totalled from
+ * its children, deepest first, and the difference is added to its ancestors. Changes that touch
+ * neither (e.g. an append to a closed file, or a new replication factor) are only picked up by the
+ * next build.
+ */
+public final class SubtreeRollups implements INodeListener {
+
+  public static final int LENGTH = 0;
+  public static final int DISKSPACE = 1;
+  public static final int NUM_FILES = 2;
+  public static final int NUM_DIRS = 3;
+  private static final int COLUMNS = 4;
+
+  private volatile Columns columns;
+
+  private final ConcurrentLinkedQueue<INode> added = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<INode> removed = new ConcurrentLinkedQueue<>();
+
+  // Guarded by this.
+  private final Map<Long, INode> openFiles = new HashMap<>();
+  private long watermark;
+
+  private SubtreeRollups(Columns columns, long watermark) {
+    this.columns = columns;
+    this.watermark = watermark;
+  }
+
+  /** Directories by ordinal with their totals; replaced as a whole when directories are added. */
+  private static final class Columns {
+    private final INode[] nodes;
+    private final long[] ids;
+    private final long[][] values;
+    private final long[] modTimes;
+
+    private Columns(INode[] nodes, long[] ids) {
+      this.nodes = nodes;
+      this.ids = ids;
+      values = new long[COLUMNS][nodes.length];
+      modTimes = new long[nodes.length];
+    }
+
+    /** @return the ordinal of the directory with the given id; or -1 if there is none */
+    private int ordinalOf(long id) {
+      int ord = Arrays.binarySearch(ids, id);
+      return (ord >= 0 && nodes[ord] != null) ? ord : -1;
+    }
+
+    /**
+     * Re-total a directory from its children, whose totals must be current.
+     *
+     * @param ord the ordinal of the directory
+     * @param totals receives the difference to the previous totals
+     */
+    private void retotal(int ord, long[] totals) {
+      INodeDirectory dir = nodes[ord].asDirectory();
+      long modTime = dir.getModificationTime();
+      Arrays.fill(totals, 0L);
+      totals[NUM_DIRS] = 1L;
+      for (INode child : dir.getChildrenList(Snapshot.CURRENT_STATE_ID)) {
+        if (child.isFile()) {
+          addFile(child.asFile(), totals);
+        } else if (child.isDirectory()) {
+          int childOrd = ordinalOf(child.getId());
+          if (childOrd >= 0) {
+            for (int column = 0; column < COLUMNS; column++) {
+              totals[column] += values[column][childOrd];
+            }
+          } else {
+            addSubtree(child.asDirectory(), totals);
+          }
+        }
+      }
+      for (int column = 0; column < COLUMNS; column++) {
+        long total = totals[column];
+        totals[column] = total - values[column][ord];
+        values[column][ord] = total;
+      }
+      modTimes[ord] = modTime;
+    }
+
+    /** @return a copy with the given directories, ordered by id, merged in with empty totals */
+    private Columns withAdded(List<INode> dirs) {
+      int size = ids.length;
+      INode[] mergedNodes = new INode[size + dirs.size()];
+      long[] mergedIds = new long[mergedNodes.length];
+      int[] sources = new int[mergedNodes.length];
+      int ord = 0;
+      int next = 0;
+      for (int i = 0; i < mergedNodes.length; i++) {
+        if (next < dirs.size() && (ord == size || dirs.get(next).getId() < ids[ord])) {
+          sources[i] = -1;
+          mergedNodes[i] = dirs.get(next++);
+          mergedIds[i] = mergedNodes[i].getId();
+        } else {
+          sources[i] = ord;
+          mergedNodes[i] = nodes[ord];
+          mergedIds[i] = ids[ord++];
+        }
+      }
+      Columns copy = new Columns(mergedNodes, mergedIds);
+      for (int i = 0; i < mergedNodes.length; i++) {
+        if (sources[i] < 0) {
+          // Never totalled; the next scan re-totals it.
+          copy.modTimes[i] = Long.MIN_VALUE;
+          continue;
+        }
+        copy.modTimes[i] = modTimes[sources[i]];
+        for (int column = 0; column < COLUMNS; column++) {
+          copy.values[column][i] = values[column][sources[i]];
+        }
+      }
+      return copy;
+    }
+  }
+
+  /**
+   * Build the totals of every directory.
+   *
+   * @param dirs the directory INodes, including the root
+   * @return the rollups
+   */
+  public static SubtreeRollups build(Collection<INode> dirs) {
+    long start = System.currentTimeMillis();
+    INode[] nodes = dirs.toArray(new INode[0]);
+    Arrays.parallelSort(nodes, Comparator.comparingLong(INode::getId));
+    long[] ids = new long[nodes.length];
+    for (int ord = 0; ord < nodes.length; ord++) {
+      ids[ord] = nodes[ord].getId();
+    }
+    Columns columns = new Columns(nodes, ids);
+
+    // Bucket the ordinals by depth, so that every level only reads the totals of the one below.
+    int[] depths =
+        IntStream.range(0, nodes.length)
+            .parallel()
+            .map(ord -> PathNames.depth(nodes[ord]))
+            .toArray();
+    int maxDepth = 0;
+    for (int depth : depths) {
+      maxDepth = Math.max(maxDepth, depth);
+    }
+    int[] levelStarts = new int[maxDepth + 2];
+    for (int depth : depths) {
+      levelStarts[depth + 1]++;
+    }
+    for (int depth = 0; depth <= maxDepth; depth++) {
+      levelStarts[depth + 1] += levelStarts[depth];
+    }
+    int[] byLevel = new int[nodes.length];
+    int[] fill = Arrays.copyOf(levelStarts, maxDepth + 1);
+    for (int ord = 0; ord < nodes.length; ord++) {
+      byLevel[fill[depths[ord]]++] = ord;
+    }
+
+    for (int depth = maxDepth; depth >= 0; depth--) {
+      IntStream.range(levelStarts[depth], levelStarts[depth + 1])
+          .parallel()
+          .forEach(i -> columns.retotal(byLevel[i], new long[COLUMNS]));
+    }
+    long watermark = Long.MIN_VALUE;
+    for (long modTime : columns.modTimes) {
+      watermark = Math.max(watermark, modTime);
+    }
+    long end = System.currentTimeMillis();
+    QueryEngine.LOG.info(
+        "Building subtree rollups of {} dirs over {} levels took: {} ms.",
+        nodes.length,
+        maxDepth + 1,
+        (end - start));
+    return new SubtreeRollups(columns, watermark);
+  }
+
+  @Override // INodeListener
+  public void inodeAdded(INode node) {
+    added.add(node);
+  }
+
+  @Override // INodeListener
+  public void inodeRemoved(INode node) {
+    removed.add(node);
+  }
+
+  /**
+   * Bring the totals up to date with the edits applied since the last build or apply. The caller
+   * must keep the namespace from changing meanwhile, e.g. by holding the namesystem read lock.
+   *
+   * @return the number of directories re-totalled
+   */
+  public synchronized int apply() {
+    Columns current = columns;
+    for (INode node = removed.poll(); node != null; node = removed.poll()) {
+      if (node.isFile()) {
+        openFiles.remove(node.getId(), node);
+        continue;
+      }
+      int ord = current.ordinalOf(node.getId());
+      if (ord >= 0 && current.nodes[ord] == node) {
+        current.nodes[ord] = null;
+      }
+    }
+
+    List<INode> newDirs = new ArrayList<>();
+    List<INode> changedParents = new ArrayList<>();
+    for (INode node = added.poll(); node != null; node = added.poll()) {
+      if (node.isFile()) {
+        if (node.asFile().isUnderConstruction()) {
+          openFiles.put(node.getId(), node);
+        }
+        changedParents.add(node);
+        continue;
+      }
+      int ord = Arrays.binarySearch(current.ids, node.getId());
+      if (ord >= 0) {
+        // Replaced under the same id.
+        current.nodes[ord] = node;
+        current.modTimes[ord] = Long.MIN_VALUE;
+      } else if (node.isDirectory()) {
+        newDirs.add(node);
+      }
+    }
+    if (!newDirs.isEmpty()) {
+      newDirs.sort(Comparator.comparingLong(INode::getId));
+      current = current.withAdded(newDirs);
+      columns = current;
+    }
+
+    // Files still being written grow without their parent moving.
+    Iterator<INode> open = openFiles.values().iterator();
+    while (open.hasNext()) {
+      INode file = open.next();
+      changedParents.add(file);
+      if (!file.asFile().isUnderConstruction()) {
+        open.remove();
+      }
+    }
+
+    final Columns scanned = current;
+    final long mark = watermark;
+    BitSet dirty = new BitSet(scanned.ids.length);
+    IntStream.range(0, scanned.ids.length)
+        .parallel()
+        .filter(
+            ord -> {
+              INode dir = scanned.nodes[ord];
+              if (dir == null) {
+                return false;
+              }
+              // Edits within the same millisecond as the last apply do not move the time.
+              long modTime = dir.getModificationTime();
+              return modTime != scanned.modTimes[ord] || modTime >= mark;
+            })
+        .forEachOrdered(dirty::set);
+    for (INode node : changedParents) {
+      INodeDirectory parent = node.getParent();
+      int ord = (parent != null) ? scanned.ordinalOf(parent.getId()) : -1;
+      if (ord >= 0) {
+        dirty.set(ord);
+      }
+    }
+
+    // Deepest first, so that every directory sees the current totals of its children.
+    int[] ordinals = dirty.stream().toArray();
+    long[] order = new long[ordinals.length];
+    for (int i = 0; i < ordinals.length; i++) {
+      int depth = PathNames.depth(scanned.nodes[ordinals[i]]);
+      order[i] = ((long) (Integer.MAX_VALUE - depth) << 32) | ordinals[i];
+    }
+    Arrays.sort(order);
+    long[] deltas = new long[COLUMNS];
+    for (long key : order) {
+      int ord = (int) key;
+      scanned.retotal(ord, deltas);
+      watermark = Math.max(watermark, scanned.modTimes[ord]);
+      for (INodeDirectory ancestor = scanned.nodes[ord].getParent();
+          ancestor != null;
+          ancestor = ancestor.getParent()) {
+        int ancestorOrd = scanned.ordinalOf(ancestor.getId());
+        if (ancestorOrd < 0) {
+          continue;
+        }
+        for (int column = 0; column < COLUMNS; column++) {
+          scanned.values[column][ancestorOrd] += deltas[column];
+        }
+      }
+    }
+    return ordinals.length;
+  }
+
+  /** @return the number of directories with totals, removed ones included */
+  public int size() {
+    return columns.ids.length;
+  }
+
+  /**
+   * @param column one of {@link #LENGTH}, {@link #DISKSPACE}, {@link #NUM_FILES} or {@link
+   *     #NUM_DIRS}
+   * @param node a directory INode
+   * @return the subtree total of the directory; or -1 if it has no totals yet
+   */
+  public long get(int column, INode node) {
+    Columns current = columns;
+    int ord = Arrays.binarySearch(current.ids, node.getId());
+    return (ord >= 0 && current.nodes[ord] == node) ? current.values[column][ord] : -1L;
+  }
+
+  /**
+   * @param attribute a dirSubTree filter of {@link AbstractQueryEngine}
+   * @return the column holding it; or -1 if it is not a dirSubTree filter
+   */
+  public static int columnOf(String attribute) {
+    switch (attribute) {
+      case "dirSubTreeSize":
+        return DISKSPACE;
+      case "dirSubTreeNumFiles":
+        return NUM_FILES;
+      case "dirSubTreeNumDirs":
+        return NUM_DIRS;
+      default:
+        return -1;
+    }
+  }
+
+  private static void addFile(INodeFile file, long[] totals) {
+    long length = file.computeFileSize();
+    totals[LENGTH] += length;
+    totals[DISKSPACE] += length * file.getFileReplication();
+    totals[NUM_FILES]++;
+  }
+
+  /** Totals a directory that has no column yet by walking its whole subtree. */
+  private static void addSubtree(INodeDirectory dir, long[] totals) {
+    Deque<INodeDirectory> stack = new ArrayDeque<>();
+    stack.push(dir);
+    while (!stack.isEmpty()) {
+      INodeDirectory next = stack.pop();
+      totals[NUM_DIRS]++;
+      for (INode child : next.getChildrenList(Snapshot.CURRENT_STATE_ID)) {
+        if (child.isFile()) {
+          addFile(child.asFile(), totals);
+        } else if (child.isDirectory()) {
+          stack.push(child.asDirectory());
+        }
+      }
+    }
+  }
+}
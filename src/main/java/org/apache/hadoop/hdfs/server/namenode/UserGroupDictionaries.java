@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.hadoop.util.INodeListener;
+
+/**
+ * Namespace-wide dictionaries of the user and group names of the INodes, which give every name a
+ * stable int id for the life of the loaded namespace.
+ *
+ * <p>The names found at load are numbered in name order, so that histograms binned by id come out
+ * sorted by name. Names first seen later, through the INode map callbacks as edits are tailed or
+ * when looking up an INode whose owner was changed in place, are appended with the next free id.
+ * Ids are never reassigned, so a name no INode uses anymore keeps its id.
+ */
+public final class UserGroupDictionaries implements INodeListener {
+
+  private final Dictionary users;
+  private final Dictionary groups;
+
+  private UserGroupDictionaries(Dictionary users, Dictionary groups) {
+    this.users = users;
+    this.groups = groups;
+  }
+
+  /** An append-only dictionary of names to dense int ids. */
+  public static final class Dictionary {
+    private final ConcurrentHashMap<String, Integer> ids;
+    private volatile String[] names;
+    private volatile int size;
+
+    private Dictionary(Collection<String> names) {
+      String[] sorted = names.toArray(new String[0]);
+      Arrays.sort(sorted);
+      this.ids = new ConcurrentHashMap<>(sorted.length * 4 / 3 + 1);
+      for (int id = 0; id < sorted.length; id++) {
+        ids.put(sorted[id], id);
+      }
+      this.names = sorted;
+      this.size = sorted.length;
+    }
+
+    /**
+     * @param name the name
+     * @return the id of the name; the name is added if it has none yet
+     */
+    public int idOf(String name) {
+      Integer id = ids.get(name);
+      return (id != null) ? id : add(name);
+    }
+
+    private synchronized int add(String name) {
+      Integer id = ids.get(name);
+      if (id != null) {
+        return id;
+      }
+      int next = size;
+      if (next == names.length) {
+        names = Arrays.copyOf(names, next * 2 + 1);
+      }
+      names[next] = name;
+      size = next + 1;
+      ids.put(name, next);
+      return next;
+    }
+
+    /**
+     * @param id an id handed out by {@link #idOf(String)}
+     * @return the name of the id
+     */
+    public String nameOf(int id) {
+      return names[id];
+    }
+
+    /** @return the number of ids handed out */
+    public int size() {
+      return size;
+    }
+
+    /** @return the names of all ids handed out so far, indexed by id */
+    public String[] getNames() {
+      int length = size;
+      return Arrays.copyOf(names, length);
+    }
+  }
+
+  /**
+   * Number the user and group names of the given INodes.
+   *
+   * @param inodes all INodes of the namespace
+   * @return the dictionaries
+   */
+  public static UserGroupDictionaries build(Collection<INode> inodes) {
+    long start = System.currentTimeMillis();
+    Set<String> userNames = ConcurrentHashMap.newKeySet();
+    Set<String> groupNames = ConcurrentHashMap.newKeySet();
+    inodes
+        .parallelStream()
+        .forEach(
+            node -> {
+              userNames.add(node.getUserName());
+              groupNames.add(node.getGroupName());
+            });
+    UserGroupDictionaries dictionaries =
+        new UserGroupDictionaries(new Dictionary(userNames), new Dictionary(groupNames));
+    long end = System.currentTimeMillis();
+    QueryEngine.LOG.info(
+        "Building dictionaries of {} users and {} groups took: {} ms.",
+        userNames.size(),
+        groupNames.size(),
+        (end - start));
+    return dictionaries;
+  }
+
+  public Dictionary getUsers() {
+    return users;
+  }
+
+  public Dictionary getGroups() {
+    return groups;
+  }
+
+  /**
+   * @param node the INode
+   * @return the id of the owner of the INode
+   */
+  public int userIdOf(INode node) {
+    return users.idOf(node.getUserName());
+  }
+
+  /**
+   * @param node the INode
+   * @return the id of the group of the INode
+   */
+  public int groupIdOf(INode node) {
+    return groups.idOf(node.getGroupName());
+  }
+
+  @Override // INodeListener
+  public void inodeAdded(INode node) {
+    userIdOf(node);
+    groupIdOf(node);
+  }
+
+  @Override // INodeListener
+  public void inodeRemoved(INode node) {
+    // Ids are never reclaimed.
+  }
+}
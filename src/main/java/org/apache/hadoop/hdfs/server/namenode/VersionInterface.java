@@ -52,4 +52,6 @@ public interface VersionInterface {
   Long getDsQuota(INode node);
 
   Long getDsQuotaUsed(INode node);
+
+  boolean hasXAttrs(INode node);
 }
@@ -0,0 +1,271 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.apache.hadoop.hdfs.server.namenode.QueryEngine;
+import org.apache.hadoop.util.INodeListener;
+
+/**
+ * Keeps the suggestions bucket counters current between full reloads by applying deltas for the
+ * INodes that the edit log tailer adds, removes and changes in place.
+ *
+ * <p>INode map callbacks only queue the change. {@link #apply(QueryEngine)} later classifies each
+ * changed INode with {@link SuggestionsAggregator#classify(INode)}, subtracts whatever it was last
+ * counted as and adds what it is now. INodes changed since the last full reload stay tracked, and
+ * files still under construction are re-classified on every apply.
+ *
+ * <p>Ops that change an INode in place, such as setReplication, close or addBlock, are reported
+ * before they are applied. An INode not tracked yet is then classified as it still is, which is
+ * what the last full reload counted it as, so that the change, or its later removal, takes away
+ * what was counted rather than what the INode has become.
+ *
+ * <p>Replacing the namespace invalidates the counters, as the new INodes replay edits the counters
+ * already hold; no changes are counted until the next full reload of the new INodes resets them.
+ *
+ * <p>Directories becoming empty or non-empty as their children come and go, and INodes ageing
+ * across the 24h and 1yr boundaries, are only corrected by the next full reload, which becomes the
+ * periodic consistency check.
+ */
+class IncrementalSuggestions implements INodeListener {
+
+  private final ConcurrentHashMap<Long, INode> added = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<INode> removed = new ConcurrentLinkedQueue<>();
+  private final ConcurrentHashMap<Long, Counted> modified = new ConcurrentHashMap<>();
+  private volatile SuggestionsAggregator reloadAggregator = null;
+
+  // Guarded by this.
+  private final Map<Long, Counted> tracked = new HashMap<>();
+  private SuggestionsAggregator.Result files = null;
+  private SuggestionsAggregator.Result dirs = null;
+  private long generation = 0L;
+
+  /** What an INode was last counted as. */
+  private static final class Counted {
+    private final INode node;
+    private final String user;
+    private final long mask;
+    private final long mem;
+    private final long ds;
+    private final boolean open;
+
+    private Counted(INode node, SuggestionsAggregator aggregator) {
+      this.node = node;
+      this.user = node.getUserName();
+      this.mask = aggregator.classify(node);
+      this.mem = aggregator.memoryOf(node);
+      this.ds = aggregator.diskspaceOf(node);
+      this.open = node.isFile() && node.asFile().isUnderConstruction();
+    }
+  }
+
+  @Override // INodeListener
+  public void inodeAdded(INode node) {
+    if (reloadAggregator != null) {
+      added.put(node.getId(), node);
+    }
+  }
+
+  @Override // INodeListener
+  public void inodeRemoved(INode node) {
+    if (reloadAggregator != null) {
+      removed.add(node);
+    }
+  }
+
+  @Override // INodeListener
+  public void inodeModifying(INode node) {
+    SuggestionsAggregator aggregator = reloadAggregator;
+    if (aggregator != null) {
+      modified.computeIfAbsent(node.getId(), id -> new Counted(node, aggregator));
+    }
+  }
+
+  /**
+   * Start from the counters of a full reload. Changes queued while the reload was scanning are
+   * dropped; the reload may or may not have seen them and the next reload settles them.
+   *
+   * <p>A reload that started before the counters were last invalidated may have scanned the INodes
+   * being replaced, so its counters are not taken and the tracker stays invalid.
+   *
+   * @param reloadGeneration the {@link #getGeneration()} from when the reload started
+   * @param aggregator the aggregator that classified the INodes of the reload
+   * @param fileResult the file counters of the reload
+   * @param dirResult the directory counters of the reload
+   * @return whether the counters were reset
+   */
+  synchronized boolean reset(
+      long reloadGeneration,
+      SuggestionsAggregator aggregator,
+      SuggestionsAggregator.Result fileResult,
+      SuggestionsAggregator.Result dirResult) {
+    if (reloadGeneration != generation) {
+      return false;
+    }
+    added.clear();
+    removed.clear();
+    modified.clear();
+    tracked.clear();
+    reloadAggregator = aggregator;
+    files = fileResult;
+    dirs = dirResult;
+    return true;
+  }
+
+  /**
+   * Stop counting changes until the next full reload, e.g. because the namespace is replaced.
+   */
+  synchronized void invalidate() {
+    generation++;
+    reloadAggregator = null;
+    files = null;
+    dirs = null;
+    added.clear();
+    removed.clear();
+    modified.clear();
+    tracked.clear();
+  }
+
+  /** @return the number of times the counters were invalidated */
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Apply all queued changes to the counters.
+   *
+   * @param queryEngine the query engine providing the INode attribute functions
+   * @return the number of INodes re-classified; or -1 if there was no full reload yet
+   */
+  synchronized int apply(QueryEngine queryEngine) {
+    if (files == null || dirs == null) {
+      return -1;
+    }
+    SuggestionsAggregator aggregator = new SuggestionsAggregator(queryEngine);
+    int changes = 0;
+
+    for (INode node = removed.poll(); node != null; node = removed.poll()) {
+      Counted before = modified.get(node.getId());
+      if (before != null && before.node == node) {
+        modified.remove(node.getId(), before);
+      } else {
+        before = null;
+      }
+      if (added.get(node.getId()) == node) {
+        // Added and removed again before it was ever counted.
+        added.remove(node.getId(), node);
+        continue;
+      }
+      Counted counted = tracked.remove(node.getId());
+      if (counted != null && counted.node != node) {
+        // The INode was replaced under the same id; only the removed object leaves the counters.
+        tracked.put(node.getId(), counted);
+        counted = null;
+      }
+      if (counted == null) {
+        // Counted by the full reload, as it was before any in-place change since.
+        counted = (before != null) ? before : new Counted(node, aggregator);
+      }
+      subtract(counted);
+      changes++;
+    }
+
+    Iterator<Map.Entry<Long, INode>> iterator = added.entrySet().iterator();
+    while (iterator.hasNext()) {
+      INode node = iterator.next().getValue();
+      iterator.remove();
+      Counted previous = tracked.get(node.getId());
+      if (previous != null && previous.node == node) {
+        continue;
+      }
+      if (previous != null) {
+        subtract(previous);
+      }
+      Counted counted = new Counted(node, aggregator);
+      add(counted);
+      tracked.put(node.getId(), counted);
+      changes++;
+    }
+
+    Iterator<Map.Entry<Long, Counted>> changed = modified.entrySet().iterator();
+    while (changed.hasNext()) {
+      Counted before = changed.next().getValue();
+      changed.remove();
+      Counted previous = tracked.get(before.node.getId());
+      if (previous == null) {
+        // Counted by the full reload as it was before the change.
+        previous = before;
+      } else if (previous.node != before.node) {
+        // Replaced under the same id since; the replacement is counted instead.
+        continue;
+      }
+      Counted counted = new Counted(before.node, aggregator);
+      subtract(previous);
+      add(counted);
+      tracked.put(before.node.getId(), counted);
+      changes++;
+    }
+
+    for (Map.Entry<Long, Counted> entry : tracked.entrySet()) {
+      Counted previous = entry.getValue();
+      if (!previous.open) {
+        continue;
+      }
+      Counted counted = new Counted(previous.node, aggregator);
+      subtract(previous);
+      add(counted);
+      entry.setValue(counted);
+      changes++;
+    }
+    return changes;
+  }
+
+  /** @return the live file counters; only read while holding this object's lock */
+  SuggestionsAggregator.Result getFiles() {
+    return files;
+  }
+
+  /** @return the live directory counters; only read while holding this object's lock */
+  SuggestionsAggregator.Result getDirs() {
+    return dirs;
+  }
+
+  /** @return the number of INodes added or changed since the last full reload */
+  synchronized int getTrackedCount() {
+    return tracked.size();
+  }
+
+  private void add(Counted counted) {
+    resultOf(counted).add(counted.user, counted.mask, counted.mem, counted.ds);
+  }
+
+  private void subtract(Counted counted) {
+    resultOf(counted).subtract(counted.user, counted.mask, counted.mem, counted.ds);
+  }
+
+  private SuggestionsAggregator.Result resultOf(Counted counted) {
+    return counted.node.isFile() ? files : dirs;
+  }
+}
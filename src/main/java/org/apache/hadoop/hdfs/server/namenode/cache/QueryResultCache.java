@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches query results against the txid of the namespace they were computed on.
+ *
+ * <p>A result is served again for the same normalized query while the namespace is at most the
+ * configured number of transactions ahead of it, and while it is younger than the configured TTL
+ * so that queries relative to the current time (e.g. "hoursAgo") still move forward when no edits
+ * arrive. The cache holds a bounded number of results and evicts the least recently used first.
+ *
+ * <p>Concurrent misses on the same query are coalesced: the first request computes the result
+ * while the others wait on and share it. Failures are handed to every waiter and never cached.
+ *
+ * <p>Cached results are shared between requests and must not be modified by callers.
+ */
+public class QueryResultCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(QueryResultCache.class.getName());
+
+  private final LongSupplier txIdSupplier;
+  private final int maxEntries;
+  private final long stalenessTxIds;
+  private final long ttlMs;
+
+  // Guarded by this.
+  private final LinkedHashMap<String, CachedResult> results;
+  private final Map<String, Flight> flights = new HashMap<>();
+  private long hits = 0L;
+  private long misses = 0L;
+  private long coalesced = 0L;
+  private long evictions = 0L;
+
+  /** A computed result and the namespace it was computed on. */
+  private static final class CachedResult {
+    private final Object value;
+    private final long txId;
+    private final long time;
+
+    private CachedResult(Object value, long txId, long time) {
+      this.value = value;
+      this.txId = txId;
+      this.time = time;
+    }
+  }
+
+  /** A computation in progress that identical queries can wait on. */
+  private static final class Flight {
+    private final FutureTask<Object> task;
+    private final long txId;
+
+    private Flight(FutureTask<Object> task, long txId) {
+      this.task = task;
+      this.txId = txId;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param txIdSupplier supplies the last applied txid of the namespace
+   * @param maxEntries the maximum number of cached results; 0 or less to disable caching
+   * @param stalenessTxIds how many txids the namespace may move past a result before it is stale
+   * @param ttlMs the maximum age of a result in milliseconds; 0 or less to not expire by age
+   */
+  public QueryResultCache(
+      LongSupplier txIdSupplier, int maxEntries, long stalenessTxIds, long ttlMs) {
+    this.txIdSupplier = txIdSupplier;
+    this.maxEntries = maxEntries;
+    this.stalenessTxIds = stalenessTxIds;
+    this.ttlMs = ttlMs;
+    this.results =
+        new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            if (size() > QueryResultCache.this.maxEntries) {
+              evictions++;
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /**
+   * Build a cache key out of a query name and its parameters. Parameters are given as name and
+   * value pairs; null values are skipped and comma-separated filters are put in a canonical order.
+   *
+   * @param query the query, e.g. the endpoint
+   * @param params parameter names and their values, alternating
+   * @return the normalized key
+   */
+  public static String key(String query, String... params) {
+    StringBuilder key = new StringBuilder(query);
+    for (int i = 0; i + 1 < params.length; i += 2) {
+      String value = params[i + 1];
+      if (value == null || value.isEmpty()) {
+        continue;
+      }
+      if (params[i].equals("filters")) {
+        String[] filters = value.split(",");
+        Arrays.sort(filters);
+        value = String.join(",", filters);
+      }
+      key.append('&').append(params[i]).append('=').append(value);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Get the cached result of a query, or compute it; identical concurrent queries share one
+   * computation.
+   *
+   * @param key the normalized query key, see {@link #key(String, String...)}
+   * @param compute computes the result
+   * @param <T> the type of result
+   * @return the result, which must not be modified
+   * @throws Exception the exception thrown by the computation
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String key, Callable<T> compute) throws Exception {
+    if (maxEntries <= 0) {
+      return compute.call();
+    }
+    long txId = txIdSupplier.getAsLong();
+    long now = System.currentTimeMillis();
+    Flight flight;
+    boolean owner = false;
+    synchronized (this) {
+      CachedResult entry = results.get(key);
+      if (entry != null && isFresh(entry.txId, entry.time, txId, now)) {
+        hits++;
+        return (T) entry.value;
+      }
+      flight = flights.get(key);
+      if (flight != null && isFresh(flight.txId, now, txId, now)) {
+        coalesced++;
+      } else {
+        misses++;
+        flight = new Flight(new FutureTask<Object>(compute::call), txId);
+        if (!flights.containsKey(key)) {
+          flights.put(key, flight);
+        }
+        owner = true;
+      }
+    }
+
+    if (owner) {
+      flight.task.run();
+      synchronized (this) {
+        if (flights.get(key) == flight) {
+          flights.remove(key);
+        }
+      }
+    }
+    try {
+      T value = (T) flight.task.get();
+      if (owner) {
+        synchronized (this) {
+          results.put(key, new CachedResult(value, flight.txId, now));
+        }
+      }
+      return value;
+    } catch (ExecutionException e) {
+      LOG.debug("Query: {} failed; not caching it.", key);
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (Exception) cause;
+    }
+  }
+
+  private boolean isFresh(long resultTxId, long resultTime, long txId, long now) {
+    if (resultTxId > txId || txId - resultTxId > stalenessTxIds) {
+      return false;
+    }
+    return ttlMs <= 0 || now - resultTime <= ttlMs;
+  }
+
+  /** Drop all cached results. */
+  public synchronized void clear() {
+    results.clear();
+  }
+
+  /** @return the hit, miss, coalesced, eviction and size counters of the cache */
+  public synchronized Map<String, Long> getMetrics() {
+    Map<String, Long> metrics = new LinkedHashMap<>();
+    metrics.put("hits", hits);
+    metrics.put("misses", misses);
+    metrics.put("coalesced", coalesced);
+    metrics.put("evictions", evictions);
+    metrics.put("size", (long) results.size());
+    metrics.put("maxEntries", (long) maxEntries);
+    return metrics;
+  }
+}
@@ -0,0 +1,348 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode.cache;
+
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.ALL;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.EMPTY;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.EMPTY_1YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.EMPTY_24H;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.MEDIUM;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.OLD_1YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.OLD_2YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.RECENT;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.SMALL;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.SMALL_1YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.SMALL_24H;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.TINY;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.TINY_1YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.TINY_24H;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.apache.hadoop.hdfs.server.namenode.QueryEngine;
+
+/**
+ * Classifies every INode into all of the suggestions report buckets in a single parallel pass.
+ *
+ * <p>The suggestions reload used to filter the files once per bucket and then scan each bucket
+ * again per metric and per user. Here each INode is visited once; its size and age decide which
+ * {@link Subset}s it belongs to, and the count, memory and diskspace of every matching subset are
+ * added to the per-user counters of its owner. Global totals are the sum over all users.
+ *
+ * <p>Subsets keep the exact semantics of the filters they replace, e.g. {@link Subset#TINY} is
+ * "fileSize lte:1024 and gt:0" and {@link Subset#OLD_1YR} is "accessTime olderThanYears:1".
+ */
+class SuggestionsAggregator {
+
+  /** The report buckets; directories only populate ALL and the EMPTY subsets. */
+  enum Subset {
+    ALL,
+    RECENT,
+    OLD_1YR,
+    OLD_2YR,
+    EMPTY,
+    TINY,
+    SMALL,
+    MEDIUM,
+    EMPTY_24H,
+    TINY_24H,
+    SMALL_24H,
+    EMPTY_1YR,
+    TINY_1YR,
+    SMALL_1YR
+  }
+
+  /** The values collected for every subset. */
+  enum Metric {
+    COUNT,
+    MEMORY,
+    DISKSPACE
+  }
+
+  private static final int METRICS = Metric.values().length;
+  private static final int SLOTS = Subset.values().length * METRICS;
+
+  static final long TINY_MAX = 1024L;
+  static final long SMALL_MAX = 1048576L;
+  static final long MEDIUM_MAX = 134217728L;
+
+  private final long recentThreshold;
+  private final long old1yrThreshold;
+  private final long old2yrThreshold;
+
+  private final Function<INode, Long> fileSizeFunc;
+  private final Function<INode, Long> numChildrenFunc;
+  private final Function<INode, Boolean> hasQuotaFunc;
+  private final Function<INode, Long> memFunc;
+  private final Function<INode, Long> dsFunc;
+
+  /**
+   * Create an aggregator. Relative times ("hoursAgo:24", "olderThanYears:1") are resolved once,
+   * against the current time.
+   *
+   * @param queryEngine the query engine providing the INode attribute functions
+   */
+  SuggestionsAggregator(QueryEngine queryEngine) {
+    long now = System.currentTimeMillis();
+    this.recentThreshold = now - TimeUnit.HOURS.toMillis(24);
+    this.old1yrThreshold = now - TimeUnit.DAYS.toMillis(365);
+    this.old2yrThreshold = now - TimeUnit.DAYS.toMillis(365 * 2);
+    this.fileSizeFunc = queryEngine.getFilterFunctionToLongForINode("fileSize");
+    this.numChildrenFunc = queryEngine.getFilterFunctionToLongForINode("dirNumChildren");
+    this.hasQuotaFunc = queryEngine.getFilterFunctionToBooleanForINode("hasQuota");
+    this.memFunc = queryEngine.getSumFunctionForINode("memoryConsumed");
+    this.dsFunc = queryEngine.getSumFunctionForINode("diskspaceConsumed");
+  }
+
+  /**
+   * Aggregate all file buckets in one parallel pass.
+   *
+   * @param files the file INodes
+   * @return the per-user and global counters
+   */
+  Result aggregateFiles(Collection<INode> files) {
+    return files
+        .parallelStream()
+        .collect(
+            Result::new,
+            (result, node) ->
+                result.add(node.getUserName(), classify(node), memoryOf(node), diskspaceOf(node)),
+            Result::merge);
+  }
+
+  /**
+   * Aggregate all directory buckets in one parallel pass, and group the directories with quotas
+   * by owner.
+   *
+   * @param dirs the directory INodes
+   * @return the per-user and global counters
+   */
+  Result aggregateDirs(Collection<INode> dirs) {
+    return dirs
+        .parallelStream()
+        .collect(
+            Result::new,
+            (result, node) -> {
+              String user = node.getUserName();
+              result.add(user, classify(node), memoryOf(node), 0L);
+              if (hasQuotaFunc.apply(node)) {
+                result.quotaDirs.computeIfAbsent(user, u -> new ArrayList<>()).add(node);
+              }
+            },
+            Result::merge);
+  }
+
+  /**
+   * Get the subsets an INode belongs to.
+   *
+   * @param node the file or directory
+   * @return a bit mask with bit {@link Subset#ordinal()} set for every matching subset
+   */
+  long classify(INode node) {
+    long modTime = node.getModificationTime();
+    boolean recent = modTime >= recentThreshold;
+    if (node.isDirectory()) {
+      if (numChildrenFunc.apply(node) != 0) {
+        return bit(ALL);
+      }
+      // Empty directories age by modification time; they have no meaningful access time.
+      return bit(ALL) | sized(EMPTY, EMPTY_24H, EMPTY_1YR, recent, modTime <= old1yrThreshold);
+    }
+
+    long accessTime = node.getAccessTime();
+    boolean old1yr = accessTime <= old1yrThreshold;
+    long mask = bit(ALL);
+    if (recent) {
+      mask |= bit(RECENT);
+    }
+    if (old1yr) {
+      mask |= bit(OLD_1YR);
+    }
+    if (accessTime <= old2yrThreshold) {
+      mask |= bit(OLD_2YR);
+    }
+    long fileSize = fileSizeFunc.apply(node);
+    if (fileSize == 0) {
+      mask |= sized(EMPTY, EMPTY_24H, EMPTY_1YR, recent, old1yr);
+    } else if (fileSize > 0 && fileSize <= TINY_MAX) {
+      mask |= sized(TINY, TINY_24H, TINY_1YR, recent, old1yr);
+    } else if (fileSize > TINY_MAX && fileSize <= SMALL_MAX) {
+      mask |= sized(SMALL, SMALL_24H, SMALL_1YR, recent, old1yr);
+    } else if (fileSize > SMALL_MAX && fileSize <= MEDIUM_MAX) {
+      mask |= bit(MEDIUM);
+    }
+    return mask;
+  }
+
+  long memoryOf(INode node) {
+    return memFunc.apply(node);
+  }
+
+  /** Directories consume no diskspace of their own. */
+  long diskspaceOf(INode node) {
+    return node.isFile() ? dsFunc.apply(node) : 0L;
+  }
+
+  /** A size bucket plus its 24h and 1yr variants when the INode qualifies. */
+  private static long sized(
+      Subset bucket, Subset recentBucket, Subset oldBucket, boolean recent, boolean old) {
+    long mask = bit(bucket);
+    if (recent) {
+      mask |= bit(recentBucket);
+    }
+    if (old) {
+      mask |= bit(oldBucket);
+    }
+    return mask;
+  }
+
+  private static long bit(Subset subset) {
+    return 1L << subset.ordinal();
+  }
+
+  private static int slot(Subset subset, Metric metric) {
+    return subset.ordinal() * METRICS + metric.ordinal();
+  }
+
+  /** Per-user counters; per fork-join leaf until merged, then owned by one thread at a time. */
+  static final class Result {
+    private final Map<String, long[]> userSlots = new HashMap<>();
+    private final Map<String, List<INode>> quotaDirs = new HashMap<>();
+
+    /**
+     * Add one INode to every subset of a mask.
+     *
+     * @param user the owner of the INode
+     * @param mask the subsets of the INode, as returned by {@link #classify(INode)}
+     * @param mem the memory consumed by the INode
+     * @param ds the diskspace consumed by the INode
+     */
+    void add(String user, long mask, long mem, long ds) {
+      apply(user, mask, mem, ds, 1);
+    }
+
+    /**
+     * Take one INode out of every subset of a mask. Users left with no INode are dropped.
+     *
+     * @param user the owner of the INode
+     * @param mask the subsets the INode was added with
+     * @param mem the memory consumed by the INode when it was added
+     * @param ds the diskspace consumed by the INode when it was added
+     */
+    void subtract(String user, long mask, long mem, long ds) {
+      long[] slots = apply(user, mask, mem, ds, -1);
+      if (slots[slot(ALL, Metric.COUNT)] <= 0) {
+        userSlots.remove(user);
+      }
+    }
+
+    private long[] apply(String user, long mask, long mem, long ds, int sign) {
+      long[] slots = userSlots.computeIfAbsent(user, u -> new long[SLOTS]);
+      for (long bits = mask; bits != 0; bits &= bits - 1) {
+        int base = Long.numberOfTrailingZeros(bits) * METRICS;
+        slots[base + Metric.COUNT.ordinal()] += sign;
+        slots[base + Metric.MEMORY.ordinal()] += sign * mem;
+        slots[base + Metric.DISKSPACE.ordinal()] += sign * ds;
+      }
+      return slots;
+    }
+
+    private void merge(Result other) {
+      other.userSlots.forEach(
+          (user, slots) -> {
+            long[] mine = userSlots.putIfAbsent(user, slots);
+            if (mine != null) {
+              for (int i = 0; i < SLOTS; i++) {
+                mine[i] += slots[i];
+              }
+            }
+          });
+      other.quotaDirs.forEach(
+          (user, nodes) ->
+              quotaDirs.merge(
+                  user,
+                  nodes,
+                  (mine, theirs) -> {
+                    mine.addAll(theirs);
+                    return mine;
+                  }));
+    }
+
+    /** @return the owners of at least one aggregated INode */
+    Set<String> getUsers() {
+      return userSlots.keySet();
+    }
+
+    /**
+     * Get a global total.
+     *
+     * @param subset the report bucket
+     * @param metric the value to total
+     * @return the total over all users
+     */
+    long getTotal(Subset subset, Metric metric) {
+      int slot = slot(subset, metric);
+      long total = 0;
+      for (long[] slots : userSlots.values()) {
+        total += slots[slot];
+      }
+      return total;
+    }
+
+    /**
+     * Get per-user totals. Like a byUserHistogram over the subset, users that own no INode of the
+     * subset are left out.
+     *
+     * @param subset the report bucket
+     * @param metric the value to total
+     * @return the totals keyed by user
+     */
+    Map<String, Long> getByUser(Subset subset, Metric metric) {
+      int countSlot = slot(subset, Metric.COUNT);
+      int slot = slot(subset, metric);
+      Map<String, Long> byUser = new HashMap<>();
+      userSlots.forEach(
+          (user, slots) -> {
+            if (slots[countSlot] != 0) {
+              byUser.put(user, slots[slot]);
+            }
+          });
+      return byUser;
+    }
+
+    /**
+     * Get the directories with a quota owned by a user.
+     *
+     * @param user the owner
+     * @return the quota directories; empty if there are none
+     */
+    List<INode> getQuotaDirs(String user) {
+      return quotaDirs.getOrDefault(user, Collections.emptyList());
+    }
+  }
+}
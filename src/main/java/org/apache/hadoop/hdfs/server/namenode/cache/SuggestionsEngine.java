@@ -19,6 +19,24 @@
 
 package org.apache.hadoop.hdfs.server.namenode.cache;
 
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Metric.COUNT;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Metric.DISKSPACE;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Metric.MEMORY;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.ALL;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.EMPTY;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.EMPTY_1YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.EMPTY_24H;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.MEDIUM;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.OLD_1YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.OLD_2YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.RECENT;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.SMALL;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.SMALL_1YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.SMALL_24H;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.TINY;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.TINY_1YR;
+import static org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset.TINY_24H;
+
 import com.google.common.collect.Sets;
 import com.paypal.namenode.HsqlDriver;
 import com.paypal.security.SecurityConfiguration;
@@ -28,18 +46,17 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.hdfs.server.namenode.INode;
 import org.apache.hadoop.hdfs.server.namenode.NameNodeLoader;
 import org.apache.hadoop.hdfs.server.namenode.QueryEngine;
+import org.apache.hadoop.hdfs.server.namenode.SubtreeIndex;
 import org.apache.hadoop.hdfs.server.namenode.queries.Histograms;
-import org.apache.hadoop.util.VirtualINodeTree;
+import org.apache.hadoop.util.INodeListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,6 +86,8 @@ public class SuggestionsEngine {
 
   private AtomicBoolean loaded;
 
+  private final IncrementalSuggestions incremental = new IncrementalSuggestions();
+
   public SuggestionsEngine() {
     this.cacheManager = new CacheManager();
     this.loaded = new AtomicBoolean(false);
@@ -92,11 +111,10 @@ public class SuggestionsEngine {
    */
   public void reloadSuggestions(NameNodeLoader nameNodeLoader) {
     final long s1 = System.currentTimeMillis();
+    final long generation = incremental.getGeneration();
     Collection<INode> files = nameNodeLoader.getINodeSet("files");
     Collection<INode> dirs = nameNodeLoader.getINodeSet("dirs");
 
-    final long numFiles = files.size();
-    final long numDirs = dirs.size();
     long capacity = 0L;
 
     try {
@@ -112,225 +130,42 @@ public class SuggestionsEngine {
     final Map<String, Long> modTimeDiskspace =
         queryEngine.modTimeHistogram(files, "diskspaceConsumed", null, "monthly");
 
-    final Set<String> fileUsers =
-        files.parallelStream().map(INode::getUserName).distinct().collect(Collectors.toSet());
-    final Set<String> dirUsers =
-        dirs.parallelStream().map(INode::getUserName).distinct().collect(Collectors.toSet());
+    final long sa = System.currentTimeMillis();
+    final SuggestionsAggregator aggregator = new SuggestionsAggregator(queryEngine);
+    final SuggestionsAggregator.Result fileResult = aggregator.aggregateFiles(files);
+    final SuggestionsAggregator.Result dirResult = aggregator.aggregateDirs(dirs);
+    final long ea = System.currentTimeMillis();
+    LOG.info("Aggregating suggestions buckets took: {} ms.", (ea - sa));
+
+    final Set<String> fileUsers = fileResult.getUsers();
+    final Set<String> dirUsers = dirResult.getUsers();
     final Set<String> users = Sets.union(fileUsers, dirUsers);
 
-    final long diskspace = queryEngine.sum(files, "diskspaceConsumed");
     final Collection<INode> files24h =
         queryEngine.combinedFilter(files, new String[] {"modTime"}, new String[] {"hoursAgo:24"});
-    final long numFiles24h = files24h.size();
-    final long diskspace24h = queryEngine.sum(files24h, "diskspaceConsumed");
-    final Map<String, Long> numFiles24hUsers = queryEngine.byUserHistogram(files24h, "count", null);
-    final Map<String, Long> diskspace24hUsers =
-        queryEngine.byUserHistogram(files24h, "diskspaceConsumed", null);
-    final Map<String, Long> diskspaceUsers =
-        queryEngine.byUserHistogram(files, "diskspaceConsumed", null);
-
-    final Collection<INode> oldFiles1yr =
-        queryEngine.combinedFilter(
-            files, new String[] {"accessTime"}, new String[] {"olderThanYears:1"});
-    final Map<String, Long> oldFiles1yrCountUsers =
-        queryEngine.byUserHistogram(oldFiles1yr, "count", null);
-    final Map<String, Long> oldFiles1yrDsUsers =
-        queryEngine.byUserHistogram(oldFiles1yr, "diskspaceConsumed", null);
-    final Collection<INode> oldFiles2yr =
-        queryEngine.combinedFilter(
-            files, new String[] {"accessTime"}, new String[] {"olderThanYears:2"});
-    final Map<String, Long> oldFiles2yrCountUsers =
-        queryEngine.byUserHistogram(oldFiles2yr, "count", null);
-    final Map<String, Long> oldFiles2yrDsUsers =
-        queryEngine.byUserHistogram(oldFiles2yr, "diskspaceConsumed", null);
-
-    final Collection<INode> emptyFiles =
-        queryEngine.combinedFilter(files, new String[] {"fileSize"}, new String[] {"eq:0"});
-    final Collection<INode> emptyDirs =
-        queryEngine.combinedFilter(dirs, new String[] {"dirNumChildren"}, new String[] {"eq:0"});
-    final Collection<INode> tinyFiles =
-        queryEngine.combinedFilter(
-            files, new String[] {"fileSize", "fileSize"}, new String[] {"lte:1024", "gt:0"});
-    final Collection<INode> smallFiles =
-        queryEngine.combinedFilter(
-            files, new String[] {"fileSize", "fileSize"}, new String[] {"lte:1048576", "gt:1024"});
-    final Collection<INode> mediumFiles =
-        queryEngine.combinedFilter(
-            files,
-            new String[] {"fileSize", "fileSize"},
-            new String[] {"lte:134217728", "gt:1048576"});
-
-    final Collection<INode> emptyFiles24h =
-        queryEngine.combinedFilter(
-            emptyFiles, new String[] {"modTime"}, new String[] {"hoursAgo:24"});
-    final Collection<INode> emptyDirs24h =
-        queryEngine.combinedFilter(
-            emptyDirs, new String[] {"modTime"}, new String[] {"hoursAgo:24"});
-    final Collection<INode> tinyFiles24h =
-        queryEngine.combinedFilter(
-            tinyFiles, new String[] {"modTime"}, new String[] {"hoursAgo:24"});
-    final Collection<INode> smallFiles24h =
-        queryEngine.combinedFilter(
-            smallFiles, new String[] {"modTime"}, new String[] {"hoursAgo:24"});
-
-    final Collection<INode> emptyFiles1yr =
-        queryEngine.combinedFilter(
-            emptyFiles, new String[] {"accessTime"}, new String[] {"olderThanYears:1"});
-    final Collection<INode> emptyDirs1yr =
-        queryEngine.combinedFilter(
-            emptyDirs, new String[] {"modTime"}, new String[] {"olderThanYears:1"});
-    final Collection<INode> tinyFiles1yr =
-        queryEngine.combinedFilter(
-            tinyFiles, new String[] {"accessTime"}, new String[] {"olderThanYears:1"});
-    final Collection<INode> smallFiles1yr =
-        queryEngine.combinedFilter(
-            smallFiles, new String[] {"accessTime"}, new String[] {"olderThanYears:1"});
-
-    final long emptyFilesCount = emptyFiles.size();
-    final long emptyDirsCount = emptyDirs.size();
-    final long emptyFilesMem = queryEngine.sum(emptyFiles, "memoryConsumed");
-    final long emptyDirsMem = queryEngine.sum(emptyDirs, "memoryConsumed");
-    final long tinyFilesCount = tinyFiles.size();
-    final long smallFilesCount = smallFiles.size();
-    final long mediumFilesCount = mediumFiles.size();
-    final long largeFilesCount =
-        numFiles - emptyFilesCount - tinyFilesCount - smallFilesCount - mediumFilesCount;
-    final long tinyFilesMem = queryEngine.sum(tinyFiles, "memoryConsumed");
-    final long smallFilesMem = queryEngine.sum(smallFiles, "memoryConsumed");
-    final long tinyFilesDs = queryEngine.sum(tinyFiles, "diskspaceConsumed");
-    final long smallFilesDs = queryEngine.sum(smallFiles, "diskspaceConsumed");
-
-    final long emptyFiles24hCount = emptyFiles24h.size();
-    final long emptyDirs24hCount = emptyDirs24h.size();
-    final long emptyFiles24hMem = queryEngine.sum(emptyFiles24h, "memoryConsumed");
-    final long emptyDirs24hMem = queryEngine.sum(emptyDirs24h, "memoryConsumed");
-    final long tinyFiles24hCount = tinyFiles24h.size();
-    final long smallFiles24hCount = smallFiles24h.size();
-    final long tinyFiles24hMem = queryEngine.sum(tinyFiles24h, "memoryConsumed");
-    final long smallFiles24hMem = queryEngine.sum(smallFiles24h, "memoryConsumed");
-    final long tinyFiles24hDs = queryEngine.sum(tinyFiles24h, "diskspaceConsumed");
-    final long smallFiles24hDs = queryEngine.sum(smallFiles24h, "diskspaceConsumed");
-
-    final long emptyFiles1yrCount = emptyFiles1yr.size();
-    final long emptyDirs1yrCount = emptyDirs1yr.size();
-    final long tinyFiles1yrCount = tinyFiles1yr.size();
-    final long smallFiles1yrCount = smallFiles1yr.size();
-
-    final long oldFiles1yrCount = oldFiles1yr.size();
-    final long oldFiles2yrCount = oldFiles2yr.size();
-    final long oldFiles1yrDs = queryEngine.sum(oldFiles1yr, "diskspaceConsumed");
-    final long oldFiles2yrDs = queryEngine.sum(oldFiles2yr, "diskspaceConsumed");
-
-    final Map<String, Long> filesUsers = queryEngine.byUserHistogram(files, "count", null);
-    final Map<String, Long> dirsUsers = queryEngine.byUserHistogram(dirs, "count", null);
-
-    final Map<String, Long> emptyFilesUsers =
-        queryEngine.byUserHistogram(emptyFiles, "count", null);
-    final Map<String, Long> emptyDirsUsers = queryEngine.byUserHistogram(emptyDirs, "count", null);
-    final Map<String, Long> tinyFilesUsers = queryEngine.byUserHistogram(tinyFiles, "count", null);
-    final Map<String, Long> smallFilesUsers =
-        queryEngine.byUserHistogram(smallFiles, "count", null);
-    final Map<String, Long> mediumFilesUsers =
-        queryEngine.byUserHistogram(mediumFiles, "count", null);
-    final Map<String, Long> largeFilesUsers = new HashMap<>(users.size());
-    users.forEach(
-        u -> {
-          long largeFiles =
-              filesUsers.getOrDefault(u, 0L)
-                  - emptyFilesUsers.getOrDefault(u, 0L)
-                  - tinyFilesUsers.getOrDefault(u, 0L)
-                  - smallFilesUsers.getOrDefault(u, 0L)
-                  - mediumFilesUsers.getOrDefault(u, 0L);
-          largeFilesUsers.put(u, largeFiles);
-        });
-
-    final Map<String, Long> emptyFiles24hUsers =
-        queryEngine.byUserHistogram(emptyFiles24h, "count", null);
-    final Map<String, Long> emptyDirs24hUsers =
-        queryEngine.byUserHistogram(emptyDirs24h, "count", null);
-    final Map<String, Long> tinyFiles24hUsers =
-        queryEngine.byUserHistogram(tinyFiles24h, "count", null);
-    final Map<String, Long> smallFiles24hUsers =
-        queryEngine.byUserHistogram(smallFiles24h, "count", null);
-    final Map<String, Long> emptyFiles1yrUsers =
-        queryEngine.byUserHistogram(emptyFiles1yr, "count", null);
-    final Map<String, Long> emptyDirs1yrUsers =
-        queryEngine.byUserHistogram(emptyDirs1yr, "count", null);
-    final Map<String, Long> tinyFiles1yrUsers =
-        queryEngine.byUserHistogram(tinyFiles1yr, "count", null);
-    final Map<String, Long> smallFiles1yrUsers =
-        queryEngine.byUserHistogram(smallFiles1yr, "count", null);
-    final Map<String, Long> emptyFilesMemUsers =
-        queryEngine.byUserHistogram(emptyFiles, "memoryConsumed", null);
-    final Map<String, Long> emptyDirsMemUsers =
-        queryEngine.byUserHistogram(emptyDirs, "memoryConsumed", null);
-    final Map<String, Long> tinyFilesMemUsers =
-        queryEngine.byUserHistogram(tinyFiles, "memoryConsumed", null);
-    final Map<String, Long> smallFilesMemUsers =
-        queryEngine.byUserHistogram(smallFiles, "memoryConsumed", null);
-    final Map<String, Long> tinyFilesDsUsers =
-        queryEngine.byUserHistogram(tinyFiles, "diskspaceConsumed", null);
-    final Map<String, Long> smallFilesDsUsers =
-        queryEngine.byUserHistogram(smallFiles, "diskspaceConsumed", null);
-    final Map<String, Long> emptyFiles24hMemUsers =
-        queryEngine.byUserHistogram(emptyFiles24h, "memoryConsumed", null);
-    final Map<String, Long> emptyDirs24hMemUsers =
-        queryEngine.byUserHistogram(emptyDirs24h, "memoryConsumed", null);
-    final Map<String, Long> tinyFiles24hMemUsers =
-        queryEngine.byUserHistogram(tinyFiles24h, "memoryConsumed", null);
-    final Map<String, Long> smallFiles24hMemUsers =
-        queryEngine.byUserHistogram(smallFiles24h, "memoryConsumed", null);
-    final Map<String, Long> tinyFiles24hDsUsers =
-        queryEngine.byUserHistogram(tinyFiles24h, "diskspaceConsumed", null);
-    final Map<String, Long> smallFiles24hDsUsers =
-        queryEngine.byUserHistogram(smallFiles24h, "diskspaceConsumed", null);
 
     Map<String, Long> dirCount = queryEngine.parentDirHistogram(files, 3, "count", null);
     Map<String, Long> dirDs = queryEngine.parentDirHistogram(files, 3, "diskspaceConsumed", null);
     dirCount = Histograms.sliceToTop(dirCount, 1000);
     dirDs = Histograms.sliceToTop(dirDs, 1000);
 
-    VirtualINodeTree tree = new VirtualINodeTree();
-    cachedDirs.forEach(tree::addElement);
-    List<String> commonRoots = tree.getCommonAncestorsAsStrings();
-
-    for (String commonRoot : commonRoots) {
-      Collection<INode> commonINodes =
-          queryEngine.combinedFilter(
-              files, new String[] {"path"}, new String[] {"startsWith:" + commonRoot});
-
-      for (String cachedDir : cachedDirs) {
-        if (!cachedDir.startsWith(commonRoot)) {
-          continue;
-        }
-        Collection<INode> inodes;
-        if (cachedDir.equals(commonRoot)) {
-          inodes = commonINodes;
-        } else {
-          inodes =
-              queryEngine.combinedFilter(
-                  commonINodes, new String[] {"path"}, new String[] {"startsWith:" + cachedDir});
-        }
-        long count = inodes.size();
-        long diskspaceConsumed = queryEngine.sum(inodes, "diskspaceConsumed");
-        dirCount.put(cachedDir, count);
-        dirDs.put(cachedDir, diskspaceConsumed);
-      }
-    }
-
     Map<String, Long> dirCount24h = queryEngine.parentDirHistogram(files24h, 3, "count", null);
     dirCount24h = Histograms.sliceToTop(dirCount24h, 1000);
     Map<String, Long> dirDs24h =
         queryEngine.parentDirHistogram(files24h, 3, "diskspaceConsumed", null);
     dirDs24h = Histograms.sliceToTop(dirDs24h, 1000);
-    for (String dir : cachedDirs) {
-      Collection<INode> inodes =
+
+    // Each cached directory is a contiguous range of the subtree index; no path strings are built.
+    final SubtreeIndex subtreeIndex = nameNodeLoader.refreshSubtreeIndex();
+    for (String cachedDir : cachedDirs) {
+      Collection<INode> inodes = subtreeIndex.getFiles(cachedDir);
+      dirCount.put(cachedDir, (long) inodes.size());
+      dirDs.put(cachedDir, queryEngine.sum(inodes, "diskspaceConsumed"));
+      Collection<INode> inodes24h =
           queryEngine.combinedFilter(
-              files24h, new String[] {"path"}, new String[] {"startsWith:" + dir});
-      long count = inodes.size();
-      long diskspaceConsumed = queryEngine.sum(inodes, "diskspaceConsumed");
-      dirCount24h.put(dir, count);
-      dirDs24h.put(dir, diskspaceConsumed);
+              inodes, new String[] {"modTime"}, new String[] {"hoursAgo:24"});
+      dirCount24h.put(cachedDir, (long) inodes24h.size());
+      dirDs24h.put(cachedDir, queryEngine.sum(inodes24h, "diskspaceConsumed"));
     }
 
     long nsQuotaCount = 0;
@@ -342,9 +177,7 @@ public class SuggestionsEngine {
     final Map<String, Long> nsQuotaCountsUsers = new HashMap<>();
     final Map<String, Long> dsQuotaCountsUsers = new HashMap<>();
     for (String user : users) {
-      Collection<INode> quotaDirs =
-          queryEngine.combinedFilter(
-              dirs, new String[] {"user", "hasQuota"}, new String[] {"eq:" + user, "eq:true"});
+      Collection<INode> quotaDirs = dirResult.getQuotaDirs(user);
       Map<String, Long> nsQuotaRatio = queryEngine.dirQuotaHistogram(quotaDirs, "nsQuotaRatioUsed");
       Map<String, Long> dsQuotaRatio = queryEngine.dirQuotaHistogram(quotaDirs, "dsQuotaRatioUsed");
       final long nsThreshExceeded =
@@ -376,82 +209,16 @@ public class SuggestionsEngine {
     cachedValues.put("timeTaken", timeTaken);
     cachedValues.put("reportTime", e1);
     cachedValues.put("capacity", capacity);
-    cachedValues.put("diskspace", diskspace);
-    cachedValues.put("diskspace24h", diskspace24h);
-    cachedValues.put("numFiles", numFiles);
-    cachedValues.put("numFiles24h", numFiles24h);
-    cachedValues.put("numDirs", numDirs);
-    cachedValues.put("totalFiles", numFiles);
-    cachedValues.put("totalDirs", numDirs);
-    cachedValues.put("emptyFiles", emptyFilesCount);
-    cachedValues.put("emptyDirs", emptyDirsCount);
-    cachedValues.put("tinyFiles", tinyFilesCount);
-    cachedValues.put("smallFiles", smallFilesCount);
-    cachedValues.put("emptyFiles24h", emptyFiles24hCount);
-    cachedValues.put("emptyDirs24h", emptyDirs24hCount);
-    cachedValues.put("tinyFiles24h", tinyFiles24hCount);
-    cachedValues.put("smallFiles24h", smallFiles24hCount);
-    cachedValues.put("emptyFiles1yr", emptyFiles1yrCount);
-    cachedValues.put("emptyDirs1yr", emptyDirs1yrCount);
-    cachedValues.put("tinyFiles1yr", tinyFiles1yrCount);
-    cachedValues.put("smallFiles1yr", smallFiles1yrCount);
-    cachedValues.put("mediumFiles", mediumFilesCount);
-    cachedValues.put("largeFiles", largeFilesCount);
-    cachedValues.put("emptyFilesMem", emptyFilesMem);
-    cachedValues.put("emptyDirsMem", emptyDirsMem);
-    cachedValues.put("tinyFilesMem", tinyFilesMem);
-    cachedValues.put("tinyFilesDs", tinyFilesDs);
-    cachedValues.put("smallFilesMem", smallFilesMem);
-    cachedValues.put("smallFilesDs", smallFilesDs);
-    cachedValues.put("emptyFiles24hMem", emptyFiles24hMem);
-    cachedValues.put("emptyDirs24hMem", emptyDirs24hMem);
-    cachedValues.put("tinyFiles24hMem", tinyFiles24hMem);
-    cachedValues.put("smallFiles24hMem", smallFiles24hMem);
-    cachedValues.put("tinyFiles24hDs", tinyFiles24hDs);
-    cachedValues.put("smallFiles24hDs", smallFiles24hDs);
-    cachedValues.put("oldFiles1yr", oldFiles1yrCount);
-    cachedValues.put("oldFiles1yrDs", oldFiles1yrDs);
-    cachedValues.put("oldFiles2yr", oldFiles2yrCount);
-    cachedValues.put("oldFiles2yrDs", oldFiles2yrDs);
+    synchronized (incremental) {
+      putAggregates(fileResult, dirResult);
+      if (!incremental.reset(generation, aggregator, fileResult, dirResult)) {
+        LOG.info("Namespace was replaced while reloading; not counting INode changes yet.");
+      }
+    }
     cachedValues.put("nsQuotaCount", nsQuotaCount);
     cachedValues.put("dsQuotaCount", dsQuotaCount);
     cachedValues.put("nsQuotaThreshCount", nsQuotaThreshCount);
     cachedValues.put("dsQuotaThreshCount", dsQuotaThreshCount);
-    cachedMaps.put("diskspaceUsers", diskspaceUsers);
-    cachedMaps.put("numFilesUsers", filesUsers);
-    cachedMaps.put("numDirsUsers", dirsUsers);
-    cachedMaps.put("emptyFilesUsers", emptyFilesUsers);
-    cachedMaps.put("emptyDirsUsers", emptyDirsUsers);
-    cachedMaps.put("emptyFilesMemUsers", emptyFilesMemUsers);
-    cachedMaps.put("emptyDirsMemUsers", emptyDirsMemUsers);
-    cachedMaps.put("tinyFilesUsers", tinyFilesUsers);
-    cachedMaps.put("smallFilesUsers", smallFilesUsers);
-    cachedMaps.put("tinyFilesMemUsers", tinyFilesMemUsers);
-    cachedMaps.put("smallFilesMemUsers", smallFilesMemUsers);
-    cachedMaps.put("tinyFilesDsUsers", tinyFilesDsUsers);
-    cachedMaps.put("smallFilesDsUsers", smallFilesDsUsers);
-    cachedMaps.put("diskspace24hUsers", diskspace24hUsers);
-    cachedMaps.put("numFiles24hUsers", numFiles24hUsers);
-    cachedMaps.put("emptyFiles24hUsers", emptyFiles24hUsers);
-    cachedMaps.put("emptyDirs24hUsers", emptyDirs24hUsers);
-    cachedMaps.put("emptyFiles24hMemUsers", emptyFiles24hMemUsers);
-    cachedMaps.put("emptyDirs24hMemUsers", emptyDirs24hMemUsers);
-    cachedMaps.put("tinyFiles24hUsers", tinyFiles24hUsers);
-    cachedMaps.put("smallFiles24hUsers", smallFiles24hUsers);
-    cachedMaps.put("tinyFiles24hMemUsers", tinyFiles24hMemUsers);
-    cachedMaps.put("smallFiles24hMemUsers", smallFiles24hMemUsers);
-    cachedMaps.put("tinyFiles24hDsUsers", tinyFiles24hDsUsers);
-    cachedMaps.put("smallFiles24hDsUsers", smallFiles24hDsUsers);
-    cachedMaps.put("emptyFiles1yrUsers", emptyFiles1yrUsers);
-    cachedMaps.put("emptyDirs1yrUsers", emptyDirs1yrUsers);
-    cachedMaps.put("tinyFiles1yrUsers", tinyFiles1yrUsers);
-    cachedMaps.put("smallFiles1yrUsers", smallFiles1yrUsers);
-    cachedMaps.put("mediumFilesUsers", mediumFilesUsers);
-    cachedMaps.put("largeFilesUsers", largeFilesUsers);
-    cachedMaps.put("oldFiles1yrUsers", oldFiles1yrCountUsers);
-    cachedMaps.put("oldFiles1yrDsUsers", oldFiles1yrDsUsers);
-    cachedMaps.put("oldFiles2yrUsers", oldFiles2yrCountUsers);
-    cachedMaps.put("oldFiles2yrDsUsers", oldFiles2yrDsUsers);
     cachedMaps.put("dirCount", dirCount);
     cachedMaps.put("dirDs", dirDs);
     cachedMaps.put("dirCount24h", dirCount24h);
@@ -492,6 +259,157 @@ public class SuggestionsEngine {
     LOG.info("Writing to embedded MapDB took: {} ms.", (e4 - s4));
   }
 
+  /**
+   * The listener to install on the INode map so that edits tailed between full reloads are queued
+   * for {@link #applyINodeChanges(QueryEngine)}.
+   *
+   * @return the INode map listener
+   */
+  public INodeListener getINodeListener() {
+    return incremental;
+  }
+
+  /**
+   * Stops applying INode changes to the suggestions until the next reloadSuggestions(), e.g. while
+   * the namespace is replaced by one that replays edits the counters already hold.
+   */
+  public void invalidateINodeChanges() {
+    incremental.invalidate();
+  }
+
+  /**
+   * Applies the INode changes queued since the last call to the suggestions bucket counters. Does
+   * nothing until the first full reload has finished; quota and directory reports are still only
+   * refreshed by reloadSuggestions().
+   *
+   * @param queryEngine the query engine providing the INode attribute functions
+   * @return the number of INodes re-classified
+   */
+  public int applyINodeChanges(QueryEngine queryEngine) {
+    final long s1 = System.currentTimeMillis();
+    final int changes;
+    synchronized (incremental) {
+      changes = incremental.apply(queryEngine);
+      if (changes <= 0) {
+        return Math.max(changes, 0);
+      }
+      putAggregates(incremental.getFiles(), incremental.getDirs());
+      cachedUsers.addAll(incremental.getFiles().getUsers());
+      cachedUsers.addAll(incremental.getDirs().getUsers());
+    }
+    final long e1 = System.currentTimeMillis();
+    cachedValues.put("incrementalTime", e1);
+    LOG.info("Applying {} INode changes to suggestions took: {} ms.", changes, (e1 - s1));
+    return changes;
+  }
+
+  /**
+   * Puts the counters of the suggestions buckets into the caches. Used by the full reload and by
+   * every incremental update.
+   *
+   * @param files the file counters
+   * @param dirs the directory counters
+   */
+  private void putAggregates(
+      SuggestionsAggregator.Result files, SuggestionsAggregator.Result dirs) {
+    final long largeFiles =
+        files.getTotal(ALL, COUNT)
+            - files.getTotal(EMPTY, COUNT)
+            - files.getTotal(TINY, COUNT)
+            - files.getTotal(SMALL, COUNT)
+            - files.getTotal(MEDIUM, COUNT);
+    final Map<String, Long> filesUsers = files.getByUser(ALL, COUNT);
+    final Map<String, Long> emptyFilesUsers = files.getByUser(EMPTY, COUNT);
+    final Map<String, Long> tinyFilesUsers = files.getByUser(TINY, COUNT);
+    final Map<String, Long> smallFilesUsers = files.getByUser(SMALL, COUNT);
+    final Map<String, Long> mediumFilesUsers = files.getByUser(MEDIUM, COUNT);
+    final Set<String> users = Sets.union(files.getUsers(), dirs.getUsers());
+    final Map<String, Long> largeFilesUsers = new HashMap<>(users.size());
+    users.forEach(
+        u -> {
+          long largeUserFiles =
+              filesUsers.getOrDefault(u, 0L)
+                  - emptyFilesUsers.getOrDefault(u, 0L)
+                  - tinyFilesUsers.getOrDefault(u, 0L)
+                  - smallFilesUsers.getOrDefault(u, 0L)
+                  - mediumFilesUsers.getOrDefault(u, 0L);
+          largeFilesUsers.put(u, largeUserFiles);
+        });
+
+    cachedValues.put("diskspace", files.getTotal(ALL, DISKSPACE));
+    cachedValues.put("diskspace24h", files.getTotal(RECENT, DISKSPACE));
+    cachedValues.put("numFiles", files.getTotal(ALL, COUNT));
+    cachedValues.put("numFiles24h", files.getTotal(RECENT, COUNT));
+    cachedValues.put("numDirs", dirs.getTotal(ALL, COUNT));
+    cachedValues.put("totalFiles", files.getTotal(ALL, COUNT));
+    cachedValues.put("totalDirs", dirs.getTotal(ALL, COUNT));
+    cachedValues.put("emptyFiles", files.getTotal(EMPTY, COUNT));
+    cachedValues.put("emptyDirs", dirs.getTotal(EMPTY, COUNT));
+    cachedValues.put("tinyFiles", files.getTotal(TINY, COUNT));
+    cachedValues.put("smallFiles", files.getTotal(SMALL, COUNT));
+    cachedValues.put("emptyFiles24h", files.getTotal(EMPTY_24H, COUNT));
+    cachedValues.put("emptyDirs24h", dirs.getTotal(EMPTY_24H, COUNT));
+    cachedValues.put("tinyFiles24h", files.getTotal(TINY_24H, COUNT));
+    cachedValues.put("smallFiles24h", files.getTotal(SMALL_24H, COUNT));
+    cachedValues.put("emptyFiles1yr", files.getTotal(EMPTY_1YR, COUNT));
+    cachedValues.put("emptyDirs1yr", dirs.getTotal(EMPTY_1YR, COUNT));
+    cachedValues.put("tinyFiles1yr", files.getTotal(TINY_1YR, COUNT));
+    cachedValues.put("smallFiles1yr", files.getTotal(SMALL_1YR, COUNT));
+    cachedValues.put("mediumFiles", files.getTotal(MEDIUM, COUNT));
+    cachedValues.put("largeFiles", largeFiles);
+    cachedValues.put("emptyFilesMem", files.getTotal(EMPTY, MEMORY));
+    cachedValues.put("emptyDirsMem", dirs.getTotal(EMPTY, MEMORY));
+    cachedValues.put("tinyFilesMem", files.getTotal(TINY, MEMORY));
+    cachedValues.put("tinyFilesDs", files.getTotal(TINY, DISKSPACE));
+    cachedValues.put("smallFilesMem", files.getTotal(SMALL, MEMORY));
+    cachedValues.put("smallFilesDs", files.getTotal(SMALL, DISKSPACE));
+    cachedValues.put("emptyFiles24hMem", files.getTotal(EMPTY_24H, MEMORY));
+    cachedValues.put("emptyDirs24hMem", dirs.getTotal(EMPTY_24H, MEMORY));
+    cachedValues.put("tinyFiles24hMem", files.getTotal(TINY_24H, MEMORY));
+    cachedValues.put("smallFiles24hMem", files.getTotal(SMALL_24H, MEMORY));
+    cachedValues.put("tinyFiles24hDs", files.getTotal(TINY_24H, DISKSPACE));
+    cachedValues.put("smallFiles24hDs", files.getTotal(SMALL_24H, DISKSPACE));
+    cachedValues.put("oldFiles1yr", files.getTotal(OLD_1YR, COUNT));
+    cachedValues.put("oldFiles1yrDs", files.getTotal(OLD_1YR, DISKSPACE));
+    cachedValues.put("oldFiles2yr", files.getTotal(OLD_2YR, COUNT));
+    cachedValues.put("oldFiles2yrDs", files.getTotal(OLD_2YR, DISKSPACE));
+    cachedMaps.put("diskspaceUsers", files.getByUser(ALL, DISKSPACE));
+    cachedMaps.put("numFilesUsers", filesUsers);
+    cachedMaps.put("numDirsUsers", dirs.getByUser(ALL, COUNT));
+    cachedMaps.put("emptyFilesUsers", emptyFilesUsers);
+    cachedMaps.put("emptyDirsUsers", dirs.getByUser(EMPTY, COUNT));
+    cachedMaps.put("emptyFilesMemUsers", files.getByUser(EMPTY, MEMORY));
+    cachedMaps.put("emptyDirsMemUsers", dirs.getByUser(EMPTY, MEMORY));
+    cachedMaps.put("tinyFilesUsers", tinyFilesUsers);
+    cachedMaps.put("smallFilesUsers", smallFilesUsers);
+    cachedMaps.put("tinyFilesMemUsers", files.getByUser(TINY, MEMORY));
+    cachedMaps.put("smallFilesMemUsers", files.getByUser(SMALL, MEMORY));
+    cachedMaps.put("tinyFilesDsUsers", files.getByUser(TINY, DISKSPACE));
+    cachedMaps.put("smallFilesDsUsers", files.getByUser(SMALL, DISKSPACE));
+    cachedMaps.put("diskspace24hUsers", files.getByUser(RECENT, DISKSPACE));
+    cachedMaps.put("numFiles24hUsers", files.getByUser(RECENT, COUNT));
+    cachedMaps.put("emptyFiles24hUsers", files.getByUser(EMPTY_24H, COUNT));
+    cachedMaps.put("emptyDirs24hUsers", dirs.getByUser(EMPTY_24H, COUNT));
+    cachedMaps.put("emptyFiles24hMemUsers", files.getByUser(EMPTY_24H, MEMORY));
+    cachedMaps.put("emptyDirs24hMemUsers", dirs.getByUser(EMPTY_24H, MEMORY));
+    cachedMaps.put("tinyFiles24hUsers", files.getByUser(TINY_24H, COUNT));
+    cachedMaps.put("smallFiles24hUsers", files.getByUser(SMALL_24H, COUNT));
+    cachedMaps.put("tinyFiles24hMemUsers", files.getByUser(TINY_24H, MEMORY));
+    cachedMaps.put("smallFiles24hMemUsers", files.getByUser(SMALL_24H, MEMORY));
+    cachedMaps.put("tinyFiles24hDsUsers", files.getByUser(TINY_24H, DISKSPACE));
+    cachedMaps.put("smallFiles24hDsUsers", files.getByUser(SMALL_24H, DISKSPACE));
+    cachedMaps.put("emptyFiles1yrUsers", files.getByUser(EMPTY_1YR, COUNT));
+    cachedMaps.put("emptyDirs1yrUsers", dirs.getByUser(EMPTY_1YR, COUNT));
+    cachedMaps.put("tinyFiles1yrUsers", files.getByUser(TINY_1YR, COUNT));
+    cachedMaps.put("smallFiles1yrUsers", files.getByUser(SMALL_1YR, COUNT));
+    cachedMaps.put("mediumFilesUsers", mediumFilesUsers);
+    cachedMaps.put("largeFilesUsers", largeFilesUsers);
+    cachedMaps.put("oldFiles1yrUsers", files.getByUser(OLD_1YR, COUNT));
+    cachedMaps.put("oldFiles1yrDsUsers", files.getByUser(OLD_1YR, DISKSPACE));
+    cachedMaps.put("oldFiles2yrUsers", files.getByUser(OLD_2YR, COUNT));
+    cachedMaps.put("oldFiles2yrDsUsers", files.getByUser(OLD_2YR, DISKSPACE));
+  }
+
   public String getTokens() {
     return Histograms.toJson(Histograms.sortByValue(cachedLogins, true));
   }
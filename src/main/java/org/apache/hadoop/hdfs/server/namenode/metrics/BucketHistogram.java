@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of observations over fixed bucket bounds, in the cumulative form of a Prometheus
+ * histogram. Observing is lock-free and safe from any number of threads.
+ */
+final class BucketHistogram {
+
+  private final double[] bounds;
+  private final LongAdder[] counts;
+  private final DoubleAdder sum = new DoubleAdder();
+
+  /** @param bounds the inclusive upper bounds of the buckets, ascending */
+  BucketHistogram(double[] bounds) {
+    this.bounds = bounds;
+    this.counts = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  void observe(double value) {
+    int bucket = Arrays.binarySearch(bounds, value);
+    if (bucket < 0) {
+      bucket = -bucket - 1;
+    }
+    counts[bucket].increment();
+    sum.add(value);
+  }
+
+  /** @return the number of observations in each bucket and below; the last is the total */
+  long[] getCumulativeCounts() {
+    long[] cumulative = new long[counts.length];
+    long total = 0L;
+    for (int i = 0; i < counts.length; i++) {
+      total += counts[i].sum();
+      cumulative[i] = total;
+    }
+    return cumulative;
+  }
+
+  double getSum() {
+    return sum.sum();
+  }
+
+  double[] getBounds() {
+    return bounds;
+  }
+}
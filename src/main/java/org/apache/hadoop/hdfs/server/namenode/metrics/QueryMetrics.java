@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide query latency and volume metrics, rendered in the Prometheus text exposition format
+ * by {@link #toPrometheus()}.
+ *
+ * <p>Latencies are kept per endpoint and per query pipeline stage: fetch of the INode set, filter,
+ * sum, bin (histograms), sort (conditions, slicing and sorting of histograms) and serialize. Also
+ * kept are the time queries wait for admission, the INodes in the sets fetched for queries and the
+ * sizes of results. Buckets are fixed so that the series can be aggregated across instances and
+ * turned into quantiles, e.g. a p99, with histogram_quantile().
+ */
+public final class QueryMetrics {
+
+  /** Latency bucket bounds in seconds, from 1 ms to 30 minutes. */
+  static final double[] LATENCY_BOUNDS = {
+    0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500,
+    1000, 1800
+  };
+
+  /** Result size bucket bounds, in entries. */
+  static final double[] SIZE_BOUNDS = {
+    0, 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+  };
+
+  public static final String STAGE_FETCH = "fetch";
+  public static final String STAGE_FILTER = "filter";
+  public static final String STAGE_SUM = "sum";
+  public static final String STAGE_BIN = "bin";
+  public static final String STAGE_SORT = "sort";
+  public static final String STAGE_SERIALIZE = "serialize";
+
+  private static final Family ENDPOINT_LATENCY =
+      new Family(
+          "nna_endpoint_latency_seconds",
+          "Time to serve a request, by endpoint.",
+          "endpoint",
+          LATENCY_BOUNDS);
+  private static final Family STAGE_LATENCY =
+      new Family(
+          "nna_stage_latency_seconds",
+          "Time spent in a query pipeline stage, by stage.",
+          "stage",
+          LATENCY_BOUNDS);
+  private static final Family ADMISSION_WAIT =
+      new Family(
+          "nna_query_admission_wait_seconds",
+          "Time queries waited for a scan permit and the query lock.",
+          null,
+          LATENCY_BOUNDS);
+  private static final Family RESULT_SIZE =
+      new Family(
+          "nna_query_result_size",
+          "Number of entries in query results, by query.",
+          "query",
+          SIZE_BOUNDS);
+
+  private static final ConcurrentMap<String, LongAdder> ERRORS = new ConcurrentHashMap<>();
+  private static final LongAdder SCANNED = new LongAdder();
+
+  private QueryMetrics() {}
+
+  /** Histograms of one metric, one per label value. */
+  private static final class Family {
+    private final String name;
+    private final String help;
+    private final String label;
+    private final double[] bounds;
+    private final ConcurrentMap<String, BucketHistogram> series = new ConcurrentHashMap<>();
+
+    private Family(String name, String help, String label, double[] bounds) {
+      this.name = name;
+      this.help = help;
+      this.label = label;
+      this.bounds = bounds;
+    }
+
+    private void observe(String labelValue, double value) {
+      String key = (labelValue == null) ? "" : labelValue;
+      series.computeIfAbsent(key, k -> new BucketHistogram(bounds)).observe(value);
+    }
+
+    private void write(StringBuilder out) {
+      out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      out.append("# TYPE ").append(name).append(" histogram\n");
+      for (Map.Entry<String, BucketHistogram> entry : new TreeMap<>(series).entrySet()) {
+        String labels = (label == null) ? "" : label + "=\"" + escape(entry.getKey()) + "\"";
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        BucketHistogram histogram = entry.getValue();
+        long[] counts = histogram.getCumulativeCounts();
+        double[] bucketBounds = histogram.getBounds();
+        for (int i = 0; i < counts.length; i++) {
+          String le = (i < bucketBounds.length) ? format(bucketBounds[i]) : "+Inf";
+          out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le);
+          out.append("\"} ").append(counts[i]).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ');
+        out.append(format(histogram.getSum())).append('\n');
+        out.append(name).append("_count").append(braces).append(' ');
+        out.append(counts[counts.length - 1]).append('\n');
+      }
+    }
+  }
+
+  /**
+   * @param endpoint the endpoint, e.g. "histogram"
+   * @param millis the time taken to serve the request
+   */
+  public static void observeEndpoint(String endpoint, long millis) {
+    ENDPOINT_LATENCY.observe(endpoint, millis / 1000.0);
+  }
+
+  /** @param endpoint the endpoint whose request failed */
+  public static void endpointFailed(String endpoint) {
+    ERRORS.computeIfAbsent(endpoint, k -> new LongAdder()).increment();
+  }
+
+  /**
+   * @param stage the pipeline stage, one of the STAGE_ constants
+   * @param millis the time taken by the stage
+   */
+  public static void observeStage(String stage, long millis) {
+    STAGE_LATENCY.observe(stage, millis / 1000.0);
+  }
+
+  /** @param nanos the time a query waited for admission */
+  public static void observeAdmissionWait(long nanos) {
+    ADMISSION_WAIT.observe(null, nanos / 1e9);
+  }
+
+  /** @param inodes the number of INodes in a set fetched for a query */
+  public static void addScanned(long inodes) {
+    SCANNED.add(inodes);
+  }
+
+  /**
+   * @param query the query, e.g. "histogram"
+   * @param size the number of entries in its result
+   */
+  public static void observeResultSize(String query, long size) {
+    RESULT_SIZE.observe(query, size);
+  }
+
+  /** @return all metrics in the Prometheus text exposition format */
+  public static String toPrometheus() {
+    StringBuilder out = new StringBuilder(8192);
+    ENDPOINT_LATENCY.write(out);
+    out.append("# HELP nna_endpoint_errors_total Requests that failed, by endpoint.\n");
+    out.append("# TYPE nna_endpoint_errors_total counter\n");
+    for (Map.Entry<String, LongAdder> entry : new TreeMap<>(ERRORS).entrySet()) {
+      out.append("nna_endpoint_errors_total{endpoint=\"").append(escape(entry.getKey()));
+      out.append("\"} ").append(entry.getValue().sum()).append('\n');
+    }
+    STAGE_LATENCY.write(out);
+    ADMISSION_WAIT.write(out);
+    RESULT_SIZE.write(out);
+    out.append("# HELP nna_scanned_inodes_total INodes in the sets fetched for queries.\n");
+    out.append("# TYPE nna_scanned_inodes_total counter\n");
+    out.append("nna_scanned_inodes_total ").append(SCANNED.sum()).append('\n');
+    return out.toString();
+  }
+
+  private static String format(double value) {
+    if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -32,6 +32,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import org.apache.hadoop.hdfs.server.namenode.NameNodeLoader;
+import org.apache.hadoop.hdfs.server.namenode.metrics.QueryMetrics;
 import org.slf4j.Logger;
 
 public class Histograms {
@@ -73,6 +74,7 @@ public class Histograms {
             + " chars took: "
             + (e1 - s1)
             + " ms.");
+    QueryMetrics.observeStage(QueryMetrics.STAGE_SERIALIZE, System.currentTimeMillis() - s1);
     return gson;
   }
 
@@ -87,6 +89,7 @@ public class Histograms {
     String gson = new Gson().toJson(set);
     long e1 = System.currentTimeMillis();
     LOG.info("Time to convert object to JSON of {} chars took: {} ms.", gson.length(), (e1 - s1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_SERIALIZE, e1 - s1);
     return gson;
   }
 
@@ -106,7 +109,8 @@ public class Histograms {
         sb.append(entry.getKey()).append(',').append(entry.getValue().toString()).append('\n');
       } else {
         String[] finds = find.split(":");
-        String findField = finds[1];
+        // Distinct counts of timestamps are counts, not dates.
+        String findField = finds[0].equals("distinct") ? "" : finds[1];
         switch (findField) {
           case "accessTime":
           case "modTime":
@@ -123,6 +127,7 @@ public class Histograms {
     String csv = sb.toString();
     LOG.info(
         "Time to dump histogram to CSV String of {} chars took: {} ms.", csv.length(), (e1 - s1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_SERIALIZE, e1 - s1);
     return csv;
   }
 
@@ -149,6 +154,7 @@ public class Histograms {
     String csv = sb.toString();
     LOG.info(
         "Time to dump histogram2 to CSV String of {} chars took: {} ms.", csv.length(), (e1 - s1));
+    QueryMetrics.observeStage(QueryMetrics.STAGE_SERIALIZE, e1 - s1);
     return csv;
   }
 
@@ -244,21 +250,36 @@ public class Histograms {
    *     ["0":100,"2":200,"2+":300].
    */
   public static Map<String, Long> mapToNonEmptyIndex(long[] histogram) {
+    return mapToNonEmptyIndex(histogram, histogram.length - 1);
+  }
+
+  /**
+   * Creates a mapped histogram from the leading columns of a histogram and its last column, where
+   * every column in between is empty. Avoids allocating the empty columns when the last column
+   * index is large.
+   *
+   * @param histogram the leading column values followed by the value of the last column, ex:
+   *     [100,0,300]
+   * @param lastColumnIndex the index of the last column, ex: 5
+   * @return mapped histogram with the same keys as {@link #mapToNonEmptyIndex(long[])} would
+   *     produce for the full array, ex: ["0":100,"5":300,"5+":300].
+   */
+  public static Map<String, Long> mapToNonEmptyIndex(long[] histogram, long lastColumnIndex) {
     if (histogram.length == 0) {
       return Collections.emptyMap();
     }
     Map<String, Long> sortedHistogram = new LinkedHashMap<>();
-    for (int i = 0; i < histogram.length; i++) {
+    for (int i = 0; i < histogram.length - 1; i++) {
       long currentColumnValue = histogram[i];
       if (currentColumnValue != 0L) {
         sortedHistogram.put(Integer.toString(i), histogram[i]);
       }
     }
-    int lastColumnIndex = histogram.length - 1;
-    String lastColumn = Integer.toString(lastColumnIndex);
-    long lastColumnValue = histogram[lastColumnIndex];
+    String lastColumn = Long.toString(lastColumnIndex);
+    long lastColumnValue = histogram[histogram.length - 1];
     if (lastColumnValue != 0L) {
-      sortedHistogram.put(lastColumn + "+", histogram[lastColumnIndex]);
+      sortedHistogram.put(lastColumn, lastColumnValue);
+      sortedHistogram.put(lastColumn + "+", lastColumnValue);
     }
     return sortedHistogram;
   }
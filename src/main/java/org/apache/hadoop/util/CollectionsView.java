@@ -114,6 +114,7 @@ public final class CollectionsView {
    *
    * <p>None of the above methods is thread safe (nor would there be an easy way of making them).
    */
+  @SafeVarargs
   public static <T> Collection<T> combine(final Collection<? extends T>... items) {
     return new JoinedCollectionView<>(items);
   }
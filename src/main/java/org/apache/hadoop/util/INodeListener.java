@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.util;
+
+import org.apache.hadoop.hdfs.server.namenode.INode;
+
+/**
+ * Receives INode map mutations from {@link GSetSeperatorWrapper} as edits are tailed, and the
+ * INodes that tailed edits are about to change in place.
+ *
+ * <p>Callbacks run on the edit log tailer thread while it holds the namesystem write lock, so
+ * implementations must only record the change and return.
+ */
+public interface INodeListener {
+
+  /**
+   * Called after an INode was added to, or replaced in, the INode map.
+   *
+   * @param node the added INode
+   */
+  void inodeAdded(INode node);
+
+  /**
+   * Called after an INode was removed from, or replaced in, the INode map.
+   *
+   * @param node the removed INode
+   */
+  void inodeRemoved(INode node);
+
+  /**
+   * Called before an edit op changes an INode in place, i.e. without passing through the INode
+   * map; e.g. setting its replication or closing it.
+   *
+   * @param node the INode about to change
+   */
+  default void inodeModifying(INode node) {}
+}
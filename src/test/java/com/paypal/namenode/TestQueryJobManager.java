@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.paypal.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.junit.Test;
+
+public class TestQueryJobManager {
+
+  private static final int SET_SIZE = 100000;
+
+  private static final Collection<INode> INODES = Collections.nCopies(SET_SIZE, null);
+
+  private static QueryJob.State await(QueryJob job) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+    while (!job.getState().isDone() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    return job.getState();
+  }
+
+  @Test
+  public void testResultAndProgress() throws Exception {
+    QueryJobManager manager = new QueryJobManager(1, 1, 0, 60000);
+    QueryJob job =
+        manager.submit(
+            "count",
+            "user",
+            () -> {
+              long count = QueryJob.track(INODES).parallelStream().filter(x -> true).count();
+              return new SimpleImmutableEntry<>("text/plain", String.valueOf(count));
+            });
+    assertThat(await(job), is(QueryJob.State.SUCCEEDED));
+    assertThat(job.getResult().getValue(), is(String.valueOf(SET_SIZE)));
+    assertThat(job.getScanned(), is((long) SET_SIZE));
+    assertThat(job.getTotal(), is((long) SET_SIZE));
+    assertThat(job.getPasses(), is(1));
+    assertThat(job.getProgress(), is(1.0));
+    assertThat(manager.get(job.getId()), is(job));
+    manager.shutdown();
+  }
+
+  @Test
+  public void testCancelStopsScan() throws Exception {
+    QueryJobManager manager = new QueryJobManager(1, 1, 0, 60000);
+    CountDownLatch scanning = new CountDownLatch(1);
+    QueryJob job =
+        manager.submit(
+            "loop",
+            "user",
+            () -> {
+              Collection<INode> tracked = QueryJob.track(INODES);
+              while (true) {
+                tracked.parallelStream().forEach(node -> {});
+                scanning.countDown();
+              }
+            });
+    assertThat(scanning.await(30, TimeUnit.SECONDS), is(true));
+    assertThat(manager.cancel(job.getId()), is(true));
+    assertThat(await(job), is(QueryJob.State.CANCELLED));
+    assertThat(job.getPasses() >= 1, is(true));
+    assertThat(manager.cancel(job.getId()), is(false));
+    manager.shutdown();
+  }
+
+  @Test
+  public void testTimeoutStopsScan() throws Exception {
+    QueryJobManager manager = new QueryJobManager(1, 1, 100, 60000);
+    QueryJob job =
+        manager.submit(
+            "loop",
+            "user",
+            () -> {
+              Collection<INode> tracked = QueryJob.track(INODES);
+              while (true) {
+                tracked.parallelStream().forEach(node -> {});
+              }
+            });
+    assertThat(await(job), is(QueryJob.State.TIMED_OUT));
+    manager.shutdown();
+  }
+
+  @Test
+  public void testCancelWhileAwaitingAdmission() throws Exception {
+    QueryJobManager manager = new QueryJobManager(1, 1, 0, 60000);
+    CountDownLatch waiting = new CountDownLatch(1);
+    CountDownLatch admitted = new CountDownLatch(1);
+    AtomicBoolean queried = new AtomicBoolean(false);
+    QueryJob job =
+        manager.submit(
+            "admission",
+            "user",
+            () -> {
+              QueryJob.checkpointCurrent();
+              waiting.countDown();
+              admitted.await();
+              QueryJob.checkpointCurrent();
+              queried.set(true);
+              return new SimpleImmutableEntry<>("text/plain", "");
+            });
+    assertThat(waiting.await(30, TimeUnit.SECONDS), is(true));
+    assertThat(manager.cancel(job.getId()), is(true));
+    admitted.countDown();
+    assertThat(await(job), is(QueryJob.State.CANCELLED));
+    assertThat(queried.get(), is(false));
+    manager.shutdown();
+  }
+
+  @Test
+  public void testQueueIsBounded() throws Exception {
+    QueryJobManager manager = new QueryJobManager(1, 1, 0, 60000);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicBoolean queuedRan = new AtomicBoolean(false);
+    QueryJob running =
+        manager.submit(
+            "block",
+            "user",
+            () -> {
+              release.await();
+              return new SimpleImmutableEntry<>("text/plain", "");
+            });
+    QueryJob queued =
+        manager.submit(
+            "queued",
+            "user",
+            () -> {
+              queuedRan.set(true);
+              return new SimpleImmutableEntry<>("text/plain", "");
+            });
+    try {
+      manager.submit("rejected", "user", () -> new SimpleImmutableEntry<>("text/plain", ""));
+      throw new AssertionError("Expected the third query to be rejected.");
+    } catch (IllegalStateException expected) {
+      assertThat(manager.getJobs().size(), is(2));
+    }
+
+    assertThat(manager.cancel(queued.getId()), is(true));
+    assertThat(queued.getState(), is(QueryJob.State.CANCELLED));
+    release.countDown();
+    assertThat(await(running), is(QueryJob.State.SUCCEEDED));
+    Thread.sleep(100);
+    assertThat(queuedRan.get(), is(false));
+    manager.shutdown();
+  }
+
+  @Test
+  public void testFinishedJobsExpire() throws Exception {
+    QueryJobManager manager = new QueryJobManager(1, 1, 0, 0);
+    QueryJob job = manager.submit("done", "user", () -> new SimpleImmutableEntry<>("a", "b"));
+    assertThat(await(job), is(QueryJob.State.SUCCEEDED));
+    Thread.sleep(10);
+    assertThat(manager.get(job.getId()) == null, is(true));
+    manager.shutdown();
+  }
+}
@@ -23,6 +23,8 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.StringContains.containsString;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.paypal.namenode.WebServerMain;
 import com.paypal.security.SecurityConfiguration;
 import java.io.IOException;
@@ -57,6 +59,7 @@ public class TestAuthorization {
     SecurityConfiguration conf = new SecurityConfiguration();
     conf.set("ldap.enable", "false");
     conf.set("authorization.enable", "true");
+    conf.set("nna.readonly.users", "hdfsR,otherR,hdfs");
     conf.set("nna.base.dir", MiniDFSCluster.getBaseDirectory());
     nna.init(conf, gset);
     hostPort = new HttpHost("localhost", 4567);
@@ -157,4 +160,36 @@ public class TestAuthorization {
     assertThat(jsonString, containsString("hdfsR"));
     assertThat(jsonString, containsString("hdfsW"));
   }
+
+  @Test
+  public void testQueryJobsAreOwnedBySubmitter() throws IOException {
+    HttpGet submit =
+        new HttpGet(
+            "http://localhost:4567/submitQuery?query=histogram&set=files&type=fileSize"
+                + "&histogramOutput=json&proxy=hdfsR");
+    HttpResponse res = client.execute(hostPort, submit);
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    JsonObject status =
+        new Gson().fromJson(IOUtils.toString(res.getEntity().getContent()), JsonObject.class);
+    String id = status.get("id").getAsString();
+
+    String result = "http://localhost:4567/queryResult?id=" + id;
+    res = client.execute(hostPort, new HttpGet(result + "&proxy=otherR"));
+    IOUtils.toString(res.getEntity().getContent());
+    assertThat(res.getStatusLine().getStatusCode(), is(403));
+    res = client.execute(hostPort, new HttpGet(result + "&proxy=hdfsR"));
+    IOUtils.toString(res.getEntity().getContent());
+    assertThat(res.getStatusLine().getStatusCode() != 403, is(true));
+    res = client.execute(hostPort, new HttpGet(result + "&proxy=hdfs"));
+    IOUtils.toString(res.getEntity().getContent());
+    assertThat(res.getStatusLine().getStatusCode() != 403, is(true));
+
+    String cancel = "http://localhost:4567/cancelQuery?id=" + id;
+    res = client.execute(hostPort, new HttpGet(cancel + "&proxy=otherR"));
+    IOUtils.toString(res.getEntity().getContent());
+    assertThat(res.getStatusLine().getStatusCode(), is(403));
+    res = client.execute(hostPort, new HttpGet(cancel + "&proxy=hdfs"));
+    IOUtils.toString(res.getEntity().getContent());
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+  }
 }
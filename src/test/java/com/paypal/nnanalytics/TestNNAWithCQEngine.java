@@ -19,16 +19,23 @@
 
 package com.paypal.nnanalytics;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
 import com.paypal.namenode.WebServerMain;
 import com.paypal.security.SecurityConfiguration;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.hdfs.server.namenode.GSetGenerator;
 import org.apache.hadoop.hdfs.server.namenode.INode;
 import org.apache.hadoop.hdfs.server.namenode.INodeWithAdditionalFields;
 import org.apache.hadoop.hdfs.server.namenode.JavaCollectionQEngine;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
 import org.apache.hadoop.util.GSet;
 import org.apache.http.HttpHost;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -58,4 +65,52 @@ public class TestNNAWithCQEngine extends TestNNAnalyticsBase {
     nna.init(conf, gset);
     hostPort = new HttpHost("localhost", 4567);
   }
+
+  private static JavaCollectionQEngine awaitIndexes() throws InterruptedException {
+    JavaCollectionQEngine queryEngine = (JavaCollectionQEngine) nna.getLoader().getQueryEngine();
+    while (queryEngine.getIndexesBuilt() < queryEngine.getIndexesTotal()
+        || queryEngine.getIndexBuilding() != null) {
+      Thread.sleep(100L);
+    }
+    return queryEngine;
+  }
+
+  @Test(timeout = 60000)
+  public void testBackgroundIndexes() throws Exception {
+    JavaCollectionQEngine queryEngine = awaitIndexes();
+    assertThat(queryEngine.getIndexesTotal(), is(9));
+
+    Collection<INode> files = queryEngine.getINodeSet("files");
+    long modTime = files.iterator().next().getModificationTime();
+    long expectedModTime =
+        files.stream().filter(node -> node.getModificationTime() >= modTime).count();
+    Collection<INode> filtered =
+        queryEngine.combinedFilter(
+            files, new String[] {"modTime"}, new String[] {"gte:" + modTime});
+    assertThat((long) filtered.size(), is(expectedModTime));
+
+    long expectedUser = files.stream().filter(node -> node.getUserName().equals("hdfs")).count();
+    filtered = queryEngine.combinedFilter(files, new String[] {"user"}, new String[] {"eq:hdfs"});
+    assertThat((long) filtered.size(), is(expectedUser));
+  }
+
+  @Test(timeout = 60000)
+  public void testIndexedResultsFollowInPlaceChanges() throws Exception {
+    JavaCollectionQEngine queryEngine = awaitIndexes();
+    Collection<INode> files = queryEngine.getINodeSet("files");
+    INode changed = files.iterator().next();
+    long modTime = changed.getModificationTime();
+    try {
+      // Moves the file out of its indexed bucket without any INode map change.
+      changed.setModificationTime(modTime - TimeUnit.DAYS.toMillis(365), Snapshot.CURRENT_STATE_ID);
+      long expected = files.stream().filter(node -> node.getModificationTime() >= modTime).count();
+      Collection<INode> filtered =
+          queryEngine.combinedFilter(
+              files, new String[] {"modTime"}, new String[] {"gte:" + modTime});
+      assertThat(filtered.contains(changed), is(false));
+      assertThat((long) filtered.size(), is(expected));
+    } finally {
+      changed.setModificationTime(modTime, Snapshot.CURRENT_STATE_ID);
+    }
+  }
 }
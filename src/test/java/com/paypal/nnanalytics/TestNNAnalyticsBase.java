@@ -36,18 +36,22 @@ import com.google.gson.stream.JsonReader;
 import com.paypal.namenode.WebServerMain;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.hdfs.server.namenode.Constants;
 import org.apache.hadoop.hdfs.server.namenode.Constants.Endpoint;
@@ -60,7 +64,14 @@ import org.apache.hadoop.hdfs.server.namenode.Constants.Sum;
 import org.apache.hadoop.hdfs.server.namenode.GSetGenerator;
 import org.apache.hadoop.hdfs.server.namenode.INode;
 import org.apache.hadoop.hdfs.server.namenode.NameNodeLoader;
+import org.apache.hadoop.hdfs.server.namenode.PathDump;
+import org.apache.hadoop.hdfs.server.namenode.PathNames;
+import org.apache.hadoop.hdfs.server.namenode.SubtreeIndex;
+import org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsEngine;
 import org.apache.hadoop.hdfs.server.namenode.queries.Transforms;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+import org.apache.hadoop.util.INodeListener;
+import org.apache.http.Header;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
@@ -124,6 +135,23 @@ public abstract class TestNNAnalyticsBase {
     assertThat(IOUtils.toString(res.getEntity().getContent()), containsString("users"));
   }
 
+  @Test
+  public void testPrometheusMetrics() throws IOException {
+    HttpGet histogram = new HttpGet("http://localhost:4567/histogram?set=files&type=user");
+    HttpResponse res = client.execute(hostPort, histogram);
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    IOUtils.toString(res.getEntity().getContent());
+
+    HttpGet get = new HttpGet("http://localhost:4567/metrics/prometheus");
+    res = client.execute(hostPort, get);
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    String metrics = IOUtils.toString(res.getEntity().getContent());
+    assertThat(
+        metrics, containsString("nna_endpoint_latency_seconds_count{endpoint=\"histogram\"}"));
+    assertThat(metrics, containsString("nna_stage_latency_seconds_count{stage=\"bin\"}"));
+    assertThat(metrics, containsString("nna_query_admission_wait_seconds_count"));
+  }
+
   @Test
   public void testTokens() throws IOException {
     HttpGet get = new HttpGet("http://localhost:4567/token");
@@ -203,6 +231,237 @@ public abstract class TestNNAnalyticsBase {
     assertThat(res.getStatusLine().getStatusCode(), is(200));
   }
 
+  @Test
+  public void testIncrementalSuggestions() {
+    NameNodeLoader loader = nna.getLoader();
+    SuggestionsEngine suggestionsEngine = loader.getSuggestionsEngine();
+    suggestionsEngine.reloadSuggestions(loader);
+    long numFiles = getSuggestion(suggestionsEngine, "numFiles");
+    INode file = loader.getINodeSet("files").iterator().next();
+
+    suggestionsEngine.getINodeListener().inodeRemoved(file);
+    assertThat(suggestionsEngine.applyINodeChanges(loader.getQueryEngine()), is(1));
+    assertThat(getSuggestion(suggestionsEngine, "numFiles"), is(numFiles - 1));
+
+    suggestionsEngine.getINodeListener().inodeAdded(file);
+    assertThat(suggestionsEngine.applyINodeChanges(loader.getQueryEngine()), is(1));
+    assertThat(getSuggestion(suggestionsEngine, "numFiles"), is(numFiles));
+  }
+
+  @Test
+  public void testIncrementalSuggestionsFollowInPlaceChanges() throws Exception {
+    NameNodeLoader loader = nna.getLoader();
+    SuggestionsEngine suggestionsEngine = loader.getSuggestionsEngine();
+    INodeListener listener = suggestionsEngine.getINodeListener();
+    Iterator<INode> closedFiles =
+        loader
+            .getINodeSet("files")
+            .stream()
+            .filter(node -> !node.asFile().isUnderConstruction())
+            .iterator();
+    INode changed = closedFiles.next();
+    INode removed = closedFiles.next();
+    long changedModTime = changed.getModificationTime();
+    long removedModTime = removed.getModificationTime();
+    try {
+      suggestionsEngine.reloadSuggestions(loader);
+      long numFiles = getSuggestion(suggestionsEngine, "numFiles");
+      long numFiles24h = getSuggestion(suggestionsEngine, "numFiles24h");
+
+      // Reported by the tailer before the op changing the file is applied.
+      listener.inodeModifying(changed);
+      long delta = moveAcross24h(changed);
+      assertThat(suggestionsEngine.applyINodeChanges(loader.getQueryEngine()), is(1));
+      assertThat(getSuggestion(suggestionsEngine, "numFiles"), is(numFiles));
+      assertThat(getSuggestion(suggestionsEngine, "numFiles24h"), is(numFiles24h + delta));
+
+      // Removing a file changed since the reload takes away what the reload counted it as.
+      boolean wasRecent = isRecent(removed);
+      listener.inodeModifying(removed);
+      moveAcross24h(removed);
+      listener.inodeRemoved(removed);
+      assertThat(suggestionsEngine.applyINodeChanges(loader.getQueryEngine()), is(1));
+      assertThat(getSuggestion(suggestionsEngine, "numFiles"), is(numFiles - 1));
+      assertThat(
+          getSuggestion(suggestionsEngine, "numFiles24h"),
+          is(numFiles24h + delta - (wasRecent ? 1 : 0)));
+    } finally {
+      changed.setModificationTime(changedModTime, Snapshot.CURRENT_STATE_ID);
+      removed.setModificationTime(removedModTime, Snapshot.CURRENT_STATE_ID);
+      suggestionsEngine.reloadSuggestions(loader);
+    }
+  }
+
+  private static boolean isRecent(INode node) {
+    return node.getModificationTime() >= System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+  }
+
+  /** Moves a file in or out of the last 24h; returns the change in the count of recent files. */
+  private static long moveAcross24h(INode node) {
+    boolean recent = isRecent(node);
+    long modTime = System.currentTimeMillis() - (recent ? TimeUnit.DAYS.toMillis(2) : 0L);
+    node.setModificationTime(modTime, Snapshot.CURRENT_STATE_ID);
+    return recent ? -1L : 1L;
+  }
+
+  private static long getSuggestion(SuggestionsEngine suggestionsEngine, String key) {
+    JsonObject suggestions =
+        new Gson().fromJson(suggestionsEngine.getSuggestionsAsJson(null), JsonObject.class);
+    return suggestions.get(key).getAsLong();
+  }
+
+  @Test
+  public void testRepeatedColumnFiltersMatchFirstScan() {
+    NameNodeLoader loader = nna.getLoader();
+    Collection<INode> files = loader.getINodeSet("files");
+    String[] filters = new String[] {"fileReplica", "fileSize"};
+    String[] filterOps = new String[] {"eq:3", "gt:0"};
+    int combined = loader.getQueryEngine().combinedFilter(files, filters, filterOps).size();
+    int replicated = -1;
+    // Later rounds may intersect the results the columnar engine remembers of the first.
+    for (int round = 0; round < 3; round++) {
+      Collection<INode> replicatedFiles =
+          loader
+              .getQueryEngine()
+              .combinedFilter(files, new String[] {"fileReplica"}, new String[] {"eq:3"});
+      if (round == 0) {
+        replicated = replicatedFiles.size();
+      }
+      assertThat(replicatedFiles.size(), is(replicated));
+      Collection<INode> nested =
+          loader
+              .getQueryEngine()
+              .combinedFilter(replicatedFiles, new String[] {"fileSize"}, new String[] {"gt:0"});
+      assertThat(nested.size(), is(combined));
+      assertThat(
+          loader.getQueryEngine().combinedFilter(files, filters, filterOps).size(), is(combined));
+    }
+  }
+
+  @Test
+  public void testSubtreeIndexMatchesPathStartsWith() {
+    NameNodeLoader loader = nna.getLoader();
+    SubtreeIndex subtreeIndex = loader.refreshSubtreeIndex();
+    Collection<INode> files = loader.getINodeSet("files");
+    String path = files.iterator().next().getFullPathName();
+    String parent = path.substring(0, path.lastIndexOf('/'));
+    List<String> prefixes = new ArrayList<>();
+    prefixes.add("/");
+    prefixes.add(path);
+    prefixes.add(path.substring(0, path.length() - 1));
+    prefixes.add(parent);
+    prefixes.add(parent + "/");
+    prefixes.add(parent.substring(0, parent.length() - 1));
+    prefixes.add("/doesNotExist");
+    for (String prefix : prefixes) {
+      long expected =
+          files.stream().filter(node -> node.getFullPathName().startsWith(prefix)).count();
+      assertThat(subtreeIndex.getFiles(prefix).size(), is((int) expected));
+      Collection<INode> filtered =
+          loader
+              .getQueryEngine()
+              .combinedFilter(files, new String[] {"path"}, new String[] {"startsWith:" + prefix});
+      assertThat(filtered.size(), is((int) expected));
+    }
+  }
+
+  @Test
+  public void testPathNamesMatchFullPathName() {
+    NameNodeLoader loader = nna.getLoader();
+    List<INode> inodes = new ArrayList<>(loader.getINodeSet("dirs"));
+    inodes.addAll(loader.getINodeSet("files"));
+    for (INode node : inodes) {
+      String path = node.getFullPathName();
+      assertThat(PathNames.toString(node), is(path));
+      assertThat(PathNames.equals(node, path.getBytes(StandardCharsets.UTF_8)), is(true));
+      assertThat(PathNames.depth(node), is(path.equals("/") ? 0 : path.split("/").length - 1));
+    }
+    List<INode> sorted = new ArrayList<>(inodes);
+    sorted.sort(PathNames.COMPARATOR);
+    inodes.sort(Comparator.comparing(INode::getFullPathName));
+    assertThat(sorted, is(inodes));
+  }
+
+  @Test
+  public void testPagedFilterDump() throws IOException {
+    String filter = "http://localhost:4567/filter?set=files&filters=fileSize:gte:0";
+    HttpResponse res = client.execute(hostPort, new HttpGet(filter));
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    List<String> expected = IOUtils.readLines(res.getEntity().getContent());
+    assertThat(expected.size(), is(not(0)));
+
+    List<String> paged = new ArrayList<>();
+    String cursor = "";
+    do {
+      res = client.execute(hostPort, new HttpGet(filter + "&pageSize=1000&cursor=" + cursor));
+      assertThat(res.getStatusLine().getStatusCode(), is(200));
+      List<String> page = IOUtils.readLines(res.getEntity().getContent());
+      assertThat(page.size() <= 1000, is(true));
+      paged.addAll(page);
+      Header next = res.getFirstHeader(PathDump.CURSOR_HEADER);
+      cursor = (next == null) ? null : next.getValue();
+    } while (cursor != null);
+    assertThat(paged, is(expected));
+
+    res = client.execute(hostPort, new HttpGet(filter + "&sorted=false&gzip=true"));
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    List<String> unsorted =
+        IOUtils.readLines(new GZIPInputStream(res.getEntity().getContent()), "UTF-8");
+    unsorted.sort(Comparator.naturalOrder());
+    assertThat(unsorted, is(expected));
+
+    res = client.execute(hostPort, new HttpGet(filter + "&sorted=false&limit=3"));
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    List<String> limited = IOUtils.readLines(res.getEntity().getContent());
+    assertThat(limited.size(), is(Math.min(3, expected.size())));
+    assertThat(expected.containsAll(limited), is(true));
+  }
+
+  @Test
+  public void testSubmitQuery() throws IOException, InterruptedException {
+    String params = "set=files&type=parentDir&parentDirDepth=2&histogramOutput=json";
+    HttpResponse res =
+        client.execute(hostPort, new HttpGet("http://localhost:4567/histogram?" + params));
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    String expected = IOUtils.toString(res.getEntity().getContent());
+
+    res =
+        client.execute(
+            hostPort, new HttpGet("http://localhost:4567/submitQuery?query=histogram&" + params));
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    JsonObject status =
+        new Gson().fromJson(IOUtils.toString(res.getEntity().getContent()), JsonObject.class);
+    String id = status.get("id").getAsString();
+
+    String result = null;
+    for (int i = 0; i < 600 && result == null; i++) {
+      res = client.execute(hostPort, new HttpGet("http://localhost:4567/queryResult?id=" + id));
+      String body = IOUtils.toString(res.getEntity().getContent());
+      int code = res.getStatusLine().getStatusCode();
+      assertThat(code == 200 || code == 202, is(true));
+      if (code == 200) {
+        result = body;
+      } else {
+        Thread.sleep(100);
+      }
+    }
+    Gson gson = new Gson();
+    assertThat(gson.fromJson(result, Map.class), is(gson.fromJson(expected, Map.class)));
+
+    res = client.execute(hostPort, new HttpGet("http://localhost:4567/queryStatus?id=" + id));
+    status = new Gson().fromJson(IOUtils.toString(res.getEntity().getContent()), JsonObject.class);
+    assertThat(status.get("state").getAsString(), is("SUCCEEDED"));
+    assertThat(status.get("progress").getAsDouble(), is(1.0));
+
+    res = client.execute(hostPort, new HttpGet("http://localhost:4567/cancelQuery?id=" + id));
+    status = new Gson().fromJson(IOUtils.toString(res.getEntity().getContent()), JsonObject.class);
+    assertThat(status.get("state").getAsString(), is("SUCCEEDED"));
+
+    res = client.execute(hostPort, new HttpGet("http://localhost:4567/queryStatus?id=unknown"));
+    IOUtils.toString(res.getEntity().getContent());
+    assertThat(res.getStatusLine().getStatusCode(), is(400));
+  }
+
   @Test
   public void testDsQuotas() throws IOException {
     HttpGet get = new HttpGet("http://localhost:4567/quotas?sum=dsQuotaRatioUsed");
@@ -341,6 +600,25 @@ public abstract class TestNNAnalyticsBase {
     assertThat(res.getStatusLine().getStatusCode(), is(200));
   }
 
+  @Test
+  public void testMultiFilterOrderDoesNotMatter() throws IOException {
+    HttpGet get =
+        new HttpGet(
+            "http://localhost:4567/filter?set=files&filters=fileSize:lte:1048576,modTime:yearsAgo:1,user:notEq:nobody&sum=count");
+    HttpResponse res = client.execute(hostPort, get);
+    List<String> text = IOUtils.readLines(res.getEntity().getContent());
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    long count = Long.parseLong(text.get(0));
+
+    HttpGet reversed =
+        new HttpGet(
+            "http://localhost:4567/filter?set=files&filters=user:notEq:nobody,modTime:yearsAgo:1,fileSize:lte:1048576&sum=count");
+    HttpResponse reversedRes = client.execute(hostPort, reversed);
+    List<String> reversedText = IOUtils.readLines(reversedRes.getEntity().getContent());
+    assertThat(reversedRes.getStatusLine().getStatusCode(), is(200));
+    assertThat(Long.parseLong(reversedText.get(0)), is(count));
+  }
+
   @Test
   public void testFindMinFileSize() throws IOException {
     HttpGet get = new HttpGet("http://localhost:4567/filter?set=files&find=min:fileSize");
@@ -521,6 +799,54 @@ public abstract class TestNNAnalyticsBase {
     assertThat(res.getStatusLine().getStatusCode(), is(200));
   }
 
+  @Test
+  public void testApproxFilterCount() throws IOException {
+    HttpGet get = new HttpGet("http://localhost:4567/filter?set=files&sum=count&approx=true");
+    HttpResponse res = client.execute(hostPort, get);
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    String[] interval = IOUtils.toString(res.getEntity().getContent()).trim().split(",");
+    assertThat(interval.length, is(3));
+    long estimate = Long.parseLong(interval[0]);
+    assertThat(Long.parseLong(interval[1]) <= estimate, is(true));
+    assertThat(estimate <= Long.parseLong(interval[2]), is(true));
+    assertThat(estimate > 0, is(true));
+  }
+
+  @Test
+  public void testApproxUserHistogram() throws IOException {
+    HttpGet get =
+        new HttpGet(
+            "http://localhost:4567/histogram?set=files&type=user&sum=count&approx=true&histogramOutput=csv");
+    HttpResponse res = client.execute(hostPort, get);
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    List<String> lines = IOUtils.readLines(res.getEntity().getContent());
+    assertThat(lines.isEmpty(), is(false));
+  }
+
+  @Test
+  public void testApproxUserHistogram2WithCountAndDs() throws IOException {
+    HttpGet get =
+        new HttpGet(
+            "http://localhost:4567/histogram2?set=files&type=user&sum=count,diskspaceConsumed&approx=true&histogramOutput=csv");
+    HttpResponse res = client.execute(hostPort, get);
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    List<String> lines = IOUtils.readLines(res.getEntity().getContent());
+    assertThat(lines.isEmpty(), is(false));
+    for (String line : lines) {
+      // The user, then an estimate, lower and upper bound per sum.
+      assertThat(line.split(",").length, is(7));
+    }
+  }
+
+  @Test
+  public void testApproxHistogramRejectsFind() throws IOException {
+    HttpGet get =
+        new HttpGet(
+            "http://localhost:4567/histogram?set=files&type=user&find=max:fileSize&approx=true");
+    HttpResponse res = client.execute(hostPort, get);
+    assertThat(res.getStatusLine().getStatusCode(), is(not(200)));
+  }
+
   @Test
   public void testFileSizeHistogram() throws IOException {
     HttpGet get = new HttpGet("http://localhost:4567/histogram?set=files&type=fileSize");
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.paypal.nnanalytics;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import com.paypal.namenode.QueryAdmissionController;
+import com.paypal.security.SecurityConfiguration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class TestQueryAdmissionController {
+
+  private static QueryAdmissionController createController(boolean concurrent, int scans) {
+    SecurityConfiguration conf = new SecurityConfiguration();
+    conf.set("nna.query.concurrent.enable", String.valueOf(concurrent));
+    conf.set("nna.query.concurrent.scans", String.valueOf(scans));
+    return new QueryAdmissionController(conf);
+  }
+
+  @Test
+  public void testConcurrentQueriesShareLock() throws Exception {
+    QueryAdmissionController controller = createController(true, 2);
+    assertThat(controller.getMaxScans(), is(2));
+    controller.acquireQuery();
+    controller.acquireQuery();
+    assertThat(controller.getRunningScans(), is(2));
+    controller.releaseQuery();
+    controller.releaseQuery();
+    assertThat(controller.getRunningScans(), is(0));
+  }
+
+  @Test
+  public void testExclusiveWaitsForQueries() throws Exception {
+    QueryAdmissionController controller = createController(true, 4);
+    controller.acquireQuery();
+
+    AtomicBoolean exclusiveHeld = new AtomicBoolean(false);
+    CountDownLatch done = new CountDownLatch(1);
+    Thread reload =
+        new Thread(
+            () -> {
+              controller.acquireExclusive();
+              exclusiveHeld.set(true);
+              controller.releaseExclusive();
+              done.countDown();
+            });
+    reload.start();
+
+    assertThat(done.await(500, TimeUnit.MILLISECONDS), is(false));
+    assertThat(exclusiveHeld.get(), is(false));
+    controller.releaseQuery();
+    assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(exclusiveHeld.get(), is(true));
+  }
+
+  @Test
+  public void testNonConcurrentModeIsSerial() throws Exception {
+    QueryAdmissionController controller = createController(false, 8);
+    assertThat(controller.isConcurrent(), is(false));
+    assertThat(controller.getMaxScans(), is(1));
+    controller.acquireQuery();
+
+    CountDownLatch admitted = new CountDownLatch(1);
+    Thread query =
+        new Thread(
+            () -> {
+              try {
+                controller.acquireQuery();
+                admitted.countDown();
+                controller.releaseQuery();
+              } catch (InterruptedException ignored) {
+                /* Test thread interrupted. */
+              }
+            });
+    query.start();
+
+    assertThat(admitted.await(500, TimeUnit.MILLISECONDS), is(false));
+    assertThat(controller.getQueuedScans(), is(1));
+    controller.releaseQuery();
+    assertThat(admitted.await(5, TimeUnit.SECONDS), is(true));
+  }
+}
@@ -25,10 +25,15 @@ import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.StringContains.containsString;
 
 import com.paypal.namenode.WebServerMain;
+import com.paypal.security.SecurityConfiguration;
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
@@ -66,6 +71,7 @@ public abstract class TestWithMiniClusterBase {
   protected static HttpHost hostPort;
   protected static HttpClient client;
   protected static WebServerMain nna;
+  protected static SecurityConfiguration nnaConf;
 
   @AfterClass
   public static void tearDown() throws IOException {
@@ -210,6 +216,62 @@ public abstract class TestWithMiniClusterBase {
     assertThat(checkCount, is(greaterThan(startingCount)));
   }
 
+  @Test(timeout = 180000L)
+  public void testReloadModes() throws Exception {
+    assertReload("swap", "0.0", "swap");
+    assertReload("stream", "0.0", "stream");
+    assertReload("clear", "0.0", "clear");
+    // Without the headroom for a second namespace, swap must not load one next to the current.
+    assertReload("swap", "1000000.0", "clear");
+  }
+
+  /**
+   * Reloads the namespace while another client keeps querying it, then waits for NNA to tail the
+   * edits made before the reload.
+   */
+  private void assertReload(String mode, String headroom, String expectedMode) throws Exception {
+    nnaConf.set("nna.reload.mode", mode);
+    nnaConf.set("nna.reload.memory.headroom", headroom);
+    addDirs(10, 0L);
+    long txId = cluster.getDfsCluster().getNamesystem(0).getEditLog().getLastWrittenTxId();
+
+    AtomicBoolean reloading = new AtomicBoolean(true);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<Integer> queries =
+        executor.submit(
+            () -> {
+              HttpClient queryClient = new DefaultHttpClient();
+              int served = 0;
+              do {
+                HttpGet get = new HttpGet("http://localhost:4567/filter?set=dirs&sum=count");
+                HttpResponse res = queryClient.execute(hostPort, get);
+                assertThat(res.getStatusLine().getStatusCode(), is(200));
+                Long.parseLong(IOUtils.toString(res.getEntity().getContent()).trim());
+                served++;
+              } while (reloading.get());
+              return served;
+            });
+    try {
+      HttpGet reload = new HttpGet("http://localhost:4567/reloadNamespace");
+      HttpResponse res = client.execute(hostPort, reload);
+      assertThat(res.getStatusLine().getStatusCode(), is(200));
+      String body = IOUtils.toString(res.getEntity().getContent());
+      assertThat(body, containsString("Reload complete in mode: " + expectedMode + "."));
+    } finally {
+      reloading.set(false);
+      executor.shutdown();
+    }
+    assertThat(queries.get(), is(greaterThan(0)));
+
+    while (nna.getLoader().getCurrentTxId() < txId) {
+      Thread.sleep(200L);
+    }
+    HttpGet get = new HttpGet("http://localhost:4567/filter?set=dirs&sum=count");
+    HttpResponse res = client.execute(hostPort, get);
+    assertThat(res.getStatusLine().getStatusCode(), is(200));
+    IOUtils.toString(res.getEntity().getContent());
+  }
+
   protected void addFiles(int numOfFiles, long sleepBetweenMs) throws Exception {
     DistributedFileSystem fileSystem = (DistributedFileSystem) FileSystem.get(CONF);
     for (int i = 0; i < numOfFiles; i++) {
@@ -76,7 +76,7 @@ public class TestWithMiniClusterWithCQEngine extends TestWithMiniClusterBase {
     CONF.set("dfs.nameservice.id", NAMESERVICE);
 
     nna = new WebServerMain();
-    SecurityConfiguration nnaConf = new SecurityConfiguration();
+    nnaConf = new SecurityConfiguration();
     nnaConf.set("nna.support.bootstrap.overrides", "true");
     nnaConf.set("ldap.enable", "false");
     nnaConf.set("authorization.enable", "false");
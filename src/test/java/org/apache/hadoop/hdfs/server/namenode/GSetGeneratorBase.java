@@ -58,6 +58,17 @@ public abstract class GSetGeneratorBase {
     return new LightWeightGSet<>(LightWeightGSet.computeCapacity(1, "test"));
   }
 
+  /**
+   * Set the access time of a generated INode; unlike {@link INode#setAccessTime}, this takes no
+   * snapshot arguments, which differ across Hadoop versions.
+   *
+   * @param node the generated INode
+   * @param accessTime the new access time
+   */
+  public static void setAccessTime(INode node, long accessTime) {
+    ((INodeWithAdditionalFields) node).setAccessTime(accessTime);
+  }
+
   public GSet<INode, INodeWithAdditionalFields> getGSet() {
     return getGSet(DEFAULT_DEPTH, DEFAULT_NUM_DIRS, DEFAULT_NUM_FILES);
   }
@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.AclEntry;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+import org.apache.hadoop.util.GSet;
+import org.junit.Test;
+
+public class TestAnalyticsSnapshot {
+
+  @Test(timeout = 120000L)
+  public void testRoundTrip() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+    File snapshotFile = File.createTempFile("nna", ".snapshot");
+    try {
+      DistributedFileSystem fs = cluster.getFileSystem();
+      for (int i = 0; i < 20; i++) {
+        Path dir = new Path("/dir" + i + "/sub" + (i % 3));
+        fs.mkdirs(dir);
+        for (int j = 0; j < 10; j++) {
+          fs.create(new Path(dir, "file" + j), (short) (1 + j % 3)).close();
+        }
+      }
+      fs.setOwner(new Path("/dir1"), "someone", "somegroup");
+      fs.setPermission(new Path("/dir2/sub2/file3"), new FsPermission((short) 0600));
+      fs.setQuota(new Path("/dir3"), 1000L, HdfsConstants.QUOTA_DONT_SET);
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
+      fs.saveNamespace();
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_LEAVE);
+
+      Configuration nnConf = cluster.getConfiguration(0);
+      GSet<INode, INodeWithAdditionalFields> image = new ParallelImageLoader(nnConf, 4).load();
+      List<INode> files = new ArrayList<>();
+      List<INode> dirs = new ArrayList<>();
+      for (INodeWithAdditionalFields inode : image) {
+        (inode.isFile() ? files : dirs).add(inode);
+      }
+      AnalyticsSnapshot snapshot = new AnalyticsSnapshot(snapshotFile);
+      snapshot.write(42L, cluster.getNamesystem(), files, dirs, new VersionContext());
+      assertThat(snapshot.readTxId(), is(42L));
+
+      GSet<INode, INodeWithAdditionalFields> gset = snapshot.load(nnConf, 4);
+      FSDirectory fsDir = cluster.getNamesystem().getFSDirectory();
+      assertThat(gset.size(), is(fsDir.getInodeMapSize()));
+      for (INodeWithAdditionalFields inode : gset) {
+        INode expected = fsDir.getInode(inode.getId());
+        assertThat(inode.getFullPathName(), is(expected.getFullPathName()));
+        assertThat(inode.isDirectory(), is(expected.isDirectory()));
+        assertThat(inode.getUserName(), is(expected.getUserName()));
+        assertThat(inode.getGroupName(), is(expected.getGroupName()));
+        assertThat(inode.getFsPermissionShort(), is(expected.getFsPermissionShort()));
+        assertThat(inode.getModificationTime(), is(expected.getModificationTime()));
+        if (inode.isFile()) {
+          assertThat(
+              inode.asFile().getFileReplication(), is(expected.asFile().getFileReplication()));
+        } else {
+          assertThat(
+              inode.asDirectory().getChildrenNum(Snapshot.CURRENT_STATE_ID),
+              is(expected.asDirectory().getChildrenNum(Snapshot.CURRENT_STATE_ID)));
+          assertThat(inode.asDirectory().isWithQuota(), is(expected.asDirectory().isWithQuota()));
+        }
+      }
+    } finally {
+      cluster.shutdown();
+      snapshotFile.delete();
+    }
+  }
+
+  @Test(timeout = 120000L)
+  public void testTailingFromSnapshot() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    File snapshotFile = File.createTempFile("nna", ".snapshot");
+    FSNamesystem namesystem = null;
+    try {
+      DistributedFileSystem fs = cluster.getFileSystem();
+      DFSTestUtil.createFile(fs, new Path("/dir/old"), 1024L, (short) 1, 0L);
+      FSDataOutputStream open = fs.create(new Path("/dir/open"), (short) 1);
+      open.write(new byte[512]);
+      open.hflush();
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
+      fs.saveNamespace();
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_LEAVE);
+
+      Configuration nnConf = cluster.getConfiguration(0);
+      ParallelImageLoader imageLoader = new ParallelImageLoader(nnConf, 2);
+      GSet<INode, INodeWithAdditionalFields> image = imageLoader.load();
+      List<INode> files = new ArrayList<>();
+      List<INode> dirs = new ArrayList<>();
+      for (INodeWithAdditionalFields inode : image) {
+        (inode.isFile() ? files : dirs).add(inode);
+      }
+      long txId = imageLoader.getImageTxId();
+      AnalyticsSnapshot snapshot = new AnalyticsSnapshot(snapshotFile);
+      snapshot.write(txId, cluster.getNamesystem(), files, dirs, new VersionContext());
+      namesystem = StandbyNamesystem.build(nnConf, snapshot.load(nnConf, 2), txId);
+      FSDirectory fsDir = namesystem.getFSDirectory();
+      assertThat(fsDir.getINode("/dir/open").asFile().isUnderConstruction(), is(true));
+      assertThat(namesystem.getBlocksTotal(), is(2L));
+
+      open.close();
+      fs.delete(new Path("/dir/old"), false);
+      DFSTestUtil.createFile(fs, new Path("/dir/new/file"), 1024L, (short) 1, 0L);
+      FSEditLog editLog = cluster.getNamesystem().getEditLog();
+      namesystem.writeLock();
+      try {
+        namesystem
+            .getFSImage()
+            .loadEdits(editLog.selectInputStreams(txId + 1, 0, null, true), namesystem);
+      } finally {
+        namesystem.writeUnlock();
+      }
+
+      assertThat(namesystem.getFSImage().getLastAppliedTxId(), is(editLog.getLastWrittenTxId()));
+      assertThat(fsDir.getINode("/dir/old") == null, is(true));
+      assertThat(fsDir.getINode("/dir/open").asFile().isUnderConstruction(), is(false));
+      assertThat(fsDir.getINode("/dir/new/file").isFile(), is(true));
+      FSDirectory clusterDir = cluster.getNamesystem().getFSDirectory();
+      assertThat(fsDir.getInodeMapSize(), is(clusterDir.getInodeMapSize()));
+      assertThat(namesystem.getBlocksTotal(), is(cluster.getNamesystem().getBlocksTotal()));
+    } finally {
+      if (namesystem != null) {
+        namesystem.shutdown();
+      }
+      cluster.shutdown();
+      snapshotFile.delete();
+    }
+  }
+
+  @Test(timeout = 120000L)
+  public void testSnapshottableDirectoryIsNotRecorded() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+    File snapshotFile = File.createTempFile("nna", ".snapshot");
+    try {
+      DistributedFileSystem fs = cluster.getFileSystem();
+      fs.mkdirs(new Path("/snapshottable"));
+      fs.allowSnapshot(new Path("/snapshottable"));
+      FSDirectory fsDir = cluster.getNamesystem().getFSDirectory();
+      List<INode> dirs = new ArrayList<>();
+      dirs.add(fsDir.getINode("/"));
+      dirs.add(fsDir.getINode("/snapshottable"));
+      AnalyticsSnapshot snapshot = new AnalyticsSnapshot(snapshotFile);
+      try {
+        snapshot.write(1L, cluster.getNamesystem(), new ArrayList<>(), dirs, new VersionContext());
+        fail("Snapshottable directories can not be tailed from a snapshot.");
+      } catch (IOException e) {
+        assertThat(snapshotFile.exists(), is(false));
+      }
+    } finally {
+      cluster.shutdown();
+      snapshotFile.delete();
+    }
+  }
+
+  @Test(timeout = 120000L)
+  public void testAclIsNotRecorded() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_ACLS_ENABLED_KEY, true);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+    File snapshotFile = File.createTempFile("nna", ".snapshot");
+    try {
+      DistributedFileSystem fs = cluster.getFileSystem();
+      fs.create(new Path("/dir/file")).close();
+      fs.modifyAclEntries(new Path("/dir/file"), AclEntry.parseAclSpec("user:someone:r--", true));
+      FSDirectory fsDir = cluster.getNamesystem().getFSDirectory();
+      List<INode> files = new ArrayList<>();
+      files.add(fsDir.getINode("/dir/file"));
+      List<INode> dirs = new ArrayList<>();
+      dirs.add(fsDir.getINode("/"));
+      dirs.add(fsDir.getINode("/dir"));
+      AnalyticsSnapshot snapshot = new AnalyticsSnapshot(snapshotFile);
+      try {
+        snapshot.write(1L, cluster.getNamesystem(), files, dirs, new VersionContext());
+        fail("ACLs can not be reproduced from a snapshot.");
+      } catch (IOException e) {
+        assertThat(snapshotFile.exists(), is(false));
+      }
+    } finally {
+      cluster.shutdown();
+      snapshotFile.delete();
+    }
+  }
+
+  @Test
+  public void testMissingSnapshot() throws Exception {
+    File snapshotFile = File.createTempFile("nna", ".snapshot");
+    assertThat(snapshotFile.delete(), is(true));
+    assertThat(new AnalyticsSnapshot(snapshotFile).readTxId(), is(-1L));
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.apache.hadoop.util.GSet;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFilterCompiler {
+
+  private JavaStreamQueryEngine engine;
+  private FilterCompiler compiler;
+  private List<INode> files;
+  private List<INode> dirs;
+
+  @Before
+  public void before() {
+    GSetGenerator generator = new GSetGenerator();
+    generator.clear();
+    GSet<INode, INodeWithAdditionalFields> gset = generator.getGSet((short) 3, 4, 200);
+    files = new ArrayList<>();
+    dirs = new ArrayList<>();
+    for (INode node : gset) {
+      if (node.isFile()) {
+        files.add(node);
+      } else {
+        dirs.add(node);
+      }
+    }
+    engine = new JavaStreamQueryEngine();
+    engine.setContexts(null, new VersionContext());
+    compiler = new FilterCompiler(engine);
+  }
+
+  /** All INodes, files first, without random access; so the sample only sees files. */
+  private Collection<INode> filesThenDirs() {
+    Collection<INode> all = new LinkedList<>(files);
+    all.addAll(dirs);
+    return all;
+  }
+
+  private List<FilterCompiler.Term> compile(String... filterAndOps) {
+    List<FilterCompiler.Term> terms = new ArrayList<>();
+    for (String filterAndOp : filterAndOps) {
+      String[] split = filterAndOp.split(":", 2);
+      terms.add(compiler.compile(split[0], split[1].split(":")));
+    }
+    return terms;
+  }
+
+  private static long count(Collection<INode> inodes, List<FilterCompiler.Term> ordered) {
+    Predicate<INode> predicate = FilterCompiler.conjunction(ordered);
+    return inodes.stream().filter(predicate).count();
+  }
+
+  @Test
+  public void testFileTermStaysBehindTermsBeforeIt() {
+    Collection<INode> all = filesThenDirs();
+    List<FilterCompiler.Term> terms = compile("name:startsWith:file", "fileSize:gte:0");
+
+    List<FilterCompiler.Term> ordered = FilterCompiler.order(terms, all);
+
+    assertThat(ordered, is(terms));
+    assertThat(count(all, ordered), is((long) files.size()));
+  }
+
+  @Test
+  public void testTotalTermsAreOrderedBySelectivity() {
+    long id = files.get(files.size() / 2).getId();
+    List<FilterCompiler.Term> terms = compile("modTime:gt:0", "id:eq:" + id);
+
+    List<FilterCompiler.Term> ordered = FilterCompiler.order(terms, filesThenDirs());
+
+    assertThat(ordered.get(0), is(terms.get(1)));
+    assertThat(ordered.get(1), is(terms.get(0)));
+    assertThat(count(filesThenDirs(), ordered), is(1L));
+  }
+
+  @Test
+  public void testRunsAroundFileTermsAreOrderedSeparately() {
+    long id = dirs.get(0).getId();
+    List<FilterCompiler.Term> terms =
+        compile(
+            "modTime:gt:0",
+            "name:startsWith:file1",
+            "numBlocks:gte:0",
+            "accessTime:gt:0",
+            "id:notEq:" + id);
+
+    List<FilterCompiler.Term> ordered = FilterCompiler.order(terms, filesThenDirs());
+
+    assertThat(ordered.get(0), is(terms.get(1)));
+    assertThat(ordered.get(1), is(terms.get(0)));
+    assertThat(ordered.get(2), is(terms.get(2)));
+    assertThat(ordered.get(3), is(terms.get(3)));
+    assertThat(ordered.get(4), is(terms.get(4)));
+    assertThat(terms.get(2).isTotal(), is(false));
+  }
+
+  @Test
+  public void testCompiledTermsMatchEngineFunctions() {
+    Collection<INode> all = filesThenDirs();
+    for (String filter : Arrays.asList("id", "accessTime", "modTime", "memoryConsumed")) {
+      Function<INode, Long> value = engine.getFilterFunctionToLongForINode(filter);
+      long threshold = value.apply(files.get(files.size() / 3));
+      List<FilterCompiler.Term> terms = compile(filter + ":lte:" + threshold);
+      long expected = all.stream().filter(node -> value.apply(node) <= threshold).count();
+      assertThat(filter, count(all, terms), is(expected));
+    }
+    Function<INode, Long> fileSize = engine.getFilterFunctionToLongForINode("fileSize");
+    List<FilterCompiler.Term> terms = compile("fileSize:gt:1024");
+    long expected = files.stream().filter(node -> fileSize.apply(node) > 1024).count();
+    assertThat(count(files, terms), is(expected));
+  }
+
+  @Test
+  public void testSingleTermIsNotSampled() {
+    List<FilterCompiler.Term> terms = compile("fileSize:gt:0");
+    assertThat(FilterCompiler.order(terms, filesThenDirs()), is(terms));
+    assertThat(terms.get(0).getPassRate(), is(1.0d));
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.junit.Test;
+
+public class TestFilteredINodeCollection {
+
+  private static final PermissionStatus STATUS =
+      PermissionStatus.createImmutable("hdfs", "hdfs", FsPermission.getDefault());
+
+  private static INode inode(long id) {
+    return new INodeDirectory(id, ("dir" + id).getBytes(Constants.CHARSET), STATUS, 0L);
+  }
+
+  @Test
+  public void testSizeMatchesIterationOfChangingSource() {
+    List<INode> source = new CopyOnWriteArrayList<>();
+    for (long id = 16385; id < 16385 + 1000; id++) {
+      source.add(inode(id));
+    }
+    FilteredINodeCollection evens =
+        new FilteredINodeCollection(source, node -> node.getId() % 2 == 0);
+
+    int size = evens.size();
+    assertThat(evens.isEmpty(), is(false));
+    for (long id = 20000; id < 20100; id++) {
+      source.add(inode(id));
+    }
+    List<INode> iterated = new ArrayList<>();
+    evens.iterator().forEachRemaining(iterated::add);
+    assertThat(iterated.size(), is(size));
+    assertThat(evens.stream().count(), is((long) size));
+    assertThat(evens.parallelStream().count(), is((long) size));
+    assertThat(evens.size(), is(size));
+  }
+
+  @Test
+  public void testOnlyFirstPassIsLazy() {
+    List<INode> source = new CopyOnWriteArrayList<>();
+    for (long id = 16385; id < 16385 + 1000; id++) {
+      source.add(inode(id));
+    }
+    FilteredINodeCollection evens =
+        new FilteredINodeCollection(source, node -> node.getId() % 2 == 0);
+
+    assertThat(evens.stream().count(), is(500L));
+    List<INode> second = evens.stream().collect(Collectors.toList());
+    source.add(inode(30000));
+    assertThat(evens.stream().collect(Collectors.toList()), is(second));
+    assertThat(evens.size(), is(second.size()));
+  }
+
+  @Test
+  public void testCountAndSampleDoNotMaterialize() {
+    List<INode> source = new CopyOnWriteArrayList<>();
+    for (long id = 16385; id < 16385 + 1000; id++) {
+      source.add(inode(id));
+    }
+    FilteredINodeCollection evens =
+        new FilteredINodeCollection(source, node -> node.getId() % 2 == 0);
+
+    List<INode> sample =
+        evens.sample(inodes -> inodes.stream().limit(10).collect(Collectors.toList()));
+    assertThat(sample.size(), is(5));
+    assertThat(FilteredINodeCollection.count(evens), is(500L));
+    source.add(inode(30000));
+    assertThat(evens.stream().count(), is(501L));
+    assertThat(FilteredINodeCollection.count(evens), is(501L));
+    assertThat(FilteredINodeCollection.count(source), is(1001L));
+  }
+}
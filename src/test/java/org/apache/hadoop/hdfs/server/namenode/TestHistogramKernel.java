@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.function.LongToIntFunction;
+import org.apache.hadoop.hdfs.server.namenode.queries.Histograms;
+import org.apache.hadoop.hdfs.server.namenode.queries.SpaceSizeHistogram;
+import org.apache.hadoop.hdfs.server.namenode.queries.TimeHistogram;
+import org.junit.Test;
+
+public class TestHistogramKernel {
+
+  private static int linearBin(Long[] binsArray, long datum) {
+    for (int i = 0; i < binsArray.length; i++) {
+      if (datum <= binsArray[i]) {
+        return i;
+      }
+    }
+    return binsArray.length;
+  }
+
+  private static void assertLocatorMatchesLinearScan(Long[] binsArray) {
+    LongToIntFunction locator = HistogramKernel.thresholdLocator(binsArray);
+    Random random = new Random(0);
+    long max = binsArray[binsArray.length - 1];
+    for (int i = 0; i < 10000; i++) {
+      long datum = (long) (random.nextDouble() * max * 1.1) - 10;
+      assertThat(locator.applyAsInt(datum), is(linearBin(binsArray, datum)));
+    }
+    for (Long edge : binsArray) {
+      assertThat(locator.applyAsInt(edge), is(linearBin(binsArray, edge)));
+      assertThat(locator.applyAsInt(edge + 1), is(linearBin(binsArray, edge + 1)));
+    }
+  }
+
+  @Test
+  public void testThresholdLocatorMatchesLinearScan() {
+    assertLocatorMatchesLinearScan(SpaceSizeHistogram.getBinsArray());
+    assertLocatorMatchesLinearScan(TimeHistogram.getBinsArray("daily"));
+    assertLocatorMatchesLinearScan(TimeHistogram.getBinsArray("monthly"));
+    assertLocatorMatchesLinearScan(new Long[] {5L, 1L, 3L});
+  }
+
+  @Test
+  public void testSumAndFinds() {
+    long[] data = new long[] {0, 1, 1, 2, 7, -1};
+    long[] values = new long[] {10, 20, 40, 5, 3, 8};
+    LongToIntFunction locator = HistogramKernel.indexLocator(3);
+
+    long[] sums =
+        HistogramKernel.accumulate(data, values, 6, locator, 4, HistogramKernel.Mode.SUM, 0L);
+    assertThat(sums, is(new long[] {10, 60, 5, 11}));
+    long[] maxes =
+        HistogramKernel.accumulate(data, values, 6, locator, 4, HistogramKernel.Mode.MAX, -1L);
+    assertThat(maxes, is(new long[] {10, 40, 5, 8}));
+    long[] mins =
+        HistogramKernel.accumulate(data, values, 6, locator, 4, HistogramKernel.Mode.MIN, -1L);
+    assertThat(mins, is(new long[] {10, 20, 5, 3}));
+    long[] avgs =
+        HistogramKernel.accumulate(data, values, 6, locator, 4, HistogramKernel.Mode.AVG, -1L);
+    assertThat(avgs, is(new long[] {10, 30, 5, 5}));
+  }
+
+  @Test
+  public void testAverageDoesNotOverflow() {
+    int length = 100000;
+    long[] data = new long[length];
+    long[] values = new long[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = Long.MAX_VALUE - i;
+    }
+    long[] avgs =
+        HistogramKernel.accumulate(
+            data,
+            values,
+            length,
+            HistogramKernel.indexLocator(1),
+            2,
+            HistogramKernel.Mode.AVG,
+            0L);
+    BigInteger sum = BigInteger.ZERO;
+    for (long value : values) {
+      sum = sum.add(BigInteger.valueOf(value));
+    }
+    assertThat(avgs[0], is(sum.divide(BigInteger.valueOf(length)).longValue()));
+    assertThat(avgs[1], is(0L));
+  }
+
+  @Test
+  public void testPercentileAndDistinctFinds() {
+    int length = 100000;
+    long[] data = new long[length];
+    long[] values = new long[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = i % 2;
+      values[i] = (i % 2 == 0) ? i : (i / 2) % 1000;
+    }
+    LongToIntFunction locator = HistogramKernel.indexLocator(2);
+
+    long[] medians =
+        HistogramKernel.accumulate(
+            data, values, length, locator, 3, HistogramKernel.modeOf("p50"), -1L);
+    assertThat(Math.abs(medians[0] - length / 2) < length / 50, is(true));
+    assertThat(Math.abs(medians[1] - 500) < 20, is(true));
+    assertThat(medians[2], is(-1L));
+    long[] tails =
+        HistogramKernel.accumulate(
+            data, values, length, locator, 3, HistogramKernel.modeOf("p99"), -1L);
+    assertThat(Math.abs(tails[0] - length * 99 / 100) < length / 50, is(true));
+
+    long[] distincts =
+        HistogramKernel.accumulate(
+            data, values, length, locator, 3, HistogramKernel.modeOf("distinct"), -1L);
+    assertThat(Math.abs(distincts[0] - length / 2) < length / 40, is(true));
+    assertThat(Math.abs(distincts[1] - 1000) < 50, is(true));
+    assertThat(distincts[2], is(-1L));
+
+    long[] few =
+        HistogramKernel.accumulate(
+            new long[] {0, 0, 0, 1},
+            new long[] {3, 5, 3, 7},
+            4,
+            locator,
+            3,
+            HistogramKernel.Mode.DISTINCT,
+            0L);
+    assertThat(few, is(new long[] {2, 1, 0}));
+  }
+
+  @Test
+  public void testSparseNonEmptyIndexMatchesFullArray() {
+    long[] full = new long[] {100, 0, 200, 0, 0, 0, 300};
+    long[] sparse = new long[] {100, 0, 200, 300};
+    assertThat(
+        Histograms.mapToNonEmptyIndex(sparse, 6), is(Histograms.mapToNonEmptyIndex(full)));
+    assertThat(Histograms.mapToNonEmptyIndex(new long[0], 6).isEmpty(), is(true));
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.junit.Test;
+
+public class TestINodeRegistry {
+
+  private static final PermissionStatus STATUS =
+      PermissionStatus.createImmutable("hdfs", "hdfs", FsPermission.getDefault());
+
+  private static INode inode(long id) {
+    return new INodeDirectory(id, ("dir" + id).getBytes(Constants.CHARSET), STATUS, 0L);
+  }
+
+  @Test
+  public void testAddGetRemove() {
+    INodeRegistry registry = new INodeRegistry();
+    List<INode> inodes = new ArrayList<>();
+    for (long id = 16385; id < 16385 + 10000; id++) {
+      INode inode = inode(id);
+      inodes.add(inode);
+      assertThat(registry.add(inode), is(true));
+    }
+    assertThat(registry.size(), is(10000));
+    for (INode inode : inodes) {
+      assertThat(registry.get(inode.getId()) == inode, is(true));
+      assertThat(registry.contains(inode), is(true));
+    }
+
+    // Remove every third INode; the rest must still be found.
+    for (int i = 0; i < inodes.size(); i += 3) {
+      assertThat(registry.remove(inodes.get(i).getId()) == inodes.get(i), is(true));
+    }
+    assertThat(registry.size(), is(10000 - 3334));
+    for (int i = 0; i < inodes.size(); i++) {
+      boolean kept = (i % 3 != 0);
+      assertThat(registry.get(inodes.get(i).getId()) != null, is(kept));
+    }
+    assertThat(registry.remove(inodes.get(0).getId()) == null, is(true));
+
+    // Re-adding fills the freed slots instead of growing.
+    for (int i = 0; i < inodes.size(); i += 3) {
+      registry.add(inodes.get(i));
+    }
+    assertThat(registry.size(), is(10000));
+    assertThat(new HashSet<>(registry), is(new HashSet<>(inodes)));
+  }
+
+  @Test
+  public void testIndexGrowthStopsAtMaxCapacity() {
+    assertThat(INodeRegistry.grownIndexCapacity(1 << 29), is(1 << 30));
+    try {
+      INodeRegistry.grownIndexCapacity(1 << 30);
+      fail("Index grew past 2^30 slots.");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage().startsWith("INodeRegistry is full"), is(true));
+    }
+  }
+
+  @Test
+  public void testPutReplacesSameId() {
+    INodeRegistry registry = new INodeRegistry();
+    INode first = inode(20000L);
+    INode second = inode(20000L);
+    assertThat(registry.put(first) == null, is(true));
+    assertThat(registry.put(second) == first, is(true));
+    assertThat(registry.size(), is(1));
+    assertThat(registry.get(20000L) == second, is(true));
+    assertThat(registry.contains(first), is(false));
+  }
+
+  @Test
+  public void testIterationAndParallelSpliterator() {
+    INodeRegistry registry = new INodeRegistry(16);
+    Set<Long> expected = new HashSet<>();
+    for (long id = 0; id < 100000; id += 7) {
+      registry.add(inode(id));
+      expected.add(id);
+    }
+    for (long id = 0; id < 100000; id += 21) {
+      registry.remove(id);
+      expected.remove(id);
+    }
+    registry.trimToSize();
+
+    Set<Long> iterated = new HashSet<>();
+    for (INode inode : registry) {
+      iterated.add(inode.getId());
+    }
+    assertThat(iterated, is(expected));
+
+    Set<Long> streamed =
+        StreamSupport.stream(registry.spliterator(), true)
+            .map(INode::getId)
+            .collect(Collectors.toSet());
+    assertThat(streamed, is(expected));
+    assertThat(registry.parallelStream().count(), is((long) expected.size()));
+  }
+
+  @Test
+  public void testIteratorRemoveAndClear() {
+    INodeRegistry registry = new INodeRegistry();
+    for (long id = 1; id <= 100; id++) {
+      registry.add(inode(id));
+    }
+    Iterator<INode> it = registry.iterator();
+    while (it.hasNext()) {
+      if (it.next().getId() % 2 == 0) {
+        it.remove();
+      }
+    }
+    assertThat(registry.size(), is(50));
+    assertThat(registry.get(2L) == null, is(true));
+    assertThat(registry.get(3L) != null, is(true));
+
+    registry.clear();
+    assertThat(registry.size(), is(0));
+    assertThat(registry.iterator().hasNext(), is(false));
+    assertThat(registry.get(3L) == null, is(true));
+  }
+}
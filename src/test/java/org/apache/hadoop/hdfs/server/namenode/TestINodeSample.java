@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.junit.Test;
+
+public class TestINodeSample {
+
+  private long nextId = 16385;
+
+  private INodeDirectory dir(String user) {
+    PermissionStatus status =
+        PermissionStatus.createImmutable(user, "hdfs", FsPermission.getDefault());
+    long id = nextId++;
+    return new INodeDirectory(id, ("d" + id).getBytes(Constants.CHARSET), status, 0L);
+  }
+
+  private static Map<String, Long> count(Collection<INode> inodes) {
+    return Collections.singletonMap("count", (long) inodes.size());
+  }
+
+  @Test
+  public void testLevelOfRate() {
+    assertThat(INodeSample.levelOf(1.0), is(0));
+    assertThat(INodeSample.levelOf(0.5), is(1));
+    assertThat(INodeSample.levelOf(0.01), is(7));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsZeroRate() {
+    INodeSample.levelOf(0);
+  }
+
+  @Test
+  public void testEstimatesCountsWithinInterval() throws Exception {
+    List<INode> inodes = new ArrayList<>();
+    for (int i = 0; i < 100000; i++) {
+      inodes.add(dir("big"));
+    }
+    for (int i = 0; i < 100; i++) {
+      inodes.add(dir("rare"));
+    }
+    UserGroupDictionaries dictionaries = UserGroupDictionaries.build(inodes);
+    INodeSample sample = INodeSample.build(inodes, dictionaries, 1.0 / 16);
+    assertThat(sample.size() < 100000 / 8, is(true));
+
+    List<Long> all =
+        sample.estimate(sample.getINodeSet("all"), TestINodeSample::count).get("count");
+    assertThat(all.get(1) <= all.get(0) && all.get(0) <= all.get(2), is(true));
+    assertThat(Math.abs(all.get(0) - 100100) < 5000, is(true));
+    assertThat(all.get(1) <= 100100 && 100100 <= all.get(2), is(true));
+
+    // The rare user is sampled completely, so its count is exact.
+    Collection<INode> rare =
+        sample
+            .getINodeSet("dirs")
+            .stream()
+            .filter(node -> node.getUserName().equals("rare"))
+            .collect(Collectors.toList());
+    assertThat(
+        sample.estimate(rare, TestINodeSample::count).get("count"), is(listOf(100, 100, 100)));
+    assertThat(sample.getINodeSet("files").isEmpty(), is(true));
+  }
+
+  @Test
+  public void testAppliesAddedAndRemovedINodes() {
+    List<INode> inodes = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      inodes.add(dir("rare"));
+    }
+    UserGroupDictionaries dictionaries = UserGroupDictionaries.build(inodes);
+    INodeSample sample = INodeSample.build(inodes, dictionaries, 0.01);
+    assertThat(sample.size(), is(10));
+
+    INode added = dir("other");
+    sample.inodeAdded(added);
+    sample.inodeRemoved(inodes.get(0));
+    assertThat(sample.size(), is(10));
+    assertThat(sample.apply(), is(2));
+    assertThat(sample.size(), is(10));
+    assertThat(sample.getINodeSet("all").contains(added), is(true));
+    assertThat(sample.getINodeSet("all").contains(inodes.get(0)), is(false));
+  }
+
+  private static List<Long> listOf(long... values) {
+    List<Long> list = new ArrayList<>(values.length);
+    for (long value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.Test;
+
+public class TestOrdinalBitmap {
+
+  private static final int UNIVERSE = 300000;
+
+  /** Random members; dense below 70000 so both container kinds are exercised. */
+  private static BitSet randomSet(long seed) {
+    Random random = new Random(seed);
+    BitSet set = new BitSet(UNIVERSE);
+    for (int i = 0; i < UNIVERSE; i++) {
+      double rate = (i < 70000) ? 0.5 : 0.01;
+      if (random.nextDouble() < rate) {
+        set.set(i);
+      }
+    }
+    return set;
+  }
+
+  private static OrdinalBitmap toBitmap(BitSet set) {
+    return OrdinalBitmap.of(set.stream().toArray());
+  }
+
+  private static void assertSame(OrdinalBitmap bitmap, BitSet expected) {
+    assertThat(bitmap.cardinality(), is(expected.cardinality()));
+    assertThat(bitmap.stream().toArray(), is(expected.stream().toArray()));
+    assertThat(bitmap.stream().parallel().toArray(), is(expected.stream().toArray()));
+    int rank = 0;
+    for (int ordinal : expected.stream().toArray()) {
+      assertThat(bitmap.contains(ordinal), is(true));
+      if (rank % 97 == 0) {
+        assertThat(bitmap.select(rank), is(ordinal));
+      }
+      rank++;
+    }
+    assertThat(bitmap.contains(expected.nextClearBit(0)), is(false));
+  }
+
+  @Test
+  public void testBuildUsesBothContainerKinds() {
+    BitSet set = randomSet(1);
+    OrdinalBitmap bitmap = toBitmap(set);
+    assertSame(bitmap, set);
+    assertThat(bitmap.containerCount(), is(5));
+    assertThat(bitmap.bitmapContainerCount(), is(1));
+  }
+
+  @Test
+  public void testRange() {
+    BitSet set = new BitSet();
+    set.set(1000, 200000);
+    OrdinalBitmap range = OrdinalBitmap.range(1000, 200000);
+    assertSame(range, set);
+    assertThat(range, is(toBitmap(set)));
+    assertThat(OrdinalBitmap.range(5, 5).isEmpty(), is(true));
+  }
+
+  @Test
+  public void testSetAlgebraMatchesBitSet() {
+    BitSet left = randomSet(2);
+    BitSet right = randomSet(3);
+    right.clear(140000, 200000);
+    OrdinalBitmap leftBitmap = toBitmap(left);
+    OrdinalBitmap rightBitmap = toBitmap(right);
+
+    BitSet and = (BitSet) left.clone();
+    and.and(right);
+    assertSame(leftBitmap.and(rightBitmap), and);
+
+    BitSet or = (BitSet) left.clone();
+    or.or(right);
+    assertSame(leftBitmap.or(rightBitmap), or);
+
+    BitSet andNot = (BitSet) left.clone();
+    andNot.andNot(right);
+    assertSame(leftBitmap.andNot(rightBitmap), andNot);
+
+    assertThat(leftBitmap.andNot(leftBitmap).isEmpty(), is(true));
+    assertThat(leftBitmap.or(OrdinalBitmap.empty()), is(leftBitmap));
+  }
+
+  @Test
+  public void testFilterOnlyTestsMembers() {
+    BitSet set = randomSet(4);
+    OrdinalBitmap bitmap = toBitmap(set);
+    OrdinalBitmap filtered =
+        bitmap.filter(
+            ordinal -> {
+              if (!set.get(ordinal)) {
+                throw new AssertionError("Tested a non-member ordinal: " + ordinal);
+              }
+              return ordinal % 3 == 0;
+            });
+    BitSet expected = new BitSet();
+    set.stream().filter(ordinal -> ordinal % 3 == 0).forEach(expected::set);
+    assertSame(filtered, expected);
+    assertThat(bitmap.filter(ordinal -> false).isEmpty(), is(true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilderRejectsUnorderedOrdinals() {
+    new OrdinalBitmap.Builder().add(5).add(3);
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.util.GSet;
+import org.junit.Test;
+
+public class TestParallelImageLoader {
+
+  @Test(timeout = 120000L)
+  public void testMatchesNameNodeLoad() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+    try {
+      DistributedFileSystem fs = cluster.getFileSystem();
+      for (int i = 0; i < 20; i++) {
+        Path dir = new Path("/dir" + i + "/sub" + (i % 3));
+        fs.mkdirs(dir);
+        for (int j = 0; j < 10; j++) {
+          fs.create(new Path(dir, "file" + j), (short) (1 + j % 3)).close();
+        }
+      }
+      fs.setOwner(new Path("/dir1"), "someone", "somegroup");
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
+      fs.saveNamespace();
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_LEAVE);
+
+      ParallelImageLoader loader = new ParallelImageLoader(cluster.getConfiguration(0), 4);
+      GSet<INode, INodeWithAdditionalFields> gset = loader.load();
+
+      FSDirectory fsDir = cluster.getNamesystem().getFSDirectory();
+      assertThat(gset.size(), is(fsDir.getInodeMapSize()));
+      for (INodeWithAdditionalFields inode : gset) {
+        INode expected = fsDir.getInode(inode.getId());
+        assertThat(inode.getFullPathName(), is(expected.getFullPathName()));
+        assertThat(inode.isDirectory(), is(expected.isDirectory()));
+        assertThat(inode.getUserName(), is(expected.getUserName()));
+        assertThat(inode.getGroupName(), is(expected.getGroupName()));
+        assertThat(inode.getModificationTime(), is(expected.getModificationTime()));
+        if (inode.isFile()) {
+          assertThat(
+              inode.asFile().getFileReplication(), is(expected.asFile().getFileReplication()));
+        }
+      }
+      assertThat(
+          loader.getImageTxId(),
+          is(cluster.getNamesystem().getFSImage().getStorage().getMostRecentCheckpointTxId()));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  @Test(timeout = 120000L)
+  public void testTailingFromImage() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+    FSNamesystem namesystem = null;
+    try {
+      DistributedFileSystem fs = cluster.getFileSystem();
+      fs.create(new Path("/dir/old"), (short) 1).close();
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
+      fs.saveNamespace();
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_LEAVE);
+
+      Configuration nnConf = cluster.getConfiguration(0);
+      ParallelImageLoader loader = new ParallelImageLoader(nnConf, 2);
+      namesystem = StandbyNamesystem.build(nnConf, loader.load(), loader.getImageTxId());
+      fs.rename(new Path("/dir/old"), new Path("/dir/new"));
+      FSEditLog editLog = cluster.getNamesystem().getEditLog();
+      namesystem.writeLock();
+      try {
+        namesystem
+            .getFSImage()
+            .loadEdits(
+                editLog.selectInputStreams(loader.getImageTxId() + 1, 0, null, true), namesystem);
+      } finally {
+        namesystem.writeUnlock();
+      }
+
+      FSDirectory fsDir = namesystem.getFSDirectory();
+      assertThat(namesystem.getFSImage().getLastAppliedTxId(), is(editLog.getLastWrittenTxId()));
+      assertThat(fsDir.getINode("/dir/old") == null, is(true));
+      assertThat(fsDir.getINode("/dir/new").isFile(), is(true));
+    } finally {
+      if (namesystem != null) {
+        namesystem.shutdown();
+      }
+      cluster.shutdown();
+    }
+  }
+
+  @Test(timeout = 120000L)
+  public void testRejectsSnapshottableDirectories() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+    try {
+      DistributedFileSystem fs = cluster.getFileSystem();
+      fs.mkdirs(new Path("/snapshottable"));
+      fs.allowSnapshot(new Path("/snapshottable"));
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_ENTER);
+      fs.saveNamespace();
+      fs.setSafeMode(HdfsConstants.SafeModeAction.SAFEMODE_LEAVE);
+
+      try {
+        new ParallelImageLoader(cluster.getConfiguration(0), 2).load();
+        fail("Snapshottable directories can not be tailed after a parallel load.");
+      } catch (IOException e) {
+        assertThat(e.getMessage().startsWith("FsImage has snapshottable directories"), is(true));
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  @Test
+  public void testINodeTableAllocatesTouchedPagesOnly() throws Exception {
+    long lastInodeId = INodeId.ROOT_INODE_ID + 100_000_000L;
+    ParallelImageLoader.INodeTable table = new ParallelImageLoader.INodeTable(lastInodeId);
+    PermissionStatus status = new PermissionStatus("hdfs", "hdfs", FsPermission.getDefault());
+    INode root = new INodeDirectory(INodeId.ROOT_INODE_ID, new byte[0], status, 0L);
+    INode last = new INodeDirectory(lastInodeId, "last".getBytes(), status, 0L);
+    table.put(root);
+    table.put(last);
+
+    assertThat(table.getAllocatedPages(), is(2));
+    assertThat(table.get(INodeId.ROOT_INODE_ID) == root, is(true));
+    assertThat(table.get(lastInodeId) == last, is(true));
+    assertThat(table.get(lastInodeId - 1) == null, is(true));
+    assertThat(table.get(lastInodeId + 1) == null, is(true));
+    try {
+      table.put(new INodeDirectory(lastInodeId + 1, "after".getBytes(), status, 0L));
+      fail("INode ids past the last one of the FsImage must be rejected.");
+    } catch (IOException e) {
+      assertThat(table.getAllocatedPages(), is(2));
+    }
+  }
+}
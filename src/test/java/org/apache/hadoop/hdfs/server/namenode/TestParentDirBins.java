@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.junit.Test;
+
+public class TestParentDirBins {
+
+  private static final PermissionStatus STATUS =
+      PermissionStatus.createImmutable("hdfs", "hdfs", FsPermission.getDefault());
+
+  private long nextId = 16385;
+
+  private INodeDirectory dir(INodeDirectory parent, String name) {
+    INodeDirectory dir =
+        new INodeDirectory(nextId++, name.getBytes(Constants.CHARSET), STATUS, 0L);
+    dir.setParent(parent);
+    return dir;
+  }
+
+  @Test
+  public void testBinsByAncestorAtDepth() {
+    INodeDirectory root = dir(null, "");
+    INodeDirectory a = dir(root, "a");
+    INodeDirectory ab = dir(a, "b");
+    INodeDirectory abc = dir(ab, "c");
+    INodeDirectory d = dir(root, "d");
+    INodeDirectory de = dir(d, "e");
+
+    List<INode> inodes = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      inodes.add(dir(abc, "x" + i));
+      inodes.add(dir(de, "y" + i));
+      inodes.add(dir(a, "z" + i));
+    }
+
+    ParentDirBins bins = ParentDirBins.of(inodes, 2);
+    Map<String, Long> keys = bins.getBinKeyMap();
+    assertThat(keys.size(), is(3));
+    assertThat(keys.containsKey(ParentDirBins.NO_MAPPING), is(true));
+    for (INode node : inodes) {
+      String path = PathNames.toString(node);
+      String expected =
+          path.startsWith("/a/b/") ? "/a/b" : path.startsWith("/d/e/") ? "/d/e" : "NO_MAPPING";
+      assertThat(bins.binOf(node), is(keys.get(expected)));
+    }
+
+    ParentDirBins top = ParentDirBins.of(inodes, 1);
+    assertThat(top.getBinKeyMap().size(), is(3));
+    assertThat(top.binOf(inodes.get(0)), is(top.getBinKeyMap().get("/a")));
+    assertThat(top.binOf(inodes.get(2)), is(top.getBinKeyMap().get("/a")));
+    assertThat(top.binOf(inodes.get(1)), is(top.getBinKeyMap().get("/d")));
+
+    ParentDirBins deep = ParentDirBins.of(inodes, Integer.MAX_VALUE);
+    assertThat(deep.getBinKeyMap().size(), is(1));
+    assertThat(deep.binOf(inodes.get(0)), is(deep.getBinKeyMap().get("NO_MAPPING")));
+    assertThat(deep.binOf(root), is(deep.getBinKeyMap().get("NO_MAPPING")));
+  }
+}
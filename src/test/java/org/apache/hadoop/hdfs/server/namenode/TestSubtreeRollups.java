@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+import org.apache.hadoop.util.GSet;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSubtreeRollups {
+
+  private GSetGenerator generator;
+  private GSet<INode, INodeWithAdditionalFields> gset;
+
+  @Before
+  public void before() {
+    generator = new GSetGenerator();
+    generator.clear();
+    gset = generator.getGSet((short) 3, 4, 20);
+  }
+
+  private List<INode> dirs() {
+    List<INode> dirs = new ArrayList<>();
+    for (INode node : gset) {
+      if (node.isDirectory()) {
+        dirs.add(node);
+      }
+    }
+    return dirs;
+  }
+
+  /** Totals every directory the slow way, by walking up from every INode. */
+  private Map<INode, long[]> expectedTotals() {
+    Map<INode, long[]> expected = new HashMap<>();
+    for (INode node : gset) {
+      if (node.isDirectory()) {
+        expected.computeIfAbsent(node, dir -> new long[4]);
+      }
+    }
+    for (INode node : gset) {
+      if (node.getParent() == null && node.getId() != generator.root.getId()) {
+        continue;
+      }
+      for (INode ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+        if (ancestor == node && node.isFile()) {
+          continue;
+        }
+        long[] totals = expected.get(ancestor);
+        if (node.isFile()) {
+          long length = node.asFile().computeFileSize();
+          totals[SubtreeRollups.LENGTH] += length;
+          totals[SubtreeRollups.DISKSPACE] += length * node.asFile().getFileReplication();
+          totals[SubtreeRollups.NUM_FILES]++;
+        } else {
+          totals[SubtreeRollups.NUM_DIRS]++;
+        }
+      }
+    }
+    return expected;
+  }
+
+  private void assertTotals(SubtreeRollups rollups) {
+    Map<INode, long[]> expected = expectedTotals();
+    for (Map.Entry<INode, long[]> entry : expected.entrySet()) {
+      for (int column = 0; column < 4; column++) {
+        assertThat(rollups.get(column, entry.getKey()), is(entry.getValue()[column]));
+      }
+    }
+  }
+
+  @Test
+  public void testBuildMatchesSubtreeWalk() {
+    SubtreeRollups rollups = SubtreeRollups.build(dirs());
+    assertThat(rollups.size(), is(dirs().size()));
+    assertTotals(rollups);
+    assertThat(
+        rollups.get(SubtreeRollups.NUM_DIRS, generator.root), is((long) GSetGenerator.DIRS_MADE));
+    assertThat(
+        rollups.get(SubtreeRollups.NUM_FILES, generator.root), is((long) GSetGenerator.FILES_MADE));
+  }
+
+  @Test
+  public void testApplyFollowsEdits() throws IOException {
+    SubtreeRollups rollups = SubtreeRollups.build(dirs());
+    rollups.apply();
+    assertTotals(rollups);
+
+    // Add a directory of files under a leaf; they are found through the INode map callbacks.
+    INodeDirectory leaf = null;
+    for (INode dir : dirs()) {
+      if (PathNames.depth(dir) == 3) {
+        leaf = dir.asDirectory();
+        break;
+      }
+    }
+    Set<INode> before = new HashSet<>();
+    for (INode node : gset) {
+      before.add(node);
+    }
+    INodeDirectory added =
+        new INodeDirectory(
+            GSetGenerator.ID++, "added".getBytes(Constants.CHARSET), GSetGenerator.status, 0L);
+    leaf.addChild(added);
+    added.setParent(leaf);
+    gset.put(added);
+    generator.generateFilesForDirectory(gset, added, 5);
+    for (INode node : gset) {
+      if (!before.contains(node)) {
+        rollups.inodeAdded(node);
+      }
+    }
+    rollups.apply();
+    assertTotals(rollups);
+
+    // Delete a file; only its parent's modification time shows where it was.
+    INode file = null;
+    for (INode child : leaf.getChildrenList(Snapshot.CURRENT_STATE_ID)) {
+      if (child.isFile()) {
+        file = child;
+        break;
+      }
+    }
+    leaf.removeChild(file);
+    gset.remove(file);
+    file.setParent(null);
+    leaf.setModificationTime(leaf.getModificationTime() + 1000L, Snapshot.CURRENT_STATE_ID);
+    long leafFiles = rollups.get(SubtreeRollups.NUM_FILES, leaf);
+    rollups.inodeRemoved(file);
+    rollups.apply();
+    assertTotals(rollups);
+    assertThat(rollups.get(SubtreeRollups.NUM_FILES, leaf), is(leafFiles - 1));
+
+    // Move a directory between parents; renames do not pass through the INode map at all.
+    INodeDirectory moved = leaf.getParent();
+    INodeDirectory from = moved.getParent();
+    INodeDirectory to = null;
+    for (INode child : generator.root.getChildrenList(Snapshot.CURRENT_STATE_ID)) {
+      if (child != from && child.isDirectory()) {
+        to = child.asDirectory();
+        break;
+      }
+    }
+    long movedFiles = rollups.get(SubtreeRollups.NUM_FILES, moved);
+    long toFiles = rollups.get(SubtreeRollups.NUM_FILES, to);
+    from.removeChild(moved);
+    moved.setLocalName("moved".getBytes(Constants.CHARSET));
+    to.addChild(moved);
+    moved.setParent(to);
+    from.setModificationTime(from.getModificationTime() + 1000L, Snapshot.CURRENT_STATE_ID);
+    to.setModificationTime(to.getModificationTime() + 1000L, Snapshot.CURRENT_STATE_ID);
+    rollups.apply();
+    assertTotals(rollups);
+    assertThat(rollups.get(SubtreeRollups.NUM_FILES, to), is(toFiles + movedFiles));
+  }
+}
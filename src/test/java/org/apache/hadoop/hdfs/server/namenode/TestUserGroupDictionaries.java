@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.junit.Test;
+
+public class TestUserGroupDictionaries {
+
+  private long nextId = 16385;
+
+  private INodeDirectory dir(String user, String group) {
+    PermissionStatus status =
+        PermissionStatus.createImmutable(user, group, FsPermission.getDefault());
+    long id = nextId++;
+    return new INodeDirectory(id, ("d" + id).getBytes(Constants.CHARSET), status, 0L);
+  }
+
+  @Test
+  public void testIdsAreSortedAndStable() {
+    List<INode> inodes = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      inodes.add(dir("carol", "staff"));
+      inodes.add(dir("alice", "admin"));
+      inodes.add(dir("bob", "staff"));
+    }
+    UserGroupDictionaries dictionaries = UserGroupDictionaries.build(inodes);
+    UserGroupDictionaries.Dictionary users = dictionaries.getUsers();
+    assertThat(users.getNames(), is(new String[] {"alice", "bob", "carol"}));
+    assertThat(dictionaries.getGroups().getNames(), is(new String[] {"admin", "staff"}));
+    assertThat(dictionaries.userIdOf(inodes.get(0)), is(2));
+    assertThat(dictionaries.groupIdOf(inodes.get(1)), is(0));
+
+    INode added = dir("aaron", "admin");
+    dictionaries.inodeAdded(added);
+    assertThat(users.size(), is(4));
+    assertThat(dictionaries.userIdOf(added), is(3));
+    assertThat(users.nameOf(3), is("aaron"));
+    assertThat(users.idOf("alice"), is(0));
+    dictionaries.inodeRemoved(added);
+    assertThat(users.idOf("aaron"), is(3));
+  }
+
+  @Test
+  public void testAccumulateByIdCountsBins() {
+    List<INode> inodes = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      inodes.add(dir("alice", "admin"));
+      inodes.add(dir("bob", "staff"));
+    }
+    UserGroupDictionaries dictionaries = UserGroupDictionaries.build(inodes);
+    dictionaries.getUsers().idOf("nobody");
+    HistogramKernel.Accumulator sums =
+        HistogramKernel.accumulateById(
+            inodes, dictionaries::userIdOf, node -> 2L, HistogramKernel.Mode.SUM);
+    assertThat(sums.finish(-1L), is(new long[] {20L, 20L}));
+    assertThat(sums.getCount(0), is(10L));
+    assertThat(sums.getCount(1), is(10L));
+  }
+}
@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode.cache;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.hadoop.hdfs.server.namenode.GSetGenerator;
+import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.apache.hadoop.hdfs.server.namenode.INodeFile;
+import org.apache.hadoop.hdfs.server.namenode.JavaStreamQueryEngine;
+import org.apache.hadoop.hdfs.server.namenode.VersionContext;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestIncrementalSuggestions {
+
+  private JavaStreamQueryEngine engine;
+  private List<INode> files;
+  private List<INode> dirs;
+  private IncrementalSuggestions incremental;
+
+  @Before
+  public void before() {
+    GSetGenerator generator = new GSetGenerator();
+    generator.clear();
+    files = new ArrayList<>();
+    dirs = new ArrayList<>();
+    for (INode node : generator.getGSet((short) 3, 4, 50)) {
+      if (!node.isFile()) {
+        dirs.add(node);
+      } else if (!node.asFile().isUnderConstruction()) {
+        files.add(node);
+      }
+    }
+    engine = new JavaStreamQueryEngine();
+    engine.setContexts(null, new VersionContext());
+    incremental = new IncrementalSuggestions();
+  }
+
+  /** Take the counters of a full reload over the current files and directories. */
+  private void reload() {
+    SuggestionsAggregator aggregator = new SuggestionsAggregator(engine);
+    boolean reset =
+        incremental.reset(
+            incremental.getGeneration(),
+            aggregator,
+            aggregator.aggregateFiles(files),
+            aggregator.aggregateDirs(dirs));
+    assertThat(reset, is(true));
+  }
+
+  /** The incremental counters must match those of a full reload over the current INodes. */
+  private void assertMatchesReload() {
+    SuggestionsAggregator aggregator = new SuggestionsAggregator(engine);
+    SuggestionsAggregator.Result expectedFiles = aggregator.aggregateFiles(files);
+    SuggestionsAggregator.Result expectedDirs = aggregator.aggregateDirs(dirs);
+    for (SuggestionsAggregator.Subset subset : SuggestionsAggregator.Subset.values()) {
+      for (SuggestionsAggregator.Metric metric : SuggestionsAggregator.Metric.values()) {
+        String name = subset + "/" + metric;
+        assertThat(
+            name,
+            incremental.getFiles().getTotal(subset, metric),
+            is(expectedFiles.getTotal(subset, metric)));
+        assertThat(
+            name,
+            incremental.getDirs().getTotal(subset, metric),
+            is(expectedDirs.getTotal(subset, metric)));
+        assertThat(
+            name,
+            incremental.getFiles().getByUser(subset, metric),
+            is(expectedFiles.getByUser(subset, metric)));
+      }
+    }
+  }
+
+  /** Move a file in or out of the last 24h, so that it changes buckets. */
+  private static void moveAcross24h(INode node) {
+    long day = TimeUnit.DAYS.toMillis(1);
+    boolean recent = node.getModificationTime() >= System.currentTimeMillis() - day;
+    long modTime = System.currentTimeMillis() - (recent ? 2 * day : 0L);
+    node.setModificationTime(modTime, Snapshot.CURRENT_STATE_ID);
+  }
+
+  @Test
+  public void testApplyBeforeReloadDoesNothing() {
+    incremental.inodeAdded(files.get(0));
+    assertThat(incremental.apply(engine), is(-1));
+  }
+
+  @Test
+  public void testAdd() {
+    INode file = files.remove(0);
+    reload();
+    incremental.inodeAdded(file);
+    files.add(file);
+    assertThat(incremental.apply(engine), is(1));
+    assertMatchesReload();
+    assertThat(incremental.getTrackedCount(), is(1));
+  }
+
+  @Test
+  public void testRemove() {
+    reload();
+    INode file = files.remove(0);
+    INode dir = dirs.remove(dirs.size() - 1);
+    incremental.inodeRemoved(file);
+    incremental.inodeRemoved(dir);
+    assertThat(incremental.apply(engine), is(2));
+    assertMatchesReload();
+  }
+
+  @Test
+  public void testAddThenRemoveIsNeverCounted() {
+    INode file = files.remove(0);
+    reload();
+    incremental.inodeAdded(file);
+    incremental.inodeRemoved(file);
+    assertThat(incremental.apply(engine), is(0));
+    assertMatchesReload();
+  }
+
+  @Test
+  public void testReplaceUnderSameId() {
+    reload();
+    INode previous = files.get(0);
+    INode replacement = new INodeFile(previous.asFile());
+    moveAcross24h(replacement);
+    // As GSetSeperatorWrapper reports a put over an existing id.
+    incremental.inodeRemoved(previous);
+    incremental.inodeAdded(replacement);
+    files.set(0, replacement);
+    assertThat(incremental.apply(engine), is(2));
+    assertMatchesReload();
+
+    incremental.inodeRemoved(replacement);
+    files.remove(0);
+    assertThat(incremental.apply(engine), is(1));
+    assertMatchesReload();
+  }
+
+  @Test
+  public void testModifyInPlace() {
+    reload();
+    INode file = files.get(0);
+    incremental.inodeModifying(file);
+    moveAcross24h(file);
+    assertThat(incremental.apply(engine), is(1));
+    assertMatchesReload();
+
+    // Changed again once tracked; the tracked classification is what gets subtracted.
+    incremental.inodeModifying(file);
+    moveAcross24h(file);
+    assertThat(incremental.apply(engine), is(1));
+    assertMatchesReload();
+  }
+
+  @Test
+  public void testModifyThenRemove() {
+    reload();
+    INode file = files.remove(0);
+    incremental.inodeModifying(file);
+    moveAcross24h(file);
+    incremental.inodeRemoved(file);
+    assertThat(incremental.apply(engine), is(1));
+    assertMatchesReload();
+  }
+
+  @Test
+  public void testInvalidateStopsCountingUntilReset() {
+    reload();
+    long generation = incremental.getGeneration();
+    incremental.invalidate();
+    incremental.inodeRemoved(files.get(0));
+    assertThat(incremental.apply(engine), is(-1));
+
+    // A reload that started before the namespace was replaced is not taken.
+    SuggestionsAggregator aggregator = new SuggestionsAggregator(engine);
+    boolean reset =
+        incremental.reset(
+            generation,
+            aggregator,
+            aggregator.aggregateFiles(files),
+            aggregator.aggregateDirs(dirs));
+    assertThat(reset, is(false));
+    assertThat(incremental.apply(engine), is(-1));
+
+    reload();
+    assertThat(incremental.apply(engine), is(0));
+    assertMatchesReload();
+  }
+}
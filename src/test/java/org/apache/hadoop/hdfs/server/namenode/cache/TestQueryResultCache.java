@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode.cache;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class TestQueryResultCache {
+
+  @Test
+  public void testKeyNormalizesFilterOrder() {
+    String key1 = QueryResultCache.key("/filter", "set", "files", "filters", "a:eq:1,b:eq:2");
+    String key2 = QueryResultCache.key("/filter", "set", "files", "filters", "b:eq:2,a:eq:1");
+    String key3 = QueryResultCache.key("/filter", "set", "dirs", "filters", "a:eq:1,b:eq:2");
+    assertThat(key1, is(key2));
+    assertThat(key1.equals(key3), is(false));
+    assertThat(
+        QueryResultCache.key("/filter", "set", "files", "find", null),
+        is(QueryResultCache.key("/filter", "set", "files")));
+  }
+
+  @Test
+  public void testInvalidatesOnTxId() throws Exception {
+    AtomicLong txId = new AtomicLong(10L);
+    AtomicInteger computed = new AtomicInteger();
+    QueryResultCache cache = new QueryResultCache(txId::get, 16, 2, 0);
+
+    assertThat(cache.get("q", computed::incrementAndGet), is(1));
+    assertThat(cache.get("q", computed::incrementAndGet), is(1));
+    txId.set(12L);
+    assertThat(cache.get("q", computed::incrementAndGet), is(1));
+    txId.set(13L);
+    assertThat(cache.get("q", computed::incrementAndGet), is(2));
+    txId.set(5L);
+    assertThat(cache.get("q", computed::incrementAndGet), is(3));
+
+    assertThat(cache.getMetrics().get("hits"), is(2L));
+    assertThat(cache.getMetrics().get("misses"), is(3L));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    AtomicInteger computed = new AtomicInteger();
+    QueryResultCache cache = new QueryResultCache(() -> 1L, 2, 0, 0);
+    cache.get("a", computed::incrementAndGet);
+    cache.get("b", computed::incrementAndGet);
+    cache.get("a", computed::incrementAndGet);
+    cache.get("c", computed::incrementAndGet);
+    assertThat(computed.get(), is(3));
+
+    // "b" was least recently used and is gone; "a" is still cached.
+    assertThat(cache.get("a", computed::incrementAndGet), is(1));
+    assertThat(cache.get("b", computed::incrementAndGet), is(4));
+    assertThat(cache.getMetrics().get("evictions"), is(2L));
+    assertThat(cache.getMetrics().get("size"), is(2L));
+  }
+
+  @Test
+  public void testCoalescesConcurrentMisses() throws Exception {
+    QueryResultCache cache = new QueryResultCache(() -> 1L, 16, 0, 0);
+    AtomicInteger computed = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Integer>> results = new ArrayList<>();
+      results.add(
+          executor.submit(
+              () ->
+                  cache.get(
+                      "q",
+                      () -> {
+                        started.countDown();
+                        release.await();
+                        return computed.incrementAndGet();
+                      })));
+      started.await();
+      for (int i = 0; i < 3; i++) {
+        results.add(executor.submit(() -> cache.get("q", computed::incrementAndGet)));
+      }
+      while (cache.getMetrics().get("coalesced") < 3L) {
+        Thread.sleep(10L);
+      }
+      release.countDown();
+      for (Future<Integer> result : results) {
+        assertThat(result.get(), is(1));
+      }
+      assertThat(computed.get(), is(1));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testDoesNotCacheFailures() throws Exception {
+    QueryResultCache cache = new QueryResultCache(() -> 1L, 16, 0, 0);
+    try {
+      cache.get(
+          "q",
+          () -> {
+            throw new IllegalArgumentException("bad query");
+          });
+      fail("Expected the failure to be thrown.");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), is("bad query"));
+    }
+    assertThat(cache.get("q", () -> 7), is(7));
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    AtomicInteger computed = new AtomicInteger();
+    QueryResultCache cache = new QueryResultCache(() -> 1L, 0, 0, 0);
+    cache.get("q", computed::incrementAndGet);
+    cache.get("q", computed::incrementAndGet);
+    assertThat(computed.get(), is(2));
+  }
+}
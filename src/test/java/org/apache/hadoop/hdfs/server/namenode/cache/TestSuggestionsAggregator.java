@@ -0,0 +1,258 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.hadoop.hdfs.server.namenode.cache;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import org.apache.hadoop.hdfs.server.namenode.GSetGenerator;
+import org.apache.hadoop.hdfs.server.namenode.INode;
+import org.apache.hadoop.hdfs.server.namenode.JavaStreamQueryEngine;
+import org.apache.hadoop.hdfs.server.namenode.VersionContext;
+import org.apache.hadoop.hdfs.server.namenode.cache.SuggestionsAggregator.Subset;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks {@link SuggestionsAggregator#classify(INode)} at the size and age boundaries against the
+ * filter chains the suggestions reload ran before the aggregator replaced them.
+ */
+public class TestSuggestionsAggregator {
+
+  private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  private static final long[] SIZES = {0L, 1L, 1024L, 1025L, 1048576L, 1048577L, 134217728L};
+
+  /** Reads file sizes and child counts from fields, so any boundary can be set on one INode. */
+  private static final class BoundaryQueryEngine extends JavaStreamQueryEngine {
+    private volatile long fileSize;
+    private volatile long numChildren;
+
+    @Override // QueryEngine
+    public ToLongFunction<INode> getFilterFunctionToPrimitiveLongForINode(String filter) {
+      switch (filter) {
+        case "fileSize":
+          return node -> fileSize;
+        case "dirNumChildren":
+          return node -> numChildren;
+        default:
+          return super.getFilterFunctionToPrimitiveLongForINode(filter);
+      }
+    }
+
+    @Override // QueryEngine
+    public Function<INode, Long> getFilterFunctionToLongForINode(String filter) {
+      if (filter.equals("dirNumChildren")) {
+        return node -> numChildren;
+      }
+      return super.getFilterFunctionToLongForINode(filter);
+    }
+  }
+
+  private BoundaryQueryEngine engine;
+  private INode file;
+  private INode dir;
+  private long[] times;
+
+  @Before
+  public void before() {
+    GSetGenerator generator = new GSetGenerator();
+    generator.clear();
+    for (INode node : generator.getGSet((short) 3, 2, 5)) {
+      if (node.isDirectory() && node.getParent() != null) {
+        dir = node;
+      } else if (node.isFile() && !node.asFile().isUnderConstruction()) {
+        file = node;
+      }
+    }
+    engine = new BoundaryQueryEngine();
+    engine.setContexts(null, new VersionContext());
+    // A minute to either side of 24h, 1yr and 2yr ago; filters resolve "now" a little later.
+    long now = System.currentTimeMillis();
+    times =
+        new long[] {
+          now,
+          now - DAY + MINUTE,
+          now - DAY - MINUTE,
+          now - 365 * DAY + MINUTE,
+          now - 365 * DAY - MINUTE,
+          now - 730 * DAY + MINUTE,
+          now - 730 * DAY - MINUTE
+        };
+  }
+
+  private boolean passes(INode node, String[] filters, String[] filterOps) {
+    Collection<INode> inodes = Collections.singletonList(node);
+    return engine.combinedFilter(inodes, filters, filterOps).stream().count() == 1L;
+  }
+
+  private boolean passes(INode node, String filter, String filterOp) {
+    return passes(node, new String[] {filter}, new String[] {filterOp});
+  }
+
+  /** A size bucket and its 24h and 1yr variants, as the reload filtered them. */
+  private void addSized(
+      Set<Subset> subsets,
+      INode node,
+      String[] sizeFilters,
+      String[] sizeOps,
+      Subset bucket,
+      Subset recentBucket,
+      Subset oldBucket,
+      String ageFilter) {
+    if (!passes(node, sizeFilters, sizeOps)) {
+      return;
+    }
+    subsets.add(bucket);
+    if (passes(node, "modTime", "hoursAgo:24")) {
+      subsets.add(recentBucket);
+    }
+    if (passes(node, ageFilter, "olderThanYears:1")) {
+      subsets.add(oldBucket);
+    }
+  }
+
+  private Set<Subset> expectedFileSubsets(INode node) {
+    Set<Subset> subsets = EnumSet.of(Subset.ALL);
+    if (passes(node, "modTime", "hoursAgo:24")) {
+      subsets.add(Subset.RECENT);
+    }
+    if (passes(node, "accessTime", "olderThanYears:1")) {
+      subsets.add(Subset.OLD_1YR);
+    }
+    if (passes(node, "accessTime", "olderThanYears:2")) {
+      subsets.add(Subset.OLD_2YR);
+    }
+    String[] fileSize = {"fileSize"};
+    String[] twoFileSizes = {"fileSize", "fileSize"};
+    addSized(
+        subsets,
+        node,
+        fileSize,
+        new String[] {"eq:0"},
+        Subset.EMPTY,
+        Subset.EMPTY_24H,
+        Subset.EMPTY_1YR,
+        "accessTime");
+    addSized(
+        subsets,
+        node,
+        twoFileSizes,
+        new String[] {"lte:1024", "gt:0"},
+        Subset.TINY,
+        Subset.TINY_24H,
+        Subset.TINY_1YR,
+        "accessTime");
+    addSized(
+        subsets,
+        node,
+        twoFileSizes,
+        new String[] {"lte:1048576", "gt:1024"},
+        Subset.SMALL,
+        Subset.SMALL_24H,
+        Subset.SMALL_1YR,
+        "accessTime");
+    if (passes(node, twoFileSizes, new String[] {"lte:134217728", "gt:1048576"})) {
+      subsets.add(Subset.MEDIUM);
+    }
+    return subsets;
+  }
+
+  private Set<Subset> expectedDirSubsets(INode node) {
+    Set<Subset> subsets = EnumSet.of(Subset.ALL);
+    addSized(
+        subsets,
+        node,
+        new String[] {"dirNumChildren"},
+        new String[] {"eq:0"},
+        Subset.EMPTY,
+        Subset.EMPTY_24H,
+        Subset.EMPTY_1YR,
+        "modTime");
+    return subsets;
+  }
+
+  private static Set<Subset> toSubsets(long mask) {
+    Set<Subset> subsets = EnumSet.noneOf(Subset.class);
+    for (Subset subset : Subset.values()) {
+      if ((mask & (1L << subset.ordinal())) != 0) {
+        subsets.add(subset);
+      }
+    }
+    return subsets;
+  }
+
+  @Test
+  public void testFileBoundariesMatchFilters() throws Exception {
+    for (long size : SIZES) {
+      for (long modTime : times) {
+        for (long accessTime : times) {
+          engine.fileSize = size;
+          file.setModificationTime(modTime, Snapshot.CURRENT_STATE_ID);
+          GSetGenerator.setAccessTime(file, accessTime);
+          SuggestionsAggregator aggregator = new SuggestionsAggregator(engine);
+          String name = "size: " + size + ", modTime: " + modTime + ", accessTime: " + accessTime;
+          assertThat(name, toSubsets(aggregator.classify(file)), is(expectedFileSubsets(file)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEmptyDirsAgeByModTime() throws Exception {
+    for (long numChildren : new long[] {0L, 1L}) {
+      for (long modTime : times) {
+        engine.numChildren = numChildren;
+        dir.setModificationTime(modTime, Snapshot.CURRENT_STATE_ID);
+        // An old access time must not make an empty directory old; only its modTime does.
+        GSetGenerator.setAccessTime(dir, times[times.length - 1]);
+        SuggestionsAggregator aggregator = new SuggestionsAggregator(engine);
+        String name = "numChildren: " + numChildren + ", modTime: " + modTime;
+        assertThat(name, toSubsets(aggregator.classify(dir)), is(expectedDirSubsets(dir)));
+      }
+    }
+  }
+
+  @Test
+  public void testBoundaryBuckets() throws Exception {
+    file.setModificationTime(times[0], Snapshot.CURRENT_STATE_ID);
+    GSetGenerator.setAccessTime(file, times[0]);
+    SuggestionsAggregator aggregator = new SuggestionsAggregator(engine);
+    engine.fileSize = SuggestionsAggregator.TINY_MAX;
+    assertThat(toSubsets(aggregator.classify(file)).contains(Subset.TINY), is(true));
+    engine.fileSize = SuggestionsAggregator.TINY_MAX + 1;
+    assertThat(toSubsets(aggregator.classify(file)).contains(Subset.SMALL), is(true));
+    engine.fileSize = SuggestionsAggregator.SMALL_MAX;
+    assertThat(toSubsets(aggregator.classify(file)).contains(Subset.SMALL), is(true));
+    engine.fileSize = SuggestionsAggregator.MEDIUM_MAX;
+    assertThat(toSubsets(aggregator.classify(file)).contains(Subset.MEDIUM), is(true));
+    engine.fileSize = 0L;
+    assertThat(toSubsets(aggregator.classify(file)).contains(Subset.EMPTY), is(true));
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.apache.hadoop.hdfs.server.namenode.metrics;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class TestQueryMetrics {
+
+  @Test
+  public void testBucketHistogramIsCumulative() {
+    BucketHistogram histogram = new BucketHistogram(new double[] {1, 10, 100});
+    histogram.observe(0.5);
+    histogram.observe(1);
+    histogram.observe(5);
+    histogram.observe(100);
+    histogram.observe(1000);
+    long[] counts = histogram.getCumulativeCounts();
+    assertThat(counts.length, is(4));
+    assertThat(counts[0], is(2L));
+    assertThat(counts[1], is(3L));
+    assertThat(counts[2], is(4L));
+    assertThat(counts[3], is(5L));
+    assertThat(histogram.getSum(), is(1106.5));
+  }
+
+  @Test
+  public void testPrometheusFormat() {
+    QueryMetrics.observeEndpoint("testEndpoint", 20L);
+    QueryMetrics.observeEndpoint("testEndpoint", 3000L);
+    QueryMetrics.endpointFailed("testEndpoint");
+    QueryMetrics.observeStage("testStage", 1L);
+    QueryMetrics.observeResultSize("testQuery", 42L);
+
+    String text = QueryMetrics.toPrometheus();
+    String latency = "nna_endpoint_latency_seconds";
+    String labels = "{endpoint=\"testEndpoint\"";
+    assertThat(text.contains("# TYPE " + latency + " histogram\n"), is(true));
+    assertThat(text.contains(latency + "_bucket" + labels + ",le=\"0.01\"} 0\n"), is(true));
+    assertThat(text.contains(latency + "_bucket" + labels + ",le=\"0.025\"} 1\n"), is(true));
+    assertThat(text.contains(latency + "_bucket" + labels + ",le=\"5\"} 2\n"), is(true));
+    assertThat(text.contains(latency + "_bucket" + labels + ",le=\"+Inf\"} 2\n"), is(true));
+    assertThat(text.contains(latency + "_count" + labels + "} 2\n"), is(true));
+    assertThat(text.contains(latency + "_sum" + labels + "} 3.02\n"), is(true));
+    assertThat(text.contains("nna_endpoint_errors_total" + labels + "} 1\n"), is(true));
+    assertThat(
+        text.contains("nna_stage_latency_seconds_bucket{stage=\"testStage\",le=\"0.001\"} 1\n"),
+        is(true));
+    assertThat(
+        text.contains("nna_query_result_size_bucket{query=\"testQuery\",le=\"100\"} 1\n"),
+        is(true));
+    assertThat(text.contains("# TYPE nna_scanned_inodes_total counter\n"), is(true));
+  }
+}